@@ -0,0 +1,180 @@
+package com.gelakinetic.mtgfam;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
+import com.gelakinetic.mtgfam.helpers.SearchCriteria;
+import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
+import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
+import com.gelakinetic.mtgfam.helpers.database.DatabaseSchema;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbHandle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Check that the queries which should use the secondary indexes actually do, with EXPLAIN QUERY PLAN.
+ * The queries are the ones CardDbAdapter builds, recorded by a CursorFactory on a second connection
+ * to the same database
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class DatabaseIndexTests {
+
+    private static final String QUERY_PREFIX = "SQLiteQuery: ";
+
+    private final FamiliarDbHandle mHandle = new FamiliarDbHandle();
+    private final List<String> mQueries = new ArrayList<>();
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() throws FamiliarDbException {
+        /* Make sure the database is inflated and upgraded */
+        Context context = InstrumentationRegistry.getTargetContext();
+        DatabaseManager.openDatabase(context, false, mHandle);
+
+        /* Then open it again, recording every query */
+        mDatabase = SQLiteDatabase.openDatabase(
+                context.getDatabasePath(PreferenceAdapter.getDatabaseName(context)).getPath(),
+                (db, masterQuery, editTable, query) -> {
+                    String sql = query.toString();
+                    mQueries.add(sql.startsWith(QUERY_PREFIX) ? sql.substring(QUERY_PREFIX.length()) : sql);
+                    return new SQLiteCursor(masterQuery, editTable, query);
+                }, SQLiteDatabase.OPEN_READWRITE);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+        DatabaseManager.closeDatabase(InstrumentationRegistry.getTargetContext(), mHandle);
+    }
+
+    /**
+     * Assert that the query plan for the last query CardDbAdapter made mentions the given index
+     *
+     * @param index The name of the index which should be used
+     */
+    private void assertLastQueryUsesIndex(String index) {
+        assertFalse(mQueries.isEmpty());
+        String query = mQueries.get(mQueries.size() - 1);
+
+        StringBuilder plan = new StringBuilder(query).append('\n');
+        Cursor cursor = null;
+        try {
+            /* Unbound parameters are NULL, which doesn't change which indexes are chosen */
+            cursor = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + query, null);
+            int detailIdx = cursor.getColumnIndex("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detailIdx)).append('\n');
+            }
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+        assertTrue(plan.toString(), plan.toString().contains("INDEX " + index));
+    }
+
+    /**
+     * Run a search and close its cursor, so only the query is left to explain
+     *
+     * @param criteria What to search for
+     * @throws FamiliarDbException If the search fails
+     */
+    private void search(SearchCriteria criteria) throws FamiliarDbException {
+        Cursor cursor = CardDbAdapter.Search(criteria, false, new String[]{CardDbAdapter.KEY_NAME},
+                false, null, mDatabase);
+        if (null != cursor) {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void nameNoAccent_UsesIndex() throws FamiliarDbException {
+        Cursor cursor = CardDbAdapter.fetchCardByName("Lightning Bolt",
+                Collections.singletonList(CardDbAdapter.DATABASE_TABLE_CARDS + "." + CardDbAdapter.KEY_NAME),
+                false, false, false, mDatabase);
+        cursor.close();
+        assertLastQueryUsesIndex(DatabaseSchema.INDEX_CARDS_NAME_NO_ACCENT);
+    }
+
+    @Test
+    public void setAndNumber_UsesIndex() throws FamiliarDbException {
+        CardDbAdapter.getIdFromSetAndNumber("M10", "141", mDatabase);
+        assertLastQueryUsesIndex(DatabaseSchema.INDEX_CARDS_SET_NUMBER);
+    }
+
+    @Test
+    public void name_UsesIndex() throws FamiliarDbException {
+        CardDbAdapter.getIdFromName("Lightning Bolt", mDatabase);
+        assertLastQueryUsesIndex(DatabaseSchema.INDEX_CARDS_NAME);
+    }
+
+    @Test
+    public void multiverseId_UsesIndex() throws FamiliarDbException {
+        Cursor cursor = CardDbAdapter.fetchCardByMultiverseId(191089,
+                new String[]{CardDbAdapter.DATABASE_TABLE_CARDS + "." + CardDbAdapter.KEY_NAME}, mDatabase);
+        cursor.close();
+        assertLastQueryUsesIndex(DatabaseSchema.INDEX_CARDS_MULTIVERSEID);
+    }
+
+    @Test
+    public void legalSets_UsesIndex() throws FamiliarDbException {
+        SearchCriteria criteria = new SearchCriteria();
+        criteria.name = "Ponder";
+        criteria.format = "Modern";
+        search(criteria);
+        assertLastQueryUsesIndex(DatabaseSchema.INDEX_LEGAL_SETS_FORMAT_SET);
+    }
+
+    @Test
+    public void bannedCards_UsesIndex() throws FamiliarDbException {
+        SearchCriteria criteria = new SearchCriteria();
+        criteria.name = "Ponder";
+        criteria.format = "Modern";
+        search(criteria);
+        assertLastQueryUsesIndex(DatabaseSchema.INDEX_BANNED_CARDS_FORMAT_NAME);
+    }
+
+    @Test
+    public void colorMask_UsesIndex() throws FamiliarDbException {
+        SearchCriteria criteria = new SearchCriteria();
+        criteria.color = "WUbrgl";
+        criteria.colorLogic = 3;
+        search(criteria);
+        assertLastQueryUsesIndex(DatabaseSchema.INDEX_CARDS_COLOR_MASK);
+    }
+
+    @Test
+    public void colorIdentityMask_UsesIndex() throws FamiliarDbException {
+        SearchCriteria criteria = new SearchCriteria();
+        criteria.colorIdentity = "Wubrgl";
+        criteria.colorIdentityLogic = 1;
+        search(criteria);
+        assertLastQueryUsesIndex(DatabaseSchema.INDEX_CARDS_COLOR_IDENTITY_MASK);
+    }
+
+    @Test
+    public void typeToken_UsesIndex() throws FamiliarDbException {
+        SearchCriteria criteria = new SearchCriteria();
+        criteria.subTypes = Collections.singletonList("Goblin");
+        search(criteria);
+        assertLastQueryUsesIndex(DatabaseSchema.INDEX_CARD_TYPES_TOKEN_KIND);
+    }
+}
@@ -0,0 +1,160 @@
+package com.gelakinetic.mtgfam;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.MediumTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
+import com.gelakinetic.mtgfam.helpers.SearchCriteria;
+import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
+import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbHandle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+
+/**
+ * Check that CardDbAdapter binds its arguments. Lookups for different cards should send SQLite the
+ * same SQL, so the statement is prepared once and then comes out of the statement cache, and they
+ * should find the same rows as the query with the value inlined
+ */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public class QueryCacheTests {
+
+    private static final String QUERY_PREFIX = "SQLiteQuery: ";
+    private static final String[] NAMES = {"Lightning Bolt", "Counterspell", "Llanowar Elves",
+            "Dark Ritual", "Swords to Plowshares", "Giant Growth", "Shock", "Ponder"};
+    /* Search splits names on spaces, so only one word names share a query shape */
+    private static final String[] WORDS = {"Bolt", "Counterspell", "Elves", "Ritual", "Plowshares",
+            "Growth", "Shock", "Ponder"};
+
+    private final FamiliarDbHandle mHandle = new FamiliarDbHandle();
+    private final List<String> mQueries = new ArrayList<>();
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() throws FamiliarDbException {
+        /* Make sure the database is inflated and upgraded */
+        Context context = InstrumentationRegistry.getTargetContext();
+        DatabaseManager.openDatabase(context, false, mHandle);
+
+        /* Then open it again, recording every query */
+        mDatabase = SQLiteDatabase.openDatabase(
+                context.getDatabasePath(PreferenceAdapter.getDatabaseName(context)).getPath(),
+                (db, masterQuery, editTable, query) -> {
+                    String sql = query.toString();
+                    mQueries.add(sql.startsWith(QUERY_PREFIX) ? sql.substring(QUERY_PREFIX.length()) : sql);
+                    return new SQLiteCursor(masterQuery, editTable, query);
+                }, SQLiteDatabase.OPEN_READWRITE);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+        DatabaseManager.closeDatabase(InstrumentationRegistry.getTargetContext(), mHandle);
+    }
+
+    /**
+     * Count a cursor's rows, then close it
+     *
+     * @param cursor The cursor to count
+     * @return The number of rows, or 0 for a null cursor
+     */
+    private static int countAndClose(Cursor cursor) {
+        if (null == cursor) {
+            return 0;
+        }
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Assert that every recorded query has the same SQL, and that none of the values were inlined
+     *
+     * @param values The values which were looked up, one query each
+     */
+    private void assertQueriesShareSql(String[] values) {
+        assertEquals(values.length, mQueries.size());
+        assertEquals(mQueries.toString(), 1, new HashSet<>(mQueries).size());
+        for (String value : values) {
+            assertFalse(mQueries.get(0), mQueries.get(0).contains(value));
+        }
+    }
+
+    @Test
+    public void fetchCardByName_BindsName() throws FamiliarDbException {
+        List<String> fields = Collections.singletonList(
+                CardDbAdapter.DATABASE_TABLE_CARDS + "." + CardDbAdapter.KEY_ID);
+
+        List<Integer> boundRows = new ArrayList<>();
+        for (String name : NAMES) {
+            boundRows.add(countAndClose(
+                    CardDbAdapter.fetchCardByName(name, fields, false, false, false, mDatabase)));
+        }
+        assertQueriesShareSql(NAMES);
+
+        /* The same query with the name inlined should find the same cards */
+        String boundSql = mQueries.get(0);
+        for (int i = 0; i < NAMES.length; i++) {
+            int inlinedRows = countAndClose(mDatabase.rawQuery(
+                    boundSql.replace("?", DatabaseUtils.sqlEscapeString(NAMES[i])), null));
+            assertEquals(NAMES[i], inlinedRows, (int) boundRows.get(i));
+        }
+    }
+
+    @Test
+    public void search_BindsName() throws FamiliarDbException {
+        for (String word : WORDS) {
+            SearchCriteria criteria = new SearchCriteria();
+            criteria.name = word;
+            countAndClose(CardDbAdapter.Search(criteria, false,
+                    new String[]{CardDbAdapter.KEY_NAME}, false, null, mDatabase));
+        }
+        assertQueriesShareSql(WORDS);
+    }
+
+    @Test
+    public void searchPage_BindsPreviousPage() throws FamiliarDbException {
+        SearchCriteria criteria = new SearchCriteria();
+        criteria.name = "e";
+        String[] returnTypes = {CardDbAdapter.KEY_ID, CardDbAdapter.KEY_NAME, CardDbAdapter.KEY_CMC};
+        String orderBy = CardDbAdapter.KEY_CMC + " DESC," + CardDbAdapter.KEY_NAME + " ASC";
+
+        /* The first page doesn't have a keyset, so only record the ones after it */
+        Cursor page = CardDbAdapter.searchPage(criteria, false, returnTypes, false, orderBy,
+                null, mDatabase);
+        mQueries.clear();
+        String[] lastNames = new String[3];
+        for (int i = 0; i < lastNames.length; i++) {
+            assertEquals(CardDbAdapter.SEARCH_PAGE_SIZE, page.getCount());
+            page.moveToLast();
+            lastNames[i] = page.getString(page.getColumnIndex(CardDbAdapter.KEY_NAME));
+            Cursor nextPage = CardDbAdapter.searchPage(criteria, false, returnTypes, false,
+                    orderBy, page, mDatabase);
+            page.close();
+            page = nextPage;
+        }
+        page.close();
+        assertQueriesShareSql(lastNames);
+    }
+}
@@ -0,0 +1,166 @@
+package com.gelakinetic.mtgfam.helpers.database;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.gelakinetic.mtgfam.R;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Time inflating the packaged database the old way, with a 1 KB buffer, and the new way. Then
+ * re-encode it at different compression levels, and uncompressed, to see what each would cost in
+ * APK size and time to first search
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class DatabaseInflateTests {
+
+    private static final String TAG = "DatabaseInflateTests";
+
+    private byte[] mPackaged;
+    private byte[] mDatabase;
+    private File mOutput;
+
+    @Before
+    public void setUp() throws IOException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        try (InputStream stream = context.getResources().openRawResource(R.raw.datagz)) {
+            mPackaged = readFully(stream);
+        }
+        try (InputStream stream = new GZIPInputStream(new ByteArrayInputStream(mPackaged))) {
+            mDatabase = readFully(stream);
+        }
+        mOutput = new File(context.getCacheDir(), "inflate_test");
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mOutput.delete();
+    }
+
+    /**
+     * @param stream A stream to read
+     * @return Everything in the stream
+     */
+    private static byte[] readFully(InputStream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[DatabaseHelper.INFLATE_BUFFER_SIZE];
+        int length;
+        while ((length = stream.read(buffer)) != -1) {
+            bytes.write(buffer, 0, length);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param level The deflate level, from 1 to 9
+     * @return The database gzipped at that level
+     */
+    private byte[] gzip(int level) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gos = new GZIPOutputStream(bytes, DatabaseHelper.INFLATE_BUFFER_SIZE) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            gos.write(mDatabase);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Inflate the way the database used to be inflated
+     *
+     * @param compressed The gzipped database
+     */
+    private void inflateOld(byte[] compressed) throws IOException {
+        GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        FileOutputStream fos = new FileOutputStream(mOutput);
+        byte[] buffer = new byte[1024];
+        int length;
+        while ((length = gis.read(buffer)) > 0) {
+            fos.write(buffer, 0, length);
+        }
+        fos.flush();
+        fos.getFD().sync();
+        fos.close();
+        gis.close();
+    }
+
+    /**
+     * Copy the uncompressed database, as if it were shipped uncompressed
+     */
+    private void copyStored() throws IOException {
+        try (OutputStream fos = new FileOutputStream(mOutput)) {
+            int offset = 0;
+            while (offset < mDatabase.length) {
+                int length = Math.min(DatabaseHelper.INFLATE_BUFFER_SIZE, mDatabase.length - offset);
+                fos.write(mDatabase, offset, length);
+                offset += length;
+            }
+            ((FileOutputStream) fos).getFD().sync();
+        }
+    }
+
+    @Test
+    public void inflate_IsFasterThanBefore() throws IOException {
+        long start = System.currentTimeMillis();
+        inflateOld(mPackaged);
+        long oldMs = System.currentTimeMillis() - start;
+        assertEquals(mDatabase.length, mOutput.length());
+
+        int[] lastPercent = {-1};
+        start = System.currentTimeMillis();
+        DatabaseHelper.inflate(new ByteArrayInputStream(mPackaged), mPackaged.length, mOutput,
+                percent -> {
+                    assertTrue(percent >= lastPercent[0]);
+                    lastPercent[0] = percent;
+                });
+        long newMs = System.currentTimeMillis() - start;
+        assertEquals(mDatabase.length, mOutput.length());
+        assertEquals(100, lastPercent[0]);
+
+        Log.i(TAG, "1 KB buffer: " + oldMs + "ms, " + (DatabaseHelper.INFLATE_BUFFER_SIZE / 1024) +
+                " KB buffer: " + newMs + "ms");
+        assertTrue(newMs <= oldMs);
+    }
+
+    @Test
+    public void shippedEncodings_Benchmark() throws IOException {
+        for (int level : new int[]{1, 6, 9}) {
+            byte[] compressed = gzip(level);
+            long start = System.currentTimeMillis();
+            DatabaseHelper.inflate(new ByteArrayInputStream(compressed), compressed.length, mOutput, null);
+            long ms = System.currentTimeMillis() - start;
+            assertEquals(mDatabase.length, mOutput.length());
+            Log.i(TAG, "gzip level " + level + ": " + compressed.length + " bytes, " + ms + "ms");
+        }
+
+        long start = System.currentTimeMillis();
+        copyStored();
+        long ms = System.currentTimeMillis() - start;
+        assertEquals(mDatabase.length, mOutput.length());
+        Log.i(TAG, "uncompressed: " + mDatabase.length + " bytes, " + ms + "ms");
+    }
+}
@@ -0,0 +1,361 @@
+package com.gelakinetic.mtgfam.helpers.updaters;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.MediumTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.gelakinetic.GathererScraper.JsonTypes.BinaryPatch;
+import com.gelakinetic.GathererScraper.JsonTypes.Card;
+import com.gelakinetic.GathererScraper.JsonTypes.CardTypeAdapter;
+import com.gelakinetic.GathererScraper.JsonTypes.Expansion;
+import com.gelakinetic.GathererScraper.JsonTypes.Manifest;
+import com.gelakinetic.GathererScraper.PrefixedFieldNamingStrategy;
+import com.gelakinetic.mtgfam.FamiliarActivity;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Download fixture patches from a local HTTP server, one at a time and then concurrently. Every
+ * response is delayed to stand in for a network round trip, and the first request for one patch
+ * fails, so the retry is exercised too. Every other patch is also offered in the binary format
+ */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public class PatchDownloaderTests {
+
+    private static final int NUM_PATCHES = 24;
+    private static final int CARDS_PER_PATCH = 50;
+    private static final long LATENCY_MS = 100;
+    private static final String FLAKY_PATH = "/patches/T04.json.gz";
+    private static final CardTypeAdapter CARD_ADAPTER = new CardTypeAdapter();
+
+    private final Map<String, byte[]> mFiles = new HashMap<>();
+    private final Set<String> mFailedOnce = new HashSet<>();
+    private final Map<String, Integer> mRequestCounts = new HashMap<>();
+    private ServerSocket mServerSocket;
+    private String mBaseUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mBaseUrl = "http://127.0.0.1:" + mServerSocket.getLocalPort();
+
+        /* Build the fixture manifest and gzipped patches */
+        StringBuilder manifest = new StringBuilder("{\"timestamp\":1,\"patches\":[");
+        for (int i = 0; i < NUM_PATCHES; i++) {
+            String code = String.format("T%02d", i);
+            String path = "/patches/" + code + ".json.gz";
+            if (i > 0) {
+                manifest.append(',');
+            }
+            manifest.append("{\"name\":\"Test Set ").append(i).append("\",\"uRL\":\"").append(mBaseUrl)
+                    .append(path).append("\",\"code\":\"").append(code).append("\",\"digest\":\"digest")
+                    .append(code).append("\"");
+
+            String expansion = "{\"name_gatherer\":\"Test Set " + i + "\",\"code_gatherer\":\"" + code +
+                    "\",\"digest\":\"digest" + code + "\"}";
+            StringBuilder patch = new StringBuilder("{\"expansion\":").append(expansion).append(",\"cards\":[");
+            ArrayList<Card> cards = new ArrayList<>();
+            for (int j = 0; j < CARDS_PER_PATCH; j++) {
+                if (j > 0) {
+                    patch.append(',');
+                }
+                String card = "{\"name\":\"Card " + j + "\",\"expansion\":\"" + code + "\",\"number\":\"" + j + "\"}";
+                patch.append(card);
+                cards.add(CARD_ADAPTER.fromJson(card));
+            }
+            patch.append("]}");
+            mFiles.put(path, gzip(patch.toString().getBytes("UTF-8")));
+
+            if (i % 2 == 1) {
+                String binaryPath = "/patches/" + code + ".bin.gz";
+                manifest.append(",\"binaryURL\":\"").append(mBaseUrl).append(binaryPath)
+                        .append("\",\"binaryVersion\":").append(BinaryPatch.VERSION);
+                ByteArrayOutputStream binary = new ByteArrayOutputStream();
+                BinaryPatch.write(binary, expansion, cards);
+                mFiles.put(binaryPath, gzip(binary.toByteArray()));
+            }
+            manifest.append('}');
+        }
+        manifest.append("]}");
+        mFiles.put("/patches.json", manifest.toString().getBytes("UTF-8"));
+
+        clearPatchCache();
+        new Thread(this::serve).start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServerSocket.close();
+        clearPatchCache();
+    }
+
+    /**
+     * Delete every cached patch, so the next download really downloads
+     */
+    private static void clearPatchCache() {
+        File[] files = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), PatchCache.CACHE_DIR).listFiles();
+        if (null != files) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @param content Bytes to compress
+     * @return The gzipped bytes
+     */
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gos = new GZIPOutputStream(bytes);
+        gos.write(content);
+        gos.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Accept connections until the server socket is closed, and answer each on its own thread
+     */
+    private void serve() {
+        try {
+            while (true) {
+                Socket socket = mServerSocket.accept();
+                new Thread(() -> respond(socket)).start();
+            }
+        } catch (IOException e) {
+            /* The socket was closed, the test is over */
+        }
+    }
+
+    /**
+     * Answer a single GET request with one of the fixture files, after a delay
+     *
+     * @param socket The connection to answer
+     */
+    private void respond(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String path = reader.readLine().split(" ")[1];
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                /* Skip the headers */
+            }
+            Thread.sleep(LATENCY_MS);
+
+            byte[] body = mFiles.get(path);
+            String status = "200 OK";
+            synchronized (mRequestCounts) {
+                Integer count = mRequestCounts.get(path);
+                mRequestCounts.put(path, (null == count) ? 1 : count + 1);
+            }
+            synchronized (mFailedOnce) {
+                if (FLAKY_PATH.equals(path) && mFailedOnce.add(path)) {
+                    status = "503 Service Unavailable";
+                    body = new byte[0];
+                }
+            }
+            if (null == body) {
+                status = "404 Not Found";
+                body = new byte[0];
+            }
+
+            OutputStream out = socket.getOutputStream();
+            out.write(("HTTP/1.1 " + status + "\r\nContent-Length: " + body.length +
+                    "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+            out.write(body);
+            out.flush();
+            socket.close();
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Download and parse the fixture manifest
+     *
+     * @return The patches in the manifest
+     */
+    private List<Manifest.ManifestEntry> readManifest() throws IOException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        InputStream stream = FamiliarActivity.getHttpInputStream(mBaseUrl + "/patches.json", null, context);
+        assertNotNull(stream);
+        Gson gson = new GsonBuilder().setFieldNamingStrategy(new PrefixedFieldNamingStrategy("m")).create();
+        Manifest manifest = gson.fromJson(new InputStreamReader(stream, "UTF-8"), Manifest.class);
+        stream.close();
+        assertEquals(NUM_PATCHES, manifest.mPatches.size());
+        return manifest.mPatches;
+    }
+
+    /**
+     * Write a patch, and check that it has the expansion and cards it should
+     *
+     * @param entry The patch's manifest entry
+     * @param patch The downloaded patch
+     */
+    private static void assertPatchWrites(Manifest.ManifestEntry entry, PatchDownloader.DownloadedPatch patch)
+            throws IOException, InterruptedException, FamiliarDbException {
+        assertNotNull(entry.mName, patch);
+        assertTrue(entry == patch.mEntry);
+
+        ArrayList<Expansion> expansions = new ArrayList<>();
+        ArrayList<Card> cards = new ArrayList<>();
+        patch.writeTo(new CardAndSetParser.PatchConsumer() {
+            @Override
+            public void onExpansion(Expansion expansion) {
+                expansions.add(expansion);
+            }
+
+            @Override
+            public void onCard(Card card) {
+                cards.add(card);
+            }
+        });
+        assertEquals(1, expansions.size());
+        assertEquals(entry.mCode, expansions.get(0).mCode_gatherer);
+        assertEquals(CARDS_PER_PATCH, cards.size());
+        for (int i = 0; i < CARDS_PER_PATCH; i++) {
+            assertEquals("Card " + i, cards.get(i).getName());
+            assertEquals(entry.mCode, cards.get(i).getExpansion());
+        }
+        assertEquals(100, patch.getProgress());
+    }
+
+    /**
+     * Download every patch in the fixture manifest
+     *
+     * @param threads How many patches to download at once
+     * @return How long it took, in milliseconds
+     */
+    private long downloadAll(int threads) throws IOException, InterruptedException, FamiliarDbException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mFailedOnce.clear();
+
+        long start = System.currentTimeMillis();
+        List<Manifest.ManifestEntry> entries = readManifest();
+
+        PatchDownloader downloader = new PatchDownloader(context, entries, null, threads, 10);
+        try {
+            for (Manifest.ManifestEntry entry : entries) {
+                assertPatchWrites(entry, downloader.next());
+            }
+        } finally {
+            downloader.close();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    @Test
+    public void concurrentDownloads_ReturnPatchesInOrder() throws IOException, InterruptedException, FamiliarDbException {
+        long serialMs = downloadAll(1);
+        clearPatchCache();
+        long concurrentMs = downloadAll(PatchDownloader.MAX_CONCURRENT_DOWNLOADS);
+
+        Log.i("PatchDownloaderTests", "One at a time: " + serialMs + "ms, " +
+                PatchDownloader.MAX_CONCURRENT_DOWNLOADS + " at a time: " + concurrentMs + "ms");
+        assertTrue(concurrentMs < serialMs);
+    }
+
+    @Test
+    public void cachedPatches_AreNotDownloadedAgain() throws IOException, InterruptedException, FamiliarDbException {
+        downloadAll(PatchDownloader.MAX_CONCURRENT_DOWNLOADS);
+        Map<String, Integer> firstCounts = new HashMap<>(mRequestCounts);
+        downloadAll(PatchDownloader.MAX_CONCURRENT_DOWNLOADS);
+
+        /* Only the manifest is fetched again */
+        assertEquals(Integer.valueOf(2), mRequestCounts.get("/patches.json"));
+        for (String path : mFiles.keySet()) {
+            if (!path.equals("/patches.json")) {
+                assertEquals(path, firstCounts.get(path), mRequestCounts.get(path));
+            }
+        }
+    }
+
+    /**
+     * Serve a corrupt binary patch for T01, then check that it fails to parse and that the JSON
+     * patch is downloaded instead
+     *
+     * @param body The bytes after the binary patch's magic bytes and version
+     */
+    private void assertCorruptBinaryPatchFallsBack(byte[] body) throws IOException, InterruptedException, FamiliarDbException {
+        ByteArrayOutputStream corrupt = new ByteArrayOutputStream();
+        corrupt.write(BinaryPatch.MAGIC);
+        corrupt.write(BinaryPatch.VERSION);
+        corrupt.write(body);
+        mFiles.put("/patches/T01.bin.gz", gzip(corrupt.toByteArray()));
+
+        List<Manifest.ManifestEntry> entries = readManifest().subList(0, 2);
+        PatchDownloader downloader = new PatchDownloader(InstrumentationRegistry.getTargetContext(),
+                entries, null, 1, 10);
+        try {
+            assertPatchWrites(entries.get(0), downloader.next());
+
+            PatchDownloader.DownloadedPatch binaryPatch = downloader.next();
+            assertNotNull(binaryPatch);
+            try {
+                binaryPatch.writeTo(new CardAndSetParser.PatchConsumer() {
+                    @Override
+                    public void onExpansion(Expansion expansion) {
+                    }
+
+                    @Override
+                    public void onCard(Card card) {
+                    }
+                });
+                fail("The corrupt binary patch was parsed");
+            } catch (IOException e) {
+                /* Expected */
+            }
+            assertTrue(binaryPatch.shouldFallBackToJson());
+
+            assertPatchWrites(entries.get(1), downloader.downloadJson(entries.get(1)));
+            assertEquals(Integer.valueOf(1), mRequestCounts.get("/patches/T01.json.gz"));
+        } finally {
+            downloader.close();
+        }
+    }
+
+    @Test
+    public void corruptBinaryPatch_FallsBackToJson() throws IOException, InterruptedException, FamiliarDbException {
+        /* A binary patch with the right header, but nothing parsable after it */
+        assertCorruptBinaryPatchFallsBack(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+    }
+
+    @Test
+    public void oversizedBinaryPatchLength_FallsBackToJson() throws IOException, InterruptedException, FamiliarDbException {
+        /* The expansion's length prefix is Integer.MAX_VALUE, which must not be allocated */
+        assertCorruptBinaryPatchFallsBack(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07});
+    }
+}
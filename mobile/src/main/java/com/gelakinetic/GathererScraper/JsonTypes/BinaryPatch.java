@@ -0,0 +1,365 @@
+/*
+ * Copyright 2019 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.GathererScraper.JsonTypes;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A compact binary encoding of a card patch. Like a JSON patch, it's gzipped on the server. Inside:
+ * <p>
+ * The magic bytes "MTGP", then the format version as a varint. Then the expansion, as JSON text,
+ * since there's only one per patch. Then a dictionary of strings which repeat between cards, like
+ * types, artists, and set codes. Then the number of cards, and the cards themselves.
+ * <p>
+ * Each card is its fields in a fixed order. Repeating strings are varint indexes into the
+ * dictionary, other strings are a varint length and UTF-8 bytes. In both cases, 0 is null and
+ * everything else is off by one. Integers are zigzag varints, power and toughness are 32 bit
+ * floats, and foreign printings are a varint count, then each printing.
+ * <p>
+ * Cards are read straight into Card's fields, without reflection.
+ */
+public class BinaryPatch {
+
+    /* The first bytes of every binary patch, after it's decompressed */
+    public static final byte[] MAGIC = {'M', 'T', 'G', 'P'};
+
+    /* The newest format version this class can read and write */
+    public static final int VERSION = 1;
+
+    /* Limits on the sizes read from a patch, so a corrupt one can't allocate unbounded memory */
+    private static final int MAX_TEXT_LENGTH = 1 << 20;
+    private static final int MAX_COUNT = 1 << 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final InputStream mStream;
+    private final String mExpansionJson;
+    private final String[] mDictionary;
+    private final int mCardCount;
+    private int mCardsRead = 0;
+    private byte[] mBuffer = new byte[256];
+
+    /**
+     * Read the header of a binary patch. The magic bytes must already have been read
+     *
+     * @param stream The decompressed patch, positioned after the magic bytes. It should be buffered
+     * @throws IOException If the stream fails, or the patch is a version this class can't read
+     */
+    public BinaryPatch(InputStream stream) throws IOException {
+        mStream = stream;
+        int version = readVarint();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported binary patch version " + version);
+        }
+        mExpansionJson = readText();
+        mDictionary = new String[readSize(MAX_COUNT)];
+        for (int i = 0; i < mDictionary.length; i++) {
+            mDictionary[i] = readText();
+        }
+        mCardCount = readSize(MAX_COUNT);
+    }
+
+    /**
+     * @return The expansion, as JSON text
+     */
+    public String getExpansionJson() {
+        return mExpansionJson;
+    }
+
+    /**
+     * @return true if there are more cards to read
+     */
+    public boolean hasNextCard() {
+        return mCardsRead < mCardCount;
+    }
+
+    /**
+     * Read the next card
+     *
+     * @return The card
+     * @throws IOException If the stream fails, or the patch is malformed
+     */
+    public Card nextCard() throws IOException {
+        Card card = new Card();
+        card.mName = readText();
+        card.mManaCost = readWord();
+        card.mCmc = readSignedVarint();
+        card.mType = readWord();
+        card.mText = readText();
+        card.mFlavor = readText();
+        card.mExpansion = readWord();
+        card.mRarity = (char) readVarint();
+        card.mNumber = readText();
+        card.mArtist = readWord();
+        card.mColor = readWord();
+        card.mColorIdentity = readWord();
+        card.mMultiverseId = readSignedVarint();
+        card.mPower = readFloat();
+        card.mToughness = readFloat();
+        card.mLoyalty = readSignedVarint();
+        int printings = readSize(MAX_COUNT);
+        for (int i = 0; i < printings; i++) {
+            String languageCode = readWord();
+            String name = readText();
+            int multiverseId = readSignedVarint();
+            card.mForeignPrintings.add(new Card.ForeignPrinting(name, languageCode, multiverseId));
+        }
+        card.mWatermark = readWord();
+        mCardsRead++;
+        return card;
+    }
+
+    /**
+     * Write a binary patch. It should be gzipped afterwards, like a JSON patch
+     *
+     * @param stream        Where to write the patch
+     * @param expansionJson The expansion, as JSON text
+     * @param cards         The cards in the expansion
+     * @throws IOException If the stream fails
+     */
+    public static void write(OutputStream stream, String expansionJson, List<Card> cards) throws IOException {
+        /* Build the dictionary from every repeating field */
+        HashMap<String, Integer> indexes = new HashMap<>();
+        ArrayList<String> dictionary = new ArrayList<>();
+        for (Card card : cards) {
+            for (String word : new String[]{card.mManaCost, card.mType, card.mExpansion, card.mArtist,
+                    card.mColor, card.mColorIdentity, card.mWatermark}) {
+                addWord(word, indexes, dictionary);
+            }
+            for (Card.ForeignPrinting printing : card.mForeignPrintings) {
+                addWord(printing.getLanguageCode(), indexes, dictionary);
+            }
+        }
+
+        stream.write(MAGIC);
+        writeVarint(stream, VERSION);
+        writeText(stream, expansionJson);
+        writeVarint(stream, dictionary.size());
+        for (String word : dictionary) {
+            writeText(stream, word);
+        }
+        writeVarint(stream, cards.size());
+        for (Card card : cards) {
+            writeText(stream, card.mName);
+            writeWord(stream, card.mManaCost, indexes);
+            writeSignedVarint(stream, card.mCmc);
+            writeWord(stream, card.mType, indexes);
+            writeText(stream, card.mText);
+            writeText(stream, card.mFlavor);
+            writeWord(stream, card.mExpansion, indexes);
+            writeVarint(stream, card.mRarity);
+            writeText(stream, card.mNumber);
+            writeWord(stream, card.mArtist, indexes);
+            writeWord(stream, card.mColor, indexes);
+            writeWord(stream, card.mColorIdentity, indexes);
+            writeSignedVarint(stream, card.mMultiverseId);
+            writeFloat(stream, card.mPower);
+            writeFloat(stream, card.mToughness);
+            writeSignedVarint(stream, card.mLoyalty);
+            writeVarint(stream, card.mForeignPrintings.size());
+            for (Card.ForeignPrinting printing : card.mForeignPrintings) {
+                writeWord(stream, printing.getLanguageCode(), indexes);
+                writeText(stream, printing.getName());
+                writeSignedVarint(stream, printing.getMultiverseId());
+            }
+            writeWord(stream, card.mWatermark, indexes);
+        }
+    }
+
+    /**
+     * Add a string to the dictionary, if it isn't there already
+     *
+     * @param word       The string to add, may be null
+     * @param indexes    Each string's index in the dictionary
+     * @param dictionary The dictionary, in order
+     */
+    private static void addWord(String word, HashMap<String, Integer> indexes, ArrayList<String> dictionary) {
+        if (null != word && !indexes.containsKey(word)) {
+            indexes.put(word, dictionary.size());
+            dictionary.add(word);
+        }
+    }
+
+    /**
+     * @return The next byte
+     * @throws IOException If the stream fails or ends
+     */
+    private int readByte() throws IOException {
+        int read = mStream.read();
+        if (read < 0) {
+            throw new EOFException();
+        }
+        return read;
+    }
+
+    /**
+     * @return An unsigned varint, 7 bits per byte, least significant first
+     * @throws IOException If the stream fails or ends
+     */
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int read = readByte();
+            value |= (read & 0x7F) << shift;
+            if (0 == (read & 0x80)) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * @param max The largest size allowed
+     * @return An unsigned varint which is used as a size
+     * @throws IOException If the stream fails or ends, or the size is negative or larger than max
+     */
+    private int readSize(int max) throws IOException {
+        int size = readVarint();
+        if (size < 0 || size > max) {
+            throw new IOException("Size out of range: " + (size & 0xFFFFFFFFL));
+        }
+        return size;
+    }
+
+    /**
+     * @return A zigzag encoded varint
+     * @throws IOException If the stream fails or ends
+     */
+    private int readSignedVarint() throws IOException {
+        int value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @return A 32 bit float, big endian
+     * @throws IOException If the stream fails or ends
+     */
+    private float readFloat() throws IOException {
+        int bits = (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        return Float.intBitsToFloat(bits);
+    }
+
+    /**
+     * @return A length prefixed UTF-8 string, or null
+     * @throws IOException If the stream fails or ends, or the length is out of range
+     */
+    private String readText() throws IOException {
+        int length = readSize(MAX_TEXT_LENGTH + 1);
+        if (0 == length) {
+            return null;
+        }
+        length--;
+        if (mBuffer.length < length) {
+            mBuffer = new byte[length];
+        }
+        int offset = 0;
+        while (offset < length) {
+            int read = mStream.read(mBuffer, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+        return new String(mBuffer, 0, length, UTF_8);
+    }
+
+    /**
+     * @return A string from the dictionary, or null
+     * @throws IOException If the stream fails or ends, or the index is out of range
+     */
+    private String readWord() throws IOException {
+        int index = readVarint();
+        if (0 == index) {
+            return null;
+        }
+        if (index > mDictionary.length) {
+            throw new IOException("Dictionary index out of range: " + index);
+        }
+        return mDictionary[index - 1];
+    }
+
+    /**
+     * @param stream Where to write
+     * @param value  A non-negative integer to write as a varint
+     * @throws IOException If the stream fails
+     */
+    private static void writeVarint(OutputStream stream, int value) throws IOException {
+        while (0 != (value & ~0x7F)) {
+            stream.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        stream.write(value);
+    }
+
+    /**
+     * @param stream Where to write
+     * @param value  An integer to write as a zigzag varint
+     * @throws IOException If the stream fails
+     */
+    private static void writeSignedVarint(OutputStream stream, int value) throws IOException {
+        writeVarint(stream, (value << 1) ^ (value >> 31));
+    }
+
+    /**
+     * @param stream Where to write
+     * @param value  A float to write, big endian
+     * @throws IOException If the stream fails
+     */
+    private static void writeFloat(OutputStream stream, float value) throws IOException {
+        int bits = Float.floatToIntBits(value);
+        stream.write(bits >>> 24);
+        stream.write(bits >>> 16);
+        stream.write(bits >>> 8);
+        stream.write(bits);
+    }
+
+    /**
+     * @param stream Where to write
+     * @param text   A string to write with its length, or null
+     * @throws IOException If the stream fails
+     */
+    private static void writeText(OutputStream stream, String text) throws IOException {
+        if (null == text) {
+            writeVarint(stream, 0);
+            return;
+        }
+        byte[] bytes = text.getBytes(UTF_8);
+        writeVarint(stream, bytes.length + 1);
+        stream.write(bytes);
+    }
+
+    /**
+     * @param stream  Where to write
+     * @param word    A string in the dictionary to write, or null
+     * @param indexes Each string's index in the dictionary
+     * @throws IOException If the stream fails
+     */
+    private static void writeWord(OutputStream stream, String word, HashMap<String, Integer> indexes)
+            throws IOException {
+        writeVarint(stream, (null == word) ? 0 : indexes.get(word) + 1);
+    }
+}
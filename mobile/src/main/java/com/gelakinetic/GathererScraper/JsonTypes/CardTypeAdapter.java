@@ -0,0 +1,221 @@
+/*
+ * Copyright 2019 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.GathererScraper.JsonTypes;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * A hand written TypeAdapter for Card. Patches are thousands of cards, and reading fields by name
+ * is much cheaper than reflecting through PrefixedFieldNamingStrategy for every one. The JSON keys
+ * are the same ones PrefixedFieldNamingStrategy would produce, so either can read the other's output
+ */
+public class CardTypeAdapter extends TypeAdapter<Card> {
+
+    /**
+     * Write a card as a JSON object
+     *
+     * @param out  The writer to write to
+     * @param card The card to write
+     * @throws IOException If the writer fails
+     */
+    @Override
+    public void write(JsonWriter out, Card card) throws IOException {
+        if (null == card) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("name").value(card.mName);
+        out.name("manaCost").value(card.mManaCost);
+        out.name("cmc").value(card.mCmc);
+        out.name("type").value(card.mType);
+        out.name("text").value(card.mText);
+        out.name("flavor").value(card.mFlavor);
+        out.name("expansion").value(card.mExpansion);
+        out.name("rarity").value(String.valueOf(card.mRarity));
+        out.name("number").value(card.mNumber);
+        out.name("artist").value(card.mArtist);
+        out.name("color").value(card.mColor);
+        out.name("colorIdentity").value(card.mColorIdentity);
+        out.name("multiverseId").value(card.mMultiverseId);
+        out.name("power").value(card.mPower);
+        out.name("toughness").value(card.mToughness);
+        out.name("loyalty").value(card.mLoyalty);
+        out.name("foreignPrintings").beginArray();
+        for (Card.ForeignPrinting printing : card.mForeignPrintings) {
+            out.beginObject();
+            out.name("multiverseId").value(printing.getMultiverseId());
+            out.name("name").value(printing.getName());
+            out.name("languageCode").value(printing.getLanguageCode());
+            out.endObject();
+        }
+        out.endArray();
+        out.name("watermark").value(card.mWatermark);
+        out.endObject();
+    }
+
+    /**
+     * Read a card from a JSON object. Keys which aren't present keep Card's default values, and
+     * unknown keys are skipped
+     *
+     * @param in The reader to read from, positioned at the start of a card object
+     * @return The card, or null if the JSON value was null
+     * @throws IOException If the reader fails, or the JSON is malformed
+     */
+    @Override
+    public Card read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        Card card = new Card();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "name":
+                    card.mName = readString(in);
+                    break;
+                case "manaCost":
+                    card.mManaCost = readString(in);
+                    break;
+                case "cmc":
+                    card.mCmc = in.nextInt();
+                    break;
+                case "type":
+                    card.mType = readString(in);
+                    break;
+                case "text":
+                    card.mText = readString(in);
+                    break;
+                case "flavor":
+                    card.mFlavor = readString(in);
+                    break;
+                case "expansion":
+                    card.mExpansion = readString(in);
+                    break;
+                case "rarity": {
+                    String rarity = in.nextString();
+                    if (rarity.length() != 1) {
+                        throw new JsonSyntaxException("Expecting a single character rarity, got " + rarity);
+                    }
+                    card.mRarity = rarity.charAt(0);
+                    break;
+                }
+                case "number":
+                    card.mNumber = readString(in);
+                    break;
+                case "artist":
+                    card.mArtist = readString(in);
+                    break;
+                case "color":
+                    card.mColor = readString(in);
+                    break;
+                case "colorIdentity":
+                    card.mColorIdentity = readString(in);
+                    break;
+                case "multiverseId":
+                    card.mMultiverseId = in.nextInt();
+                    break;
+                case "power":
+                    card.mPower = (float) in.nextDouble();
+                    break;
+                case "toughness":
+                    card.mToughness = (float) in.nextDouble();
+                    break;
+                case "loyalty":
+                    card.mLoyalty = in.nextInt();
+                    break;
+                case "foreignPrintings":
+                    readForeignPrintings(in, card);
+                    break;
+                case "watermark":
+                    card.mWatermark = readString(in);
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        return card;
+    }
+
+    /**
+     * Read a string value, which may be null
+     *
+     * @param in The reader to read from
+     * @return The string, or null
+     * @throws IOException If the reader fails
+     */
+    private static String readString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    /**
+     * Read an array of foreign printings into a card
+     *
+     * @param in   The reader to read from, positioned at the start of the array
+     * @param card The card to add the printings to
+     * @throws IOException If the reader fails
+     */
+    private static void readForeignPrintings(JsonReader in, Card card) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return;
+        }
+        in.beginArray();
+        while (in.hasNext()) {
+            String name = null;
+            String languageCode = null;
+            int multiverseId = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "name":
+                        name = readString(in);
+                        break;
+                    case "languageCode":
+                        languageCode = readString(in);
+                        break;
+                    case "multiverseId":
+                        multiverseId = in.nextInt();
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            card.mForeignPrintings.add(new Card.ForeignPrinting(name, languageCode, multiverseId));
+        }
+        in.endArray();
+    }
+}
@@ -33,6 +33,9 @@ public class Manifest {
         public String mURL;
         public String mCode;
         public String mDigest;
+        /* The same patch in the binary format, and that format's version. Either may be missing */
+        public String mBinaryURL;
+        public int mBinaryVersion;
 
         @Override
         public int compareTo(@NonNull ManifestEntry o) {
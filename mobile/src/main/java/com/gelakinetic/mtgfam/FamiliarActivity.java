@@ -96,6 +96,7 @@ import com.gelakinetic.mtgfam.fragments.TradeFragment;
 import com.gelakinetic.mtgfam.fragments.WishlistFragment;
 import com.gelakinetic.mtgfam.fragments.dialogs.FamiliarActivityDialogFragment;
 import com.gelakinetic.mtgfam.fragments.dialogs.FamiliarDialogFragment;
+import com.gelakinetic.mtgfam.helpers.ConditionalRequest;
 import com.gelakinetic.mtgfam.helpers.MTGFamiliarAppWidgetProvider;
 import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
 import com.gelakinetic.mtgfam.helpers.SearchCriteria;
@@ -161,8 +162,8 @@ public class FamiliarActivity extends AppCompatActivity {
 //            "&bn=PP%2dDonationsBF%3abtn_donate_LG%2egif%3aNonHosted";
     /* Timer to determine user inactivity for screen dimming in the life counter */
     private static final long INACTIVITY_MS = 30000;
-    /* Spice setup */
-    public final MarketPriceFetcher mMarketPriceStore = new MarketPriceFetcher(this);
+    /* Spice setup. This is made in onCreate(), since it needs the application context */
+    public MarketPriceFetcher mMarketPriceStore;
 
     /* What the drawer menu will be */
     private final DrawerEntry[] mPageEntries = {
@@ -293,7 +294,7 @@ public class FamiliarActivity extends AppCompatActivity {
     public static
     @Nullable
     InputStream getHttpInputStream(String stringUrl, PrintWriter logWriter, Context ctx) throws IOException {
-        return getHttpInputStream(new URL(stringUrl), logWriter, ctx, 0);
+        return getHttpInputStream(new URL(stringUrl), logWriter, ctx, 0, null);
     }
 
     /**
@@ -308,7 +309,26 @@ public class FamiliarActivity extends AppCompatActivity {
     public static
     @Nullable
     InputStream getHttpInputStream(URL url, PrintWriter logWriter, Context ctx) throws IOException {
-        return getHttpInputStream(url, logWriter, ctx, 0);
+        return getHttpInputStream(url, logWriter, ctx, 0, null);
+    }
+
+    /**
+     * Open an inputStream to the HTML content at the given URL, only if it changed since the last
+     * time it was processed. The saved ETag and Last-Modified are sent with the request. If the
+     * server answers 304 Not Modified, null is returned and request.isNotModified() is true.
+     * Otherwise the new validators are held in the request until request.commit() is called.
+     *
+     * @param request   The document to request
+     * @param logWriter A PrintWriter to log debug info to. Can be null
+     * @param ctx       A context to build the User Agent with
+     * @return An InputStream to the content at the URL, or null if it wasn't modified or couldn't
+     * be opened
+     * @throws IOException Thrown if something goes terribly wrong
+     */
+    public static
+    @Nullable
+    InputStream getHttpInputStream(ConditionalRequest request, PrintWriter logWriter, Context ctx) throws IOException {
+        return getHttpInputStream(new URL(request.getUrl()), logWriter, ctx, 0, request);
     }
 
     /**
@@ -319,13 +339,14 @@ public class FamiliarActivity extends AppCompatActivity {
      * @param logWriter      A PrintWriter to log debug info to. Can be null
      * @param ctx            A context to build the User Agent with
      * @param recursionLevel The redirect recursion level. Starts at 0, doesn't go past 10
+     * @param request        Validators to send and save for a conditional request, or null
      * @return An InputStream to the content at the URL, or null
      * @throws IOException Thrown if something goes terribly wrong
      */
     private static
     @Nullable
     InputStream getHttpInputStream(URL url, @Nullable PrintWriter logWriter, Context ctx,
-                                   int recursionLevel) throws IOException {
+                                   int recursionLevel, @Nullable ConditionalRequest request) throws IOException {
 
         /* Don't allow infinite recursion */
         if (recursionLevel > 10) {
@@ -345,6 +366,19 @@ public class FamiliarActivity extends AppCompatActivity {
         connection.setRequestProperty("User-Agent", ctx.getString(R.string.app_name) + "/" + version);
         connection.setConnectTimeout(5000);
         connection.setInstanceFollowRedirects(true);
+        if (request != null) {
+            request.addValidators(connection, ctx);
+        }
+
+        /* If the document didn't change, there's nothing to download */
+        if (request != null && connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            if (logWriter != null) {
+                logWriter.write("Not modified: " + url.toString() + '\n');
+            }
+            request.setNotModified();
+            connection.disconnect();
+            return null;
+        }
 
         /* If the connection is not OK, debug print the response */
         if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
@@ -399,7 +433,7 @@ public class FamiliarActivity extends AppCompatActivity {
 
             if (nextUrl != null) {
                 /* If there is a URL to follow, follow it */
-                return getHttpInputStream(nextUrl, logWriter, ctx, recursionLevel + 1);
+                return getHttpInputStream(nextUrl, logWriter, ctx, recursionLevel + 1, request);
             } else {
                 /* Otherwise return null */
                 return null;
@@ -407,6 +441,9 @@ public class FamiliarActivity extends AppCompatActivity {
 
         } else {
             /* HTTP response is A-OK. Return the inputStream */
+            if (request != null) {
+                request.readValidators(connection);
+            }
             return connection.getInputStream();
         }
     }
@@ -425,6 +462,7 @@ public class FamiliarActivity extends AppCompatActivity {
         super.onDestroy();
 
         PreferenceAdapter.unregisterOnSharedPreferenceChangeListener(this, mPreferenceChangeListener);
+        mMarketPriceStore.shutdown();
     }
 
     /**
@@ -457,6 +495,8 @@ public class FamiliarActivity extends AppCompatActivity {
      */
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        /* Before super.onCreate(), since restored fragments may look up prices */
+        mMarketPriceStore = new MarketPriceFetcher(this);
         super.onCreate(savedInstanceState);
         PrefsFragment.checkOverrideSystemLanguage(this);
 
@@ -484,8 +524,6 @@ public class FamiliarActivity extends AppCompatActivity {
 
         setContentView(R.layout.activity_main);
 
-        DatabaseManager.initializeInstances(getApplicationContext());
-
         mSmoothProgressBar = findViewById(R.id.smooth_progress_bar);
         mSmoothProgressBar.setIndeterminateDrawable(new SmoothProgressDrawable.Builder(this)
                 .colors(new int[]{
@@ -516,6 +554,8 @@ public class FamiliarActivity extends AppCompatActivity {
         mSmoothProgressBar.setVisibility(View.GONE);
         clearLoading();
 
+        initializeDatabase();
+
         /* Set default preferences manually so that the listener doesn't do weird things on init */
         PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
 
@@ -554,6 +594,8 @@ public class FamiliarActivity extends AppCompatActivity {
                         try {
                             SQLiteDatabase database = DatabaseManager.openDatabase(FamiliarActivity.this, true, handle);
                             CardDbAdapter.dropCreateDB(database);
+                            /* The saved validators describe the dropped data, so download everything again */
+                            PreferenceAdapter.clearHttpValidators(FamiliarActivity.this);
                             PreferenceAdapter.setLastLegalityUpdate(FamiliarActivity.this, 0);
                             PreferenceAdapter.setLastIPGUpdate(FamiliarActivity.this, 0);
                             PreferenceAdapter.setLastMTRUpdate(FamiliarActivity.this, 0);
@@ -809,6 +851,35 @@ public class FamiliarActivity extends AppCompatActivity {
         // (new LookupAllPricesTest()).execute(this);
     }
 
+    /**
+     * Initialize the databases in the background, and open the database once there so any schema
+     * upgrade runs off the UI thread. Anything which opens the database waits for this to finish.
+     * If the packaged database has to be inflated first, which takes a few seconds on first launch
+     * or after an upgrade, show how far along it is in the toolbar.
+     */
+    private void initializeDatabase() {
+        final boolean inflating = DatabaseManager.isInflateNeeded(getApplicationContext());
+        if (inflating) {
+            setLoading();
+        }
+        DatabaseManager.initializeInBackground(getApplicationContext(), percent -> runOnUiThread(() -> {
+            ActionBar actionBar = getSupportActionBar();
+            if (null != actionBar) {
+                actionBar.setSubtitle(getString(R.string.main_inflating_database, percent));
+            }
+        }), () -> {
+            if (inflating) {
+                runOnUiThread(() -> {
+                    ActionBar actionBar = getSupportActionBar();
+                    if (null != actionBar) {
+                        actionBar.setSubtitle(null);
+                    }
+                });
+                clearLoading();
+            }
+        });
+    }
+
     private boolean processIntent(@NonNull Intent intent) {
         boolean isDeepLink = false;
 
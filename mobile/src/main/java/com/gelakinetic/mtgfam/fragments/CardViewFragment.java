@@ -1224,7 +1224,14 @@ public class CardViewFragment extends FamiliarFragment {
                 for (int i = 0; i < cFormats.getCount(); i++) {
                     frag.mFormats[i] =
                             cFormats.getString(cFormats.getColumnIndex(CardDbAdapter.KEY_NAME));
-                    switch (CardDbAdapter.checkLegality(frag.mCard.getName(), frag.mFormats[i], database)) {
+                    cFormats.moveToNext();
+                }
+
+                /* Check all the formats at once */
+                int[] legalities = CardDbAdapter.checkLegality(
+                        Collections.singletonList(frag.mCard.getName()), Arrays.asList(frag.mFormats), database)[0];
+                for (int i = 0; i < frag.mFormats.length; i++) {
+                    switch (legalities[i]) {
                         case CardDbAdapter.LEGAL:
                             frag.mLegalities[i] = frag.getString(R.string.card_view_legal);
                             break;
@@ -1247,7 +1254,6 @@ public class CardViewFragment extends FamiliarFragment {
                             frag.mLegalities[i] = frag.getString(R.string.error);
                             break;
                     }
-                    cFormats.moveToNext();
                 }
             } catch (SQLiteException | FamiliarDbException e) {
                 frag.handleFamiliarDbException(false);
@@ -104,41 +104,56 @@ public class DecklistFragment extends FamiliarListFragment {
             try {
                 SQLiteDatabase database = DatabaseManager.openDatabase(parentFrag.getContext(), false, handle);
                 cFormats = CardDbAdapter.fetchAllFormats(database);
+                ArrayList<String> formats = new ArrayList<>();
                 cFormats.moveToFirst();
                 for (int i = 0; i < cFormats.getCount(); i++) {
+                    formats.add(cFormats.getString(cFormats.getColumnIndex(CardDbAdapter.KEY_NAME)));
+                    cFormats.moveToNext();
+                }
+
+                /* Check every card in every format with a single query */
+                ArrayList<CompressedDecklistInfo> cards = new ArrayList<>();
+                ArrayList<String> cardNames = new ArrayList<>();
+                synchronized (parentFrag.mCompressedDecklist) {
+                    for (CompressedDecklistInfo info : parentFrag.mCompressedDecklist) {
+                        if (!info.getName().isEmpty()) { /* Skip the headers */
+                            cards.add(info);
+                            cardNames.add(info.getName());
+                        }
+                    }
+                }
+                int[][] legalities = CardDbAdapter.checkLegality(cardNames, formats, database);
+
+                for (int i = 0; i < formats.size(); i++) {
                     boolean deckIsLegal = true;
                     String deckLegality;
-                    String format =
-                            cFormats.getString(cFormats.getColumnIndex(CardDbAdapter.KEY_NAME));
-                    synchronized (parentFrag.mCompressedDecklist) {
-                        for (CompressedDecklistInfo info : parentFrag.mCompressedDecklist) {
-                            if (!info.getName().isEmpty()) { /* Skip the headers */
-                                switch (CardDbAdapter.checkLegality(info.getName(), format, database)) {
-                                    case CardDbAdapter.LEGAL: {
-                                        if ((format.equalsIgnoreCase("Commander") ||
-                                                format.equalsIgnoreCase("Brawl"))
-                                                && info.getTotalNumber() > 1 && !info.getType().contains("Basic")) {
-                                            deckIsLegal = false;
-                                        }
-                                        break;
-                                    }
-                                    case CardDbAdapter.RESTRICTED: {
-                                        if (format.equalsIgnoreCase("Vintage")
-                                                && info.getTotalNumber() > 1) {
-                                            deckIsLegal = false;
-                                        }
-                                        break;
-                                    }
-                                    case CardDbAdapter.BANNED: {
-                                        deckIsLegal = false;
-                                        break;
-                                    }
+                    String format = formats.get(i);
+                    for (int j = 0; j < cards.size(); j++) {
+                        CompressedDecklistInfo info = cards.get(j);
+                        switch (legalities[j][i]) {
+                            case CardDbAdapter.LEGAL: {
+                                if ((format.equalsIgnoreCase("Commander") ||
+                                        format.equalsIgnoreCase("Brawl"))
+                                        && info.getTotalNumber() > 1 && !info.getType().contains("Basic")) {
+                                    deckIsLegal = false;
                                 }
-                                if (!deckIsLegal) {
-                                    break;
+                                break;
+                            }
+                            case CardDbAdapter.RESTRICTED: {
+                                if (format.equalsIgnoreCase("Vintage")
+                                        && info.getTotalNumber() > 1) {
+                                    deckIsLegal = false;
                                 }
+                                break;
+                            }
+                            case CardDbAdapter.BANNED: {
+                                deckIsLegal = false;
+                                break;
                             }
                         }
+                        if (!deckIsLegal) {
+                            break;
+                        }
                     }
                     int minCards = 60;
                     if (format.equals("Commander")) {
@@ -156,7 +171,6 @@ public class DecklistFragment extends FamiliarListFragment {
                     map.put(LEGALITY_DIAOG_FROM[0], format);
                     map.put(LEGALITY_DIAOG_FROM[1], deckLegality);
                     parentFrag.legalityMap.add(map);
-                    cFormats.moveToNext();
                 }
             } catch (SQLiteException | FamiliarDbException fdbe) {
                 parentFrag.handleFamiliarDbException(false);
@@ -465,6 +479,11 @@ public class DecklistFragment extends FamiliarListFragment {
                 /* Clear the decklist, or just the card that changed */
                 clearCompressedInfo(changedCardName);
 
+                /* Read all the cached prices at once, rather than one card at a time */
+                if (changedCardName == null && shouldShowPrice()) {
+                    preloadPrices(decklist);
+                }
+
                 /* Compress the whole decklist, or just the card that changed */
                 for (MtgCard card : decklist) {
                     /* It's possible for empty cards to be saved, though I don't know how. Don't add them back */
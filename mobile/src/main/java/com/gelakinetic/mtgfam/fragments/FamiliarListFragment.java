@@ -51,6 +51,7 @@ import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
 import com.gelakinetic.mtgfam.helpers.tcgp.MarketPriceInfo;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This class is for extension by any Fragment that has a custom list of cards at it's base that
@@ -445,6 +446,15 @@ public abstract class FamiliarListFragment extends FamiliarFragment {
         }
     }
 
+    /**
+     * Read the cached prices for a whole list in one go, before loadPrice() is called for each card
+     *
+     * @param cards The cards which are about to have their prices loaded
+     */
+    void preloadPrices(List<? extends MtgCard> cards) {
+        getFamiliarActivity().mMarketPriceStore.preloadPrices(cards);
+    }
+
     /**
      * Load the price for a given card. This handles all the spice stuff
      *
@@ -19,9 +19,13 @@
 
 package com.gelakinetic.mtgfam.fragments;
 
+import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
@@ -49,6 +53,7 @@ import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
 import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
 import com.gelakinetic.mtgfam.helpers.database.FamiliarDbHandle;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Objects;
 import java.util.Random;
@@ -68,8 +73,18 @@ public class ResultListFragment extends FamiliarFragment {
     /* Static integers preserve list position during the fragment's lifecycle */
     private int mCursorPosition;
     private int mCursorPositionOffset;
+    /* Load the next page of results when the list is scrolled this close to the end */
+    private static final int PAGE_LOAD_THRESHOLD = 50;
     /* The cursor with the data and the list view to display it */
     private Cursor mCursor;
+    /* Search results are loaded a page at a time. mCursor merges all the loaded pages */
+    private final ArrayList<Cursor> mPages = new ArrayList<>();
+    private boolean mHasMorePages = false;
+    private SearchCriteria mCriteria;
+    private boolean mConsolidate;
+    private String[] mReturnTypes;
+    private CountResultsTask mCountResultsTask = null;
+    private LoadPageTask mLoadPageTask = null;
     private ListView mListView;
     private SQLiteDatabase mDatabase;
     private final FamiliarDbHandle mDbHandle = new FamiliarDbHandle();
@@ -214,12 +229,12 @@ public class ResultListFragment extends FamiliarFragment {
             return myFragmentView;
         }
 
-        /* Sub-optimal, but KitKat is silly */
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            mListView.setOnScrollListener(new ListView.OnScrollListener() {
+        mListView.setOnScrollListener(new ListView.OnScrollListener() {
 
-                @Override
-                public void onScrollStateChanged(AbsListView absListView, int scrollState) {
+            @Override
+            public void onScrollStateChanged(AbsListView absListView, int scrollState) {
+                /* Sub-optimal, but KitKat is silly */
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
                     switch (scrollState) {
                         case AbsListView.OnScrollListener.SCROLL_STATE_IDLE:
                             absListView.setFastScrollAlwaysVisible(false);
@@ -231,13 +246,16 @@ public class ResultListFragment extends FamiliarFragment {
                             break;
                     }
                 }
+            }
 
-                @Override
-                public void onScroll(AbsListView absListView, int i, int i2, int i3) {
-
+            @Override
+            public void onScroll(AbsListView absListView, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (mHasMorePages && null == mLoadPageTask &&
+                        firstVisibleItem + visibleItemCount + PAGE_LOAD_THRESHOLD >= totalItemCount) {
+                    loadNextPage();
                 }
-            });
-        }
+            }
+        });
 
         Bundle res = getFamiliarActivity().getFragmentResults();
         if (res != null) {
@@ -268,8 +286,13 @@ public class ResultListFragment extends FamiliarFragment {
                 }
             } else {
                 if (savedInstanceState == null) {
-                    SnackbarWrapper.makeAndShowText(this.getActivity(), String.format(getResources().getQuantityString(R.plurals.search_toast_results, mCursor.getCount()),
-                            mCursor.getCount()), SnackbarWrapper.LENGTH_LONG);
+                    if (mHasMorePages) {
+                        /* Counting every result can take a while, so don't block the first page */
+                        mCountResultsTask = new CountResultsTask(this);
+                        mCountResultsTask.execute();
+                    } else {
+                        showResultCount(mCursor.getCount());
+                    }
                 }
             }
         }
@@ -302,6 +325,8 @@ public class ResultListFragment extends FamiliarFragment {
      */
     private void doSearch(Bundle args, SQLiteDatabase database) throws FamiliarDbException {
         long id;
+        mPages.clear();
+        mHasMorePages = false;
         /* If "id0" exists, then it's three cards and they should be merged
          * Otherwise, do a search with the given criteria
          */
@@ -318,13 +343,211 @@ public class ResultListFragment extends FamiliarFragment {
                     CardDbAdapter.KEY_ABILITY, CardDbAdapter.KEY_POWER, CardDbAdapter.KEY_TOUGHNESS, CardDbAdapter.KEY_LOYALTY,
                     CardDbAdapter.KEY_NUMBER, CardDbAdapter.KEY_CMC, CardDbAdapter.KEY_COLOR};
 
-            SearchCriteria criteria = PreferenceAdapter.getSearchCriteria(getContext());
-            assert criteria != null; /* Because Android Studio */
-            boolean consolidate = (criteria.setLogic == CardDbAdapter.MOST_RECENT_PRINTING ||
-                    criteria.setLogic == CardDbAdapter.FIRST_PRINTING);
+            mReturnTypes = returnTypes;
+            mCriteria = PreferenceAdapter.getSearchCriteria(getContext());
+            assert mCriteria != null; /* Because Android Studio */
+            mConsolidate = (mCriteria.setLogic == CardDbAdapter.MOST_RECENT_PRINTING ||
+                    mCriteria.setLogic == CardDbAdapter.FIRST_PRINTING);
+
+            /* Only load the first page, the rest are loaded as the list scrolls */
+            mCursor = CardDbAdapter.searchPage(mCriteria, true, mReturnTypes, mConsolidate,
+                    PreferenceAdapter.getSearchSortOrder(getContext()), null, database);
+            if (null != mCursor) {
+                mPages.add(mCursor);
+                mHasMorePages = (mCursor.getCount() == CardDbAdapter.SEARCH_PAGE_SIZE);
+            }
+        }
+    }
 
-            mCursor = CardDbAdapter.Search(criteria, true, returnTypes, consolidate,
-                    PreferenceAdapter.getSearchSortOrder(getContext()), database);
+    /**
+     * Start loading the next page of search results in the background. It's shown after the pages
+     * already in mListView when it's loaded
+     */
+    private void loadNextPage() {
+        mLoadPageTask = new LoadPageTask(this, mPages.get(mPages.size() - 1));
+        mLoadPageTask.execute();
+    }
+
+    /**
+     * Show a page of search results after the pages already in mListView
+     *
+     * @param nextPage The page which was loaded, may be null or empty if there are no more
+     */
+    private void appendPage(Cursor nextPage) {
+        if (null == nextPage || nextPage.getCount() == 0) {
+            mHasMorePages = false;
+            if (null != nextPage) {
+                nextPage.close();
+            }
+            return;
+        }
+        mHasMorePages = (nextPage.getCount() == CardDbAdapter.SEARCH_PAGE_SIZE);
+        mPages.add(nextPage);
+
+        /* Don't close the old merged cursor, that would close the pages too */
+        mCursor = new MergeCursor(mPages.toArray(new Cursor[0]));
+        ((ResultListAdapter) mListView.getAdapter()).swapCursor(mCursor);
+    }
+
+    /**
+     * Copy the last row of a page, so the next page can be found on another thread without moving
+     * the page's cursor while the list is using it
+     *
+     * @param page The page to copy the last row of
+     * @return A cursor with only that row
+     */
+    private static Cursor copyLastRow(Cursor page) {
+        MatrixCursor lastRow = new MatrixCursor(page.getColumnNames(), 1);
+        if (page.moveToLast()) {
+            Object[] values = new Object[page.getColumnCount()];
+            for (int i = 0; i < values.length; i++) {
+                switch (page.getType(i)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        values[i] = null;
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        values[i] = page.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        values[i] = page.getDouble(i);
+                        break;
+                    default:
+                        values[i] = page.getString(i);
+                        break;
+                }
+            }
+            lastRow.addRow(values);
+        }
+        return lastRow;
+    }
+
+    /**
+     * Load the next page of search results in the background, then show it
+     */
+    private static class LoadPageTask extends AsyncTask<Void, Void, Cursor> {
+
+        private final WeakReference<ResultListFragment> mFragment;
+        private final Context mContext;
+        private final SearchCriteria mCriteria;
+        private final String[] mReturnTypes;
+        private final boolean mConsolidate;
+        private final String mSortOrder;
+        private final Cursor mLastRow;
+        private boolean mFailed = false;
+
+        /**
+         * Constructor, called on the UI thread
+         *
+         * @param frag     The fragment to show the page in
+         * @param lastPage The last page which was loaded
+         */
+        LoadPageTask(ResultListFragment frag, Cursor lastPage) {
+            mFragment = new WeakReference<>(frag);
+            mContext = Objects.requireNonNull(frag.getActivity()).getApplicationContext();
+            mCriteria = frag.mCriteria;
+            mReturnTypes = frag.mReturnTypes;
+            mConsolidate = frag.mConsolidate;
+            mSortOrder = PreferenceAdapter.getSearchSortOrder(mContext);
+            mLastRow = copyLastRow(lastPage);
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... voids) {
+            FamiliarDbHandle handle = new FamiliarDbHandle();
+            try {
+                SQLiteDatabase database = DatabaseManager.openDatabase(mContext, false, handle);
+                Cursor page = CardDbAdapter.searchPage(mCriteria, true, mReturnTypes, mConsolidate,
+                        mSortOrder, mLastRow, database);
+                if (null != page) {
+                    /* Fill the cursor's window here, rather than when the list first draws it */
+                    page.getCount();
+                }
+                return page;
+            } catch (SQLiteException | FamiliarDbException e) {
+                mFailed = true;
+                return null;
+            } finally {
+                mLastRow.close();
+                DatabaseManager.closeDatabase(mContext, handle);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Cursor page) {
+            ResultListFragment frag = mFragment.get();
+            if (null == frag || !frag.isAdded() || frag.mLoadPageTask != this) {
+                if (null != page) {
+                    page.close();
+                }
+                return;
+            }
+            frag.mLoadPageTask = null;
+            if (mFailed) {
+                frag.handleFamiliarDbException(true);
+            } else {
+                frag.appendPage(page);
+            }
+        }
+
+        @Override
+        protected void onCancelled(Cursor page) {
+            if (null != page) {
+                page.close();
+            }
+        }
+    }
+
+    /**
+     * Show a snackbar with the number of search results
+     *
+     * @param count The number of search results
+     */
+    private void showResultCount(int count) {
+        SnackbarWrapper.makeAndShowText(this.getActivity(), String.format(getResources().getQuantityString(R.plurals.search_toast_results, count),
+                count), SnackbarWrapper.LENGTH_LONG);
+    }
+
+    /**
+     * Count all the search results in the background, then show the count
+     */
+    private static class CountResultsTask extends AsyncTask<Void, Void, Integer> {
+
+        private final WeakReference<ResultListFragment> mFragment;
+        private final Context mContext;
+        private final SearchCriteria mCriteria;
+        private final boolean mConsolidate;
+
+        /**
+         * Constructor, called on the UI thread
+         *
+         * @param frag The fragment to show the count in
+         */
+        CountResultsTask(ResultListFragment frag) {
+            mFragment = new WeakReference<>(frag);
+            mContext = Objects.requireNonNull(frag.getActivity()).getApplicationContext();
+            mCriteria = frag.mCriteria;
+            mConsolidate = frag.mConsolidate;
+        }
+
+        @Override
+        protected Integer doInBackground(Void... voids) {
+            FamiliarDbHandle handle = new FamiliarDbHandle();
+            try {
+                SQLiteDatabase database = DatabaseManager.openDatabase(mContext, false, handle);
+                return CardDbAdapter.countSearchResults(mCriteria, true, mConsolidate, database);
+            } catch (SQLiteException | FamiliarDbException e) {
+                return null;
+            } finally {
+                DatabaseManager.closeDatabase(mContext, handle);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer count) {
+            ResultListFragment frag = mFragment.get();
+            if (null != count && null != frag && frag.isAdded()) {
+                frag.showResultCount(count);
+            }
         }
     }
 
@@ -334,10 +557,36 @@ public class ResultListFragment extends FamiliarFragment {
     @Override
     public void onDestroyView() {
         super.onDestroyView();
+        cancelTasks();
+        closeCursors();
+        DatabaseManager.closeDatabase(getActivity(), mDbHandle);
+    }
+
+    /**
+     * Stop counting the results and loading the next page, since they're for the current search
+     */
+    private void cancelTasks() {
+        if (null != mCountResultsTask) {
+            mCountResultsTask.cancel(true);
+            mCountResultsTask = null;
+        }
+        if (null != mLoadPageTask) {
+            mLoadPageTask.cancel(false);
+            mLoadPageTask = null;
+        }
+    }
+
+    /**
+     * Close every page of search results, or the single cursor if there aren't pages
+     */
+    private void closeCursors() {
+        for (Cursor page : mPages) {
+            page.close();
+        }
+        mPages.clear();
         if (mCursor != null) {
             mCursor.close();
         }
-        DatabaseManager.closeDatabase(getActivity(), mDbHandle);
     }
 
     /**
@@ -401,10 +650,19 @@ public class ResultListFragment extends FamiliarFragment {
             int cardPosition = 0;
 
             /* Build the array of ids sequentially, make note of the chosen card's position */
-            long cardIds[] = new long[mCursor.getCount()];
-            mCursor.moveToFirst();
-            for (int i = 0; i < mCursor.getCount(); i++, mCursor.moveToNext()) {
-                cardIds[i] = mCursor.getLong(mCursor.getColumnIndex(CardDbAdapter.KEY_ID));
+            long cardIds[];
+            if (mHasMorePages) {
+                /* Not every page is loaded, so get all the ids at once */
+                cardIds = CardDbAdapter.getSearchResultIds(mCriteria, true, mConsolidate,
+                        PreferenceAdapter.getSearchSortOrder(getContext()), mDatabase);
+            } else {
+                cardIds = new long[mCursor.getCount()];
+                mCursor.moveToFirst();
+                for (int i = 0; i < mCursor.getCount(); i++, mCursor.moveToNext()) {
+                    cardIds[i] = mCursor.getLong(mCursor.getColumnIndex(CardDbAdapter.KEY_ID));
+                }
+            }
+            for (int i = 0; i < cardIds.length; i++) {
                 if (cardIds[i] == id) {
                     cardPosition = i;
                 }
@@ -517,13 +775,23 @@ public class ResultListFragment extends FamiliarFragment {
 
         PreferenceAdapter.setSearchSortOrder(getContext(), orderByStr);
 
+        /* The count doesn't depend on the order, so if it wasn't shown yet, count again below */
+        boolean countPending = null != mCountResultsTask &&
+                mCountResultsTask.getStatus() != AsyncTask.Status.FINISHED;
+        /* A page which is loading would be in the old order */
+        cancelTasks();
+
         try {
             /* Close the old cursor */
-            mCursor.close();
+            closeCursors();
             /* Do the search again with the new "order by" options */
             doSearch(Objects.requireNonNull(getArguments()), mDatabase);
             /* Display the newly sorted data */
             fillData();
+            if (countPending) {
+                mCountResultsTask = new CountResultsTask(this);
+                mCountResultsTask.execute();
+            }
         } catch (SQLiteException | FamiliarDbException e) {
             handleFamiliarDbException(true);
         }
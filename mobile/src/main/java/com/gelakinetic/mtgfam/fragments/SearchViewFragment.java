@@ -372,12 +372,12 @@ public class SearchViewFragment extends FamiliarFragment {
                 }
 
                 if (frag.mSupertypes == null) {
-                    String[] supertypes = CardDbAdapter.getUniqueColumnArray(CardDbAdapter.KEY_SUPERTYPE, true, database);
+                    String[] supertypes = CardDbAdapter.getTypeTokens(CardDbAdapter.TYPE_KIND_SUPERTYPE, database);
                     frag.mSupertypes = tokenStringsFromTypes(supertypes);
                 }
 
                 if (frag.mSubtypes == null) {
-                    String[] subtypes = CardDbAdapter.getUniqueColumnArray(CardDbAdapter.KEY_SUBTYPE, true, database);
+                    String[] subtypes = CardDbAdapter.getTypeTokens(CardDbAdapter.TYPE_KIND_SUBTYPE, database);
                     frag.mSubtypes = tokenStringsFromTypes(subtypes);
                 }
 
@@ -323,6 +323,7 @@ public class TradeFragment extends FamiliarListFragment {
         try {
             synchronized (mListLeft) {
                 MtgCard.initCardListFromDb(getContext(), mListLeft);
+                preloadPrices(mListLeft);
                 for (MtgCard card : mListLeft) {
                     if (!card.mIsCustomPrice) {
                         loadPrice(card);
@@ -332,6 +333,7 @@ public class TradeFragment extends FamiliarListFragment {
 
             synchronized (mListRight) {
                 MtgCard.initCardListFromDb(getContext(), mListRight);
+                preloadPrices(mListRight);
                 for (MtgCard card : mListRight) {
                     if (!card.mIsCustomPrice) {
                         loadPrice(card);
@@ -233,6 +233,11 @@ public class WishlistFragment extends FamiliarListFragment {
                     }
                 }
 
+                /* Read all the cached prices at once, rather than one card at a time */
+                if (changedCardName == null && (mShowIndividualPrices || shouldShowPrice())) {
+                    preloadPrices(wishlist);
+                }
+
                 /* Compress the whole wishlist, or just the card that changed */
                 for (MtgCard card : wishlist) {
                     if (changedCardName == null || changedCardName.equals(card.getName())) {
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+
+import java.net.HttpURLConnection;
+
+/**
+ * A request for a document which is checked for changes on every update. The ETag and
+ * Last-Modified headers from the last response which was fully processed are saved in the shared
+ * preferences, and sent back as If-None-Match and If-Modified-Since. When the server answers 304 Not
+ * Modified, there's nothing to download or parse.
+ * <p>
+ * The validators from a new response are only saved when commit() is called, so a document which
+ * was downloaded, but not applied, is downloaded again next time.
+ */
+public class ConditionalRequest {
+
+    private final String mUrl;
+    private final boolean mConditional;
+
+    /* The validators from the response, saved by commit() */
+    private String mETag = null;
+    private String mLastModified = null;
+    private boolean mNotModified = false;
+
+    /**
+     * Constructor for a request which sends the saved validators
+     *
+     * @param url The URL of the document
+     */
+    public ConditionalRequest(String url) {
+        this(url, true);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param url         The URL of the document
+     * @param conditional true to send the saved validators, false to always download the document,
+     *                    i.e. when the local copy is missing
+     */
+    public ConditionalRequest(String url, boolean conditional) {
+        mUrl = url;
+        mConditional = conditional;
+    }
+
+    /**
+     * @return The URL of the document
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * @return true if the server said the document hasn't changed since the saved validators
+     */
+    public boolean isNotModified() {
+        return mNotModified;
+    }
+
+    /**
+     * Add If-None-Match and If-Modified-Since headers to a connection, if there are saved validators
+     * for this URL
+     *
+     * @param connection The connection, before it is connected
+     * @param context    A context to read the saved validators with
+     */
+    public void addValidators(HttpURLConnection connection, Context context) {
+        if (!mConditional) {
+            return;
+        }
+        String eTag = PreferenceAdapter.getHttpETag(context, mUrl);
+        if (null != eTag) {
+            connection.setRequestProperty("If-None-Match", eTag);
+        }
+        String lastModified = PreferenceAdapter.getHttpLastModified(context, mUrl);
+        if (null != lastModified) {
+            connection.setRequestProperty("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * Remember the validators from a successful response, to be saved by commit()
+     *
+     * @param connection The connection which returned HTTP 200
+     */
+    public void readValidators(HttpURLConnection connection) {
+        mETag = connection.getHeaderField("ETag");
+        mLastModified = connection.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * Note that the server returned 304 Not Modified
+     */
+    public void setNotModified() {
+        mNotModified = true;
+    }
+
+    /**
+     * Save the validators from the response, once the document was processed. Nothing changes if
+     * the document wasn't modified, or wasn't downloaded
+     *
+     * @param context A context to save the validators with
+     */
+    public void commit(@Nullable Context context) {
+        if (mNotModified || (null == mETag && null == mLastModified)) {
+            return;
+        }
+        PreferenceAdapter.setHttpValidators(context, mUrl, mETag, mLastModified);
+    }
+}
@@ -76,6 +76,7 @@ public class LookupAllPricesTest extends AsyncTask<FamiliarActivity, Void, Void>
         } catch (NullPointerException e) {
             // Eh
         }
+        activity.mMarketPriceStore.clearCachedPrices();
 
         try {
             // Search for all cards
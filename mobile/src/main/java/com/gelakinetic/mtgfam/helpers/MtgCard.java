@@ -37,6 +37,7 @@ import com.gelakinetic.mtgfam.helpers.tcgp.MarketPriceInfo;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Locale;
 
 /**
@@ -327,26 +328,36 @@ public class MtgCard extends Card {
         try {
             SQLiteDatabase database = DatabaseManager.openDatabase(mCtx, false, handle);
 
+            // Group the cards by name and set. The same card may be repeated (main deck + sideboard)
+            HashMap<String, ArrayList<MtgCard>> cardsByKey = new HashMap<>();
+            for (MtgCard card : cards) {
+                String key = card.getName() + '\n' + card.getExpansion();
+                ArrayList<MtgCard> cardsWithKey = cardsByKey.get(key);
+                if (null == cardsWithKey) {
+                    cardsWithKey = new ArrayList<>(1);
+                    cardsByKey.put(key, cardsWithKey);
+                }
+                cardsWithKey.add(card);
+            }
+
             // Get everything
             cardCursor = CardDbAdapter.fetchCardByNamesAndSets(cards, database);
+            CardColumns columns = new CardColumns(cardCursor);
 
             // For each line database result
             while (!cardCursor.isAfterLast()) {
 
-                // Get the name and set from the database
-                String name = cardCursor.getString(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_NAME));
-                String set = cardCursor.getString(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_SET));
-
-                // Match that to a card in the initial list
-                for (MtgCard card : cards) {
-                    if (card.getName().equals(name) && card.getExpansion().equals(set)) {
+                // Get the name and set from the database, and match that to cards in the initial list
+                ArrayList<MtgCard> matches = cardsByKey.get(cardCursor.getString(columns.mName) +
+                        '\n' + cardCursor.getString(columns.mExpansion));
+                if (null != matches) {
+                    for (MtgCard card : matches) {
                         try {
                             // Fill in the initial list with data from the cursor
-                            card.initFromCursor(mCtx, cardCursor);
+                            card.initFromCursor(mCtx, cardCursor, columns);
                         } catch (java.lang.InstantiationException e) {
                             // Eat it
                         }
-                        // Keep looping if the same card is repeated (main deck + sideboard)
                     }
                 }
                 cardCursor.moveToNext();
@@ -361,51 +372,109 @@ public class MtgCard extends Card {
         }
     }
 
+    /**
+     * The column indexes of a cursor from CardDbAdapter.fetchCardByNamesAndSets(). These are
+     * looked up once per cursor rather than once per row.
+     */
+    private static class CardColumns {
+        private final int mName;
+        private final int mExpansion;
+        private final int mNumber;
+        private final int mCmc;
+        private final int mColor;
+        private final int mSupertype;
+        private final int mSubtype;
+        private final int mRarity;
+        private final int mManaCost;
+        private final int mPower;
+        private final int mToughness;
+        private final int mLoyalty;
+        private final int mText;
+        private final int mFlavor;
+        private final int mMultiverseId;
+        private final int mArtist;
+        private final int mWatermark;
+        private final int mColorIdentity;
+        private final int mSetName;
+        private final int mSetNameMtgi;
+        private final int mCanBeFoil;
+
+        /**
+         * Constructor
+         *
+         * @param cardCursor The cursor to look up column indexes in
+         */
+        CardColumns(Cursor cardCursor) {
+            mName = cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_NAME);
+            mExpansion = cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_SET);
+            mNumber = cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_NUMBER);
+            mCmc = cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_CMC);
+            mColor = cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_COLOR);
+            mSupertype = cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_SUPERTYPE);
+            mSubtype = cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_SUBTYPE);
+            mRarity = cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_RARITY);
+            mManaCost = cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_MANACOST);
+            mPower = cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_POWER);
+            mToughness = cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_TOUGHNESS);
+            mLoyalty = cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_LOYALTY);
+            mText = cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_ABILITY);
+            mFlavor = cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_FLAVOR);
+            mMultiverseId = cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_MULTIVERSEID);
+            mArtist = cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_ARTIST);
+            mWatermark = cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_WATERMARK);
+            mColorIdentity = cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_COLOR_IDENTITY);
+            mSetName = cardCursor.getColumnIndex("s_" + CardDbAdapter.KEY_NAME);
+            mSetNameMtgi = cardCursor.getColumnIndex("s_" + CardDbAdapter.KEY_CODE_MTGI);
+            mCanBeFoil = cardCursor.getColumnIndex("s_" + CardDbAdapter.KEY_CAN_BE_FOIL);
+        }
+    }
+
     /**
      * This is a pseudo-constructor used to fill in missing data from a Cursor.
      *
      * @param context    A Context to get strings with
      * @param cardCursor A cursor pointing to this card's information from the database
+     * @param columns    The column indexes of cardCursor
      * @throws InstantiationException If this card can't be initialized
      */
-    private void initFromCursor(Context context, Cursor cardCursor) throws InstantiationException {
+    private void initFromCursor(Context context, Cursor cardCursor, CardColumns columns) throws InstantiationException {
 
         try {
             /* Note the card price is loading */
             this.mMessage = context.getString(R.string.wishlist_loading);
 
             /* Don't rely on the user's given name, get it from the DB just to be sure */
-            this.mName = cardCursor.getString(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_NAME));
-            this.mExpansion = cardCursor.getString(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_SET));
-            this.mNumber = cardCursor.getString(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_NUMBER));
-            this.mCmc = cardCursor.getInt((cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_CMC)));
-            this.mColor = cardCursor.getString(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_COLOR));
-
-            this.mType = cardCursor.getString(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_SUPERTYPE));
-            String subtype = cardCursor.getString(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_SUBTYPE));
+            this.mName = cardCursor.getString(columns.mName);
+            this.mExpansion = cardCursor.getString(columns.mExpansion);
+            this.mNumber = cardCursor.getString(columns.mNumber);
+            this.mCmc = cardCursor.getInt(columns.mCmc);
+            this.mColor = cardCursor.getString(columns.mColor);
+
+            this.mType = cardCursor.getString(columns.mSupertype);
+            String subtype = cardCursor.getString(columns.mSubtype);
             if (subtype.length() > 0) {
                 this.mType += " - " + subtype;
             }
 
-            this.mRarity = (char) cardCursor.getInt(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_RARITY));
-            this.mManaCost = cardCursor.getString(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_MANACOST));
-            this.mPower = cardCursor.getInt(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_POWER));
-            this.mToughness = cardCursor.getInt(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_TOUGHNESS));
-            this.mLoyalty = cardCursor.getInt(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_LOYALTY));
-            this.mText = cardCursor.getString(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_ABILITY));
-            this.mFlavor = cardCursor.getString(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_FLAVOR));
-            this.mMultiverseId = cardCursor.getInt(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_MULTIVERSEID));
-            this.mArtist = cardCursor.getString(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_ARTIST));
-            this.mWatermark = cardCursor.getString(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_WATERMARK));
-            this.mColorIdentity = cardCursor.getString(cardCursor.getColumnIndex("c_" + CardDbAdapter.KEY_COLOR_IDENTITY));
-
-            this.mSetName = cardCursor.getString(cardCursor.getColumnIndex("s_" + CardDbAdapter.KEY_NAME));
-            this.mSetNameMtgi = cardCursor.getString(cardCursor.getColumnIndex("s_" + CardDbAdapter.KEY_CODE_MTGI));
+            this.mRarity = (char) cardCursor.getInt(columns.mRarity);
+            this.mManaCost = cardCursor.getString(columns.mManaCost);
+            this.mPower = cardCursor.getInt(columns.mPower);
+            this.mToughness = cardCursor.getInt(columns.mToughness);
+            this.mLoyalty = cardCursor.getInt(columns.mLoyalty);
+            this.mText = cardCursor.getString(columns.mText);
+            this.mFlavor = cardCursor.getString(columns.mFlavor);
+            this.mMultiverseId = cardCursor.getInt(columns.mMultiverseId);
+            this.mArtist = cardCursor.getString(columns.mArtist);
+            this.mWatermark = cardCursor.getString(columns.mWatermark);
+            this.mColorIdentity = cardCursor.getString(columns.mColorIdentity);
+
+            this.mSetName = cardCursor.getString(columns.mSetName);
+            this.mSetNameMtgi = cardCursor.getString(columns.mSetNameMtgi);
 
             // Don't mess with any of the other MtgCard specific fields that may have been loaded fron files, like mIsCustomPrice
 
             /* Override choice is the card can't be foil */
-            int canBeFoil = cardCursor.getInt(cardCursor.getColumnIndex("s_" + CardDbAdapter.KEY_CAN_BE_FOIL));
+            int canBeFoil = cardCursor.getInt(columns.mCanBeFoil);
             if (0 == canBeFoil) {
                 this.mIsFoil = false;
             }
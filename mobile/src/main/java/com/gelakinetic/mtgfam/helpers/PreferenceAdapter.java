@@ -26,16 +26,13 @@ import android.media.RingtoneManager;
 import android.preference.PreferenceManager;
 import android.support.annotation.DrawableRes;
 import android.support.annotation.Nullable;
-import android.support.v4.util.LongSparseArray;
 
 import com.gelakinetic.mtgfam.R;
 import com.gelakinetic.mtgfam.fragments.dialogs.SortOrderDialogFragment;
 import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
 import com.gelakinetic.mtgfam.helpers.tcgp.MarketPriceInfo;
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 
-import java.lang.reflect.Type;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
@@ -578,6 +575,55 @@ edit.putString(context.getString(R.string.key_date), date);
         edit.apply();
     }
 
+    public static synchronized String getHttpETag(@Nullable Context context, String url) {
+        if (null == context) {
+            return null;
+        }
+        return PreferenceManager.getDefaultSharedPreferences(context).getString(context.getString(R.string.key_http_etag_) + url, null);
+    }
+
+    public static synchronized String getHttpLastModified(@Nullable Context context, String url) {
+        if (null == context) {
+            return null;
+        }
+        return PreferenceManager.getDefaultSharedPreferences(context).getString(context.getString(R.string.key_http_last_modified_) + url, null);
+    }
+
+    public static synchronized void setHttpValidators(@Nullable Context context, String url, @Nullable String eTag, @Nullable String lastModified) {
+        if (null == context) {
+            return;
+        }
+
+        Editor edit = PreferenceManager.getDefaultSharedPreferences(context).edit();
+        edit.putString(context.getString(R.string.key_http_etag_) + url, eTag);
+        edit.putString(context.getString(R.string.key_http_last_modified_) + url, lastModified);
+        edit.apply();
+    }
+
+    /**
+     * Forget every saved ETag and Last-Modified, so the next update downloads every document again.
+     * This is done whenever the database is replaced, since the validators describe what was
+     * written to the old one
+     *
+     * @param context A context to clear the validators with
+     */
+    public static synchronized void clearHttpValidators(@Nullable Context context) {
+        if (null == context) {
+            return;
+        }
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String eTagPrefix = context.getString(R.string.key_http_etag_);
+        String lastModifiedPrefix = context.getString(R.string.key_http_last_modified_);
+        Editor edit = prefs.edit();
+        for (String key : prefs.getAll().keySet()) {
+            if (key.startsWith(eTagPrefix) || key.startsWith(lastModifiedPrefix)) {
+                edit.remove(key);
+            }
+        }
+        edit.apply();
+    }
+
     /* Deprecated
     public static synchronized void setLastUpdate(String lastUpdate) {
         Editor edit = PreferenceManager.getDefaultSharedPreferences(context).edit();
@@ -756,6 +802,25 @@ edit.putString(context.getString(R.string.key_lastUpdate), lastUpdate);
         edit.apply();
     }
 
+    public static synchronized String getDatabaseName(@Nullable Context context) {
+        if (null == context) {
+            return "data";
+        }
+        return PreferenceManager.getDefaultSharedPreferences(context).getString(context.getString(R.string.key_database_name), "data");
+    }
+
+    public static synchronized void setDatabaseName(@Nullable Context context, String databaseName) {
+        if (null == context) {
+            return;
+        }
+
+        Editor edit = PreferenceManager.getDefaultSharedPreferences(context).edit();
+        edit.putString(context.getString(R.string.key_database_name),
+                databaseName);
+        /* Write this to disk right away, it decides which database file is used after a restart */
+        edit.commit();
+    }
+
     public static synchronized String getLanguage(@Nullable Context context) {
         if (null == context) {
             return null;
@@ -1045,28 +1110,22 @@ edit.putString(context.getString(R.string.key_lastUpdate), lastUpdate);
                 SearchCriteria.class);
     }
 
-    public static void setGroups(@Nullable Context context, LongSparseArray<String> groups) {
+    /**
+     * Remove the TCGplayer.com groups which used to be saved as a preference. They're kept in
+     * their own table now
+     *
+     * @param context A context to remove the preference with
+     */
+    public static synchronized void removeLegacyGroups(@Nullable Context context) {
         if (null == context) {
             return;
         }
 
         Editor edit = PreferenceManager.getDefaultSharedPreferences(context).edit();
-        edit.putString(context.getString(R.string.key_tcgpGroups), (new Gson()).toJson(groups));
+        edit.remove(context.getString(R.string.key_tcgpGroups));
         edit.apply();
     }
 
-    public static LongSparseArray<String> getGroups(@Nullable Context context) {
-        if (null == context) {
-            return new LongSparseArray<>();
-        }
-
-        Type type = new TypeToken<LongSparseArray<String>>() {
-        }.getType();
-        return (new Gson()).fromJson(
-                PreferenceManager.getDefaultSharedPreferences(context).getString(context.getString(R.string.key_tcgpGroups), "{}"),
-                type);
-    }
-
     /* Persist search options */
     public static synchronized boolean getPersistSearchOptions(@Nullable Context context) {
         if (null == context) {
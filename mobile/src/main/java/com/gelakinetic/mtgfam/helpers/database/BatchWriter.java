@@ -0,0 +1,806 @@
+/*
+ * Copyright 2019 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+
+import com.gelakinetic.GathererScraper.JsonTypes.Card;
+import com.gelakinetic.GathererScraper.JsonTypes.CardTypeAdapter;
+import com.gelakinetic.GathererScraper.JsonTypes.Expansion;
+import com.gelakinetic.GathererScraper.Language;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * This class inserts rows for the updater. Each INSERT is compiled once into a SQLiteStatement
+ * and reused, with values bound directly instead of boxed into ContentValues. If the database is
+ * in a transaction, the work is committed every so often so the write-ahead log stays small.
+ * <p>
+ * It also counts rows and time, so the updater can report how fast each kind of load was.
+ * <p>
+ * When a set which is already in the database changes, it can be diffed instead of dropped and
+ * reinserted. Every card row stores a hash of the card it was written from. Between beginDiff()
+ * and endDiff(), each card is matched to the stored row with the same set and number, and only
+ * rows whose hash changed are rewritten. Rows which weren't matched are deleted at the end.
+ */
+public class BatchWriter implements Closeable {
+
+    /* How many rows to insert between commits */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /* Card columns, in the order they are bound. The foreign names and multiverse IDs start at
+     * bind index FIRST_FOREIGN_COLUMN
+     */
+    private static final String[] CARD_COLUMNS = {
+            CardDbAdapter.KEY_NAME,
+            CardDbAdapter.KEY_SET,
+            CardDbAdapter.KEY_SUPERTYPE,
+            CardDbAdapter.KEY_SUBTYPE,
+            CardDbAdapter.KEY_RARITY,
+            CardDbAdapter.KEY_MANACOST,
+            CardDbAdapter.KEY_CMC,
+            CardDbAdapter.KEY_POWER,
+            CardDbAdapter.KEY_TOUGHNESS,
+            CardDbAdapter.KEY_LOYALTY,
+            CardDbAdapter.KEY_ABILITY,
+            CardDbAdapter.KEY_FLAVOR,
+            CardDbAdapter.KEY_ARTIST,
+            CardDbAdapter.KEY_NUMBER,
+            CardDbAdapter.KEY_COLOR,
+            CardDbAdapter.KEY_MULTIVERSEID,
+            CardDbAdapter.KEY_COLOR_IDENTITY,
+            CardDbAdapter.KEY_NAME_NO_ACCENT,
+            CardDbAdapter.KEY_WATERMARK,
+            CardDbAdapter.KEY_COLOR_MASK,
+            CardDbAdapter.KEY_COLOR_IDENTITY_MASK,
+            CardDbAdapter.KEY_NAME_CHINESE_TRADITIONAL,
+            CardDbAdapter.KEY_MULTIVERSEID_CHINESE_TRADITIONAL,
+            CardDbAdapter.KEY_NAME_CHINESE_SIMPLIFIED,
+            CardDbAdapter.KEY_MULTIVERSEID_CHINESE_SIMPLIFIED,
+            CardDbAdapter.KEY_NAME_FRENCH,
+            CardDbAdapter.KEY_MULTIVERSEID_FRENCH,
+            CardDbAdapter.KEY_NAME_GERMAN,
+            CardDbAdapter.KEY_MULTIVERSEID_GERMAN,
+            CardDbAdapter.KEY_NAME_ITALIAN,
+            CardDbAdapter.KEY_MULTIVERSEID_ITALIAN,
+            CardDbAdapter.KEY_NAME_JAPANESE,
+            CardDbAdapter.KEY_MULTIVERSEID_JAPANESE,
+            CardDbAdapter.KEY_NAME_PORTUGUESE_BRAZIL,
+            CardDbAdapter.KEY_MULTIVERSEID_PORTUGUESE_BRAZIL,
+            CardDbAdapter.KEY_NAME_RUSSIAN,
+            CardDbAdapter.KEY_MULTIVERSEID_RUSSIAN,
+            CardDbAdapter.KEY_NAME_SPANISH,
+            CardDbAdapter.KEY_MULTIVERSEID_SPANISH,
+            CardDbAdapter.KEY_NAME_KOREAN,
+            CardDbAdapter.KEY_MULTIVERSEID_KOREAN,
+            CardDbAdapter.KEY_ROW_HASH
+    };
+    private static final int FIRST_FOREIGN_COLUMN = 22;
+    private static final int ROW_HASH_COLUMN = CARD_COLUMNS.length;
+
+    /* The bind index of each language's name. The multiverse ID is the next index */
+    private static final HashMap<String, Integer> FOREIGN_NAME_INDEX = new HashMap<>();
+
+    static {
+        String[] languages = {Language.Chinese_Traditional, Language.Chinese_Simplified,
+                Language.French, Language.German, Language.Italian, Language.Japanese,
+                Language.Portuguese_Brazil, Language.Russian, Language.Spanish, Language.Korean};
+        for (int i = 0; i < languages.length; i++) {
+            FOREIGN_NAME_INDEX.put(languages[i], FIRST_FOREIGN_COLUMN + (2 * i));
+        }
+    }
+
+    private static final String INSERT_CARD = buildInsert(CardDbAdapter.DATABASE_TABLE_CARDS, CARD_COLUMNS);
+    private static final String INSERT_CARD_TEXT = buildInsert(CardDbAdapter.DATABASE_TABLE_CARDS_FTS,
+            "docid", CardDbAdapter.KEY_ABILITY, CardDbAdapter.KEY_FLAVOR);
+    private static final String UPDATE_CARD = buildUpdate(CardDbAdapter.DATABASE_TABLE_CARDS,
+            CardDbAdapter.KEY_ID, CARD_COLUMNS);
+    private static final String UPDATE_CARD_TEXT = buildUpdate(CardDbAdapter.DATABASE_TABLE_CARDS_FTS,
+            "docid", CardDbAdapter.KEY_ABILITY, CardDbAdapter.KEY_FLAVOR);
+    private static final String DELETE_CARD = buildDelete(CardDbAdapter.DATABASE_TABLE_CARDS,
+            CardDbAdapter.KEY_ID);
+    private static final String DELETE_CARD_TEXT = buildDelete(CardDbAdapter.DATABASE_TABLE_CARDS_FTS,
+            "docid");
+    private static final String DELETE_CARD_TYPES = buildDelete(CardDbAdapter.DATABASE_TABLE_CARD_TYPES,
+            CardDbAdapter.KEY_CARD_ID);
+    private static final String DELETE_SET = buildDelete(CardDbAdapter.DATABASE_TABLE_SETS,
+            CardDbAdapter.KEY_CODE);
+    private static final String INSERT_CARD_TYPE = buildInsert(CardDbAdapter.DATABASE_TABLE_CARD_TYPES,
+            CardDbAdapter.KEY_CARD_ID, CardDbAdapter.KEY_TOKEN, CardDbAdapter.KEY_KIND);
+    private static final String INSERT_SET = buildInsert(CardDbAdapter.DATABASE_TABLE_SETS,
+            CardDbAdapter.KEY_CODE, CardDbAdapter.KEY_NAME, CardDbAdapter.KEY_CODE_MTGI,
+            CardDbAdapter.KEY_DATE, CardDbAdapter.KEY_DIGEST, CardDbAdapter.KEY_CAN_BE_FOIL,
+            CardDbAdapter.KEY_NAME_TCGPLAYER, CardDbAdapter.KEY_ONLINE_ONLY, CardDbAdapter.KEY_BORDER_COLOR);
+    private static final String INSERT_FORMAT = buildInsert(CardDbAdapter.DATABASE_TABLE_FORMATS,
+            CardDbAdapter.KEY_NAME);
+    private static final String INSERT_LEGAL_SET = buildInsert(CardDbAdapter.DATABASE_TABLE_LEGAL_SETS,
+            CardDbAdapter.KEY_SET, CardDbAdapter.KEY_FORMAT);
+    private static final String INSERT_LEGAL_CARD = buildInsert(CardDbAdapter.DATABASE_TABLE_BANNED_CARDS,
+            CardDbAdapter.KEY_NAME, CardDbAdapter.KEY_LEGALITY, CardDbAdapter.KEY_FORMAT);
+    private static final String INSERT_RULE = buildInsert(CardDbAdapter.DATABASE_TABLE_RULES_STAGING,
+            CardDbAdapter.KEY_CATEGORY, CardDbAdapter.KEY_SUBCATEGORY, CardDbAdapter.KEY_ENTRY,
+            CardDbAdapter.KEY_RULE_TEXT, CardDbAdapter.KEY_POSITION);
+    private static final String INSERT_GLOSSARY_TERM = buildInsert(CardDbAdapter.DATABASE_TABLE_GLOSSARY_STAGING,
+            CardDbAdapter.KEY_TERM, CardDbAdapter.KEY_DEFINITION);
+
+    /* Compiled once, instead of on every split() call */
+    private static final Pattern TYPE_DELIMITER = Pattern.compile(" - ", Pattern.LITERAL);
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    /* Serializes cards for hashing */
+    private static final CardTypeAdapter CARD_ADAPTER = new CardTypeAdapter();
+
+    /* FNV-1a, 64 bit */
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * A card row which is already in the set being diffed
+     */
+    private static class StoredCard {
+        private final long mId;
+        private final Long mHash;
+
+        /**
+         * Constructor
+         *
+         * @param id   The KEY_ID of the row
+         * @param hash The row's hash, or null if it was written before rows were hashed
+         */
+        StoredCard(long id, Long hash) {
+            mId = id;
+            mHash = hash;
+        }
+    }
+
+    private final SQLiteDatabase mDatabase;
+    private final int mBatchSize;
+    private final HashMap<String, SQLiteStatement> mStatements = new HashMap<>();
+    private int mRowsInBatch = 0;
+    private long mRowCount = 0;
+    private final long mStartTime = System.nanoTime();
+
+    /* The rows in the set being diffed which haven't been matched yet, by number, or null */
+    private HashMap<String, StoredCard> mStoredCards = null;
+    private int mCardsAdded = 0;
+    private int mCardsChanged = 0;
+    private int mCardsRemoved = 0;
+    private int mCardsUnchanged = 0;
+
+    /**
+     * Constructor
+     *
+     * @param database The database to write to
+     */
+    public BatchWriter(SQLiteDatabase database) {
+        this(database, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param database  The database to write to
+     * @param batchSize How many rows to insert between commits
+     */
+    public BatchWriter(SQLiteDatabase database, int batchSize) {
+        mDatabase = database;
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * Helper function to build an INSERT statement with a placeholder for each column
+     *
+     * @param table   The table to insert into
+     * @param columns The columns to insert
+     * @return The INSERT statement
+     */
+    private static String buildInsert(String table, String... columns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        StringBuilder values = new StringBuilder(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+                values.append(", ");
+            }
+            sql.append(columns[i]);
+            values.append('?');
+        }
+        return sql.append(values).append(')').toString();
+    }
+
+    /**
+     * Helper function to build an UPDATE statement with a placeholder for each column, and one
+     * more for the key at the end
+     *
+     * @param table     The table to update
+     * @param keyColumn The column which picks the row to update
+     * @param columns   The columns to update
+     * @return The UPDATE statement
+     */
+    private static String buildUpdate(String table, String keyColumn, String... columns) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(columns[i]).append(" = ?");
+        }
+        return sql.append(" WHERE ").append(keyColumn).append(" = ?").toString();
+    }
+
+    /**
+     * Helper function to build a DELETE statement with a placeholder for the key
+     *
+     * @param table     The table to delete from
+     * @param keyColumn The column which picks the rows to delete
+     * @return The DELETE statement
+     */
+    private static String buildDelete(String table, String keyColumn) {
+        return "DELETE FROM " + table + " WHERE " + keyColumn + " = ?";
+    }
+
+    /**
+     * Get the compiled statement for some SQL, compiling it the first time it's used
+     *
+     * @param sql The SQL statement
+     * @return A compiled statement with no bound values
+     */
+    private SQLiteStatement getStatement(String sql) {
+        SQLiteStatement statement = mStatements.get(sql);
+        if (null == statement) {
+            statement = mDatabase.compileStatement(sql);
+            mStatements.put(sql, statement);
+        } else {
+            statement.clearBindings();
+        }
+        return statement;
+    }
+
+    /**
+     * Helper function to bind a string, or null
+     *
+     * @param statement The statement to bind to
+     * @param index     The 1-based index of the placeholder
+     * @param value     The value to bind
+     */
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (null == value) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Count a row, and commit the open transaction if a batch is complete. The transaction is
+     * restarted right away, so whoever opened it can still commit it when they're done.
+     */
+    private void countRow() {
+        mRowCount++;
+        mRowsInBatch++;
+        if (mRowsInBatch >= mBatchSize && mDatabase.inTransaction()) {
+            mDatabase.execSQL("COMMIT");
+            mDatabase.execSQL("BEGIN EXCLUSIVE TRANSACTION");
+            mRowsInBatch = 0;
+        }
+    }
+
+    /**
+     * Add a card to DATABASE_TABLE_CARDS, its text to DATABASE_TABLE_CARDS_FTS, and its type words
+     * to DATABASE_TABLE_CARD_TYPES. A card which breaks a constraint is skipped.
+     * <p>
+     * If a set is being diffed, and it already has a card with this number, that row is rewritten
+     * instead, and only if the card changed.
+     *
+     * @param card The card to add
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public void createCard(Card card) throws FamiliarDbException {
+        try {
+            long hash = hashCard(card);
+            if (null != mStoredCards) {
+                StoredCard stored = mStoredCards.remove(getDiffKey(card.getNumber()));
+                if (null != stored) {
+                    if (null != stored.mHash && stored.mHash == hash) {
+                        mCardsUnchanged++;
+                    } else {
+                        updateCard(stored.mId, card, hash);
+                        mCardsChanged++;
+                    }
+                    return;
+                }
+                mCardsAdded++;
+            }
+            insertCard(card, hash);
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Insert a new card row, its text, and its type words
+     *
+     * @param card The card to insert
+     * @param hash The card's hash, from hashCard()
+     */
+    private void insertCard(Card card, long hash) {
+        String[] types = splitType(card.getType());
+        SQLiteStatement statement = getStatement(INSERT_CARD);
+        bindCard(statement, card, types[0], types[1], hash);
+
+        long rowId;
+        try {
+            rowId = statement.executeInsert();
+        } catch (SQLiteConstraintException e) {
+            return;
+        }
+
+        /* Index the card's text for full text searches */
+        SQLiteStatement textStatement = getStatement(INSERT_CARD_TEXT);
+        textStatement.bindLong(1, rowId);
+        bindString(textStatement, 2, card.getText());
+        bindString(textStatement, 3, card.getFlavor());
+        textStatement.executeInsert();
+
+        /* And split the card's types into words for type searches */
+        insertTypeTokens(rowId, types[0], CardDbAdapter.TYPE_KIND_SUPERTYPE);
+        insertTypeTokens(rowId, types[1], CardDbAdapter.TYPE_KIND_SUBTYPE);
+        countRow();
+    }
+
+    /**
+     * Rewrite an existing card row in place, along with its text and type words. The row keeps
+     * its KEY_ID, so anything which refers to it stays valid.
+     *
+     * @param rowId The KEY_ID of the row to rewrite
+     * @param card  The card to write
+     * @param hash  The card's hash, from hashCard()
+     */
+    private void updateCard(long rowId, Card card, long hash) {
+        String[] types = splitType(card.getType());
+        SQLiteStatement statement = getStatement(UPDATE_CARD);
+        bindCard(statement, card, types[0], types[1], hash);
+        statement.bindLong(CARD_COLUMNS.length + 1, rowId);
+        try {
+            statement.executeUpdateDelete();
+        } catch (SQLiteConstraintException e) {
+            return;
+        }
+
+        SQLiteStatement textStatement = getStatement(UPDATE_CARD_TEXT);
+        bindString(textStatement, 1, card.getText());
+        bindString(textStatement, 2, card.getFlavor());
+        textStatement.bindLong(3, rowId);
+        textStatement.executeUpdateDelete();
+
+        SQLiteStatement typesStatement = getStatement(DELETE_CARD_TYPES);
+        typesStatement.bindLong(1, rowId);
+        typesStatement.executeUpdateDelete();
+        insertTypeTokens(rowId, types[0], CardDbAdapter.TYPE_KIND_SUPERTYPE);
+        insertTypeTokens(rowId, types[1], CardDbAdapter.TYPE_KIND_SUBTYPE);
+        countRow();
+    }
+
+    /**
+     * Delete a card row, along with its text and type words
+     *
+     * @param rowId The KEY_ID of the row to delete
+     */
+    private void deleteCard(long rowId) {
+        for (String sql : new String[]{DELETE_CARD_TYPES, DELETE_CARD_TEXT, DELETE_CARD}) {
+            SQLiteStatement statement = getStatement(sql);
+            statement.bindLong(1, rowId);
+            statement.executeUpdateDelete();
+        }
+        countRow();
+    }
+
+    /**
+     * Split a type line into the supertype and the subtype. Everything after the first delimiter
+     * is joined in case there's a hyphen in the subtype
+     *
+     * @param type The type line, i.e. "Legendary Creature - Human Wizard"
+     * @return The supertype and the subtype, either of which may be empty
+     */
+    private static String[] splitType(String type) {
+        String[] types = TYPE_DELIMITER.split(type);
+        String supertype = "";
+        String subtype = "";
+        if (types.length > 0) {
+            supertype = types[0];
+        }
+        if (types.length > 1) {
+            StringBuilder subtypeBuilder = new StringBuilder(types[1]);
+            for (int i = 2; i < types.length; i++) {
+                subtypeBuilder.append(" - ").append(types[i]);
+            }
+            subtype = subtypeBuilder.toString();
+        }
+        return new String[]{supertype, subtype};
+    }
+
+    /**
+     * Bind a card's values to an INSERT_CARD or UPDATE_CARD statement, in CARD_COLUMNS order
+     *
+     * @param statement The statement to bind to
+     * @param card      The card to bind
+     * @param supertype The card's supertype, from splitType()
+     * @param subtype   The card's subtype, from splitType()
+     * @param hash      The card's hash, from hashCard()
+     */
+    private static void bindCard(SQLiteStatement statement, Card card, String supertype, String subtype,
+                                 long hash) {
+        bindString(statement, 1, card.getName());
+        bindString(statement, 2, card.getExpansion());
+        statement.bindString(3, supertype);
+        statement.bindString(4, subtype);
+        statement.bindLong(5, (int) card.getRarity());
+        bindString(statement, 6, card.getManaCost());
+        statement.bindLong(7, card.getCmc());
+        statement.bindDouble(8, card.getPower());
+        statement.bindDouble(9, card.getToughness());
+        statement.bindLong(10, card.getLoyalty());
+        bindString(statement, 11, card.getText());
+        bindString(statement, 12, card.getFlavor());
+        bindString(statement, 13, card.getArtist());
+        bindString(statement, 14, card.getNumber());
+        bindString(statement, 15, card.getColor());
+        statement.bindLong(16, card.getMultiverseId());
+        bindString(statement, 17, card.getColorIdentity());
+        bindString(statement, 18, CardDbAdapter.removeAccentMarks(card.getName()));
+        bindString(statement, 19, card.getWatermark());
+        statement.bindLong(20, CardDbAdapter.getColorMask(card.getColor(), true));
+        statement.bindLong(21, CardDbAdapter.getColorMask(card.getColorIdentity(), false));
+        for (Card.ForeignPrinting fp : card.getForeignPrintings()) {
+            Integer index = FOREIGN_NAME_INDEX.get(fp.getLanguageCode());
+            if (null != index) {
+                bindString(statement, index, fp.getName());
+                statement.bindLong(index + 1, fp.getMultiverseId());
+            }
+        }
+        statement.bindLong(ROW_HASH_COLUMN, hash);
+    }
+
+    /**
+     * Hash everything about a card which ends up in its row. The card is serialized the same way
+     * it is in a patch, so the hash only changes when the patch's copy of the card does
+     *
+     * @param card The card to hash
+     * @return A 64 bit FNV-1a hash of the card
+     */
+    static long hashCard(Card card) {
+        StringWriter json = new StringWriter();
+        try {
+            CARD_ADAPTER.write(new JsonWriter(json), card);
+        } catch (IOException e) {
+            /* A StringWriter doesn't throw */
+            throw new IllegalStateException(e);
+        }
+        long hash = FNV_OFFSET_BASIS;
+        StringBuffer buffer = json.getBuffer();
+        for (int i = 0; i < buffer.length(); i++) {
+            hash ^= buffer.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * @param number A card's number, which may be null
+     * @return The key the card is matched to a stored row with while diffing
+     */
+    private static String getDiffKey(String number) {
+        return (null == number) ? "" : number;
+    }
+
+    /**
+     * Start diffing a set which is already in the database. Until endDiff() or cancelDiff() is
+     * called, createCard() rewrites the stored row with the same number, if the card changed, and
+     * only inserts cards which are new.
+     *
+     * @param setCode The set to diff
+     * @return true if the set can be diffed, false if two of its stored cards share a number, so
+     * they can't be told apart. In that case the set should be dropped and inserted again
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public boolean beginDiff(String setCode) throws FamiliarDbException {
+        Cursor cursor = null;
+        try {
+            HashMap<String, StoredCard> storedCards = new HashMap<>();
+            cursor = mDatabase.query(CardDbAdapter.DATABASE_TABLE_CARDS,
+                    new String[]{CardDbAdapter.KEY_ID, CardDbAdapter.KEY_NUMBER, CardDbAdapter.KEY_ROW_HASH},
+                    CardDbAdapter.KEY_SET + " = ?", new String[]{setCode}, null, null, null);
+            int idIdx = cursor.getColumnIndex(CardDbAdapter.KEY_ID);
+            int numberIdx = cursor.getColumnIndex(CardDbAdapter.KEY_NUMBER);
+            int hashIdx = cursor.getColumnIndex(CardDbAdapter.KEY_ROW_HASH);
+            while (cursor.moveToNext()) {
+                StoredCard storedCard = new StoredCard(cursor.getLong(idIdx),
+                        cursor.isNull(hashIdx) ? null : cursor.getLong(hashIdx));
+                if (null != storedCards.put(getDiffKey(cursor.getString(numberIdx)), storedCard)) {
+                    return false;
+                }
+            }
+
+            mStoredCards = storedCards;
+            mCardsAdded = 0;
+            mCardsChanged = 0;
+            mCardsRemoved = 0;
+            mCardsUnchanged = 0;
+            return true;
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Finish diffing a set. Every stored card which didn't match a card in the new patch is deleted
+     *
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public void endDiff() throws FamiliarDbException {
+        if (null == mStoredCards) {
+            return;
+        }
+        try {
+            for (StoredCard storedCard : mStoredCards.values()) {
+                deleteCard(storedCard.mId);
+                mCardsRemoved++;
+            }
+            mStoredCards = null;
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Stop diffing a set without deleting anything, i.e. when writing the patch failed and the set
+     * is going to be dropped anyway
+     */
+    public void cancelDiff() {
+        mStoredCards = null;
+    }
+
+    /**
+     * @return A summary of what the last diff changed
+     */
+    public String getDiffSummary() {
+        return String.format(Locale.US, "%d added, %d changed, %d removed, %d unchanged",
+                mCardsAdded, mCardsChanged, mCardsRemoved, mCardsUnchanged);
+    }
+
+    /**
+     * Add a row to DATABASE_TABLE_CARD_TYPES for each word in a supertype or subtype.
+     *
+     * @param cardId The KEY_ID of the card the types belong to
+     * @param types  The supertype or subtype string, i.e. "Legendary Creature"
+     * @param kind   TYPE_KIND_SUPERTYPE or TYPE_KIND_SUBTYPE
+     */
+    private void insertTypeTokens(long cardId, String types, int kind) {
+        for (String token : WHITESPACE.split(types)) {
+            if (!token.isEmpty()) {
+                SQLiteStatement statement = getStatement(INSERT_CARD_TYPE);
+                statement.bindLong(1, cardId);
+                statement.bindString(2, token);
+                statement.bindLong(3, kind);
+                statement.executeInsert();
+            }
+        }
+    }
+
+    /**
+     * Add an expansion to DATABASE_TABLE_SETS. An expansion which breaks a constraint is skipped.
+     *
+     * @param set The expansion to add
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public void createSet(Expansion set) throws FamiliarDbException {
+        try {
+            SQLiteStatement statement = getStatement(INSERT_SET);
+            bindString(statement, 1, set.mCode_gatherer);
+            bindString(statement, 2, set.mName_gatherer);
+            bindString(statement, 3, set.mCode_mtgi);
+            statement.bindLong(4, set.mReleaseTimestamp);
+            bindString(statement, 5, set.mDigest);
+            statement.bindLong(6, set.mCanBeFoil ? 1 : 0);
+            bindString(statement, 7, set.mName_tcgp);
+            statement.bindLong(8, set.mIsOnlineOnly ? 1 : 0);
+            bindString(statement, 9, set.mBorderColor);
+            insert(statement);
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Replace an expansion which is already in DATABASE_TABLE_SETS, i.e. when it's being diffed
+     * and its digest changed. The expansion's cards aren't touched.
+     *
+     * @param set The expansion to write
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public void replaceSet(Expansion set) throws FamiliarDbException {
+        try {
+            SQLiteStatement statement = getStatement(DELETE_SET);
+            bindString(statement, 1, set.mCode_gatherer);
+            statement.executeUpdateDelete();
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        }
+        createSet(set);
+    }
+
+    /**
+     * Add a format to DATABASE_TABLE_FORMATS.
+     *
+     * @param name The name of the format
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public void createFormat(String name) throws FamiliarDbException {
+        try {
+            SQLiteStatement statement = getStatement(INSERT_FORMAT);
+            bindString(statement, 1, name);
+            insert(statement);
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Add a set and format pair to the table of legal sets.
+     *
+     * @param set    The set to add
+     * @param format The format the set is legal in
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public void addLegalSet(String set, String format) throws FamiliarDbException {
+        try {
+            SQLiteStatement statement = getStatement(INSERT_LEGAL_SET);
+            bindString(statement, 1, set);
+            bindString(statement, 2, format);
+            insert(statement);
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Add a card to the table of banned & restricted cards.
+     *
+     * @param card   The name of the card
+     * @param format The format the card is banned in
+     * @param status LEGAL, BANNED, or RESTRICTED
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public void addLegalCard(String card, String format, int status) throws FamiliarDbException {
+        try {
+            SQLiteStatement statement = getStatement(INSERT_LEGAL_CARD);
+            bindString(statement, 1, card);
+            statement.bindLong(2, status);
+            bindString(statement, 3, format);
+            insert(statement);
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Insert a rule's title & text with its category, subcategory, and position into the staging
+     * rules table. CardDbAdapter.swapRulesTables() makes it live.
+     *
+     * @param category    The integer category
+     * @param subcategory The integer subcategory
+     * @param entry       The title of the rule, or null
+     * @param text        The text of the rule
+     * @param position    The rule's position, or a negative number for none
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public void insertRule(int category, int subcategory, String entry, String text, int position)
+            throws FamiliarDbException {
+        try {
+            SQLiteStatement statement = getStatement(INSERT_RULE);
+            statement.bindLong(1, category);
+            statement.bindLong(2, subcategory);
+            bindString(statement, 3, (null == entry) ? null : entry.trim());
+            statement.bindString(4, text.trim());
+            if (position >= 0) {
+                statement.bindLong(5, position);
+            }
+            statement.executeInsert();
+            countRow();
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Insert a glossary term into the staging glossary table. CardDbAdapter.swapRulesTables()
+     * makes it live.
+     *
+     * @param term       The term to insert
+     * @param definition The definition for the glossary term
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public void insertGlossaryTerm(String term, String definition) throws FamiliarDbException {
+        try {
+            SQLiteStatement statement = getStatement(INSERT_GLOSSARY_TERM);
+            statement.bindString(1, term.trim());
+            statement.bindString(2, definition.trim());
+            statement.executeInsert();
+            countRow();
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Run an INSERT, skipping the row if it breaks a constraint like SQLiteDatabase.insert() does
+     *
+     * @param statement The statement to run, with its values bound
+     */
+    private void insert(SQLiteStatement statement) {
+        try {
+            statement.executeInsert();
+            countRow();
+        } catch (SQLiteConstraintException e) {
+            /* Skip this row */
+        }
+    }
+
+    /**
+     * @return How many rows have been written. Cards are counted once, not once per table
+     */
+    public long getRowCount() {
+        return mRowCount;
+    }
+
+    /**
+     * @return A summary of how many rows were written, and how fast
+     */
+    public String getThroughput() {
+        long elapsedMs = Math.max(1, (System.nanoTime() - mStartTime) / 1000000);
+        return String.format(Locale.US, "%d rows in %dms (%d rows/s)", mRowCount, elapsedMs,
+                (mRowCount * 1000) / elapsedMs);
+    }
+
+    /**
+     * Release the compiled statements. This doesn't commit, whoever opened the transaction does
+     */
+    @Override
+    public void close() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+    }
+}
@@ -20,18 +20,15 @@
 package com.gelakinetic.mtgfam.helpers.database;
 
 import android.app.SearchManager;
-import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.CursorIndexOutOfBoundsException;
 import android.database.DatabaseUtils;
+import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.provider.BaseColumns;
 
-import com.gelakinetic.GathererScraper.JsonTypes.Card;
-import com.gelakinetic.GathererScraper.JsonTypes.Expansion;
-import com.gelakinetic.GathererScraper.Language;
 import com.gelakinetic.mtgfam.helpers.MtgCard;
 import com.gelakinetic.mtgfam.helpers.SearchCriteria;
 
@@ -40,8 +37,10 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -50,17 +49,23 @@ import java.util.Set;
  */
 public class CardDbAdapter {
 
-    /* Database version. Must be incremented whenever datagz is updated */
-    public static final int DATABASE_VERSION = 103;
+    /* Database version. Must be incremented whenever datagz is updated or the schema changes */
+    public static final int DATABASE_VERSION = 110;
 
     /* Database Tables */
     public static final String DATABASE_TABLE_CARDS = "cards";
     public static final String DATABASE_TABLE_SETS = "sets";
-    private static final String DATABASE_TABLE_FORMATS = "formats";
-    private static final String DATABASE_TABLE_LEGAL_SETS = "legal_sets";
-    private static final String DATABASE_TABLE_BANNED_CARDS = "banned_cards";
-    private static final String DATABASE_TABLE_RULES = "rules";
-    private static final String DATABASE_TABLE_GLOSSARY = "glossary";
+    static final String DATABASE_TABLE_FORMATS = "formats";
+    static final String DATABASE_TABLE_LEGAL_SETS = "legal_sets";
+    static final String DATABASE_TABLE_BANNED_CARDS = "banned_cards";
+    static final String DATABASE_TABLE_RULES = "rules";
+    static final String DATABASE_TABLE_GLOSSARY = "glossary";
+    static final String DATABASE_TABLE_RULES_STAGING = "rules_staging";
+    static final String DATABASE_TABLE_GLOSSARY_STAGING = "glossary_staging";
+    static final String DATABASE_TABLE_CARDS_FTS = "cards_fts";
+    public static final String DATABASE_TABLE_CARD_TYPES = "card_types";
+    private static final String DATABASE_TABLE_PRINTINGS_SUMMARY = "printings_summary";
+    private static final String DATABASE_TABLE_CARD_LEGALITY = "card_legality";
 
     /* Database Keys */
     public static final String KEY_ID = "_id";
@@ -90,18 +95,18 @@ public class CardDbAdapter {
     public static final String KEY_DEFINITION = "definition";
     public static final String KEY_BANNED_LIST = "banned_list";
     public static final String KEY_LEGAL_SETS = "legal_sets";
-    private static final String KEY_NAME_TCGPLAYER = "name_tcgplayer";
-    private static final String KEY_ONLINE_ONLY = "online_only";
-    private static final String KEY_BORDER_COLOR = "border_color";
-    private static final String KEY_FORMAT = "format";
+    static final String KEY_NAME_TCGPLAYER = "name_tcgplayer";
+    static final String KEY_ONLINE_ONLY = "online_only";
+    static final String KEY_BORDER_COLOR = "border_color";
+    static final String KEY_FORMAT = "format";
     public static final String KEY_DIGEST = "digest";
     private static final String KEY_RULINGS = "rulings";
     public static final String KEY_CODE_MTGI = "code_mtgi";
-    private static final String KEY_DATE = "date";
-    private static final String KEY_POSITION = "position";
+    static final String KEY_DATE = "date";
+    static final String KEY_POSITION = "position";
     public static final String KEY_COLOR_IDENTITY = "color_identity";
     public static final String KEY_CAN_BE_FOIL = "can_be_foil";
-    private static final String KEY_NAME_NO_ACCENT = "name_no_accent";
+    static final String KEY_NAME_NO_ACCENT = "name_no_accent";
     public static final String KEY_NAME_CHINESE_TRADITIONAL = "NAME_CHINESE_TRADITIONAL";
     public static final String KEY_MULTIVERSEID_CHINESE_TRADITIONAL = "MULTIVERSEID_CHINESE_TRADITIONAL";
     public static final String KEY_NAME_CHINESE_SIMPLIFIED = "NAME_CHINESE_SIMPLIFIED";
@@ -123,6 +128,23 @@ public class CardDbAdapter {
     public static final String KEY_NAME_KOREAN = "NAME_KOREAN";
     public static final String KEY_MULTIVERSEID_KOREAN = "MULTIVERSEID_KOREAN";
     public static final String KEY_WATERMARK = "WATERMARK";
+    static final String KEY_COLOR_MASK = "color_mask";
+    static final String KEY_COLOR_IDENTITY_MASK = "color_identity_mask";
+    static final String KEY_CARD_ID = "card_id";
+    static final String KEY_ROW_HASH = "row_hash";
+    static final String KEY_TOKEN = "token";
+    static final String KEY_KIND = "kind";
+    private static final String KEY_FIRST_SET = "first_set";
+    private static final String KEY_FIRST_DATE = "first_date";
+    private static final String KEY_LATEST_SET = "latest_set";
+    private static final String KEY_LATEST_DATE = "latest_date";
+    private static final String CONSOLIDATED_PRINTINGS = "consolidated_printings";
+    private static final String KEY_PRINTING_COUNT = "printing_count";
+    private static final String KEY_STATUS = "status";
+
+    /* Values for KEY_KIND in DATABASE_TABLE_CARD_TYPES */
+    public static final int TYPE_KIND_SUPERTYPE = 0;
+    public static final int TYPE_KIND_SUBTYPE = 1;
 
     /* All the columns in DATABASE_TABLE_CARDS */
     public static final List<String> ALL_CARD_DATA_KEYS = Collections.unmodifiableList(Arrays.asList(
@@ -202,8 +224,11 @@ public class CardDbAdapter {
                     KEY_LEGALITY + " integer not null, " +
                     KEY_FORMAT + " text not null);";
 
+    /* The rules and glossary tables are created from these with String.format(), so staging
+     * copies can be made with the same schema
+     */
     private static final String DATABASE_CREATE_GLOSSARY =
-            "create table " + DATABASE_TABLE_GLOSSARY + "(" +
+            "create table %s(" +
                     KEY_ID + " integer primary key autoincrement, " +
                     KEY_TERM + " text not null, " +
                     KEY_DEFINITION + " text not null);";
@@ -231,6 +256,9 @@ public class CardDbAdapter {
                     KEY_RULINGS + " text, " +
                     KEY_NAME_NO_ACCENT + " text not null, " +
                     KEY_WATERMARK + " text, " +
+                    KEY_COLOR_MASK + " integer not null default 0, " +
+                    KEY_COLOR_IDENTITY_MASK + " integer not null default 0, " +
+                    KEY_ROW_HASH + " integer, " +
                     KEY_NAME_CHINESE_TRADITIONAL + " text, " +
                     KEY_MULTIVERSEID_CHINESE_TRADITIONAL + " integer, " +
                     KEY_NAME_CHINESE_SIMPLIFIED + " text, " +
@@ -265,8 +293,39 @@ public class CardDbAdapter {
                     KEY_BORDER_COLOR + " text, " +
                     KEY_DATE + " integer);";
 
+    /* A full text index of card text and flavor text. The docid is the card's KEY_ID */
+    static final String DATABASE_CREATE_CARDS_FTS =
+            "create virtual table " + DATABASE_TABLE_CARDS_FTS + " using fts4(" +
+                    KEY_ABILITY + ", " +
+                    KEY_FLAVOR + ");";
+
+    /* Each word of each card's supertype and subtype, one per row, so they can be looked up in an index */
+    static final String DATABASE_CREATE_CARD_TYPES =
+            "create table " + DATABASE_TABLE_CARD_TYPES + "(" +
+                    KEY_CARD_ID + " integer not null, " +
+                    KEY_TOKEN + " text not null collate nocase, " +
+                    KEY_KIND + " integer not null);";
+
+    /* The first and latest printing of each card, so searches don't have to aggregate every printing */
+    static final String DATABASE_CREATE_PRINTINGS_SUMMARY =
+            "create table " + DATABASE_TABLE_PRINTINGS_SUMMARY + "(" +
+                    KEY_NAME + " text primary key, " +
+                    KEY_FIRST_SET + " text not null, " +
+                    KEY_FIRST_DATE + " integer, " +
+                    KEY_LATEST_SET + " text not null, " +
+                    KEY_LATEST_DATE + " integer, " +
+                    KEY_PRINTING_COUNT + " integer not null);";
+
+    /* Every card which isn't LEGAL in a format, and its status. Cards which aren't here are LEGAL */
+    static final String DATABASE_CREATE_CARD_LEGALITY =
+            "create table " + DATABASE_TABLE_CARD_LEGALITY + "(" +
+                    KEY_NAME + " text not null, " +
+                    KEY_FORMAT + " text not null, " +
+                    KEY_STATUS + " integer not null, " +
+                    "primary key (" + KEY_NAME + ", " + KEY_FORMAT + "));";
+
     private static final String DATABASE_CREATE_RULES =
-            "create table " + DATABASE_TABLE_RULES + "(" +
+            "create table %s(" +
                     KEY_ID + " integer primary key autoincrement, " +
                     KEY_CATEGORY + " integer not null, " +
                     KEY_SUBCATEGORY + " integer not null, " +
@@ -290,13 +349,33 @@ public class CardDbAdapter {
     public static final int FIRST_PRINTING = 1;
     public static final int ALL_PRINTINGS = 2;
 
+    /* The number of rows in each page of search results from searchPage() */
+    public static final int SEARCH_PAGE_SIZE = 200;
+
+    /* The number of cards looked up per query in fetchCardByNamesAndSets(). Each card binds two
+     * arguments, and SQLite allows 999 arguments and 500 UNION terms per statement */
+    private static final int HYDRATION_CHUNK_SIZE = 400;
+
     /* The options for format legality for a card */
     public static final int LEGAL = 0;
     public static final int BANNED = 1;
     public static final int RESTRICTED = 2;
 
+    /* Bits for KEY_COLOR_MASK and KEY_COLOR_IDENTITY_MASK. Colorless is only used for color */
+    private static final int COLOR_BIT_WHITE = 1;
+    private static final int COLOR_BIT_BLUE = 1 << 1;
+    private static final int COLOR_BIT_BLACK = 1 << 2;
+    private static final int COLOR_BIT_RED = 1 << 3;
+    private static final int COLOR_BIT_GREEN = 1 << 4;
+    private static final int COLOR_BIT_COLORLESS = 1 << 5;
+    private static final int MAX_COLOR_IDENTITY_MASK = COLOR_BIT_COLORLESS - 1;
+    private static final int MAX_COLOR_MASK = (COLOR_BIT_COLORLESS << 1) - 1;
+
     private static final String[] ILLEGAL_SETS = {"UG", "UNH", "UST", "ARS", "PCP", "PP2"};
 
+    /* Formats where cards are legal even if they weren't printed in a legal set */
+    private static final String[] ETERNAL_FORMATS = {"Legacy", "Vintage", "Commander"};
+
     /* The various types of multi-cards */
     public enum MultiCardType {
         NOPE,
@@ -333,14 +412,22 @@ public class CardDbAdapter {
             sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_BANNED_CARDS);
             sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_RULES);
             sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_GLOSSARY);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_CARDS_FTS);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_CARD_TYPES);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_PRINTINGS_SUMMARY);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_CARD_LEGALITY);
 
             sqLiteDatabase.execSQL(DATABASE_CREATE_CARDS);
             sqLiteDatabase.execSQL(DATABASE_CREATE_SETS);
             sqLiteDatabase.execSQL(DATABASE_CREATE_FORMATS);
             sqLiteDatabase.execSQL(DATABASE_CREATE_LEGAL_SETS);
             sqLiteDatabase.execSQL(DATABASE_CREATE_BANNED_CARDS);
-            sqLiteDatabase.execSQL(DATABASE_CREATE_RULES);
-            sqLiteDatabase.execSQL(DATABASE_CREATE_GLOSSARY);
+            sqLiteDatabase.execSQL(String.format(DATABASE_CREATE_RULES, DATABASE_TABLE_RULES));
+            sqLiteDatabase.execSQL(String.format(DATABASE_CREATE_GLOSSARY, DATABASE_TABLE_GLOSSARY));
+            sqLiteDatabase.execSQL(DATABASE_CREATE_CARDS_FTS);
+            sqLiteDatabase.execSQL(DATABASE_CREATE_CARD_TYPES);
+            sqLiteDatabase.execSQL(DATABASE_CREATE_PRINTINGS_SUMMARY);
+            sqLiteDatabase.execSQL(DATABASE_CREATE_CARD_LEGALITY);
         } catch (SQLiteException e) {
             throw new FamiliarDbException(e);
         }
@@ -429,6 +516,41 @@ public class CardDbAdapter {
         }
     }
 
+    /**
+     * Return a sorted String array of every unique word in either the supertypes or subtypes of
+     * all cards. This reads DATABASE_TABLE_CARD_TYPES, so it doesn't have to split every type line.
+     *
+     * @param kind     TYPE_KIND_SUPERTYPE or TYPE_KIND_SUBTYPE
+     * @param database The database to query
+     * @return A String array of unique type words
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static String[] getTypeTokens(int kind, SQLiteDatabase database)
+            throws FamiliarDbException {
+        Cursor cursor = null;
+        try {
+            String query =
+                    "SELECT DISTINCT " + KEY_TOKEN +
+                            " FROM " + DATABASE_TABLE_CARD_TYPES +
+                            " WHERE " + KEY_KIND + " = " + kind +
+                            " ORDER BY " + KEY_TOKEN;
+            cursor = database.rawQuery(query, null);
+
+            String[] tokens = new String[cursor.getCount()];
+            int colIndex = cursor.getColumnIndex(KEY_TOKEN);
+            for (int i = 0; cursor.moveToNext(); i++) {
+                tokens[i] = cursor.getString(colIndex);
+            }
+            return tokens;
+        } catch (SQLiteException | IllegalStateException | CursorIndexOutOfBoundsException e) {
+            throw new FamiliarDbException(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     /**
      * Given a list of KEY_ID values, return a cursor with all of a cards' information.
      * <p>
@@ -486,7 +608,7 @@ public class CardDbAdapter {
             throws FamiliarDbException {
         try {
             /* Sanitize the string and remove accent marks */
-            name = sanitizeString(name, true);
+            name = sanitizeArgument(name, true);
             StringBuilder sql = new StringBuilder("SELECT ");
             boolean first = true;
             for (String field : fields) {
@@ -497,7 +619,7 @@ public class CardDbAdapter {
                 }
                 sql.append(field);
             }
-            sql.append(" FROM " + DATABASE_TABLE_CARDS + " JOIN " + DATABASE_TABLE_SETS + " ON " + DATABASE_TABLE_SETS + "." + KEY_CODE + " = " + DATABASE_TABLE_CARDS + "." + KEY_SET + " WHERE " + DATABASE_TABLE_CARDS + "." + KEY_NAME_NO_ACCENT + " = ").append(name);
+            sql.append(" FROM " + DATABASE_TABLE_CARDS + " JOIN " + DATABASE_TABLE_SETS + " ON " + DATABASE_TABLE_SETS + "." + KEY_CODE + " = " + DATABASE_TABLE_CARDS + "." + KEY_SET + " WHERE " + DATABASE_TABLE_CARDS + "." + KEY_NAME_NO_ACCENT + " = ?");
             if (offlineOnly) {
                 sql.append(" AND " + KEY_ONLINE_ONLY + " = 0");
             }
@@ -511,7 +633,7 @@ public class CardDbAdapter {
                 sql.append(" ORDER BY " + DATABASE_TABLE_SETS + "." + KEY_DATE + " DESC");
             }
 
-            Cursor c = mDb.rawQuery(sql.toString(), null);
+            Cursor c = mDb.rawQuery(sql.toString(), new String[]{name});
             if (c != null) {
                 c.moveToFirst();
             }
@@ -575,8 +697,8 @@ public class CardDbAdapter {
             throws FamiliarDbException {
         try {
             /* Sanitize the string and remove accent marks */
-            name = sanitizeString(name, true);
-            setCode = sanitizeString(setCode, false);
+            name = sanitizeArgument(name, true);
+            setCode = sanitizeArgument(setCode, false);
 
             StringBuilder sql = new StringBuilder("SELECT ");
             boolean first = true;
@@ -589,9 +711,9 @@ public class CardDbAdapter {
                 sql.append(field);
             }
 
-            sql.append(" FROM " + DATABASE_TABLE_CARDS + " JOIN " + DATABASE_TABLE_SETS + " ON " + DATABASE_TABLE_SETS + "." + KEY_CODE + " = " + DATABASE_TABLE_CARDS + "." + KEY_SET + " WHERE " + DATABASE_TABLE_CARDS + "." + KEY_NAME_NO_ACCENT + " = ").append(name).append(" COLLATE NOCASE").append(" AND ").append(DATABASE_TABLE_CARDS).append(".").append(KEY_SET).append(" = ").append(setCode).append(" ORDER BY ").append(DATABASE_TABLE_SETS).append(".").append(KEY_DATE).append(" DESC");
+            sql.append(" FROM " + DATABASE_TABLE_CARDS + " JOIN " + DATABASE_TABLE_SETS + " ON " + DATABASE_TABLE_SETS + "." + KEY_CODE + " = " + DATABASE_TABLE_CARDS + "." + KEY_SET + " WHERE " + DATABASE_TABLE_CARDS + "." + KEY_NAME_NO_ACCENT + " = ?").append(" COLLATE NOCASE").append(" AND ").append(DATABASE_TABLE_CARDS).append(".").append(KEY_SET).append(" = ?").append(" ORDER BY ").append(DATABASE_TABLE_SETS).append(".").append(KEY_DATE).append(" DESC");
 
-            Cursor c = mDb.rawQuery(sql.toString(), null);
+            Cursor c = mDb.rawQuery(sql.toString(), new String[]{name, setCode});
             if (c != null) {
                 c.moveToFirst();
             }
@@ -602,7 +724,9 @@ public class CardDbAdapter {
     }
 
     /**
-     * Given a list of cards, fetch all the database info about them in a single query
+     * Given a list of cards, fetch all the database info about them. The names and sets are joined
+     * against the cards table as a derived table, rather than ORed together in a WHERE clause, so
+     * each card is an index lookup. Large lists are split into a few queries and merged.
      * <p>
      * TODO online only pref
      *
@@ -613,47 +737,70 @@ public class CardDbAdapter {
      */
     public static Cursor fetchCardByNamesAndSets(ArrayList<MtgCard> cards, SQLiteDatabase mDb)
             throws FamiliarDbException {
-        try {
-            StringBuilder sql = new StringBuilder("SELECT ");
-
-            // All the keys
-            boolean first = true;
-            for (String field : ALL_CARD_DATA_KEYS) {
-                if (first) {
-                    first = false;
-                } else {
-                    sql.append(", ");
-                }
-                sql.append(field).append(" as c_").append(field.split("\\.")[1]);
-            }
-            for (String field : ALL_SET_DATA_KEYS) {
-                sql.append(", ");
-                sql.append(field).append(" as s_").append(field.split("\\.")[1]);
-            }
+        /* Find the distinct keys, the same card may be in a list more than once */
+        LinkedHashMap<String, String[]> keys = new LinkedHashMap<>();
+        for (MtgCard card : cards) {
+            String[] key = {sanitizeArgument(card.getName(), true),
+                    sanitizeArgument(card.getExpansion(), false)};
+            keys.put(key[0] + '\n' + key[1], key);
+        }
 
-            // From a joined table
-            sql.append(" FROM " + DATABASE_TABLE_CARDS + " JOIN " + DATABASE_TABLE_SETS + " ON " + DATABASE_TABLE_SETS + "." + KEY_CODE + " = " + DATABASE_TABLE_CARDS + "." + KEY_SET);
+        StringBuilder select = new StringBuilder("SELECT ");
 
-            sql.append(" WHERE ");
+        // All the keys
+        boolean first = true;
+        for (String field : ALL_CARD_DATA_KEYS) {
+            if (first) {
+                first = false;
+            } else {
+                select.append(", ");
+            }
+            select.append(field).append(" as c_").append(field.split("\\.")[1]);
+        }
+        for (String field : ALL_SET_DATA_KEYS) {
+            select.append(", ");
+            select.append(field).append(" as s_").append(field.split("\\.")[1]);
+        }
 
-            first = true;
-            for (MtgCard card : cards) {
-                if (first) {
-                    first = false;
-                } else {
-                    sql.append(" OR ");
+        ArrayList<Cursor> chunks = new ArrayList<>();
+        try {
+            ArrayList<String> args = new ArrayList<>();
+            StringBuilder keyTable = new StringBuilder();
+            int keysInChunk = 0;
+            int keysLeft = keys.size();
+            for (String[] key : keys.values()) {
+                /* Each key is a row in a derived table, which the cards are joined against */
+                if (keysInChunk > 0) {
+                    keyTable.append(" UNION ALL ");
+                }
+                keyTable.append("SELECT ? AS k_" + KEY_NAME + ", ? AS k_" + KEY_SET);
+                args.add(key[0]);
+                args.add(key[1]);
+                keysInChunk++;
+                keysLeft--;
+
+                if (keysInChunk == HYDRATION_CHUNK_SIZE || keysLeft == 0) {
+                    String sql = select +
+                            " FROM (" + keyTable + ") keys" +
+                            " JOIN " + DATABASE_TABLE_CARDS + " ON " +
+                            DATABASE_TABLE_CARDS + "." + KEY_NAME_NO_ACCENT + " = keys.k_" + KEY_NAME + " COLLATE NOCASE" +
+                            " AND " + DATABASE_TABLE_CARDS + "." + KEY_SET + " = keys.k_" + KEY_SET +
+                            " JOIN " + DATABASE_TABLE_SETS + " ON " +
+                            DATABASE_TABLE_SETS + "." + KEY_CODE + " = " + DATABASE_TABLE_CARDS + "." + KEY_SET;
+                    chunks.add(mDb.rawQuery(sql, args.toArray(new String[0])));
+                    args.clear();
+                    keyTable.setLength(0);
+                    keysInChunk = 0;
                 }
-                sql.append("(c_").append(KEY_NAME_NO_ACCENT).append(" = ").append(sanitizeString(card.getName(), true)).append(" COLLATE NOCASE AND ");
-                sql.append("c_").append(KEY_SET).append(" = ").append(sanitizeString(card.getExpansion(), false)).append(")");
             }
-            sql.append(" ORDER BY s_").append(KEY_DATE).append(" DESC");
 
-            Cursor c = mDb.rawQuery(sql.toString(), null);
-            if (c != null) {
-                c.moveToFirst();
-            }
+            Cursor c = new MergeCursor(chunks.toArray(new Cursor[0]));
+            c.moveToFirst();
             return c;
         } catch (SQLiteException | IllegalStateException e) {
+            for (Cursor chunk : chunks) {
+                chunk.close();
+            }
             throw new FamiliarDbException(e);
         }
     }
@@ -670,7 +817,7 @@ public class CardDbAdapter {
      */
     public static long fetchIdByName(String name, SQLiteDatabase mDb) throws FamiliarDbException {
         /* replace lowercase ae with Ae */
-        name = sanitizeString(name, true);
+        name = sanitizeArgument(name, true);
 
         String sql = "SELECT " +
                 DATABASE_TABLE_CARDS + "." + KEY_ID + ", " +
@@ -679,12 +826,12 @@ public class CardDbAdapter {
                 " FROM (" + DATABASE_TABLE_CARDS + " JOIN " + DATABASE_TABLE_SETS + " ON " +
                 DATABASE_TABLE_CARDS + "." + KEY_SET + "=" +
                 DATABASE_TABLE_SETS + "." + KEY_CODE + ")" +
-                " WHERE " + DATABASE_TABLE_CARDS + "." + KEY_NAME_NO_ACCENT + " = "
-                + name + " COLLATE NOCASE ORDER BY " + DATABASE_TABLE_SETS + "." + KEY_DATE + " DESC";
+                " WHERE " + DATABASE_TABLE_CARDS + "." + KEY_NAME_NO_ACCENT + " = ?"
+                + " COLLATE NOCASE ORDER BY " + DATABASE_TABLE_SETS + "." + KEY_DATE + " DESC";
 
         Cursor cursor = null;
         try {
-            cursor = mDb.rawQuery(sql, null);
+            cursor = mDb.rawQuery(sql, new String[]{name});
             if (cursor != null && cursor.getCount() > 0) {
                 cursor.moveToFirst();
                 return cursor.getLong(cursor.getColumnIndex(CardDbAdapter.KEY_ID));
@@ -717,18 +864,227 @@ public class CardDbAdapter {
     public static Cursor Search(SearchCriteria criteria, boolean backface, String[] returnTypes,
                                 boolean consolidate, String orderByStr, SQLiteDatabase mDb)
             throws FamiliarDbException {
-        StringBuilder statement = new StringBuilder(" WHERE 1=1");
+        ParameterizedQuery query = buildSearchSql(criteria, backface, returnTypes, consolidate, mDb);
+        if (null == query) {
+            return null;
+        }
+
+        if (null == orderByStr) {
+            orderByStr = KEY_NAME + " COLLATE UNICODE";
+        }
+
+        if (consolidate) {
+            query.append(" ORDER BY " + orderByStr);
+        } else {
+            query = new ParameterizedQuery("SELECT * FROM (").append(query)
+                    .append(" ORDER BY " + orderByStr
+                            + ", " + DATABASE_TABLE_SETS + "." + KEY_DATE
+                            + " DESC)");
+        }
+
+        try {
+            Cursor cursor = query.rawQuery(mDb);
+            if (cursor != null) {
+                cursor.moveToFirst();
+            }
+            return cursor;
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * This function will query the database with the information in criteria and return a cursor
+     * with a single page of the requested data, up to SEARCH_PAGE_SIZE rows. Pages are found by
+     * their position in the sort order (keyset pagination), not by an offset, so SQLite only has
+     * to keep the next page's rows while sorting instead of building the whole result.
+     *
+     * @param criteria     The criteria used to build the query
+     * @param backface     Whether or not the results should include the 'b' side of multicards
+     * @param returnTypes  The columns which should be returned in the cursor. This must include
+     *                     KEY_ID and every column in orderByStr
+     * @param consolidate  true to not include multiple printings of the same card, false otherwise
+     * @param orderByStr   A string used to order the results, i.e. "name asc,cmc desc"
+     * @param previousPage The page before the one to return, or null for the first page
+     * @param mDb          The database to query
+     * @return A cursor with the next page of cards, which is empty after the last page, or null if
+     * the criteria were empty
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static Cursor searchPage(SearchCriteria criteria, boolean backface, String[] returnTypes,
+                                    boolean consolidate, String orderByStr, Cursor previousPage,
+                                    SQLiteDatabase mDb) throws FamiliarDbException {
+        ParameterizedQuery query = buildSearchSql(criteria, backface, returnTypes, consolidate, mDb);
+        if (null == query) {
+            return null;
+        }
+
+        List<String[]> sortTerms = getPageSortTerms(orderByStr);
+        ParameterizedQuery pageSql = new ParameterizedQuery("SELECT * FROM (").append(query).append(")");
+
+        try {
+            if (null != previousPage && previousPage.moveToLast()) {
+                /* Only return rows which sort after the last row of the previous page */
+                pageSql.append(" WHERE 0");
+                ParameterizedQuery equalTerms = new ParameterizedQuery();
+                for (String[] term : sortTerms) {
+                    int index = previousPage.getColumnIndexOrThrow(term[2]);
+                    pageSql.append(" OR (").append(equalTerms);
+                    if (previousPage.isNull(index)) {
+                        /* NULLs sort first */
+                        pageSql.append(isSortTermAscending(term) ? term[0] + " IS NOT NULL" : "0");
+                        equalTerms.append(term[0] + " IS NULL AND ");
+                    } else if (isSortTermAscending(term)) {
+                        bindCursorValue(pageSql.append(term[0] + " > "), previousPage, index);
+                        bindCursorValue(equalTerms.append(term[0] + " = "), previousPage, index)
+                                .append(" AND ");
+                    } else {
+                        bindCursorValue(pageSql.append("(" + term[0] + " < "), previousPage, index)
+                                .append(" OR " + term[0] + " IS NULL");
+                        bindCursorValue(equalTerms.append(term[0] + " = "), previousPage, index)
+                                .append(" AND ");
+                    }
+                    pageSql.append(")");
+                }
+            }
+
+            pageSql.append(" ORDER BY ");
+            boolean first = true;
+            for (String[] term : sortTerms) {
+                if (!first) {
+                    pageSql.append(", ");
+                }
+                pageSql.append(term[0]).append(" ").append(term[1]);
+                first = false;
+            }
+            pageSql.append(" LIMIT ").append(SEARCH_PAGE_SIZE);
+
+            Cursor cursor = pageSql.rawQuery(mDb);
+            if (cursor != null) {
+                cursor.moveToFirst();
+            }
+            return cursor;
+        } catch (SQLiteException | IllegalStateException | IllegalArgumentException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Count the results of a search without returning them. This is meant to be run in the
+     * background while the first page of results is shown.
+     *
+     * @param criteria    The criteria used to build the query
+     * @param backface    Whether or not the results should include the 'b' side of multicards
+     * @param consolidate true to not include multiple printings of the same card, false otherwise
+     * @param mDb         The database to query
+     * @return The number of cards the search would return
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static int countSearchResults(SearchCriteria criteria, boolean backface,
+                                         boolean consolidate, SQLiteDatabase mDb)
+            throws FamiliarDbException {
+        ParameterizedQuery query = buildSearchSql(criteria, backface, new String[]{KEY_ID}, consolidate, mDb);
+        if (null == query) {
+            return 0;
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = new ParameterizedQuery("SELECT COUNT(*) FROM (").append(query).append(")")
+                    .rawQuery(mDb);
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } catch (SQLiteException | IllegalStateException | CursorIndexOutOfBoundsException e) {
+            throw new FamiliarDbException(e);
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Return the KEY_ID of every result of a search, in the same order as searchPage() would return
+     * them. This is cheaper than loading every page when all the results are needed at once.
+     *
+     * @param criteria    The criteria used to build the query
+     * @param backface    Whether or not the results should include the 'b' side of multicards
+     * @param consolidate true to not include multiple printings of the same card, false otherwise
+     * @param orderByStr  A string used to order the results, i.e. "name asc,cmc desc"
+     * @param mDb         The database to query
+     * @return An array of KEY_IDs for every result
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static long[] getSearchResultIds(SearchCriteria criteria, boolean backface,
+                                            boolean consolidate, String orderByStr,
+                                            SQLiteDatabase mDb) throws FamiliarDbException {
+        List<String[]> sortTerms = getPageSortTerms(orderByStr);
+        ArrayList<String> returnTypes = new ArrayList<>();
+        for (String[] term : sortTerms) {
+            if (!KEY_DATE.equals(term[2]) && !returnTypes.contains(term[2])) {
+                returnTypes.add(term[2]);
+            }
+        }
+        ParameterizedQuery query = buildSearchSql(criteria, backface,
+                returnTypes.toArray(new String[0]), consolidate, mDb);
+        if (null == query) {
+            return new long[]{};
+        }
+
+        ParameterizedQuery idSql = new ParameterizedQuery("SELECT " + KEY_ID + " FROM (").append(query).append(") ORDER BY ");
+        boolean first = true;
+        for (String[] term : sortTerms) {
+            if (!first) {
+                idSql.append(", ");
+            }
+            idSql.append(term[0]).append(" ").append(term[1]);
+            first = false;
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = idSql.rawQuery(mDb);
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Build the SELECT statement for a search, without an ORDER BY. Consolidated searches are
+     * grouped by card name.
+     *
+     * @param criteria    The criteria used to build the query
+     * @param backface    Whether or not the results should include the 'b' side of multicards
+     * @param returnTypes The columns which should be returned, in addition to the set's date
+     * @param consolidate true to not include multiple printings of the same card, false otherwise
+     * @param mDb         The database to query, for format information
+     * @return The SQL statement and its arguments, or null if the criteria were empty
+     * @throws FamiliarDbException If something goes wrong
+     */
+    private static ParameterizedQuery buildSearchSql(SearchCriteria criteria, boolean backface,
+                                                     String[] returnTypes, boolean consolidate,
+                                                     SQLiteDatabase mDb) throws FamiliarDbException {
+        ParameterizedQuery statement = new ParameterizedQuery(" WHERE 1=1");
 
         if (criteria.name != null) {
             String[] nameParts = criteria.name.split(" ");
             for (String s : nameParts) {
-                statement.append(" AND (" + DATABASE_TABLE_CARDS + "." + KEY_NAME_NO_ACCENT + " LIKE ").append(sanitizeString("%" + s + "%", true)).append(")");
+                statement.append(" AND (" + DATABASE_TABLE_CARDS + "." + KEY_NAME_NO_ACCENT + " LIKE ").bind(sanitizeArgument("%" + s + "%", true)).append(")");
             }
         }
 
         /* Check if the watermark matches exactly */
         if (criteria.watermark != null) {
-            statement.append(" AND (" + DATABASE_TABLE_CARDS + "." + KEY_WATERMARK + " = ").append(sanitizeString(criteria.watermark, false)).append(")");
+            statement.append(" AND (" + DATABASE_TABLE_CARDS + "." + KEY_WATERMARK + " = ").bind(sanitizeArgument(criteria.watermark, false)).append(")");
         }
 
         /*
@@ -756,9 +1112,9 @@ public class CardDbAdapter {
                 case 0:
                     for (String s : cardTextParts) {
                         if (s.contains(EXCLUDE_TOKEN))
-                            statement.append(" AND (" + DATABASE_TABLE_CARDS + "." + KEY_ABILITY + " NOT LIKE ").append(sanitizeString("%" + s.substring(EXCLUDE_TOKEN_START) + "%", false)).append(")");
+                            statement.append(" AND NOT ").append(getTextClause(KEY_ABILITY, s.substring(EXCLUDE_TOKEN_START)));
                         else
-                            statement.append(" AND (" + DATABASE_TABLE_CARDS + "." + KEY_ABILITY + " LIKE ").append(sanitizeString("%" + s + "%", false)).append(")");
+                            statement.append(" AND ").append(getTextClause(KEY_ABILITY, s));
                     }
                     break;
                 case 1:
@@ -767,20 +1123,20 @@ public class CardDbAdapter {
                         if (firstRun) {
                             firstRun = false;
                             if (s.contains(EXCLUDE_TOKEN))
-                                statement.append(" AND ((" + DATABASE_TABLE_CARDS + "." + KEY_ABILITY + " NOT LIKE ").append(sanitizeString("%" + s.substring(EXCLUDE_TOKEN_START) + "%", false)).append(")");
+                                statement.append(" AND (NOT ").append(getTextClause(KEY_ABILITY, s.substring(EXCLUDE_TOKEN_START)));
                             else
-                                statement.append(" AND ((" + DATABASE_TABLE_CARDS + "." + KEY_ABILITY + " LIKE ").append(sanitizeString("%" + s + "%", false)).append(")");
+                                statement.append(" AND (").append(getTextClause(KEY_ABILITY, s));
                         } else {
                             if (s.contains(EXCLUDE_TOKEN))
-                                statement.append(" AND (" + DATABASE_TABLE_CARDS + "." + KEY_ABILITY + " NOT LIKE ").append(sanitizeString("%" + s.substring(EXCLUDE_TOKEN_START) + "%", false)).append(")");
+                                statement.append(" AND NOT ").append(getTextClause(KEY_ABILITY, s.substring(EXCLUDE_TOKEN_START)));
                             else
-                                statement.append(" OR (" + DATABASE_TABLE_CARDS + "." + KEY_ABILITY + " LIKE ").append(sanitizeString("%" + s + "%", false)).append(")");
+                                statement.append(" OR ").append(getTextClause(KEY_ABILITY, s));
                         }
                     }
                     statement.append(")");
                     break;
                 case 2:
-                    statement.append(" AND (" + DATABASE_TABLE_CARDS + "." + KEY_ABILITY + " LIKE ").append(sanitizeString("%" + criteria.text + "%", false)).append(")");
+                    statement.append(" AND ").append(getTextClause(KEY_ABILITY, criteria.text));
                     break;
                 default:
                     break;
@@ -797,97 +1153,25 @@ public class CardDbAdapter {
         List<String> subtypes = criteria.subTypes;
 
         if (supertypes != null && !supertypes.isEmpty()) {
-            /* Concat a leading and a trailing space to the supertype */
-            final String supertypeInDb = "' ' || " + DATABASE_TABLE_CARDS + "." + KEY_SUPERTYPE + " || ' '";
-
-            switch (criteria.typeLogic) {
-                case 0:
-                    for (String s : supertypes) {
-                        if (s.contains(EXCLUDE_TOKEN)) {
-                            statement.append(" AND (" + supertypeInDb + " NOT LIKE ").append(sanitizeString("% " + s.substring(1) + " %", false)).append(")");
-                        } else
-                            statement.append(" AND (" + supertypeInDb + " LIKE ").append(sanitizeString("% " + s + " %", false)).append(")");
-                    }
-                    break;
-                case 1:
-                    boolean firstRun = true;
-                    for (String s : supertypes) {
-                        if (firstRun) {
-                            firstRun = false;
-
-                            if (s.contains(EXCLUDE_TOKEN))
-                                statement.append(" AND ((" + supertypeInDb + " NOT LIKE ").append(sanitizeString("% " + s.substring(1) + " %", false)).append(")");
-                            else
-                                statement.append(" AND ((" + supertypeInDb + " LIKE ").append(sanitizeString("% " + s + " %", false)).append(")");
-                        } else if (s.contains(EXCLUDE_TOKEN))
-                            statement.append(" AND (" + supertypeInDb + " NOT LIKE ").append(sanitizeString("% " + s.substring(1) + " %", false)).append(")");
-                        else
-                            statement.append(" OR (" + supertypeInDb + " LIKE ").append(sanitizeString("% " + s + " %", false)).append(")");
-                    }
-                    statement.append(")");
-                    break;
-                case 2:
-                    for (String s : supertypes) {
-                        statement.append(" AND (" + supertypeInDb + " NOT LIKE ").append(sanitizeString("% " + s + " %", false)).append(")");
-                    }
-                    break;
-                default:
-                    break;
-            }
+            appendTypeClauses(statement, supertypes, TYPE_KIND_SUPERTYPE, criteria.typeLogic);
         }
 
         if (subtypes != null && !subtypes.isEmpty()) {
-            /* Concat a leading and a trailing space to the subtype */
-            final String subtypeInDb = "' ' || " + DATABASE_TABLE_CARDS + "." + KEY_SUBTYPE + " || ' '";
-
-            switch (criteria.typeLogic) {
-                case 0:
-                    for (String s : subtypes) {
-                        if (s.contains(EXCLUDE_TOKEN)) {
-                            statement.append(" AND (" + subtypeInDb + " NOT LIKE ").append(sanitizeString("% " + s.substring(1) + " %", false)).append(")");
-                        } else {
-                            statement.append(" AND (" + subtypeInDb + " LIKE ").append(sanitizeString("% " + s + " %", false)).append(")");
-                        }
-                    }
-                    break;
-                case 1:
-                    boolean firstRun = true;
-                    for (String s : subtypes) {
-                        if (firstRun) {
-                            firstRun = false;
-                            if (s.contains(EXCLUDE_TOKEN))
-                                statement.append(" AND ((" + subtypeInDb + " NOT LIKE ").append(sanitizeString("% " + s.substring(1) + " %", false)).append(")");
-                            else
-                                statement.append(" AND ((" + subtypeInDb + " LIKE ").append(sanitizeString("% " + s + " %", false)).append(")");
-                        } else if (s.contains(EXCLUDE_TOKEN))
-                            statement.append(" AND (" + subtypeInDb + " NOT LIKE ").append(sanitizeString("% " + s.substring(1) + " %", false)).append(")");
-                        else
-                            statement.append(" OR (" + subtypeInDb + " LIKE ").append(sanitizeString("% " + s + " %", false)).append(")");
-                    }
-                    statement.append(")");
-                    break;
-                case 2:
-                    for (String s : subtypes) {
-                        statement.append(" AND (" + subtypeInDb + " NOT LIKE ").append(sanitizeString("% " + s + " %", false)).append(")");
-                    }
-                    break;
-                default:
-                    break;
-            }
+            appendTypeClauses(statement, subtypes, TYPE_KIND_SUBTYPE, criteria.typeLogic);
         }
         /* End Reuben's version
          *************************************************************************************/
 
         if (criteria.flavor != null) {
-            statement.append(" AND (" + DATABASE_TABLE_CARDS + "." + KEY_FLAVOR + " LIKE ").append(sanitizeString("%" + criteria.flavor + "%", false)).append(")");
+            statement.append(" AND ").append(getTextClause(KEY_FLAVOR, criteria.flavor));
         }
 
         if (criteria.artist != null) {
-            statement.append(" AND (" + DATABASE_TABLE_CARDS + "." + KEY_ARTIST + " LIKE ").append(sanitizeString("%" + criteria.artist + "%", false)).append(")");
+            statement.append(" AND (" + DATABASE_TABLE_CARDS + "." + KEY_ARTIST + " LIKE ").bind(sanitizeArgument("%" + criteria.artist + "%", false)).append(")");
         }
 
         if (criteria.collectorsNumber != null) {
-            statement.append(" AND (" + DATABASE_TABLE_CARDS + "." + KEY_NUMBER + " = ").append(sanitizeString(criteria.collectorsNumber, false)).append(")");
+            statement.append(" AND (" + DATABASE_TABLE_CARDS + "." + KEY_NUMBER + " = ").bind(sanitizeArgument(criteria.collectorsNumber, false)).append(")");
         }
 
         /*
@@ -898,60 +1182,48 @@ public class CardDbAdapter {
         if (null != criteria.color &&
                 !(criteria.color.equals("wubrgl") || (criteria.color.equals("WUBRGL") &&
                         criteria.colorLogic == 0))) {
-            boolean firstPrint = true;
-
-            /* Can't contain these colors
-             **
-             * ...if the chosen color logic was exactly (2) or none (3) of the selected colors.
-             */
-            if (criteria.colorLogic > 1) {
-                statement.append(" AND ((");
-                for (byte b : criteria.color.getBytes()) {
-                    char ch = (char) b;
-
-                    if (ch > 'a') {
-                        if (firstPrint)
-                            firstPrint = false;
-                        else
-                            statement.append(" AND ");
-
-                        if (ch == 'l')
-                            statement.append(DATABASE_TABLE_CARDS + "." + KEY_COLOR + " NOT GLOB '[CLA]'");
-                        else
-                            statement.append(DATABASE_TABLE_CARDS + "." + KEY_COLOR + " NOT LIKE '%").append(Character.toUpperCase(ch)).append("%'");
-                    }
+            /* Selected colors are upper case, unselected colors are lower case */
+            int selected = 0;
+            int unselected = 0;
+            for (char ch : criteria.color.toCharArray()) {
+                if (Character.isUpperCase(ch)) {
+                    selected |= getColorBit(ch);
+                } else {
+                    unselected |= getColorBit(Character.toUpperCase(ch));
                 }
-                statement.append(") AND (");
             }
 
-            firstPrint = true;
-
-            /* Might contain these colors */
-            if (criteria.colorLogic < 2)
-                statement.append(" AND (");
-
-            for (byte b : criteria.color.getBytes()) {
-                char ch = (char) b;
-                if (ch < 'a') {
-                    if (firstPrint)
-                        firstPrint = false;
-                    else {
-                        if (criteria.colorLogic == 1 || criteria.colorLogic == 3)
-                            statement.append(" AND ");
-                        else
-                            statement.append(" OR ");
+            /* There are only a few possible masks, so find every one which passes the filter */
+            List<Integer> masks = new ArrayList<>();
+            for (int mask = 0; mask <= MAX_COLOR_MASK; mask++) {
+                boolean matches;
+                switch (criteria.colorLogic) {
+                    case 0: {
+                        /* Might contain these colors */
+                        matches = (mask & selected) != 0;
+                        break;
+                    }
+                    case 1: {
+                        /* Must contain all of these colors */
+                        matches = (mask & selected) == selected;
+                        break;
+                    }
+                    case 2: {
+                        /* Might contain these colors, can't contain the others */
+                        matches = (mask & unselected) == 0 && (mask & selected) != 0;
+                        break;
+                    }
+                    default: {
+                        /* Must contain all of these colors, can't contain the others */
+                        matches = (mask & unselected) == 0 && (mask & selected) == selected;
+                        break;
                     }
-
-                    if (ch == 'L')
-                        statement.append(DATABASE_TABLE_CARDS + "." + KEY_COLOR + " GLOB '[CLA]'");
-                    else
-                        statement.append(DATABASE_TABLE_CARDS + "." + KEY_COLOR + " LIKE '%").append(ch).append("%'");
+                }
+                if (matches) {
+                    masks.add(mask);
                 }
             }
-            if (criteria.colorLogic > 1)
-                statement.append("))");
-            else
-                statement.append(")");
+            statement.append(" AND ").append(getMaskClause(KEY_COLOR_MASK, masks));
         }
         /* End of addition
          *************************************************************************************/
@@ -960,46 +1232,37 @@ public class CardDbAdapter {
          * Color Identity Filter
          * If a color is selected, it's upper case. Otherwise it's lower case.
          */
-        if (null != criteria.colorIdentity && !(criteria.colorIdentity.equals("wubrgl"))) {
-            switch (criteria.colorIdentityLogic) {
-                case 0: {
-                    /* search_May_include_any_colors */
-                    boolean first = true;
-                    statement.append(" AND (");
-                    for (int i = 0; i < criteria.colorIdentity.length(); i++) {
-                        if (Character.isLowerCase(criteria.colorIdentity.charAt(i))) {
-                            if (!first) {
-                                statement.append(" AND ");
-                            }
-                            if (criteria.colorIdentity.charAt(i) == 'l') {
-                                /* If colorless isn't selected, don't allow empty identities */
-                                statement.append("(" + DATABASE_TABLE_CARDS + "." + KEY_COLOR_IDENTITY + " NOT LIKE \"\")");
-                            } else {
-                                statement.append("(" + DATABASE_TABLE_CARDS + "." + KEY_COLOR_IDENTITY + " NOT LIKE \"%").append(criteria.colorIdentity.toUpperCase().charAt(i)).append("%\")");
-                            }
-                            first = false;
-                        }
-                    }
-                    statement.append(")");
-                    break;
+        if (null != criteria.colorIdentity && !(criteria.colorIdentity.equals("wubrgl")) &&
+                (criteria.colorIdentityLogic == 0 || criteria.colorIdentityLogic == 1)) {
+            /* Colorless is an empty identity, so it's tracked separately */
+            int selected = 0;
+            int unselected = 0;
+            boolean colorlessSelected = false;
+            for (char ch : criteria.colorIdentity.toCharArray()) {
+                if (ch == 'L') {
+                    colorlessSelected = true;
+                } else if (Character.isUpperCase(ch)) {
+                    selected |= getColorBit(ch);
+                } else if (ch != 'l') {
+                    unselected |= getColorBit(Character.toUpperCase(ch));
                 }
-                case 1: {
+            }
+
+            List<Integer> masks = new ArrayList<>();
+            for (int mask = 0; mask <= MAX_COLOR_IDENTITY_MASK; mask++) {
+                boolean matches;
+                if (criteria.colorIdentityLogic == 0) {
+                    /* search_May_include_any_colors */
+                    matches = (mask & unselected) == 0 && (colorlessSelected || mask != 0);
+                } else {
                     /* search_Exact_all_selected_and_no_others */
-                    StringBuilder colorIdentity = new StringBuilder();
-                    for (int i = 0; i < criteria.colorIdentity.length(); i++) {
-                        if (Character.isUpperCase(criteria.colorIdentity.charAt(i))) {
-                            if (criteria.colorIdentity.charAt(i) == 'L') {
-                                /* Colorless identity is the empty string */
-                                statement.append(" AND (" + DATABASE_TABLE_CARDS + "." + KEY_COLOR_IDENTITY + " = \"\")");
-                            } else {
-                                colorIdentity.append(criteria.colorIdentity.charAt(i));
-                            }
-                        }
-                    }
-                    statement.append(" AND (" + DATABASE_TABLE_CARDS + "." + KEY_COLOR_IDENTITY + " = \"").append(colorIdentity).append("\")");
-                    break;
+                    matches = (mask == selected) && (!colorlessSelected || mask == 0);
+                }
+                if (matches) {
+                    masks.add(mask);
                 }
             }
+            statement.append(" AND ").append(getMaskClause(KEY_COLOR_IDENTITY_MASK, masks));
         }
 
         if (criteria.sets != null && criteria.sets.size() > 0) {
@@ -1013,7 +1276,7 @@ public class CardDbAdapter {
                 } else {
                     statement.append(" OR ");
                 }
-                statement.append(DATABASE_TABLE_CARDS + "." + KEY_SET + " = '").append(set).append("'");
+                statement.append(DATABASE_TABLE_CARDS + "." + KEY_SET + " = ").bind(set);
             }
 
             statement.append(")");
@@ -1023,12 +1286,12 @@ public class CardDbAdapter {
             statement.append(" AND (");
 
             if (criteria.powChoice > STAR) {
-                statement.append(DATABASE_TABLE_CARDS + "." + KEY_POWER + " ").append(criteria.powLogic).append(" ").append(criteria.powChoice);
+                statement.append(DATABASE_TABLE_CARDS + "." + KEY_POWER + " ").append(criteria.powLogic).append(" ").bind(criteria.powChoice);
                 if (criteria.powLogic.equals("<")) {
                     statement.append(" AND " + DATABASE_TABLE_CARDS + "." + KEY_POWER + " > " + STAR);
                 }
             } else if (criteria.powLogic.equals("=")) {
-                statement.append(DATABASE_TABLE_CARDS + "." + KEY_POWER + " ").append(criteria.powLogic).append(" ").append(criteria.powChoice);
+                statement.append(DATABASE_TABLE_CARDS + "." + KEY_POWER + " ").append(criteria.powLogic).append(" ").bind(criteria.powChoice);
             }
             statement.append(")");
         }
@@ -1037,12 +1300,12 @@ public class CardDbAdapter {
             statement.append(" AND (");
 
             if (criteria.touChoice > STAR) {
-                statement.append(DATABASE_TABLE_CARDS + "." + KEY_TOUGHNESS + " ").append(criteria.touLogic).append(" ").append(criteria.touChoice);
+                statement.append(DATABASE_TABLE_CARDS + "." + KEY_TOUGHNESS + " ").append(criteria.touLogic).append(" ").bind(criteria.touChoice);
                 if (criteria.touLogic.equals("<")) {
                     statement.append(" AND " + DATABASE_TABLE_CARDS + "." + KEY_TOUGHNESS + " > " + STAR);
                 }
             } else if (criteria.touLogic.equals("=")) {
-                statement.append(DATABASE_TABLE_CARDS + "." + KEY_TOUGHNESS + " ").append(criteria.touLogic).append(" ").append(criteria.touChoice);
+                statement.append(DATABASE_TABLE_CARDS + "." + KEY_TOUGHNESS + " ").append(criteria.touLogic).append(" ").bind(criteria.touChoice);
             }
             statement.append(")");
         }
@@ -1059,7 +1322,7 @@ public class CardDbAdapter {
         if (criteria.cmc != -1) {
             statement.append(" AND (");
 
-            statement.append(DATABASE_TABLE_CARDS + "." + KEY_CMC + " ").append(criteria.cmcLogic).append(" ").append(criteria.cmc).append(")");
+            statement.append(DATABASE_TABLE_CARDS + "." + KEY_CMC + " ").append(criteria.cmcLogic).append(" ").bind(criteria.cmc).append(")");
         }
 
         if (criteria.moJhoStoFilter) {
@@ -1093,7 +1356,7 @@ public class CardDbAdapter {
                 } else {
                     statement.append(" OR ");
                 }
-                statement.append(DATABASE_TABLE_CARDS + "." + KEY_RARITY + " = ").append((int) criteria.rarity.toUpperCase().charAt(i));
+                statement.append(DATABASE_TABLE_CARDS + "." + KEY_RARITY + " = ").bind((int) criteria.rarity.toUpperCase().charAt(i));
             }
             statement.append(")");
         }
@@ -1101,20 +1364,19 @@ public class CardDbAdapter {
         if (criteria.format != null) {
             try {
                 /* Check if the format is eternal or not, by the number of legal sets */
-                String numLegalSetsSql = "SELECT * FROM " + DATABASE_TABLE_LEGAL_SETS + " WHERE " + KEY_FORMAT + " = \"" + criteria.format + "\"";
+                String numLegalSetsSql = "SELECT * FROM " + DATABASE_TABLE_LEGAL_SETS + " WHERE " + KEY_FORMAT + " = ?";
 
                 Cursor numLegalSetCursor;
-                numLegalSetCursor = mDb.rawQuery(numLegalSetsSql, null);
+                numLegalSetCursor = mDb.rawQuery(numLegalSetsSql, new String[]{criteria.format});
 
                 /* If the format is not eternal, filter by set */
                 if (numLegalSetCursor.getCount() > 0) {
-                    String toAppend = " AND " + DATABASE_TABLE_CARDS + "." + KEY_NAME + " IN (" + " SELECT " + DATABASE_TABLE_CARDS + "_B." + KEY_NAME + " FROM " + DATABASE_TABLE_CARDS + " " + DATABASE_TABLE_CARDS + "_B " + " WHERE ";
+                    statement.append(" AND " + DATABASE_TABLE_CARDS + "." + KEY_NAME + " IN (" + " SELECT " + DATABASE_TABLE_CARDS + "_B." + KEY_NAME + " FROM " + DATABASE_TABLE_CARDS + " " + DATABASE_TABLE_CARDS + "_B " + " WHERE ");
                     // Ensure pauper only searches commons in valid Pauper sets
                     if ("Pauper".equals(criteria.format)) {
-                        toAppend += DATABASE_TABLE_CARDS + "_B." + KEY_RARITY + " = " + ((int) 'C') + " AND ";
+                        statement.append(DATABASE_TABLE_CARDS + "_B." + KEY_RARITY + " = " + ((int) 'C') + " AND ");
                     }
-                    toAppend += DATABASE_TABLE_CARDS + "_B." + KEY_SET + " IN (" + " SELECT " + DATABASE_TABLE_LEGAL_SETS + "." + KEY_SET + " FROM " + DATABASE_TABLE_LEGAL_SETS + " WHERE " + DATABASE_TABLE_LEGAL_SETS + "." + KEY_FORMAT + "='" + criteria.format + "' ) )";
-                    statement.append(toAppend);
+                    statement.append(DATABASE_TABLE_CARDS + "_B." + KEY_SET + " IN (" + " SELECT " + DATABASE_TABLE_LEGAL_SETS + "." + KEY_SET + " FROM " + DATABASE_TABLE_LEGAL_SETS + " WHERE " + DATABASE_TABLE_LEGAL_SETS + "." + KEY_FORMAT + " = ").bind(criteria.format).append(" ) )");
                 } else {
                     /* Otherwise filter silver bordered cards, giant cards */
                     for (String illegalSet : ILLEGAL_SETS) {
@@ -1122,7 +1384,7 @@ public class CardDbAdapter {
                     }
                     statement.append(" AND " + DATABASE_TABLE_CARDS + "." + KEY_SUPERTYPE + " NOT LIKE 'Plane'" + " AND " + DATABASE_TABLE_CARDS + "." + KEY_SUPERTYPE + " NOT LIKE 'Conspiracy'" + " AND " + DATABASE_TABLE_CARDS + "." + KEY_SUPERTYPE + " NOT LIKE '%Scheme'" + " AND " + DATABASE_TABLE_CARDS + "." + KEY_SUPERTYPE + " NOT LIKE 'Vanguard'");
                 }
-                statement.append(" AND " + DATABASE_TABLE_CARDS + "." + KEY_NAME + " NOT IN (SELECT " + DATABASE_TABLE_BANNED_CARDS + "." + KEY_NAME + " FROM " + DATABASE_TABLE_BANNED_CARDS + " WHERE " + DATABASE_TABLE_BANNED_CARDS + "." + KEY_FORMAT + " = '").append(criteria.format).append("'").append(" AND ").append(DATABASE_TABLE_BANNED_CARDS).append(".").append(KEY_LEGALITY).append(" = ").append(BANNED).append(")");
+                statement.append(" AND " + DATABASE_TABLE_CARDS + "." + KEY_NAME + " NOT IN (SELECT " + DATABASE_TABLE_BANNED_CARDS + "." + KEY_NAME + " FROM " + DATABASE_TABLE_BANNED_CARDS + " WHERE " + DATABASE_TABLE_BANNED_CARDS + "." + KEY_FORMAT + " = ").bind(criteria.format).append(" AND ").append(DATABASE_TABLE_BANNED_CARDS).append(".").append(KEY_LEGALITY).append(" = ").append(BANNED).append(")");
 
                 numLegalSetCursor.close();
             } catch (SQLiteException | IllegalStateException e) {
@@ -1135,63 +1397,51 @@ public class CardDbAdapter {
         }
 
         if (criteria.setLogic != MOST_RECENT_PRINTING && criteria.setLogic != ALL_PRINTINGS) {
-            statement.insert(0, " JOIN (SELECT iT" + DATABASE_TABLE_CARDS + "."
-                    + KEY_NAME + ", MIN(" + DATABASE_TABLE_SETS + "."
-                    + KEY_DATE + ") AS " + KEY_DATE + " FROM "
-                    + DATABASE_TABLE_CARDS + " AS iT" + DATABASE_TABLE_CARDS
-                    + " JOIN " + DATABASE_TABLE_SETS + " ON iT"
-                    + DATABASE_TABLE_CARDS + "." + KEY_SET + " = "
-                    + DATABASE_TABLE_SETS + "." + KEY_CODE + " GROUP BY iT"
-                    + DATABASE_TABLE_CARDS + "." + KEY_NAME
-                    + ") AS FirstPrints" + " ON " + DATABASE_TABLE_CARDS + "."
-                    + KEY_NAME + " = FirstPrints." + KEY_NAME);
-            if (criteria.setLogic == FIRST_PRINTING)
-                statement.insert(0, " AND " + DATABASE_TABLE_SETS + "." + KEY_DATE
-                        + " = FirstPrints." + KEY_DATE);
-            else
-                statement.insert(0, " AND " + DATABASE_TABLE_SETS + "." + KEY_DATE
-                        + " <> FirstPrints." + KEY_DATE);
-        }
-
-        if (statement.toString().equals(" WHERE 1=1")) {
+            /* Compare each printing against the precomputed first printing of that card */
+            statement.prepend(" JOIN " + DATABASE_TABLE_PRINTINGS_SUMMARY + " ON "
+                    + DATABASE_TABLE_CARDS + "." + KEY_NAME + " = "
+                    + DATABASE_TABLE_PRINTINGS_SUMMARY + "." + KEY_NAME
+                    + " AND " + DATABASE_TABLE_SETS + "." + KEY_DATE
+                    + (criteria.setLogic == FIRST_PRINTING ? " = " : " <> ")
+                    + DATABASE_TABLE_PRINTINGS_SUMMARY + "." + KEY_FIRST_DATE);
+        }
+
+        if (statement.getSql().equals(" WHERE 1=1")) {
             /* If the statement is just this, it means we added nothing */
             return null;
         }
 
-        try {
-            StringBuilder sel = new StringBuilder();
-            for (String s : returnTypes) {
-                if (sel.length() > 0) {
-                    sel.append(", ");
-                }
-                sel.append(DATABASE_TABLE_CARDS + ".").append(s).append(" AS ").append(s);
+        StringBuilder sel = new StringBuilder();
+        for (String s : returnTypes) {
+            if (sel.length() > 0) {
+                sel.append(", ");
             }
-            sel.append(", " + DATABASE_TABLE_SETS + "." + KEY_DATE);
+            sel.append(DATABASE_TABLE_CARDS + ".").append(s).append(" AS ").append(s);
+        }
 
-            String sql = "SELECT * FROM (SELECT " + sel + " FROM " + DATABASE_TABLE_CARDS
+        if (consolidate) {
+            /* Only keep the printings from each card's precomputed first or latest set. GROUP BY
+             * still collapses multiple printings of a card within that set, like basic lands
+             */
+            statement.prepend(" JOIN " + DATABASE_TABLE_PRINTINGS_SUMMARY + " AS " + CONSOLIDATED_PRINTINGS
+                    + " ON " + DATABASE_TABLE_CARDS + "." + KEY_NAME + " = "
+                    + CONSOLIDATED_PRINTINGS + "." + KEY_NAME
+                    + " AND " + DATABASE_TABLE_CARDS + "." + KEY_SET + " = " + CONSOLIDATED_PRINTINGS + "."
+                    + (criteria.setLogic == FIRST_PRINTING ? KEY_FIRST_SET : KEY_LATEST_SET));
+            sel.append(", " + DATABASE_TABLE_SETS + "." + KEY_DATE + " AS " + KEY_DATE);
+            return new ParameterizedQuery("SELECT " + sel + " FROM " + DATABASE_TABLE_CARDS
                     + " JOIN " + DATABASE_TABLE_SETS + " ON "
                     + DATABASE_TABLE_CARDS + "." + KEY_SET + " = "
-                    + DATABASE_TABLE_SETS + "." + KEY_CODE + statement;
-
-            if (null == orderByStr) {
-                orderByStr = KEY_NAME + " COLLATE UNICODE";
-            }
-
-            if (consolidate) {
-                sql += " ORDER BY " + DATABASE_TABLE_SETS + "." + KEY_DATE
-                        + ") GROUP BY " + KEY_NAME + " ORDER BY " + orderByStr;
-            } else {
-                sql += " ORDER BY " + orderByStr
-                        + ", " + DATABASE_TABLE_SETS + "." + KEY_DATE
-                        + " DESC)";
-            }
-            Cursor cursor = mDb.rawQuery(sql, null);
-            if (cursor != null) {
-                cursor.moveToFirst();
-            }
-            return cursor;
-        } catch (SQLiteException | IllegalStateException e) {
-            throw new FamiliarDbException(e);
+                    + DATABASE_TABLE_SETS + "." + KEY_CODE)
+                    .append(statement)
+                    .append(" GROUP BY " + DATABASE_TABLE_CARDS + "." + KEY_NAME);
+        } else {
+            sel.append(", " + DATABASE_TABLE_SETS + "." + KEY_DATE + " AS " + KEY_DATE);
+            return new ParameterizedQuery("SELECT " + sel + " FROM " + DATABASE_TABLE_CARDS
+                    + " JOIN " + DATABASE_TABLE_SETS + " ON "
+                    + DATABASE_TABLE_CARDS + "." + KEY_SET + " = "
+                    + DATABASE_TABLE_SETS + "." + KEY_CODE)
+                    .append(statement);
         }
     }
 
@@ -1208,12 +1458,11 @@ public class CardDbAdapter {
      */
     public static int getIdFromSetAndNumber(String set, String number, SQLiteDatabase mDb)
             throws FamiliarDbException {
-        String statement = "(" + KEY_NUMBER + " = '" + number + "') AND ("
-                + KEY_SET + " = '" + set + "')";
+        String statement = "(" + KEY_NUMBER + " = ?) AND (" + KEY_SET + " = ?)";
         Cursor c = null;
         try {
             c = mDb.query(true, DATABASE_TABLE_CARDS,
-                    new String[]{KEY_ID}, statement, null, null, null,
+                    new String[]{KEY_ID}, statement, new String[]{number, set}, null, null,
                     KEY_ID, null);
             c.moveToFirst();
             return c.getInt(c.getColumnIndex(KEY_ID));
@@ -1241,12 +1490,11 @@ public class CardDbAdapter {
      */
     public static String getNameFromSetAndNumber(String set, String number, SQLiteDatabase mDb)
             throws FamiliarDbException {
-        String statement = "(" + KEY_NUMBER + " = '" + number + "') AND ("
-                + KEY_SET + " = '" + set + "')";
+        String statement = "(" + KEY_NUMBER + " = ?) AND (" + KEY_SET + " = ?)";
         Cursor c = null;
         try {
             c = mDb.query(true, DATABASE_TABLE_CARDS,
-                    new String[]{KEY_NAME}, statement, null, null, null,
+                    new String[]{KEY_NAME}, statement, new String[]{number, set}, null, null,
                     KEY_NAME, null);
             c.moveToFirst();
             return c.getString(c.getColumnIndex(KEY_NAME));
@@ -1268,11 +1516,11 @@ public class CardDbAdapter {
      * @return The ID in the database
      */
     public static long getIdFromName(String name, SQLiteDatabase mDb) throws FamiliarDbException {
-        String statement = "(" + KEY_NAME + " = " + sanitizeString(name, false) + ")";
+        String statement = "(" + KEY_NAME + " = ?)";
         Cursor c = null;
         try {
             c = mDb.query(true, DATABASE_TABLE_CARDS,
-                    new String[]{KEY_ID}, statement, null, null, null,
+                    new String[]{KEY_ID}, statement, new String[]{sanitizeArgument(name, false)}, null, null,
                     KEY_NAME, null);
             c.moveToFirst();
             return c.getLong(c.getColumnIndex(KEY_ID));
@@ -1338,11 +1586,7 @@ public class CardDbAdapter {
      */
     public static Cursor getCardsByNamePrefix(String query, SQLiteDatabase mDb) throws FamiliarDbException {
         try {
-            query = sanitizeString(query + "%", true);
-
-            if (query.length() < 2) {
-                return null;
-            }
+            query = sanitizeArgument(query + "%", true);
 
             String sql =
                     "SELECT * FROM (" +
@@ -1354,12 +1598,12 @@ public class CardDbAdapter {
                             " JOIN " + DATABASE_TABLE_SETS +
                             " ON " + DATABASE_TABLE_SETS + "." + KEY_CODE + " = " + DATABASE_TABLE_CARDS + "." + KEY_SET +
                             " WHERE " +
-                            DATABASE_TABLE_CARDS + "." + KEY_NAME_NO_ACCENT + " LIKE " + query +
+                            DATABASE_TABLE_CARDS + "." + KEY_NAME_NO_ACCENT + " LIKE ?" +
                             " ORDER BY " +
                             DATABASE_TABLE_CARDS + "." + KEY_NAME + " COLLATE UNICODE, " +
                             DATABASE_TABLE_SETS + "." + KEY_DATE + " ASC" +
                             " ) GROUP BY " + KEY_NAME;
-            return mDb.rawQuery(sql, null);
+            return mDb.rawQuery(sql, new String[]{query});
         } catch (SQLiteException | IllegalStateException e) {
             throw new FamiliarDbException(e);
         }
@@ -1413,115 +1657,6 @@ public class CardDbAdapter {
         }
     }
 
-    /**
-     * Add a MtgCard to DATABASE_TABLE_CARDS.
-     *
-     * @param card The card to add to DATABASE_TABLE_CARDS
-     * @param mDb  The database to add the card to
-     */
-    public static void createCard(Card card, SQLiteDatabase mDb) {
-        ContentValues initialValues = new ContentValues();
-
-        String delimiter = " - ";
-        initialValues.put(KEY_NAME, card.getName());
-        initialValues.put(KEY_SET, card.getExpansion());
-        String types[] = card.getType().split(delimiter);
-        if (types.length > 0) {
-            initialValues.put(KEY_SUPERTYPE, types[0]);
-        } else {
-            initialValues.put(KEY_SUPERTYPE, "");
-        }
-        if (types.length > 1) {
-            /* Concatenate all strings after the first delimiter
-             * in case there's a hyphen in the subtype
-             */
-            StringBuilder subtype = new StringBuilder();
-            boolean first = true;
-            for (int i = 1; i < types.length; i++) {
-                if (!first) {
-                    subtype.append(delimiter);
-                }
-                subtype.append(types[i]);
-                first = false;
-            }
-            initialValues.put(KEY_SUBTYPE, subtype.toString());
-        } else {
-            initialValues.put(KEY_SUBTYPE, "");
-        }
-        initialValues.put(KEY_RARITY, (int) card.getRarity());
-        initialValues.put(KEY_MANACOST, card.getManaCost());
-        initialValues.put(KEY_CMC, card.getCmc());
-        initialValues.put(KEY_POWER, card.getPower());
-        initialValues.put(KEY_TOUGHNESS, card.getToughness());
-        initialValues.put(KEY_LOYALTY, card.getLoyalty());
-        initialValues.put(KEY_ABILITY, card.getText());
-        initialValues.put(KEY_FLAVOR, card.getFlavor());
-        initialValues.put(KEY_ARTIST, card.getArtist());
-        initialValues.put(KEY_NUMBER, card.getNumber());
-        initialValues.put(KEY_COLOR, card.getColor());
-        initialValues.put(KEY_MULTIVERSEID, card.getMultiverseId());
-        initialValues.put(KEY_COLOR_IDENTITY, card.getColorIdentity());
-        initialValues.put(KEY_NAME_NO_ACCENT, removeAccentMarks(card.getName()));
-        initialValues.put(KEY_WATERMARK, card.getWatermark());
-
-        for (Card.ForeignPrinting fp : card.getForeignPrintings()) {
-            switch (fp.getLanguageCode()) {
-                case Language.Chinese_Traditional: {
-                    initialValues.put(KEY_NAME_CHINESE_TRADITIONAL, fp.getName());
-                    initialValues.put(KEY_MULTIVERSEID_CHINESE_TRADITIONAL, fp.getMultiverseId());
-                    break;
-                }
-                case Language.Chinese_Simplified: {
-                    initialValues.put(KEY_NAME_CHINESE_SIMPLIFIED, fp.getName());
-                    initialValues.put(KEY_MULTIVERSEID_CHINESE_SIMPLIFIED, fp.getMultiverseId());
-                    break;
-                }
-                case Language.French: {
-                    initialValues.put(KEY_NAME_FRENCH, fp.getName());
-                    initialValues.put(KEY_MULTIVERSEID_FRENCH, fp.getMultiverseId());
-                    break;
-                }
-                case Language.German: {
-                    initialValues.put(KEY_NAME_GERMAN, fp.getName());
-                    initialValues.put(KEY_MULTIVERSEID_GERMAN, fp.getMultiverseId());
-                    break;
-                }
-                case Language.Italian: {
-                    initialValues.put(KEY_NAME_ITALIAN, fp.getName());
-                    initialValues.put(KEY_MULTIVERSEID_ITALIAN, fp.getMultiverseId());
-                    break;
-                }
-                case Language.Japanese: {
-                    initialValues.put(KEY_NAME_JAPANESE, fp.getName());
-                    initialValues.put(KEY_MULTIVERSEID_JAPANESE, fp.getMultiverseId());
-                    break;
-                }
-                case Language.Portuguese_Brazil: {
-                    initialValues.put(KEY_NAME_PORTUGUESE_BRAZIL, fp.getName());
-                    initialValues.put(KEY_MULTIVERSEID_PORTUGUESE_BRAZIL, fp.getMultiverseId());
-                    break;
-                }
-                case Language.Russian: {
-                    initialValues.put(KEY_NAME_RUSSIAN, fp.getName());
-                    initialValues.put(KEY_MULTIVERSEID_RUSSIAN, fp.getMultiverseId());
-                    break;
-                }
-                case Language.Spanish: {
-                    initialValues.put(KEY_NAME_SPANISH, fp.getName());
-                    initialValues.put(KEY_MULTIVERSEID_SPANISH, fp.getMultiverseId());
-                    break;
-                }
-                case Language.Korean: {
-                    initialValues.put(KEY_NAME_KOREAN, fp.getName());
-                    initialValues.put(KEY_MULTIVERSEID_KOREAN, fp.getMultiverseId());
-                    break;
-                }
-            }
-        }
-
-        mDb.insert(DATABASE_TABLE_CARDS, null, initialValues);
-    }
-
     /**
      * I messed up with Duel Deck Anthologies. Each deck should have had its own set code, rather
      * than grouping them all together. This function fixes any saved cards when loaded.
@@ -1542,10 +1677,10 @@ public class CardDbAdapter {
             String sql =
                     "SELECT " + KEY_SET +
                             " FROM " + DATABASE_TABLE_CARDS +
-                            " WHERE (" + KEY_NAME + " = " + sanitizeString(name, false) +
-                            " AND " + KEY_SET + " LIKE " + sanitizeString(setCode + "%", false) + ")";
+                            " WHERE (" + KEY_NAME + " = ? AND " + KEY_SET + " LIKE ?)";
 
-            cursor = database.rawQuery(sql, null);
+            cursor = database.rawQuery(sql, new String[]{sanitizeArgument(name, false),
+                    sanitizeArgument(setCode + "%", false)});
             if (cursor != null && cursor.getCount() > 0) {
                 cursor.moveToFirst();
                 return cursor.getString(cursor.getColumnIndex(KEY_SET));
@@ -1572,13 +1707,140 @@ public class CardDbAdapter {
             throws FamiliarDbException {
 
         try {
-            database.delete(DATABASE_TABLE_CARDS, KEY_SET + " = " + sanitizeString(setCode, false), null);
-            database.delete(DATABASE_TABLE_SETS, KEY_CODE + " = " + sanitizeString(setCode, false), null);
+            String[] args = new String[]{sanitizeArgument(setCode, false)};
+            database.delete(DATABASE_TABLE_CARD_TYPES, KEY_CARD_ID + " IN (SELECT " + KEY_ID + " FROM " + DATABASE_TABLE_CARDS + " WHERE " + KEY_SET + " = ?)", args);
+            database.delete(DATABASE_TABLE_CARDS_FTS, "docid IN (SELECT " + KEY_ID + " FROM " + DATABASE_TABLE_CARDS + " WHERE " + KEY_SET + " = ?)", args);
+            database.delete(DATABASE_TABLE_CARDS, KEY_SET + " = ?", args);
+            database.delete(DATABASE_TABLE_SETS, KEY_CODE + " = ?", args);
         } catch (SQLiteException | IllegalStateException e) {
             throw new FamiliarDbException(e);
         }
     }
 
+    /**
+     * Drop and rebuild the full text index of card text and flavor text from DATABASE_TABLE_CARDS.
+     * This is used when the packaged database doesn't have the index yet.
+     *
+     * @param database The database to build the index in
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static void createCardTextIndex(SQLiteDatabase database) throws FamiliarDbException {
+        try {
+            database.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_CARDS_FTS);
+            database.execSQL(DATABASE_CREATE_CARDS_FTS);
+            database.execSQL("INSERT INTO " + DATABASE_TABLE_CARDS_FTS + " (docid, " + KEY_ABILITY + ", " + KEY_FLAVOR + ")" +
+                    " SELECT " + KEY_ID + ", " + KEY_ABILITY + ", " + KEY_FLAVOR +
+                    " FROM " + DATABASE_TABLE_CARDS);
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Drop and rebuild DATABASE_TABLE_CARD_TYPES by splitting every card's supertype and subtype
+     * into words. This is used when the packaged database doesn't have the table yet.
+     *
+     * @param database The database to build the table in
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static void createTypeTokens(SQLiteDatabase database) throws FamiliarDbException {
+        Cursor cursor = null;
+        try {
+            database.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_CARD_TYPES);
+            database.execSQL(DATABASE_CREATE_CARD_TYPES);
+
+            cursor = database.query(DATABASE_TABLE_CARDS,
+                    new String[]{KEY_ID, KEY_SUPERTYPE, KEY_SUBTYPE}, null, null, null, null, null);
+            int idIdx = cursor.getColumnIndex(KEY_ID);
+            int supertypeIdx = cursor.getColumnIndex(KEY_SUPERTYPE);
+            int subtypeIdx = cursor.getColumnIndex(KEY_SUBTYPE);
+            while (cursor.moveToNext()) {
+                long cardId = cursor.getLong(idIdx);
+                insertTypeTokens(cardId, cursor.getString(supertypeIdx), TYPE_KIND_SUPERTYPE, database);
+                insertTypeTokens(cardId, cursor.getString(subtypeIdx), TYPE_KIND_SUBTYPE, database);
+            }
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Drop and rebuild DATABASE_TABLE_PRINTINGS_SUMMARY, which has the first and latest printing of
+     * every card. This must be called whenever expansions are added or removed.
+     *
+     * @param database The database to build the table in
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static void rebuildPrintingsSummary(SQLiteDatabase database) throws FamiliarDbException {
+        /* Find the set with the earliest or latest date for a single card */
+        String printingSet = "(SELECT p" + DATABASE_TABLE_CARDS + "." + KEY_SET
+                + " FROM " + DATABASE_TABLE_CARDS + " AS p" + DATABASE_TABLE_CARDS
+                + " JOIN " + DATABASE_TABLE_SETS + " ON p" + DATABASE_TABLE_CARDS + "." + KEY_SET
+                + " = " + DATABASE_TABLE_SETS + "." + KEY_CODE
+                + " WHERE p" + DATABASE_TABLE_CARDS + "." + KEY_NAME + " = agg." + KEY_NAME
+                + " ORDER BY " + DATABASE_TABLE_SETS + "." + KEY_DATE + " %s LIMIT 1)";
+        try {
+            database.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_PRINTINGS_SUMMARY);
+            database.execSQL(DATABASE_CREATE_PRINTINGS_SUMMARY);
+            database.execSQL("INSERT INTO " + DATABASE_TABLE_PRINTINGS_SUMMARY + " (" +
+                    KEY_NAME + ", " + KEY_FIRST_SET + ", " + KEY_FIRST_DATE + ", " +
+                    KEY_LATEST_SET + ", " + KEY_LATEST_DATE + ", " + KEY_PRINTING_COUNT + ")" +
+                    " SELECT agg." + KEY_NAME + ", " +
+                    String.format(printingSet, "ASC") + ", agg." + KEY_FIRST_DATE + ", " +
+                    String.format(printingSet, "DESC") + ", agg." + KEY_LATEST_DATE + ", " +
+                    "agg." + KEY_PRINTING_COUNT +
+                    " FROM (SELECT " + DATABASE_TABLE_CARDS + "." + KEY_NAME + " AS " + KEY_NAME + ", " +
+                    "MIN(" + DATABASE_TABLE_SETS + "." + KEY_DATE + ") AS " + KEY_FIRST_DATE + ", " +
+                    "MAX(" + DATABASE_TABLE_SETS + "." + KEY_DATE + ") AS " + KEY_LATEST_DATE + ", " +
+                    "COUNT(DISTINCT " + DATABASE_TABLE_CARDS + "." + KEY_SET + ") AS " + KEY_PRINTING_COUNT +
+                    " FROM " + DATABASE_TABLE_CARDS +
+                    " JOIN " + DATABASE_TABLE_SETS + " ON " + DATABASE_TABLE_CARDS + "." + KEY_SET +
+                    " = " + DATABASE_TABLE_SETS + "." + KEY_CODE +
+                    " GROUP BY " + DATABASE_TABLE_CARDS + "." + KEY_NAME + ") AS agg");
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Add the color and color identity bitmask columns to DATABASE_TABLE_CARDS and fill them in
+     * from the color strings. This is used when the packaged database doesn't have them yet.
+     *
+     * @param database The database to add the columns to
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static void createColorMasks(SQLiteDatabase database) throws FamiliarDbException {
+        try {
+            database.execSQL("ALTER TABLE " + DATABASE_TABLE_CARDS + " ADD COLUMN " + KEY_COLOR_MASK + " integer not null default 0");
+            database.execSQL("ALTER TABLE " + DATABASE_TABLE_CARDS + " ADD COLUMN " + KEY_COLOR_IDENTITY_MASK + " integer not null default 0");
+            database.execSQL("UPDATE " + DATABASE_TABLE_CARDS + " SET " +
+                    KEY_COLOR_MASK + " = " + getColorMaskSql(KEY_COLOR, true) + ", " +
+                    KEY_COLOR_IDENTITY_MASK + " = " + getColorMaskSql(KEY_COLOR_IDENTITY, false));
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Add the row hash column to DATABASE_TABLE_CARDS. Existing rows are left without a hash, so
+     * every card in a set is rewritten the first time its digest changes, and only changed cards
+     * are rewritten after that.
+     *
+     * @param database The database to add the column to
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static void createRowHashes(SQLiteDatabase database) throws FamiliarDbException {
+        try {
+            database.execSQL("ALTER TABLE " + DATABASE_TABLE_CARDS + " ADD COLUMN " + KEY_ROW_HASH + " integer");
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
     /**
      * Given a Cursor pointed at a card, return the full type line (sub - super) for that card.
      * <p>
@@ -1606,22 +1868,6 @@ public class CardDbAdapter {
     //                                                                                            //
     ////////////////////////////////////////////////////////////////////////////////////////////////
 
-    /**
-     * Add a card to the table of banned & restricted cards.
-     *
-     * @param card   The name of the card to add to the banned cards table
-     * @param format The format the card is banned in
-     * @param status LEGAL, BANNED, or RESTRICTED
-     * @param mDb    The database to add a banned or restricted card to
-     */
-    public static void addLegalCard(String card, String format, int status, SQLiteDatabase mDb) {
-        ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_NAME, card);
-        initialValues.put(KEY_LEGALITY, status);
-        initialValues.put(KEY_FORMAT, format);
-        mDb.insert(DATABASE_TABLE_BANNED_CARDS, null, initialValues);
-    }
-
     /**
      * Given a format, return a cursor pointing to all the cards banned in that format.
      *
@@ -1635,9 +1881,9 @@ public class CardDbAdapter {
             String sql = "SELECT " +
                     KEY_LEGALITY + ", GROUP_CONCAT(" + KEY_NAME + ", '<br>') AS " + KEY_BANNED_LIST +
                     " FROM " + DATABASE_TABLE_BANNED_CARDS +
-                    " WHERE " + KEY_FORMAT + " = '" + format + "'" +
+                    " WHERE " + KEY_FORMAT + " = ?" +
                     " GROUP BY " + KEY_LEGALITY;
-            return mDb.rawQuery(sql, null);
+            return mDb.rawQuery(sql, new String[]{format});
         } catch (SQLiteException | IllegalStateException e) {
             throw new FamiliarDbException(e);
         }
@@ -1654,56 +1900,83 @@ public class CardDbAdapter {
      */
     public static int checkLegality(String mCardName, String format, SQLiteDatabase mDb)
             throws FamiliarDbException {
-        mCardName = sanitizeString(mCardName, false);
-        format = sanitizeString(format, false);
+        return checkLegality(Collections.singletonList(mCardName),
+                Collections.singletonList(format), mDb)[0][0];
+    }
 
-        Cursor c = null;
-        try {
-            /* The new way (single query per type, should be much faster) - Alex */
-            String sql = "SELECT COALESCE(CASE ";
-
-            /* First coalesce logic, checks the card against ILLEGAL_SETS */
-            sql += "(SELECT " + KEY_SET
-                    + " FROM " + DATABASE_TABLE_CARDS
-                    + " WHERE " + KEY_NAME + " = " + mCardName + ")";
-            StringBuilder sqlBuilder = new StringBuilder(sql);
-            for (String illegalSet : ILLEGAL_SETS) {
-                sqlBuilder.append("WHEN '").append(illegalSet).append("' THEN 1 ");
-            }
-            sql = sqlBuilder.toString();
-            sql += "ELSE NULL END,";
-
-            /* Second coalesce logic, check card against legal sets */
-            sql += "CASE (" +
-                    " SELECT 1" +
-                    " FROM " + DATABASE_TABLE_CARDS + " c INNER JOIN " + DATABASE_TABLE_LEGAL_SETS + " ls ON ls." + KEY_SET + " = c." + KEY_SET +
-                    " WHERE ls." + KEY_FORMAT + " = " + format +
-                    " AND c." + KEY_NAME + " = " + mCardName;
-            /* If the format is pauper, restrict to commons */
-            if ("'Pauper'".equals(format)) {
-                sql += " AND c." + KEY_RARITY + " = " + ((int) 'C');
-            }
-            sql += ")";
-            sql += "  WHEN 1 THEN NULL ELSE CASE" +
-                    " WHEN " + format + " = 'Legacy' THEN NULL" +
-                    " WHEN " + format + " = 'Vintage' THEN NULL" +
-                    " WHEN " + format + " = 'Commander' THEN NULL" +
-                    " ELSE 1";
-            sql += " END END,";
-
-            /* Third coalesce logic, check card against banned cards */
-            sql += " (SELECT " + KEY_LEGALITY +
-                    " FROM " + DATABASE_TABLE_BANNED_CARDS +
-                    " WHERE " + KEY_NAME + " = " + mCardName +
-                    " AND " + KEY_FORMAT + " = " + format + "),";
+    /**
+     * Given a list of cards and a list of formats, check if each card is legal to play in each
+     * format. This is a single query against DATABASE_TABLE_CARD_LEGALITY, so it's fast enough to
+     * check a whole deck at once.
+     *
+     * @param cardNames The cards to check legality for
+     * @param formats   The formats to check legality in
+     * @param mDb       The database to query
+     * @return A matrix of LEGAL, BANNED, or RESTRICTED, indexed by [card][format]
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static int[][] checkLegality(List<String> cardNames, List<String> formats,
+                                        SQLiteDatabase mDb) throws FamiliarDbException {
+        int[][] legalities = new int[cardNames.size()][formats.size()];
+        if (cardNames.isEmpty() || formats.isEmpty()) {
+            return legalities;
+        }
 
-            /* Finish the coalesce with a 0 */
-            sql += "0) AS " + KEY_LEGALITY;
+        /* Bind each name, the list is bound twice since it's in both halves of the UNION */
+        StringBuilder names = new StringBuilder();
+        String[] args = new String[cardNames.size() * 2];
+        for (int i = 0; i < cardNames.size(); i++) {
+            if (names.length() > 0) {
+                names.append(", ");
+            }
+            names.append('?');
+            args[i] = sanitizeArgument(cardNames.get(i), false);
+            args[i + cardNames.size()] = args[i];
+        }
 
-            c = mDb.rawQuery(sql, null);
+        /* Known cards are LEGAL unless they have a row in DATABASE_TABLE_CARD_LEGALITY. A NULL
+         * format marks a card as known
+         */
+        String sql = "SELECT " + KEY_NAME + ", NULL AS " + KEY_FORMAT + ", " + LEGAL + " AS " + KEY_STATUS +
+                " FROM " + DATABASE_TABLE_PRINTINGS_SUMMARY +
+                " WHERE " + KEY_NAME + " IN (" + names + ")" +
+                " UNION ALL" +
+                " SELECT " + KEY_NAME + ", " + KEY_FORMAT + ", " + KEY_STATUS +
+                " FROM " + DATABASE_TABLE_CARD_LEGALITY +
+                " WHERE " + KEY_NAME + " IN (" + names + ")";
 
-            c.moveToFirst();
-            return c.getInt(c.getColumnIndex(KEY_LEGALITY));
+        Cursor c = null;
+        try {
+            c = mDb.rawQuery(sql, args);
+
+            HashSet<String> knownCards = new HashSet<>();
+            HashMap<String, Integer> statuses = new HashMap<>();
+            int nameIdx = c.getColumnIndex(KEY_NAME);
+            int formatIdx = c.getColumnIndex(KEY_FORMAT);
+            int statusIdx = c.getColumnIndex(KEY_STATUS);
+            while (c.moveToNext()) {
+                if (c.isNull(formatIdx)) {
+                    knownCards.add(c.getString(nameIdx));
+                } else {
+                    statuses.put(c.getString(nameIdx) + '\n' + c.getString(formatIdx), c.getInt(statusIdx));
+                }
+            }
+
+            for (int i = 0; i < cardNames.size(); i++) {
+                for (int j = 0; j < formats.size(); j++) {
+                    Integer status = statuses.get(cardNames.get(i) + '\n' + formats.get(j));
+                    if (null != status) {
+                        legalities[i][j] = status;
+                    } else if (knownCards.contains(cardNames.get(i)) ||
+                            Arrays.asList(ETERNAL_FORMATS).contains(formats.get(j))) {
+                        legalities[i][j] = LEGAL;
+                    } else {
+                        /* Cards which aren't in the database were never printed in a legal set */
+                        legalities[i][j] = BANNED;
+                    }
+                }
+            }
+            return legalities;
         } catch (SQLiteException | IllegalStateException e) {
             throw new FamiliarDbException(e);
         } finally {
@@ -1713,34 +1986,76 @@ public class CardDbAdapter {
         }
     }
 
-    ////////////////////////////////////////////////////////////////////////////////////////////////
-    //                                                                                            //
-    //                               DATABASE_TABLE_SETS Functions                                //
-    //                                                                                            //
-    ////////////////////////////////////////////////////////////////////////////////////////////////
-
     /**
-     * Add a MtgSet to DATABASE_TABLE_SETS.
+     * Drop and rebuild DATABASE_TABLE_CARD_LEGALITY from the cards and the legality tables. This
+     * must be called whenever either of them change. A card is BANNED if its first printing is in
+     * ILLEGAL_SETS, or if it wasn't printed in one of the format's legal sets (as a common for
+     * Pauper) and the format isn't eternal. Otherwise it has the status from
+     * DATABASE_TABLE_BANNED_CARDS, or is LEGAL.
      *
-     * @param set The set to add to DATABASE_TABLE_SETS
-     * @param mDb The database to add the set to
+     * @param mDb The database to build the table in
+     * @throws FamiliarDbException If something goes wrong
      */
-    public static void createSet(Expansion set, SQLiteDatabase mDb) {
-        ContentValues initialValues = new ContentValues();
+    public static void rebuildCardLegality(SQLiteDatabase mDb) throws FamiliarDbException {
+        StringBuilder illegalSets = new StringBuilder();
+        for (String illegalSet : ILLEGAL_SETS) {
+            if (illegalSets.length() > 0) {
+                illegalSets.append(", ");
+            }
+            illegalSets.append(sanitizeString(illegalSet, false));
+        }
+        StringBuilder eternalFormats = new StringBuilder();
+        for (String eternalFormat : ETERNAL_FORMATS) {
+            if (eternalFormats.length() > 0) {
+                eternalFormats.append(", ");
+            }
+            eternalFormats.append(sanitizeString(eternalFormat, false));
+        }
+
+        String status = "COALESCE(" +
+                /* First coalesce logic, checks the card against ILLEGAL_SETS */
+                "CASE WHEN (SELECT " + KEY_SET + " FROM " + DATABASE_TABLE_CARDS +
+                " WHERE " + KEY_NAME + " = n." + KEY_NAME + " ORDER BY " + KEY_ID + " LIMIT 1)" +
+                " IN (" + illegalSets + ") THEN " + BANNED + " ELSE NULL END, " +
+                /* Second coalesce logic, check card against legal sets */
+                "CASE WHEN EXISTS (SELECT 1" +
+                " FROM " + DATABASE_TABLE_CARDS + " c INNER JOIN " + DATABASE_TABLE_LEGAL_SETS + " ls ON ls." + KEY_SET + " = c." + KEY_SET +
+                " WHERE ls." + KEY_FORMAT + " = f." + KEY_NAME +
+                " AND c." + KEY_NAME + " = n." + KEY_NAME +
+                /* If the format is pauper, restrict to commons */
+                " AND (f." + KEY_NAME + " <> 'Pauper' OR c." + KEY_RARITY + " = " + ((int) 'C') + "))" +
+                " THEN NULL" +
+                " WHEN f." + KEY_NAME + " IN (" + eternalFormats + ") THEN NULL" +
+                " ELSE " + BANNED + " END, " +
+                /* Third coalesce logic, check card against banned cards */
+                "(SELECT " + KEY_LEGALITY + " FROM " + DATABASE_TABLE_BANNED_CARDS +
+                " WHERE " + KEY_NAME + " = n." + KEY_NAME +
+                " AND " + KEY_FORMAT + " = f." + KEY_NAME + "), " +
+                /* Finish the coalesce with a 0 */
+                LEGAL + ")";
 
-        initialValues.put(KEY_CODE, set.mCode_gatherer);
-        initialValues.put(KEY_NAME, set.mName_gatherer);
-        initialValues.put(KEY_CODE_MTGI, set.mCode_mtgi);
-        initialValues.put(KEY_DATE, set.mReleaseTimestamp);
-        initialValues.put(KEY_DIGEST, set.mDigest);
-        initialValues.put(KEY_CAN_BE_FOIL, set.mCanBeFoil);
-        initialValues.put(KEY_NAME_TCGPLAYER, set.mName_tcgp);
-        initialValues.put(KEY_ONLINE_ONLY, set.mIsOnlineOnly);
-        initialValues.put(KEY_BORDER_COLOR, set.mBorderColor);
-
-        mDb.insert(DATABASE_TABLE_SETS, null, initialValues);
+        try {
+            mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_CARD_LEGALITY);
+            mDb.execSQL(DATABASE_CREATE_CARD_LEGALITY);
+            mDb.execSQL("INSERT INTO " + DATABASE_TABLE_CARD_LEGALITY +
+                    " (" + KEY_NAME + ", " + KEY_FORMAT + ", " + KEY_STATUS + ")" +
+                    " SELECT * FROM (SELECT n." + KEY_NAME + " AS " + KEY_NAME + ", f." + KEY_NAME + " AS " + KEY_FORMAT + ", " +
+                    status + " AS " + KEY_STATUS +
+                    " FROM (SELECT " + KEY_NAME + " FROM " + DATABASE_TABLE_CARDS +
+                    " UNION SELECT " + KEY_NAME + " FROM " + DATABASE_TABLE_BANNED_CARDS + ") AS n, " +
+                    DATABASE_TABLE_FORMATS + " AS f)" +
+                    " WHERE " + KEY_STATUS + " <> " + LEGAL);
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
     }
 
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                                                                            //
+    //                               DATABASE_TABLE_SETS Functions                                //
+    //                                                                                            //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
     /**
      * Returns a cursor with all the information about all of the sets.
      *
@@ -1760,6 +2075,61 @@ public class CardDbAdapter {
         }
     }
 
+    /**
+     * Check a database before it's swapped in after an update. SQLite's quick check has to pass,
+     * and every expected set has to be there, with the expected digest and at least one card.
+     *
+     * @param expectedDigests The expected sets, mapped from set code to digest. A null digest
+     *                        isn't checked
+     * @param mDb             The database to check
+     * @return true if the database looks complete, false otherwise
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static boolean isDatabaseValid(Map<String, String> expectedDigests, SQLiteDatabase mDb)
+            throws FamiliarDbException {
+        Cursor c = null;
+        try {
+            c = mDb.rawQuery("PRAGMA quick_check", null);
+            if (!c.moveToFirst() || !"ok".equals(c.getString(0))) {
+                return false;
+            }
+            c.close();
+
+            /* Count the cards in each set */
+            c = mDb.rawQuery("SELECT " + DATABASE_TABLE_SETS + "." + KEY_CODE + ", " +
+                    DATABASE_TABLE_SETS + "." + KEY_DIGEST + ", " +
+                    "COUNT(" + DATABASE_TABLE_CARDS + "." + KEY_ID + ")" +
+                    " FROM " + DATABASE_TABLE_SETS +
+                    " LEFT JOIN " + DATABASE_TABLE_CARDS + " ON " +
+                    DATABASE_TABLE_CARDS + "." + KEY_SET + " = " + DATABASE_TABLE_SETS + "." + KEY_CODE +
+                    " GROUP BY " + DATABASE_TABLE_SETS + "." + KEY_CODE, null);
+            HashMap<String, String> digests = new HashMap<>();
+            HashSet<String> setsWithCards = new HashSet<>();
+            while (c.moveToNext()) {
+                digests.put(c.getString(0), c.getString(1));
+                if (c.getInt(2) > 0) {
+                    setsWithCards.add(c.getString(0));
+                }
+            }
+
+            for (Map.Entry<String, String> expected : expectedDigests.entrySet()) {
+                if (!setsWithCards.contains(expected.getKey())) {
+                    return false;
+                }
+                if (null != expected.getValue() && !expected.getValue().equals(digests.get(expected.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        } finally {
+            if (null != c) {
+                c.close();
+            }
+        }
+    }
+
     /**
      * Given a standard set code, return the Magiccards.info set code.
      *
@@ -1854,8 +2224,8 @@ public class CardDbAdapter {
         try {
             String sql = "SELECT " + KEY_NAME_TCGPLAYER +
                     " FROM " + DATABASE_TABLE_SETS +
-                    " WHERE " + KEY_CODE + " = " + sanitizeString(setCode, false) + ";";
-            c = mDb.rawQuery(sql, null);
+                    " WHERE " + KEY_CODE + " = ?;";
+            c = mDb.rawQuery(sql, new String[]{sanitizeArgument(setCode, false)});
             c.moveToFirst();
 
             /* Some users had this cursor come up empty. I couldn't replicate. This is safe */
@@ -1984,20 +2354,6 @@ public class CardDbAdapter {
     //                                                                                            //
     ////////////////////////////////////////////////////////////////////////////////////////////////
 
-    /**
-     * Add a set and format pair to the table of legal sets.
-     *
-     * @param set    The set to add
-     * @param format The format the set is legal in
-     * @param mDb    The database to add legality data to
-     */
-    public static void addLegalSet(String set, String format, SQLiteDatabase mDb) {
-        ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_SET, set);
-        initialValues.put(KEY_FORMAT, format);
-        mDb.insert(DATABASE_TABLE_LEGAL_SETS, null, initialValues);
-    }
-
     /**
      * Helper function to determine if a set contains foil cards.
      *
@@ -2077,8 +2433,8 @@ public class CardDbAdapter {
                     "(" + DATABASE_TABLE_SETS + "." + KEY_NAME + ", '<br>') AS " + KEY_LEGAL_SETS +
                     " FROM (" + DATABASE_TABLE_LEGAL_SETS + " JOIN " + DATABASE_TABLE_SETS +
                     " ON " + DATABASE_TABLE_LEGAL_SETS + "." + KEY_SET + " = " + DATABASE_TABLE_SETS + "." + KEY_CODE + ")" +
-                    " WHERE " + DATABASE_TABLE_LEGAL_SETS + "." + KEY_FORMAT + " = '" + format + "'";
-            return mDb.rawQuery(sql, null);
+                    " WHERE " + DATABASE_TABLE_LEGAL_SETS + "." + KEY_FORMAT + " = ?";
+            return mDb.rawQuery(sql, new String[]{format});
         } catch (SQLiteException | IllegalStateException e) {
             throw new FamiliarDbException(e);
         }
@@ -2090,20 +2446,6 @@ public class CardDbAdapter {
     //                                                                                            //
     ////////////////////////////////////////////////////////////////////////////////////////////////
 
-    /**
-     * DATABASE_TABLE_FORMATS
-     * <p>
-     * Create a format in the database.
-     *
-     * @param name The name of the format to create
-     * @param mDb  The database to create a format in
-     */
-    public static void createFormat(String name, SQLiteDatabase mDb) {
-        ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_NAME, name);
-        mDb.insert(DATABASE_TABLE_FORMATS, null, initialValues);
-    }
-
     /**
      * Create all tables relating to card legality.
      *
@@ -2185,8 +2527,65 @@ public class CardDbAdapter {
      */
     public static void createRulesTables(SQLiteDatabase mDb) throws FamiliarDbException {
         try {
-            mDb.execSQL(DATABASE_CREATE_RULES);
-            mDb.execSQL(DATABASE_CREATE_GLOSSARY);
+            mDb.execSQL(String.format(DATABASE_CREATE_RULES, DATABASE_TABLE_RULES));
+            mDb.execSQL(String.format(DATABASE_CREATE_GLOSSARY, DATABASE_TABLE_GLOSSARY));
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * TABLE DATABASE_CREATE_RULES
+     * <p>
+     * Create empty staging tables for new rules and glossary terms, dropping any left over from an
+     * update which didn't finish. The live tables are untouched until swapRulesTables() is called.
+     *
+     * @param mDb The database to add tables to
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static void createRulesStagingTables(SQLiteDatabase mDb) throws FamiliarDbException {
+        try {
+            mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_RULES_STAGING);
+            mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_GLOSSARY_STAGING);
+            mDb.execSQL(String.format(DATABASE_CREATE_RULES, DATABASE_TABLE_RULES_STAGING));
+            mDb.execSQL(String.format(DATABASE_CREATE_GLOSSARY, DATABASE_TABLE_GLOSSARY_STAGING));
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * TABLE DATABASE_CREATE_RULES
+     * <p>
+     * Replace the rules and glossary tables with the staging tables. If this is done in a
+     * transaction, readers see either the old rules or the new ones, and never an empty table.
+     *
+     * @param mDb The database to swap tables in
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static void swapRulesTables(SQLiteDatabase mDb) throws FamiliarDbException {
+        try {
+            mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_RULES);
+            mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_GLOSSARY);
+            mDb.execSQL("ALTER TABLE " + DATABASE_TABLE_RULES_STAGING + " RENAME TO " + DATABASE_TABLE_RULES);
+            mDb.execSQL("ALTER TABLE " + DATABASE_TABLE_GLOSSARY_STAGING + " RENAME TO " + DATABASE_TABLE_GLOSSARY);
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * TABLE DATABASE_CREATE_RULES
+     * <p>
+     * Drop the staging tables, i.e. when new rules couldn't be parsed.
+     *
+     * @param mDb The database to drop tables from
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static void dropRulesStagingTables(SQLiteDatabase mDb) throws FamiliarDbException {
+        try {
+            mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_RULES_STAGING);
+            mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_GLOSSARY_STAGING);
         } catch (SQLiteException e) {
             throw new FamiliarDbException(e);
         }
@@ -2211,18 +2610,18 @@ public class CardDbAdapter {
                 return mDb.rawQuery(sql, null);
             } else if (subcategory == -1) {
                 /* No subcategory specified; return the subcategories under the given category */
-                String sql = "SELECT * FROM " + DATABASE_TABLE_RULES +
-                        " WHERE " + KEY_CATEGORY + " = " + String.valueOf(category) +
-                        " AND " + KEY_SUBCATEGORY + " > -1" +
-                        " AND " + KEY_ENTRY + " IS NULL";
-                return mDb.rawQuery(sql, null);
+                return new ParameterizedQuery("SELECT * FROM " + DATABASE_TABLE_RULES +
+                        " WHERE " + KEY_CATEGORY + " = ").bind(category)
+                        .append(" AND " + KEY_SUBCATEGORY + " > -1" +
+                                " AND " + KEY_ENTRY + " IS NULL")
+                        .rawQuery(mDb);
             } else {
                 /* Both specified; return the rules under the given subcategory */
-                String sql = "SELECT * FROM " + DATABASE_TABLE_RULES +
-                        " WHERE " + KEY_CATEGORY + " = " + String.valueOf(category) +
-                        " AND " + KEY_SUBCATEGORY + " = " + String.valueOf(subcategory) +
-                        " AND " + KEY_ENTRY + " IS NOT NULL";
-                return mDb.rawQuery(sql, null);
+                return new ParameterizedQuery("SELECT * FROM " + DATABASE_TABLE_RULES +
+                        " WHERE " + KEY_CATEGORY + " = ").bind(category)
+                        .append(" AND " + KEY_SUBCATEGORY + " = ").bind(subcategory)
+                        .append(" AND " + KEY_ENTRY + " IS NOT NULL")
+                        .rawQuery(mDb);
             }
         } catch (SQLiteException | IllegalStateException e) {
             throw new FamiliarDbException(e);
@@ -2246,32 +2645,19 @@ public class CardDbAdapter {
         try {
             /* Don't let them pass in an empty string; it'll return ALL the rules */
             if (keyword != null && !keyword.trim().equals("")) {
-                keyword = sanitizeString("%" + keyword + "%", false);
-
-                if (category == -1) {
-                    /* No category; we're searching from the main page, so no restrictions */
-                    String sql = "SELECT * FROM " + DATABASE_TABLE_RULES
-                            + " WHERE " + KEY_RULE_TEXT + " LIKE " + keyword
-                            + " AND " + KEY_ENTRY + " IS NOT NULL";
-                    return mDb.rawQuery(sql, null);
-                } else if (subcategory == -1) {
-                    /* No subcategory; we're searching from a category page, so
-                     * restrict within that */
-                    String sql = "SELECT * FROM " + DATABASE_TABLE_RULES
-                            + " WHERE " + KEY_RULE_TEXT + " LIKE " + keyword
-                            + " AND " + KEY_ENTRY + " IS NOT NULL"
-                            + " AND " + KEY_CATEGORY + " = " + String.valueOf(category);
-                    return mDb.rawQuery(sql, null);
-                } else {
-                    /* We're searching within a subcategory, so restrict within
-                     * that */
-                    String sql = "SELECT * FROM " + DATABASE_TABLE_RULES
-                            + " WHERE " + KEY_RULE_TEXT + " LIKE " + keyword
-                            + " AND " + KEY_ENTRY + " IS NOT NULL"
-                            + " AND " + KEY_CATEGORY + " = " + String.valueOf(category)
-                            + " AND " + KEY_SUBCATEGORY + " = " + String.valueOf(subcategory);
-                    return mDb.rawQuery(sql, null);
+                /* With no category we're searching from the main page, so there are no restrictions */
+                ParameterizedQuery query = new ParameterizedQuery("SELECT * FROM " + DATABASE_TABLE_RULES
+                        + " WHERE " + KEY_RULE_TEXT + " LIKE ").bind(sanitizeArgument("%" + keyword + "%", false))
+                        .append(" AND " + KEY_ENTRY + " IS NOT NULL");
+                if (category != -1) {
+                    /* We're searching from a category page, so restrict within that */
+                    query.append(" AND " + KEY_CATEGORY + " = ").bind(category);
+                    if (subcategory != -1) {
+                        /* We're searching within a subcategory, so restrict within that */
+                        query.append(" AND " + KEY_SUBCATEGORY + " = ").bind(subcategory);
+                    }
                 }
+                return query.rawQuery(mDb);
             }
             return null;
         } catch (SQLiteException | IllegalStateException e) {
@@ -2294,12 +2680,12 @@ public class CardDbAdapter {
         Cursor c = null;
         try {
             if (entry != null) {
-                String sql = "SELECT " + KEY_POSITION +
+                c = new ParameterizedQuery("SELECT " + KEY_POSITION +
                         " FROM " + DATABASE_TABLE_RULES +
-                        " WHERE " + KEY_CATEGORY + " = " + String.valueOf(category) +
-                        " AND " + KEY_SUBCATEGORY + " = " + String.valueOf(subcategory) +
-                        " AND " + KEY_ENTRY + " = " + sanitizeString(entry, false);
-                c = mDb.rawQuery(sql, null);
+                        " WHERE " + KEY_CATEGORY + " = ").bind(category)
+                        .append(" AND " + KEY_SUBCATEGORY + " = ").bind(subcategory)
+                        .append(" AND " + KEY_ENTRY + " = ").bind(sanitizeArgument(entry, false))
+                        .rawQuery(mDb);
                 if (c != null) {
                     c.moveToFirst();
                     return c.getInt(c.getColumnIndex(KEY_POSITION));
@@ -2349,71 +2735,12 @@ public class CardDbAdapter {
         }
     }
 
-    /**
-     * Insert a rule's title & text into the database with it's category, subcategory, and position.
-     *
-     * @param category    The integer category
-     * @param subcategory The integer subcategory
-     * @param entry       The title of the rule
-     * @param text        The text of the rule
-     * @param position    The rule's position
-     * @param mDb         The database to insert a rule into
-     * @throws FamiliarDbException If something goes wrong
-     */
-    public static void insertRule(int category, int subcategory, String entry, String text,
-                                  int position, SQLiteDatabase mDb) throws FamiliarDbException {
-        if (entry == null) {
-            entry = "NULL";
-        } else {
-            entry = sanitizeString(entry, false);
-        }
-        text = sanitizeString(text, false);
-        String positionStr;
-        if (position < 0) {
-            positionStr = "NULL";
-        } else {
-            positionStr = String.valueOf(position);
-        }
-        String sql = "INSERT INTO " + DATABASE_TABLE_RULES + " ("
-                + KEY_CATEGORY + ", " + KEY_SUBCATEGORY + ", " + KEY_ENTRY
-                + ", " + KEY_RULE_TEXT + ", " + KEY_POSITION + ") VALUES ("
-                + String.valueOf(category) + ", " + String.valueOf(subcategory)
-                + ", " + entry + ", " + text + ", " + positionStr + ");";
-        try {
-            mDb.execSQL(sql);
-        } catch (SQLiteException e) {
-            throw new FamiliarDbException(e);
-        }
-    }
-
     ////////////////////////////////////////////////////////////////////////////////////////////////
     //                                                                                            //
     //                             DATABASE_TABLE_GLOSSARY Functions                              //
     //                                                                                            //
     ////////////////////////////////////////////////////////////////////////////////////////////////
 
-    /**
-     * Insert a glossary term into DATABASE_TABLE_GLOSSARY.
-     *
-     * @param term       The term to insert
-     * @param definition The definition for the glossary term
-     * @param mDb        The database to add the term to
-     * @throws FamiliarDbException If something goes wrong
-     */
-    public static void insertGlossaryTerm(String term, String definition, SQLiteDatabase mDb)
-            throws FamiliarDbException {
-        term = sanitizeString(term, false);
-        definition = sanitizeString(definition, false);
-        String sql = "INSERT INTO " + DATABASE_TABLE_GLOSSARY + " (" + KEY_TERM
-                + ", " + KEY_DEFINITION + ") VALUES (" + term + ", "
-                + definition + ");";
-        try {
-            mDb.execSQL(sql);
-        } catch (SQLiteException e) {
-            throw new FamiliarDbException(e);
-        }
-    }
-
     /**
      * Return a cursor to all glossary terms for the rules.
      *
@@ -2444,10 +2771,291 @@ public class CardDbAdapter {
      * @return The sanitized String
      */
     private static String sanitizeString(String input, boolean removeAccentMarks) {
+        return DatabaseUtils.sqlEscapeString(sanitizeArgument(input, removeAccentMarks));
+    }
+
+    /**
+     * Helper function to trim a string, and optionally remove accent marks, before it's bound to a
+     * query as an argument. Bound arguments don't need to be escaped.
+     *
+     * @param input             The string to clean up
+     * @param removeAccentMarks Whether to remove accent marks from the input
+     * @return The cleaned up string
+     */
+    private static String sanitizeArgument(String input, boolean removeAccentMarks) {
         if (removeAccentMarks) {
-            return DatabaseUtils.sqlEscapeString(removeAccentMarks(input).trim());
+            return removeAccentMarks(input).trim();
+        }
+        return input.trim();
+    }
+
+    /**
+     * Helper function to split a sort order string into terms for keyset pagination. The set's
+     * date (newest first) and KEY_ID are added to the end, so that every row has a unique position
+     * in the sort order.
+     *
+     * @param orderByStr A sort order string, i.e. "name asc,cmc desc", or null for the default
+     * @return A list of {expression, direction, column} terms
+     */
+    private static List<String[]> getPageSortTerms(String orderByStr) {
+        if (null == orderByStr) {
+            orderByStr = KEY_NAME + " COLLATE UNICODE";
+        }
+        ArrayList<String[]> terms = new ArrayList<>();
+        for (String option : orderByStr.split(",")) {
+            String[] words = option.trim().split("\\s+");
+            String direction = "ASC";
+            int expressionLength = words.length;
+            if (words[words.length - 1].equalsIgnoreCase("asc") ||
+                    words[words.length - 1].equalsIgnoreCase("desc")) {
+                direction = words[words.length - 1].toUpperCase(Locale.ENGLISH);
+                expressionLength--;
+            }
+            StringBuilder expression = new StringBuilder();
+            for (int i = 0; i < expressionLength; i++) {
+                if (i > 0) {
+                    expression.append(" ");
+                }
+                expression.append(words[i]);
+            }
+            terms.add(new String[]{expression.toString(), direction, words[0]});
+        }
+        terms.add(new String[]{KEY_DATE, "DESC", KEY_DATE});
+        terms.add(new String[]{KEY_ID, "ASC", KEY_ID});
+        return terms;
+    }
+
+    /**
+     * Helper function to check the direction of a sort term from getPageSortTerms().
+     *
+     * @param term The sort term
+     * @return true if the term is sorted ascending, false if it is descending
+     */
+    private static boolean isSortTermAscending(String[] term) {
+        return "ASC".equals(term[1]);
+    }
+
+    /**
+     * Helper function to bind a value from the current row of a cursor to a query, keeping its
+     * type so it compares the same way the column does.
+     *
+     * @param query  The query to bind the value to
+     * @param cursor The cursor to read from
+     * @param index  The index of the column to read, which must not be NULL
+     * @return The query, for chaining
+     */
+    private static ParameterizedQuery bindCursorValue(ParameterizedQuery query, Cursor cursor,
+                                                      int index) {
+        switch (cursor.getType(index)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return query.bind(cursor.getLong(index));
+            case Cursor.FIELD_TYPE_FLOAT:
+                return query.bind(cursor.getDouble(index));
+            default:
+                return query.bind(cursor.getString(index));
+        }
+    }
+
+    /**
+     * Helper function to get the bit for a single color character.
+     *
+     * @param color One of W, U, B, R, G, or L for colorless
+     * @return The bit for that color, or 0 if it isn't a color
+     */
+    private static int getColorBit(char color) {
+        switch (color) {
+            case 'W':
+                return COLOR_BIT_WHITE;
+            case 'U':
+                return COLOR_BIT_BLUE;
+            case 'B':
+                return COLOR_BIT_BLACK;
+            case 'R':
+                return COLOR_BIT_RED;
+            case 'G':
+                return COLOR_BIT_GREEN;
+            case 'L':
+                return COLOR_BIT_COLORLESS;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Helper function to turn a card's color or color identity string into a bitmask. Colorless
+     * cards have a color of C, L, or A (artifact), which is the colorless bit.
+     *
+     * @param colors            The color string, i.e. "WU"
+     * @param includeColorless true to set the colorless bit for colorless cards, false otherwise
+     * @return The bitmask for the colors
+     */
+    static int getColorMask(String colors, boolean includeColorless) {
+        if (null == colors) {
+            return 0;
+        }
+        if (includeColorless && ("C".equals(colors) || "L".equals(colors) || "A".equals(colors))) {
+            return COLOR_BIT_COLORLESS;
+        }
+        int mask = 0;
+        for (char color : colors.toCharArray()) {
+            if (color != 'L') {
+                mask |= getColorBit(color);
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Helper function to build a SQL expression which computes the same bitmask as getColorMask()
+     * from a color string column.
+     *
+     * @param column           The column with the color string
+     * @param includeColorless true to set the colorless bit for colorless cards, false otherwise
+     * @return A SQL expression for the bitmask
+     */
+    private static String getColorMaskSql(String column, boolean includeColorless) {
+        StringBuilder sql = new StringBuilder("(");
+        for (char color : new char[]{'W', 'U', 'B', 'R', 'G'}) {
+            sql.append("(CASE WHEN ").append(column).append(" LIKE '%").append(color)
+                    .append("%' THEN ").append(getColorBit(color)).append(" ELSE 0 END) | ");
+        }
+        if (includeColorless) {
+            sql.append("(CASE WHEN ").append(column).append(" IN ('C', 'L', 'A') THEN ")
+                    .append(COLOR_BIT_COLORLESS).append(" ELSE 0 END)");
+        } else {
+            sql.append("0");
+        }
+        return sql.append(")").toString();
+    }
+
+    /**
+     * Helper function to append type filters to a search. Each word is looked up in
+     * DATABASE_TABLE_CARD_TYPES, so the filter can use an index instead of a LIKE over every card.
+     *
+     * @param statement The search statement to append to
+     * @param types     The types to filter on. Ones which start with EXCLUDE_TOKEN are excluded
+     * @param kind      TYPE_KIND_SUPERTYPE or TYPE_KIND_SUBTYPE
+     * @param typeLogic 0 for all of the types, 1 for any of the types, 2 to exclude the types
+     */
+    private static void appendTypeClauses(ParameterizedQuery statement, List<String> types, int kind,
+                                          int typeLogic) {
+        switch (typeLogic) {
+            case 0:
+                for (String s : types) {
+                    if (s.contains(EXCLUDE_TOKEN)) {
+                        statement.append(" AND ").append(getTypeClause(s.substring(1), kind, true));
+                    } else {
+                        statement.append(" AND ").append(getTypeClause(s, kind, false));
+                    }
+                }
+                break;
+            case 1:
+                boolean firstRun = true;
+                for (String s : types) {
+                    if (firstRun) {
+                        firstRun = false;
+                        if (s.contains(EXCLUDE_TOKEN)) {
+                            statement.append(" AND (").append(getTypeClause(s.substring(1), kind, true));
+                        } else {
+                            statement.append(" AND (").append(getTypeClause(s, kind, false));
+                        }
+                    } else if (s.contains(EXCLUDE_TOKEN)) {
+                        statement.append(" AND ").append(getTypeClause(s.substring(1), kind, true));
+                    } else {
+                        statement.append(" OR ").append(getTypeClause(s, kind, false));
+                    }
+                }
+                statement.append(")");
+                break;
+            case 2:
+                for (String s : types) {
+                    statement.append(" AND ").append(getTypeClause(s, kind, true));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Helper function to build a clause which matches cards with, or without, a type. A single word
+     * is a semi-join against DATABASE_TABLE_CARD_TYPES. Types with more than one word, which have
+     * to be adjacent, fall back to a LIKE on the whole type line.
+     *
+     * @param type    The type to match
+     * @param kind    TYPE_KIND_SUPERTYPE or TYPE_KIND_SUBTYPE
+     * @param exclude true to match cards without the type, false to match cards with it
+     * @return A parenthesized clause which can be appended to a WHERE statement
+     */
+    private static ParameterizedQuery getTypeClause(String type, int kind, boolean exclude) {
+        String trimmed = type.trim();
+        if (trimmed.isEmpty() || trimmed.split("\\s+").length > 1) {
+            /* Concat a leading and a trailing space to the type line */
+            String typeInDb = "' ' || " + DATABASE_TABLE_CARDS + "." +
+                    (kind == TYPE_KIND_SUPERTYPE ? KEY_SUPERTYPE : KEY_SUBTYPE) + " || ' '";
+            return new ParameterizedQuery("(" + typeInDb + (exclude ? " NOT LIKE " : " LIKE "))
+                    .bind(sanitizeArgument("% " + type + " %", false)).append(")");
+        }
+        return new ParameterizedQuery("(" + DATABASE_TABLE_CARDS + "." + KEY_ID + (exclude ? " NOT IN " : " IN ") +
+                "(SELECT " + KEY_CARD_ID + " FROM " + DATABASE_TABLE_CARD_TYPES +
+                " WHERE " + KEY_TOKEN + " = ").bind(trimmed)
+                .append(" AND " + KEY_KIND + " = " + kind + "))");
+    }
+
+    /**
+     * Helper function to build a clause which matches a bitmask column against every mask which
+     * passed a filter. A list of values can be looked up in an index, unlike bitwise operators.
+     *
+     * @param column The bitmask column
+     * @param masks  All the mask values which passed the filter
+     * @return A parenthesized clause which can be appended to a WHERE statement
+     */
+    private static String getMaskClause(String column, List<Integer> masks) {
+        StringBuilder clause = new StringBuilder("(" + DATABASE_TABLE_CARDS + "." + column + " IN (");
+        boolean first = true;
+        for (int mask : masks) {
+            if (first) {
+                first = false;
+            } else {
+                clause.append(", ");
+            }
+            clause.append(mask);
+        }
+        return clause.append("))").toString();
+    }
+
+    /**
+     * Helper function to build a clause which matches cards whose given column contains the given
+     * term. If the term has any words, the full text index narrows down the candidate cards first
+     * and LIKE only checks those candidates for the exact term. Otherwise this is a plain LIKE.
+     * Terms which start in the middle of a word won't be found through the index.
+     *
+     * @param column The column to search, either KEY_ABILITY or KEY_FLAVOR
+     * @param term   The term to search for
+     * @return A parenthesized clause which can be appended to a WHERE statement
+     */
+    private static ParameterizedQuery getTextClause(String column, String term) {
+        String like = sanitizeArgument("%" + term + "%", false);
+
+        /* Split the term the same way the "simple" FTS tokenizer does, on ASCII punctuation and
+         * whitespace, and prefix-match every word as a phrase */
+        StringBuilder phrase = new StringBuilder();
+        for (String word : term.split("[\\x00-\\x2F\\x3A-\\x40\\x5B-\\x60\\x7B-\\x7F]+")) {
+            if (word.length() > 0) {
+                if (phrase.length() > 0) {
+                    phrase.append(' ');
+                }
+                phrase.append(word).append('*');
+            }
+        }
+
+        ParameterizedQuery clause = new ParameterizedQuery("(");
+        if (phrase.length() > 0) {
+            clause.append(DATABASE_TABLE_CARDS + "." + KEY_ID + " IN (SELECT docid FROM " + DATABASE_TABLE_CARDS_FTS +
+                    " WHERE " + DATABASE_TABLE_CARDS_FTS + "." + column + " MATCH ").bind("\"" + phrase + "\"")
+                    .append(") AND ");
         }
-        return DatabaseUtils.sqlEscapeString(input.trim());
+        return clause.append(DATABASE_TABLE_CARDS + "." + column + " LIKE ").bind(like).append(")");
     }
 
     private static final char replacements[][] = {
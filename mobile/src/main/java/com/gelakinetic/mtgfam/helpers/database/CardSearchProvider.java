@@ -32,6 +32,7 @@ import android.provider.BaseColumns;
 import android.support.annotation.NonNull;
 
 import com.gelakinetic.mtgfam.BuildConfig;
+import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
 
 /**
  * Provides access to the card database. Used for the search widget
@@ -53,6 +54,7 @@ public class CardSearchProvider extends ContentProvider {
     }
 
     private SQLiteDatabase mDatabase = null;
+    private String mDatabaseName = null;
 
     /**
      * In lieu of a constructor
@@ -62,13 +64,22 @@ public class CardSearchProvider extends ContentProvider {
     @Override
     public synchronized boolean onCreate() {
         assert getContext() != null;
+        openDatabase();
+        return true;
+    }
+
+    /**
+     * Open the current database, and remember its name so it can be reopened if an update swaps in
+     * a different one
+     */
+    private void openDatabase() {
         /* Don't use the DatabaseManager, since the OS may open and close this one with reckless abandon */
         try {
+            mDatabaseName = PreferenceAdapter.getDatabaseName(getContext());
             mDatabase = (new DatabaseHelper(getContext()).getReadableDatabase());
         } catch (SQLException e) {
             mDatabase = null;
         }
-        return true;
     }
 
     /**
@@ -91,6 +102,12 @@ public class CardSearchProvider extends ContentProvider {
     @Override
     public synchronized Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs,
                                      String sortOrder) {
+        if (mDatabase == null || !PreferenceAdapter.getDatabaseName(getContext()).equals(mDatabaseName)) {
+            if (mDatabase != null) {
+                mDatabase.close();
+            }
+            openDatabase();
+        }
         if (mDatabase == null) {
             return null;
         }
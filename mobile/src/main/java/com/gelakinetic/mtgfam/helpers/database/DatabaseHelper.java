@@ -22,14 +22,20 @@ package com.gelakinetic.mtgfam.helpers.database;
 import android.content.Context;
 import android.content.res.Resources;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.gelakinetic.mtgfam.R;
 import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -37,8 +43,14 @@ import java.util.zip.GZIPInputStream;
  */
 class DatabaseHelper extends SQLiteOpenHelper {
 
-    /* The name of the database */
-    private static final String DATABASE_NAME = "data";
+    /* The name of the packaged database. Updates may swap in a database with a different name */
+    static final String DATABASE_NAME = "data";
+
+    /* The packaged database is inflated to a file with this suffix, then renamed */
+    private static final String INFLATE_SUFFIX = ".inflating";
+
+    /* How much is read from the packaged database, inflated, and written at a time */
+    static final int INFLATE_BUFFER_SIZE = 128 * 1024;
 
     /**
      * Create a helper object to create, open, and/or manage a database. The database is not actually created or opened
@@ -48,9 +60,25 @@ class DatabaseHelper extends SQLiteOpenHelper {
      * @param context A context to copy the database with
      */
     DatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, CardDbAdapter.DATABASE_VERSION);
-        if (isDbOutOfDate(context)) {
-            copyDB(context);
+        this(context, PreferenceAdapter.getDatabaseName(context));
+        prepareDatabase(context, null);
+    }
+
+    /**
+     * Create a helper object for the database with the given name, without checking if it's out of
+     * date. This is used for shadow databases, which are copies of the current one
+     *
+     * @param context A context to open the database with
+     * @param name    The name of the database file
+     */
+    DatabaseHelper(Context context, String name) {
+        super(context, name, null, CardDbAdapter.DATABASE_VERSION);
+        /* Write-ahead logging gives the database a pool of read connections. Readers then see the
+         * last committed data instead of waiting for the updater's transaction. Setting it here
+         * configures the connection before it's opened, rather than reconfiguring it after
+         */
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
         }
     }
 
@@ -64,6 +92,10 @@ class DatabaseHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(CardDbAdapter.DATABASE_CREATE_CARDS);
         db.execSQL(CardDbAdapter.DATABASE_CREATE_SETS);
+        db.execSQL(CardDbAdapter.DATABASE_CREATE_CARDS_FTS);
+        db.execSQL(CardDbAdapter.DATABASE_CREATE_CARD_TYPES);
+        db.execSQL(CardDbAdapter.DATABASE_CREATE_PRINTINGS_SUMMARY);
+        db.execSQL(CardDbAdapter.DATABASE_CREATE_CARD_LEGALITY);
     }
 
     /**
@@ -76,81 +108,190 @@ class DatabaseHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        /* necessary to override, not doing anything */
+        try {
+            DatabaseSchema.upgrade(db, oldVersion, newVersion);
+        } catch (FamiliarDbException e) {
+            /* Throw so the upgrade's transaction is rolled back and the version isn't bumped. The
+             * migrations will run again the next time the database is opened */
+            throw new SQLiteException(e.toString(), e);
+        }
     }
 
     /**
-     * @return A File pointing to the database, used to inflate the internal database and check if
-     * it needs updating. The database file is guaranteed to be closed
+     * Called when the database has been opened. Searches bind their arguments, so queries with the
+     * same shape share SQL. Let SQLite keep as many of those prepared statements as it can.
+     * <p>
+     * Ice Cream Sandwich can't enable write-ahead logging before the database is opened, so it's
+     * enabled here instead.
+     *
+     * @param db The database which was opened
      */
-    private File getDatabaseFile() {
-        // Get the database file
-        // https://stackoverflow.com/a/50630708/659726
-        SQLiteDatabase database = this.getReadableDatabase();
-        String filePath = database.getPath();
-        database.close();
-        this.close();
-        return new File(filePath);
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
     }
 
     /**
-     * Copy the internally packaged gzipped database to where Android can access it.
+     * Check if the database is out of date, and if it is, replace it with the packaged one. This is
+     * synchronized so that only the first helper to get here inflates the database, and any others
+     * wait for it and then find it up to date
      *
-     * @param context The Context to get the packaged gzipped database from
+     * @param context  A context to find and inflate the database with
+     * @param listener Told how far along the inflate is, may be null
      */
-    private void copyDB(Context context) {
+    static synchronized void prepareDatabase(Context context, @Nullable DatabaseManager.InflateListener listener) {
+        if (isDbOutOfDate(context)) {
+            copyDB(context, listener);
+        }
+    }
 
-        try {
-            // Get the database file
-            File dbFile = getDatabaseFile();
-
-            // If the database exists, delete all the files in the database folder, including
-            // any write-ahead-logs (thanks Android 9)
-            if (dbFile.exists()) {
-                for (File file : dbFile.getParentFile().listFiles()) {
-                    if (!file.delete()) {
-                        /* Couldn't delete the old database, so exit */
-                        return;
-                    }
-                }
-                PreferenceAdapter.setDatabaseVersion(context, -1);
-            }
+    /**
+     * @param context A context to find the database with
+     * @return A File pointing to the database. The database is not opened to find it
+     */
+    private static File getDatabaseFile(Context context) {
+        return context.getDatabasePath(PreferenceAdapter.getDatabaseName(context));
+    }
 
-            // If the database doesn't exist anymore, inflate the internal database
-            if (!dbFile.exists()) {
+    /**
+     * Copy the internally packaged gzipped database to where Android can access it. It's inflated
+     * to a temporary file first, and only renamed once it's complete and on disk, so a database
+     * which was cut off partway through is never opened.
+     *
+     * @param context  The Context to get the packaged gzipped database from
+     * @param listener Told how far along the inflate is, may be null
+     */
+    private static void copyDB(Context context, @Nullable DatabaseManager.InflateListener listener) {
 
-                GZIPInputStream gis = new GZIPInputStream(context.getResources()
-                        .openRawResource(R.raw.datagz));
-                FileOutputStream fos = new FileOutputStream(dbFile);
+        // Get the database file
+        File dbFile = getDatabaseFile(context);
+        File dbDir = dbFile.getParentFile();
+        if (!dbDir.exists() && !dbDir.mkdirs()) {
+            return;
+        }
 
-                byte[] buffer = new byte[1024];
-                int length;
-                while ((length = gis.read(buffer)) > 0) {
-                    fos.write(buffer, 0, length);
+        // If the database exists, delete all the card database files in the database folder,
+        // including any write-ahead-logs (thanks Android 9). Other databases are left alone
+        File[] oldFiles = dbDir.listFiles();
+        if (dbFile.exists() && null != oldFiles) {
+            for (File file : oldFiles) {
+                if (file.getName().startsWith(DATABASE_NAME) && !file.delete()) {
+                    /* Couldn't delete the old database, so exit */
+                    return;
                 }
+            }
+            PreferenceAdapter.setDatabaseVersion(context, -1);
+        }
 
-                PreferenceAdapter.setDatabaseVersion(context, CardDbAdapter.DATABASE_VERSION);
-
-                /* Close the streams */
-                fos.flush();
-                fos.close();
-                gis.close();
+        // Inflate the internal database. A temporary file left by an inflate which was cut off is
+        // overwritten
+        File tmpFile = new File(dbDir, dbFile.getName() + INFLATE_SUFFIX);
+        try (InputStream packaged = context.getResources().openRawResource(R.raw.datagz)) {
+            inflate(packaged, packaged.available(), tmpFile, listener);
+            if (!tmpFile.renameTo(dbFile)) {
+                throw new IOException("Couldn't rename " + tmpFile.getName());
             }
+
+            PreferenceAdapter.setDatabaseVersion(context, CardDbAdapter.DATABASE_VERSION);
+            /* The packaged database may be missing patches the old one had, so check them all again */
+            PreferenceAdapter.clearHttpValidators(context);
         } catch (Resources.NotFoundException | IOException e) {
             e.printStackTrace();
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Inflate a gzipped file, and make sure it's on disk before returning. This reads and writes
+     * in large chunks, since the packaged database is tens of megabytes and the time is mostly
+     * spent in per-call overhead with small buffers
+     *
+     * @param compressed       The gzipped data
+     * @param compressedLength How many bytes of gzipped data there are, for progress. If it's not
+     *                         known, pass 0 and no progress is reported
+     * @param destination      Where to write the inflated data
+     * @param listener         Told how far along the inflate is, may be null
+     * @throws IOException If reading, inflating, or writing fails
+     */
+    static void inflate(InputStream compressed, long compressedLength, File destination,
+                        @Nullable DatabaseManager.InflateListener listener) throws IOException {
+        CountingInputStream counter = new CountingInputStream(compressed);
+        try (GZIPInputStream gis = new GZIPInputStream(counter, INFLATE_BUFFER_SIZE);
+             FileOutputStream fos = new FileOutputStream(destination)) {
+            byte[] buffer = new byte[INFLATE_BUFFER_SIZE];
+            int lastPercent = -1;
+            int length;
+            while ((length = gis.read(buffer)) != -1) {
+                fos.write(buffer, 0, length);
+                if (null != listener && compressedLength > 0) {
+                    int percent = (int) Math.min(100, (100 * counter.mCount) / compressedLength);
+                    if (percent != lastPercent) {
+                        listener.onInflateProgress(percent);
+                        lastPercent = percent;
+                    }
+                }
+            }
+            fos.getFD().sync();
         }
     }
 
     /**
-     * Helper function to check if the database is up to date.
+     * Helper function to check if the database is up to date. This only looks at the file and the
+     * preferences, so it doesn't need to open the database
      *
      * @param context The context used to get the database file
      * @return true if the database does not exist, is too small, or has a lower version than
      * DATABASE_VERSION
      */
-    private boolean isDbOutOfDate(Context context) {
-        File f = getDatabaseFile();
+    static boolean isDbOutOfDate(Context context) {
+        File f = getDatabaseFile(context);
         int dbVersion = PreferenceAdapter.getDatabaseVersion(context);
         return (!f.exists() || f.length() < 1048576 || dbVersion < CardDbAdapter.DATABASE_VERSION);
     }
-}
\ No newline at end of file
+
+    /**
+     * An InputStream which counts the bytes read through it, to measure inflate progress
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount = 0;
+
+        /**
+         * Constructor
+         *
+         * @param in The stream to count
+         */
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read != -1) {
+                mCount++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
@@ -20,79 +20,172 @@
 package com.gelakinetic.mtgfam.helpers.database;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
-import java.util.ArrayList;
+import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * All databases should be opened through this class, so that database access is thread-safe
+ * All databases should be opened through this class, so that database access is thread-safe.
+ * <p>
+ * The database uses write-ahead logging, so readers and the writer use separate connections and
+ * don't block each other. Readers see the last committed data while the updater is writing.
+ * <p>
+ * Updates can also be built in a shadow database, a copy of the current one. Between
+ * beginShadowUpdate() and commitShadowUpdate() or abortShadowUpdate(), transactional opens go to
+ * the shadow database and readers keep using the current one. Committing swaps the shadow database
+ * in for new readers.
  */
 public class DatabaseManager {
 
     private static final AtomicDatabase mDatabase = new AtomicDatabase(false);
     private static final AtomicDatabase mTransactionalDatabase = new AtomicDatabase(true);
 
+    /* Old databases are only deleted once per process, before any shadow database exists */
+    private static final AtomicBoolean mStaleDatabasesDeleted = new AtomicBoolean(false);
+
+    /* The name of the shadow database being built, or null if there isn't one */
+    private static String mShadowDatabaseName = null;
+
+    /* The thread preparing and upgrading the database, or null if it isn't running */
+    private static final AtomicReference<Thread> mInitThread = new AtomicReference<>(null);
+
+    /**
+     * Told how far along inflating the packaged database is
+     */
+    public interface InflateListener {
+        /**
+         * @param percent How much of the packaged database has been inflated, from 0 to 100. This
+         *                is called on the thread doing the inflating
+         */
+        void onInflateProgress(int percent);
+    }
+
     /**
-     * Initializes the DatabaseManagers, mDatabaseManager, and stores the singleton DatabaseHelper
+     * Initializes both AtomicDatabases, which stores their DatabaseHelpers
      *
-     * @param context A singleton DatabaseHelper to open databases with, later
+     * @param context A context to construct the DatabaseHelpers with
      */
-    public static synchronized void initializeInstances(Context context) {
+    public static void initializeInstances(Context context) {
+        initializeInstances(context, null);
+    }
+
+    /**
+     * Initializes both AtomicDatabases, inflating the packaged database first if it's needed.
+     * Anything which opens a database while this is inflating waits for it to finish, so this can
+     * be called from a background thread
+     *
+     * @param context  A context to construct the DatabaseHelpers with
+     * @param listener Told how far along the inflate is, may be null
+     */
+    public static void initializeInstances(Context context, @Nullable InflateListener listener) {
+        DatabaseHelper.prepareDatabase(context, listener);
         mDatabase.initializeInstance(context);
         mTransactionalDatabase.initializeInstance(context);
     }
 
     /**
-     * Returns a DatabaseManager, in order to open databases
+     * Initialize the databases on a background thread, then open the database once there so any
+     * schema upgrade runs on that thread too. Until it's done, opening a database on any other
+     * thread waits for it, instead of inflating or upgrading the database itself
      *
-     * @param context         A context to construct a DatabaseHelper if necessary
-     * @param isTransactional Whether we should get a transactional instance or not
-     * @return The DatabaseManager
+     * @param context       A context to construct the DatabaseHelpers with
+     * @param listener      Told how far along the inflate is, may be null
+     * @param onInitialized Run on the background thread once the database is ready, may be null
      */
-    private static synchronized DatabaseManager getInstance(Context context,
-                                                            boolean isTransactional) {
-        if (isTransactional) {
-            return mTransactionalDatabase.getInstance(context);
-
-        } else {
-            return mDatabase.getInstance(context);
+    public static void initializeInBackground(Context context, @Nullable InflateListener listener,
+                                              @Nullable Runnable onInitialized) {
+        final Context appContext = context.getApplicationContext();
+        Thread thread = new Thread(() -> {
+            initializeInstances(appContext, listener);
+            FamiliarDbHandle handle = new FamiliarDbHandle();
+            try {
+                openDatabase(appContext, false, handle);
+            } catch (FamiliarDbException e) {
+                /* The next open tries again, and reports it */
+            } finally {
+                closeDatabase(appContext, handle);
+            }
+            mInitThread.compareAndSet(Thread.currentThread(), null);
+            if (null != onInitialized) {
+                onInitialized.run();
+            }
+        });
+        mInitThread.set(thread);
+        thread.start();
+    }
 
+    /**
+     * If the databases are being initialized in the background, wait for that to finish, unless
+     * this is the thread doing it
+     */
+    private static void awaitInitialization() {
+        Thread thread = mInitThread.get();
+        if (null != thread && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
     /**
-     * Opens a database, either a transactional one or not
+     * Check if the packaged database will be inflated when the databases are initialized. This
+     * doesn't open the database
+     *
+     * @param context A context to find the database with
+     * @return true if the database is missing or out of date, false otherwise
+     */
+    public static boolean isInflateNeeded(Context context) {
+        return DatabaseHelper.isDbOutOfDate(context);
+    }
+
+    /**
+     * Returns an initialized AtomicDatabase, in order to open databases
      *
      * @param context         A context to construct a DatabaseHelper if necessary
-     * @param isTransactional Whether or not this database operation is transactional
-     * @param handle          This is set to a value unique to this database access and must be used
-     *                        to close the access later
-     * @return A SQLiteDatabase object used for database access
-     * @throws FamiliarDbException if the database can't be opened
+     * @param isTransactional Whether we should get a transactional instance or not
+     * @return The AtomicDatabase
      */
-    public static synchronized SQLiteDatabase openDatabase(Context context, boolean isTransactional,
-                                                           @NonNull FamiliarDbHandle handle) throws FamiliarDbException {
-        return getInstance(context, isTransactional).openDatabase(isTransactional, handle);
+    private static AtomicDatabase getInstance(Context context, boolean isTransactional) {
+        AtomicDatabase database = isTransactional ? mTransactionalDatabase : mDatabase;
+        database.initializeInstance(context);
+        return database;
     }
 
     /**
-     * Opens a database, either a transactional one or not
+     * Opens a database, either a transactional one or not. Opening a non-transactional database
+     * never waits on a transactional one, but any open waits for initializeInBackground() to
+     * finish.
      *
+     * @param context         A context to construct a DatabaseHelper if necessary
      * @param isTransactional Whether or not this database operation is transactional
      * @param handle          This is set to a value unique to this database access and must be used
      *                        to close the access later
      * @return A SQLiteDatabase object used for database access
      * @throws FamiliarDbException if the database can't be opened
      */
-    private synchronized SQLiteDatabase openDatabase(boolean isTransactional,
-                                                     @NonNull FamiliarDbHandle handle) throws FamiliarDbException {
-        if (isTransactional) {
-            return mTransactionalDatabase.openDatabase(handle);
-        } else {
-            return mDatabase.openDatabase(handle);
-        }
+    public static SQLiteDatabase openDatabase(Context context, boolean isTransactional,
+                                              @NonNull FamiliarDbHandle handle) throws FamiliarDbException {
+        awaitInitialization();
+        return getInstance(context, isTransactional).openDatabase(handle);
     }
 
     /**
@@ -101,20 +194,162 @@ public class DatabaseManager {
      * @param context A context to construct a DatabaseHelper if necessary
      * @param handle  The handle from openDatabase, used to close this instance
      */
-    public static synchronized void closeDatabase(Context context, @NonNull FamiliarDbHandle handle) {
+    public static void closeDatabase(Context context, @NonNull FamiliarDbHandle handle) {
         getInstance(context, handle.isTransactional()).closeDatabase(handle);
     }
 
     /**
-     * Close a database opened with this class
+     * Start building an update in a shadow database. The current database is checkpointed and
+     * copied, then every transactional open goes to the copy until the update is committed or
+     * aborted. Readers aren't affected.
+     *
+     * @param context A context to find and open the databases with
+     * @throws FamiliarDbException If the shadow database couldn't be created
+     */
+    public static synchronized void beginShadowUpdate(Context context) throws FamiliarDbException {
+        if (null != mShadowDatabaseName) {
+            return;
+        }
+
+        /* Move everything in the write-ahead log into the database file before copying it. Only
+         * the updater writes, so nothing is added to the log after this
+         */
+        FamiliarDbHandle handle = new FamiliarDbHandle();
+        Cursor checkpoint = null;
+        try {
+            SQLiteDatabase database = openDatabase(context, false, handle);
+            checkpoint = database.rawQuery("PRAGMA wal_checkpoint(FULL)", null);
+            if (checkpoint.moveToFirst() && checkpoint.getInt(0) != 0) {
+                throw new FamiliarDbException(new SQLiteException("Couldn't checkpoint the database"));
+            }
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        } finally {
+            if (null != checkpoint) {
+                checkpoint.close();
+            }
+            closeDatabase(context, handle);
+        }
+
+        String shadowName = DatabaseHelper.DATABASE_NAME + "_" + System.currentTimeMillis();
+        File liveFile = context.getDatabasePath(PreferenceAdapter.getDatabaseName(context));
+        File shadowFile = context.getDatabasePath(shadowName);
+        try {
+            copyFile(liveFile, shadowFile);
+        } catch (IOException e) {
+            deleteDatabaseFiles(shadowFile);
+            throw new FamiliarDbException(e);
+        }
+
+        getInstance(context, true).setDatabaseHelper(new DatabaseHelper(context, shadowName));
+        mShadowDatabaseName = shadowName;
+    }
+
+    /**
+     * @return true if transactional opens are going to a shadow database, false otherwise
+     */
+    public static synchronized boolean isShadowUpdateInProgress() {
+        return null != mShadowDatabaseName;
+    }
+
+    /**
+     * Swap the shadow database in for the current one. Handles which are already open keep using
+     * the old database, which is closed and deleted once they're all closed. This should only be
+     * called once the shadow database is verified.
+     *
+     * @param context A context to open the databases with
+     */
+    public static synchronized void commitShadowUpdate(Context context) {
+        if (null == mShadowDatabaseName) {
+            return;
+        }
+
+        /* Remember the new database first, so it's used after a restart even if this process
+         * dies partway through the swap
+         */
+        String oldName = PreferenceAdapter.getDatabaseName(context);
+        PreferenceAdapter.setDatabaseName(context, mShadowDatabaseName);
+        mShadowDatabaseName = null;
+
+        getInstance(context, true).setDatabaseHelper(new DatabaseHelper(context));
+        getInstance(context, false).retireDatabaseHelper(new DatabaseHelper(context), oldName);
+    }
+
+    /**
+     * Throw away the shadow database, and send transactional opens back to the current database
+     *
+     * @param context A context to open the databases with
+     */
+    public static synchronized void abortShadowUpdate(Context context) {
+        if (null == mShadowDatabaseName) {
+            return;
+        }
+
+        getInstance(context, true).setDatabaseHelper(new DatabaseHelper(context));
+        deleteDatabaseFiles(context.getDatabasePath(mShadowDatabaseName));
+        mShadowDatabaseName = null;
+    }
+
+    /**
+     * Copy a file, and make sure the copy is on disk before returning
+     *
+     * @param source      The file to copy
+     * @param destination The file to copy to
+     * @throws IOException If the copy fails
+     */
+    private static void copyFile(File source, File destination) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        FileOutputStream out = new FileOutputStream(destination);
+        try {
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            long position = 0;
+            long size = inChannel.size();
+            while (position < size) {
+                position += inChannel.transferTo(position, size - position, outChannel);
+            }
+            out.getFD().sync();
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * Delete a database file, and any journal or write-ahead log files which go with it
      *
-     * @param handle The handle from openDatabase, used to close this instance
+     * @param databaseFile The database file to delete
      */
-    private synchronized void closeDatabase(@NonNull FamiliarDbHandle handle) {
-        if (handle.isTransactional()) {
-            mTransactionalDatabase.closeDatabase(handle);
-        } else {
-            mDatabase.closeDatabase(handle);
+    private static void deleteDatabaseFiles(File databaseFile) {
+        for (String suffix : new String[]{"", "-journal", "-wal", "-shm"}) {
+            File file = new File(databaseFile.getPath() + suffix);
+            if (file.exists() && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Delete any databases left behind by a swap or an unfinished shadow update. This runs once,
+     * before any database is opened by this process
+     *
+     * @param context A context to find the databases with
+     */
+    private static void deleteStaleDatabases(Context context) {
+        if (mStaleDatabasesDeleted.getAndSet(true)) {
+            return;
+        }
+
+        String currentName = PreferenceAdapter.getDatabaseName(context);
+        File[] files = context.getDatabasePath(currentName).getParentFile().listFiles();
+        if (null == files) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName().replaceAll("-(journal|wal|shm)$", "");
+            if (name.startsWith(DatabaseHelper.DATABASE_NAME) && !name.equals(currentName)) {
+                deleteDatabaseFiles(new File(file.getParentFile(), name));
+            }
         }
     }
 
@@ -122,13 +357,27 @@ public class DatabaseManager {
      * Routing all database access through one point failed when the database was accessed while the
      * updater service was running (transactional open). With this private class, there are now two
      * entry points: a writable transactional one, and a readable one.
+     * <p>
+     * The readable one keeps its connection pool open once it's opened, so opening and closing
+     * handles is just bookkeeping. The transactional one holds an exclusive transaction for as long
+     * as any handle is open, and commits when the last one is closed.
      */
     private static class AtomicDatabase {
-        private final ArrayList<FamiliarDbHandle> mOpenHandles = new ArrayList<>();
+        private final Set<FamiliarDbHandle> mOpenHandles =
+                Collections.newSetFromMap(new ConcurrentHashMap<FamiliarDbHandle, Boolean>());
+        private final AtomicInteger mLastHandle = new AtomicInteger(0);
         private final boolean mTransactional;
-        private SQLiteDatabase mDatabase;
-        private DatabaseManager mDatabaseManager;
-        private DatabaseHelper mDatabaseHelper;
+        private volatile SQLiteDatabase mDatabase;
+        private volatile DatabaseHelper mDatabaseHelper;
+        private Context mContext;
+
+        /* A database which was swapped out, and is closed once its handles are closed. Handles
+         * opened before the swap are moved out of mOpenHandles, so handles on the new database
+         * don't keep the old one around
+         */
+        private volatile DatabaseHelper mRetiredHelper;
+        private String mRetiredName;
+        private final Set<FamiliarDbHandle> mRetiredHandles = new HashSet<>();
 
         /**
          * Constructor, marks if this object is transactional or not
@@ -140,29 +389,84 @@ public class DatabaseManager {
         }
 
         /**
-         * Initializes the DatabaseManagers, mDatabaseManager, and stores the DatabaseHelper
+         * Creates the DatabaseHelper, if it hasn't been created already
          *
          * @param context A context to initialize with
          */
-        synchronized void initializeInstance(Context context) {
-            if (mDatabaseManager == null) {
-                mDatabaseManager = new DatabaseManager();
-                mDatabaseHelper = new DatabaseHelper(context);
+        void initializeInstance(Context context) {
+            if (mDatabaseHelper == null) {
+                synchronized (this) {
+                    if (mDatabaseHelper == null) {
+                        mContext = context.getApplicationContext();
+                        deleteStaleDatabases(mContext);
+                        mDatabaseHelper = new DatabaseHelper(context);
+                    }
+                }
             }
         }
 
         /**
-         * Initializes, if necessary, the DatabaseManager, then returns it
+         * Replace the DatabaseHelper used to open the transactional database. This must only be
+         * called when there are no open transactional handles
+         *
+         * @param helper The new DatabaseHelper
+         */
+        synchronized void setDatabaseHelper(DatabaseHelper helper) {
+            mDatabaseHelper.close();
+            mDatabaseHelper = helper;
+            mDatabase = null;
+        }
+
+        /**
+         * Replace the DatabaseHelper used to open the readable database. New handles get the new
+         * database right away, and the old one is closed and deleted once all its handles are
+         * closed
          *
-         * @param context A context to create a DatabaseManager with, if necessary
-         * @return The DatabaseManager
+         * @param helper  The new DatabaseHelper
+         * @param oldName The name of the database being replaced, so it can be deleted
          */
-        synchronized DatabaseManager getInstance(Context context) {
-            if (mDatabaseManager == null) {
-                initializeInstance(context);
+        synchronized void retireDatabaseHelper(DatabaseHelper helper, String oldName) {
+            closeRetiredDatabase();
+            mRetiredHelper = mDatabaseHelper;
+            mRetiredName = oldName;
+            mDatabaseHelper = helper;
+            mDatabase = null;
+
+            // Any handle which could have gotten the old database was added before mDatabase was
+            // cleared, so it's moved here. Each one is moved only if it isn't being closed
+            for (FamiliarDbHandle openHandle : mOpenHandles) {
+                if (mOpenHandles.remove(openHandle)) {
+                    mRetiredHandles.add(openHandle);
+                }
             }
+            if (mRetiredHandles.isEmpty()) {
+                closeRetiredDatabase();
+            }
+        }
 
-            return mDatabaseManager;
+        /**
+         * Close and delete the retired database, if there is one
+         */
+        private synchronized void closeRetiredDatabase() {
+            if (null != mRetiredHelper) {
+                mRetiredHelper.close();
+                deleteDatabaseFiles(mContext.getDatabasePath(mRetiredName));
+                mRetiredHelper = null;
+                mRetiredName = null;
+            }
+            mRetiredHandles.clear();
+        }
+
+        /**
+         * Forget a handle which was opened before the last swap, and close and delete the retired
+         * database if it was the last one
+         *
+         * @param handle The handle to forget
+         */
+        private synchronized void closeRetiredHandle(@NonNull FamiliarDbHandle handle) {
+            if (mRetiredHandles.remove(handle) && mRetiredHandles.isEmpty()) {
+                closeRetiredDatabase();
+            }
         }
 
         /**
@@ -173,52 +477,92 @@ public class DatabaseManager {
          * @return a SQLiteDatabase to query or whatever
          * @throws FamiliarDbException if the database can't be opened
          */
-        synchronized SQLiteDatabase openDatabase(@NonNull FamiliarDbHandle handle) throws FamiliarDbException {
-            // Assign this open a handle
-            if (mOpenHandles.isEmpty()) {
-                // Start with a nonzero value
-                handle.setInfo(1, mTransactional);
-            } else {
-                // Or use one more than the last value
-                handle.setInfo(mOpenHandles.get(mOpenHandles.size() - 1).getHandle() + 1, mTransactional);
-            }
+        SQLiteDatabase openDatabase(@NonNull FamiliarDbHandle handle) throws FamiliarDbException {
+            // Assign this open a handle, starting with a nonzero value
+            handle.setInfo(mLastHandle.incrementAndGet(), mTransactional);
 
             try {
-                // Only open a database if one isn't open already, i.e. there are no handles
-                if (mOpenHandles.isEmpty()) {
-                    // Opening new database
-                    if (mTransactional) {
-                        mDatabase = mDatabaseHelper.getWritableDatabase();
-                        if (mDatabase != null) {
-                            mDatabase.execSQL("BEGIN EXCLUSIVE TRANSACTION");
+                if (mTransactional) {
+                    return openTransactionalDatabase(handle);
+                }
+
+                // Add the handle before getting the database, so a swap can't retire the database
+                // between this getting it and the handle being counted
+                mOpenHandles.add(handle);
+
+                // Only open a database if one isn't open already
+                SQLiteDatabase database = mDatabase;
+                if (null == database || !database.isOpen()) {
+                    synchronized (this) {
+                        database = mDatabase;
+                        if (null == database || !database.isOpen()) {
+                            database = mDatabaseHelper.getReadableDatabase();
+                            mDatabase = database;
                         }
-                    } else {
-                        mDatabase = mDatabaseHelper.getReadableDatabase();
                     }
                 }
-                // Add the handle to the collection of open handles only if the open was successful
-                mOpenHandles.add(handle);
-                return mDatabase;
+                return database;
             } catch (SQLiteException e) {
+                // The open wasn't successful, so don't keep the handle
+                if (!mOpenHandles.remove(handle)) {
+                    closeRetiredHandle(handle);
+                }
                 throw new FamiliarDbException(e);
             }
         }
 
+        /**
+         * Opens the database and begins an exclusive transaction if there are no open handles,
+         * otherwise joins the transaction which is already open
+         *
+         * @param handle The handle to add to the collection of open handles
+         * @return a SQLiteDatabase in a transaction
+         */
+        private synchronized SQLiteDatabase openTransactionalDatabase(@NonNull FamiliarDbHandle handle) {
+            // Only open a database if one isn't open already, i.e. there are no handles
+            if (mOpenHandles.isEmpty()) {
+                // Opening new database
+                mDatabase = mDatabaseHelper.getWritableDatabase();
+                if (mDatabase != null) {
+                    mDatabase.execSQL("BEGIN EXCLUSIVE TRANSACTION");
+                }
+            }
+            // Add the handle to the collection of open handles only if the open was successful
+            mOpenHandles.add(handle);
+            return mDatabase;
+        }
+
         /**
          * Close a database opened with this object
          *
          * @param handle The handle from openDatabase, used to close this instance
          */
-        synchronized void closeDatabase(@NonNull FamiliarDbHandle handle) {
-            // If there was a successful open with this handle
-            if (mOpenHandles.contains(handle)) {
-                // Remove the handle from the collection of open handles
-                mOpenHandles.remove(handle);
+        void closeDatabase(@NonNull FamiliarDbHandle handle) {
+            if (mTransactional) {
+                closeTransactionalDatabase(handle);
+            } else {
+                // The connection pool stays open for other readers, so just forget the handle. If
+                // it was moved when the database was swapped out, the old database may be waiting
+                // for it
+                if (!mOpenHandles.remove(handle)) {
+                    closeRetiredHandle(handle);
+                }
+            }
+        }
+
+        /**
+         * Close a database opened with this object, and commit the transaction if this was the
+         * last open handle
+         *
+         * @param handle The handle from openDatabase, used to close this instance
+         */
+        private synchronized void closeTransactionalDatabase(@NonNull FamiliarDbHandle handle) {
+            // If there was a successful open with this handle, remove it from the collection of
+            // open handles
+            if (mOpenHandles.remove(handle)) {
                 // Close the database
                 if (mOpenHandles.isEmpty()) {
-                    if (mTransactional) {
-                        mDatabase.execSQL("COMMIT");
-                    }
+                    mDatabase.execSQL("COMMIT");
                     mDatabase.close();
                 }
             }
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2019 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.database;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class keeps track of everything in the database schema which isn't in the packaged database,
+ * like secondary indexes, and the migration steps which add them when DATABASE_VERSION goes up.
+ */
+public class DatabaseSchema {
+
+    /* Index names, so that tests can check query plans */
+    public static final String INDEX_CARDS_NAME_NO_ACCENT = "idx_cards_name_no_accent";
+    public static final String INDEX_CARDS_SET_NUMBER = "idx_cards_expansion_number";
+    public static final String INDEX_CARDS_NAME = "idx_cards_name";
+    public static final String INDEX_CARDS_MULTIVERSEID = "idx_cards_multiverseid";
+    public static final String INDEX_LEGAL_SETS_FORMAT_SET = "idx_legal_sets_format_expansion";
+    public static final String INDEX_BANNED_CARDS_FORMAT_NAME = "idx_banned_cards_format_name";
+    public static final String INDEX_CARDS_COLOR_MASK = "idx_cards_color_mask";
+    public static final String INDEX_CARDS_COLOR_IDENTITY_MASK = "idx_cards_color_identity_mask";
+    public static final String INDEX_CARD_TYPES_TOKEN_KIND = "idx_card_types_token_kind";
+    public static final String INDEX_CARD_TYPES_CARD_ID = "idx_card_types_card_id";
+
+    /* All the secondary indexes. sets.code doesn't need one, it's already unique */
+    private static final List<Index> ALL_INDEXES = Collections.unmodifiableList(Arrays.asList(
+            new Index(INDEX_CARDS_NAME_NO_ACCENT, 105, CardDbAdapter.DATABASE_TABLE_CARDS,
+                    CardDbAdapter.KEY_NAME_NO_ACCENT + " COLLATE NOCASE"),
+            new Index(INDEX_CARDS_SET_NUMBER, 105, CardDbAdapter.DATABASE_TABLE_CARDS,
+                    CardDbAdapter.KEY_SET, CardDbAdapter.KEY_NUMBER),
+            new Index(INDEX_CARDS_NAME, 105, CardDbAdapter.DATABASE_TABLE_CARDS,
+                    CardDbAdapter.KEY_NAME),
+            new Index(INDEX_CARDS_MULTIVERSEID, 105, CardDbAdapter.DATABASE_TABLE_CARDS,
+                    CardDbAdapter.KEY_MULTIVERSEID),
+            new Index(INDEX_LEGAL_SETS_FORMAT_SET, 105, CardDbAdapter.DATABASE_TABLE_LEGAL_SETS,
+                    CardDbAdapter.KEY_FORMAT, CardDbAdapter.KEY_SET),
+            new Index(INDEX_BANNED_CARDS_FORMAT_NAME, 105, CardDbAdapter.DATABASE_TABLE_BANNED_CARDS,
+                    CardDbAdapter.KEY_FORMAT, CardDbAdapter.KEY_NAME),
+            new Index(INDEX_CARDS_COLOR_MASK, 106, CardDbAdapter.DATABASE_TABLE_CARDS,
+                    CardDbAdapter.KEY_COLOR_MASK),
+            new Index(INDEX_CARDS_COLOR_IDENTITY_MASK, 106, CardDbAdapter.DATABASE_TABLE_CARDS,
+                    CardDbAdapter.KEY_COLOR_IDENTITY_MASK),
+            new Index(INDEX_CARD_TYPES_TOKEN_KIND, 107, CardDbAdapter.DATABASE_TABLE_CARD_TYPES,
+                    CardDbAdapter.KEY_TOKEN, CardDbAdapter.KEY_KIND),
+            new Index(INDEX_CARD_TYPES_CARD_ID, 107, CardDbAdapter.DATABASE_TABLE_CARD_TYPES,
+                    CardDbAdapter.KEY_CARD_ID)
+    ));
+
+    /* All the migration steps which aren't just indexes, in version order */
+    private static final List<Migration> ALL_MIGRATIONS = Collections.unmodifiableList(Arrays.asList(
+            /* The packaged database doesn't have a full text index, so build it */
+            new Migration(104, CardDbAdapter::createCardTextIndex),
+            /* The packaged database doesn't have color bitmasks, so compute them */
+            new Migration(106, CardDbAdapter::createColorMasks),
+            /* The packaged database doesn't split types into words, so do that */
+            new Migration(107, CardDbAdapter::createTypeTokens),
+            /* The packaged database doesn't summarize printings, so do that */
+            new Migration(108, CardDbAdapter::rebuildPrintingsSummary),
+            /* The packaged database doesn't have precomputed legality, so compute it */
+            new Migration(109, CardDbAdapter::rebuildCardLegality),
+            /* The packaged database doesn't hash rows for differential updates, so add the column */
+            new Migration(110, CardDbAdapter::createRowHashes)
+    ));
+
+    /**
+     * Bring the database schema from oldVersion up to newVersion. First every migration step newer
+     * than oldVersion is run in order, then every index newer than oldVersion is created.
+     *
+     * @param database   The database to upgrade
+     * @param oldVersion The version the database is at now
+     * @param newVersion The version to upgrade the database to
+     * @throws FamiliarDbException If something goes wrong
+     */
+    static void upgrade(SQLiteDatabase database, int oldVersion, int newVersion)
+            throws FamiliarDbException {
+        for (Migration migration : ALL_MIGRATIONS) {
+            if (migration.mVersion > oldVersion && migration.mVersion <= newVersion) {
+                migration.mStep.migrate(database);
+            }
+        }
+        try {
+            for (Index index : ALL_INDEXES) {
+                if (index.mVersion > oldVersion && index.mVersion <= newVersion) {
+                    database.execSQL(index.getCreateSql());
+                }
+            }
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Create every index which doesn't exist yet. This is called after bulk loads, and after tables
+     * are dropped and recreated.
+     *
+     * @param database The database to create indexes in
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static void createIndexes(SQLiteDatabase database) throws FamiliarDbException {
+        try {
+            for (Index index : ALL_INDEXES) {
+                database.execSQL(index.getCreateSql());
+            }
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Drop every index on a table. This is called before bulk loads into that table, so the
+     * indexes are built once at the end instead of being updated for every row.
+     *
+     * @param database The database to drop indexes from
+     * @param table    The table to drop indexes for
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static void dropIndexes(SQLiteDatabase database, String table)
+            throws FamiliarDbException {
+        try {
+            for (Index index : ALL_INDEXES) {
+                if (index.mTable.equals(table)) {
+                    database.execSQL("DROP INDEX IF EXISTS " + index.mName);
+                }
+            }
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * A secondary index, and the database version it was added in.
+     */
+    private static class Index {
+        private final String mName;
+        private final int mVersion;
+        private final String mTable;
+        private final String[] mColumns;
+
+        /**
+         * Constructor
+         *
+         * @param name    The name of the index
+         * @param version The DATABASE_VERSION this index was added in
+         * @param table   The table to index
+         * @param columns The indexed columns, with optional collations
+         */
+        Index(String name, int version, String table, String... columns) {
+            mName = name;
+            mVersion = version;
+            mTable = table;
+            mColumns = columns;
+        }
+
+        /**
+         * @return The SQL statement to create this index if it doesn't exist
+         */
+        String getCreateSql() {
+            StringBuilder sql = new StringBuilder("CREATE INDEX IF NOT EXISTS ")
+                    .append(mName).append(" ON ").append(mTable).append("(");
+            boolean first = true;
+            for (String column : mColumns) {
+                if (first) {
+                    first = false;
+                } else {
+                    sql.append(", ");
+                }
+                sql.append(column);
+            }
+            return sql.append(")").toString();
+        }
+    }
+
+    /**
+     * A step which changes the schema, and the database version it was added in.
+     */
+    private static class Migration {
+        private final int mVersion;
+        private final MigrationStep mStep;
+
+        /**
+         * Constructor
+         *
+         * @param version The DATABASE_VERSION this step upgrades to
+         * @param step    The work to do
+         */
+        Migration(int version, MigrationStep step) {
+            mVersion = version;
+            mStep = step;
+        }
+    }
+
+    /**
+     * The work done by a single migration step.
+     */
+    private interface MigrationStep {
+        /**
+         * @param database The database to migrate
+         * @throws FamiliarDbException If something goes wrong
+         */
+        void migrate(SQLiteDatabase database) throws FamiliarDbException;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2019 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+
+/**
+ * This class builds a SQL statement with ? placeholders and a matching list of bind arguments,
+ * instead of inlining values. Queries with the same shape have the same SQL, so SQLite's prepared
+ * statement cache can reuse them rather than parsing and planning every query again.
+ */
+public class ParameterizedQuery {
+
+    private final StringBuilder mSql;
+    private final ArrayList<String> mArgs = new ArrayList<>();
+
+    /**
+     * Constructor for an empty query
+     */
+    public ParameterizedQuery() {
+        mSql = new StringBuilder();
+    }
+
+    /**
+     * Constructor
+     *
+     * @param sql The SQL to start the query with
+     */
+    public ParameterizedQuery(String sql) {
+        mSql = new StringBuilder(sql);
+    }
+
+    /**
+     * Append SQL to this query. This must never contain user input, use bind() for that.
+     *
+     * @param sql The SQL to append
+     * @return This query, for chaining
+     */
+    public ParameterizedQuery append(Object sql) {
+        mSql.append(sql);
+        return this;
+    }
+
+    /**
+     * Append another query, and its arguments, to this query.
+     *
+     * @param query The query to append
+     * @return This query, for chaining
+     */
+    public ParameterizedQuery append(ParameterizedQuery query) {
+        mSql.append(query.mSql);
+        mArgs.addAll(query.mArgs);
+        return this;
+    }
+
+    /**
+     * Insert SQL at the front of this query. This must not have any placeholders, otherwise the
+     * arguments would be out of order.
+     *
+     * @param sql The SQL to insert
+     * @return This query, for chaining
+     */
+    public ParameterizedQuery prepend(String sql) {
+        mSql.insert(0, sql);
+        return this;
+    }
+
+    /**
+     * Append a placeholder for a string value.
+     *
+     * @param value The value to bind
+     * @return This query, for chaining
+     */
+    public ParameterizedQuery bind(String value) {
+        mSql.append('?');
+        mArgs.add(value);
+        return this;
+    }
+
+    /**
+     * Append a placeholder for an integer value. All arguments are bound as text, so this is cast
+     * back to an integer for comparisons.
+     *
+     * @param value The value to bind
+     * @return This query, for chaining
+     */
+    public ParameterizedQuery bind(long value) {
+        mSql.append("CAST(? AS INTEGER)");
+        mArgs.add(Long.toString(value));
+        return this;
+    }
+
+    /**
+     * Append a placeholder for a floating point value. All arguments are bound as text, so this is
+     * cast back to a real for comparisons.
+     *
+     * @param value The value to bind
+     * @return This query, for chaining
+     */
+    public ParameterizedQuery bind(float value) {
+        mSql.append("CAST(? AS REAL)");
+        mArgs.add(Float.toString(value));
+        return this;
+    }
+
+    /**
+     * Append a placeholder for a double precision value, i.e. one read back from a cursor. All
+     * arguments are bound as text, so this is cast back to a real for comparisons.
+     *
+     * @param value The value to bind
+     * @return This query, for chaining
+     */
+    public ParameterizedQuery bind(double value) {
+        mSql.append("CAST(? AS REAL)");
+        mArgs.add(Double.toString(value));
+        return this;
+    }
+
+    /**
+     * @return The SQL, with placeholders
+     */
+    public String getSql() {
+        return mSql.toString();
+    }
+
+    /**
+     * @return The arguments for the placeholders, in order
+     */
+    public String[] getArgs() {
+        return mArgs.toArray(new String[0]);
+    }
+
+    /**
+     * Run this query.
+     *
+     * @param database The database to query
+     * @return A cursor with the results
+     */
+    public Cursor rawQuery(SQLiteDatabase database) {
+        return database.rawQuery(getSql(), getArgs());
+    }
+
+    /**
+     * @return The SQL, with placeholders
+     */
+    @Override
+    public String toString() {
+        return getSql();
+    }
+}
@@ -22,8 +22,7 @@ package com.gelakinetic.mtgfam.helpers.model;
 import android.support.annotation.NonNull;
 
 import com.gelakinetic.mtgfam.R;
-
-import org.jetbrains.annotations.Contract;
+import com.gelakinetic.mtgfam.helpers.database.ParameterizedQuery;
 
 public enum Comparison {
     EMPTY(" ", R.string.NoComparison),
@@ -49,26 +48,25 @@ public enum Comparison {
     }
 
     @NonNull
-    @Contract(pure = true)
-    public StringBuilder appendToSql(StringBuilder sqlString, String part1, String part2) {
-        String searchCondition = "";
+    public ParameterizedQuery appendToSql(ParameterizedQuery sqlString, String part1, String part2) {
+        ParameterizedQuery searchCondition = new ParameterizedQuery();
         switch (this) {
             case EQ:
-                searchCondition = part1 + " = '" + part2 + "'";
+                searchCondition.append(part1 + " = ").bind(part2);
                 break;
             case NE:
-                searchCondition = part1 + " <> '" + part2 + "'";
+                searchCondition.append(part1 + " <> ").bind(part2);
                 break;
             case CT:
-                searchCondition = part1 + " LIKE '%" + part2 + "%'";
+                searchCondition.append(part1 + " LIKE ").bind("%" + part2 + "%");
                 break;
             case NC:
-                searchCondition = part1 + " NOT LIKE '%" + part2 + "%'";
+                searchCondition.append(part1 + " NOT LIKE ").bind("%" + part2 + "%");
                 break;
         }
-        if (sqlString.length() == 0) {
+        if (sqlString.getSql().isEmpty()) {
             return sqlString.append(searchCondition);
-        } else if (searchCondition.isEmpty()) {
+        } else if (searchCondition.getSql().isEmpty()) {
             return sqlString;
         } else {
             return sqlString.append(" AND ").append(searchCondition);
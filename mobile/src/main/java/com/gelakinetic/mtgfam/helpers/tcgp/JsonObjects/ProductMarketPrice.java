@@ -34,7 +34,7 @@ public class ProductMarketPrice {
     }
 
     public static class MarketPrice {
-        final long productId;
+        public final long productId;
         public final double lowPrice;
         public final double midPrice;
         public final double highPrice;
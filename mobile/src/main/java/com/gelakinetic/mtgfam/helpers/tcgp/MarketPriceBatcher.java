@@ -0,0 +1,696 @@
+/*
+ * Copyright 2019 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.tcgp;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.support.v4.util.LongSparseArray;
+
+import com.gelakinetic.mtgfam.FamiliarActivity;
+import com.gelakinetic.mtgfam.R;
+import com.gelakinetic.mtgfam.helpers.MtgCard;
+import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
+import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbHandle;
+import com.gelakinetic.mtgfam.helpers.tcgp.JsonObjects.ProductDetails;
+import com.gelakinetic.mtgfam.helpers.tcgp.JsonObjects.ProductInformation;
+import com.gelakinetic.mtgfam.helpers.tcgp.JsonObjects.ProductMarketPrice;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nullable;
+
+import io.reactivex.SingleEmitter;
+
+/**
+ * Price lookups are collected here for a short window, then looked up together. A search is by
+ * card name, so there's still one per card, but they run in parallel. The product IDs from every
+ * search are then sent in as few details requests as possible, and the product chosen for every
+ * card in as few price requests as possible. Each result is handed back to its card's emitter.
+ * <p>
+ * Once a card's product is found, it's saved in the TcgpDatabase. The next time that card is looked
+ * up, it goes straight to the price request.
+ * <p>
+ * A card without a usable result moves on to its next search option, in the same order a single
+ * lookup always used: multi-card names, then without accent marks, then without a set name. Those
+ * cards are looked up together again, until every card has a price or an error.
+ */
+class MarketPriceBatcher {
+
+    /* How long to wait for more lookups before sending a batch */
+    private static final long BATCH_WINDOW_MS = 100;
+
+    /* The most product IDs the API takes in one details or price request */
+    private static final int MAX_IDS_PER_REQUEST = 250;
+
+    private final FamiliarActivity mActivity;
+    private final TcgpDatabase mTcgpDatabase;
+    private final TcgpGroups mTcgpGroups;
+
+    /* Created when the first card is added, and shut down by stop(). Guarded by mPending */
+    private ExecutorService mBatchThread = null;
+    private ExecutorService mSearchThreadPool = null;
+
+    private final ArrayList<Lookup> mPending = new ArrayList<>();
+    private boolean mBatchScheduled = false;
+
+    /**
+     * Constructor
+     *
+     * @param activity The Activity context used for strings, preferences, and the like
+     */
+    MarketPriceBatcher(FamiliarActivity activity) {
+        mActivity = activity;
+        mTcgpDatabase = TcgpDatabase.getInstance(activity);
+        mTcgpGroups = TcgpGroups.getInstance(activity);
+    }
+
+    /**
+     * Add a card to the next batch. The emitter is called on the batch's thread when the card has
+     * a price or an error. If the emitter is disposed first, the card is skipped
+     *
+     * @param card    The card to look up
+     * @param emitter Where to send the result
+     */
+    void add(MtgCard card, SingleEmitter<MarketPriceInfo> emitter) {
+        synchronized (mPending) {
+            mPending.add(new Lookup(card, emitter));
+            if (!mBatchScheduled) {
+                if (null == mBatchThread) {
+                    mBatchThread = Executors.newSingleThreadExecutor();
+                    mSearchThreadPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+                }
+                mBatchScheduled = true;
+                final ExecutorService searchThreadPool = mSearchThreadPool;
+                mBatchThread.execute(() -> runBatch(searchThreadPool));
+            }
+        }
+    }
+
+    /**
+     * Stop every lookup, and shut down the batch and search threads. They're created again if
+     * another card is added
+     */
+    void stop() {
+        ArrayList<Lookup> dropped;
+        synchronized (mPending) {
+            if (null != mBatchThread) {
+                mBatchThread.shutdownNow();
+                mSearchThreadPool.shutdownNow();
+                mBatchThread = null;
+                mSearchThreadPool = null;
+            }
+            dropped = new ArrayList<>(mPending);
+            mPending.clear();
+            mBatchScheduled = false;
+        }
+        /* Don't leave anyone waiting */
+        failAll(dropped, new Exception(mActivity.getString(R.string.price_error_unknown)));
+    }
+
+    /**
+     * Wait for the window to close, then look up everything which was added. Anything added while
+     * this runs goes into the next batch
+     *
+     * @param searchThreadPool The threads to search on
+     */
+    private void runBatch(ExecutorService searchThreadPool) {
+        try {
+            Thread.sleep(BATCH_WINDOW_MS);
+        } catch (InterruptedException e) {
+            /* Look up what's here already */
+        }
+
+        ArrayList<Lookup> lookups;
+        synchronized (mPending) {
+            if (searchThreadPool != mSearchThreadPool) {
+                /* stop() was called, and already failed everything which was pending */
+                return;
+            }
+            lookups = new ArrayList<>(mPending);
+            mPending.clear();
+            mBatchScheduled = false;
+        }
+
+        try {
+            lookUp(lookups, searchThreadPool);
+        } catch (RuntimeException | InterruptedException e) {
+            /* This includes the search threads being shut down by stop() */
+            /* Don't leave anyone waiting */
+            failAll(lookups, new Exception(mActivity.getString(R.string.price_error_unknown)));
+        }
+    }
+
+    /**
+     * Look up prices for a batch of cards, round by round, until each has a price or an error
+     *
+     * @param lookups          The cards to look up
+     * @param searchThreadPool The threads to search on
+     * @throws InterruptedException If this thread is interrupted while searching
+     */
+    private void lookUp(List<Lookup> lookups, ExecutorService searchThreadPool) throws InterruptedException {
+        if (FamiliarActivity.getNetworkState(mActivity, false) == -1) {
+            failAll(lookups, new Exception(mActivity.getString(R.string.no_network)));
+            return;
+        }
+
+        TcgpApi api;
+        try {
+            api = getApi();
+        } catch (Exception e) {
+            failAll(lookups, e);
+            return;
+        }
+
+        List<Lookup> remaining = lookups;
+        while (!remaining.isEmpty()) {
+            /* Each card searches until it finds product IDs or runs out of options */
+            ArrayList<Callable<Void>> searches = new ArrayList<>();
+            for (Lookup lookup : remaining) {
+                searches.add(() -> {
+                    try {
+                        lookup.search(api);
+                    } catch (RuntimeException e) {
+                        lookup.fail(e);
+                    }
+                    return null;
+                });
+            }
+            searchThreadPool.invokeAll(searches);
+
+            ArrayList<Lookup> searched = new ArrayList<>();
+            for (Lookup lookup : remaining) {
+                if (!lookup.mFinished) {
+                    searched.add(lookup);
+                }
+            }
+
+            /* Then all the cards get details and prices together */
+            getDetails(api, searched);
+            getPrices(api, searched);
+
+            remaining = new ArrayList<>();
+            for (Lookup lookup : searched) {
+                if (!lookup.mFinished) {
+                    remaining.add(lookup);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the details for every card's search results, and choose the best product for each
+     *
+     * @param api     The API to query
+     * @param lookups The cards which found product IDs this round
+     */
+    private void getDetails(TcgpApi api, List<Lookup> lookups) {
+        ArrayList<Long> ids = new ArrayList<>();
+        HashSet<Long> seen = new HashSet<>();
+        for (Lookup lookup : lookups) {
+            for (long id : lookup.mProductIds) {
+                if (seen.add(id)) {
+                    ids.add(id);
+                }
+            }
+        }
+
+        LongSparseArray<ProductDetails.Details> detailsById = new LongSparseArray<>();
+        LongSparseArray<String> errorsById = new LongSparseArray<>();
+        HashSet<Long> failedIds = new HashSet<>();
+        for (long[] chunk : chunk(ids)) {
+            try {
+                ProductDetails details = api.getProductDetails(chunk);
+                if (details.results.length > 0) {
+                    for (ProductDetails.Details result : details.results) {
+                        detailsById.put(result.productId, result);
+                    }
+                } else if (details.errors.length > 0) {
+                    for (long id : chunk) {
+                        errorsById.put(id, details.errors[0]);
+                    }
+                }
+            } catch (IOException e) {
+                /* Only the cards in this request are affected */
+                for (long id : chunk) {
+                    failedIds.add(id);
+                }
+            }
+        }
+
+        for (Lookup lookup : lookups) {
+            /* Keep the search's order, since the first result is assumed to be the best */
+            ArrayList<ProductDetails.Details> results = new ArrayList<>();
+            String error = null;
+            boolean networkError = false;
+            for (long id : lookup.mProductIds) {
+                if (failedIds.contains(id)) {
+                    networkError = true;
+                    break;
+                }
+                ProductDetails.Details result = detailsById.get(id);
+                if (null != result) {
+                    results.add(result);
+                } else if (null == error) {
+                    error = errorsById.get(id);
+                }
+            }
+
+            if (networkError) {
+                /* Without every result, the best product can't be chosen */
+                lookup.fail(new Exception(mActivity.getString(R.string.price_error_network)));
+            } else if (!results.isEmpty()) {
+                try {
+                    lookup.chooseProduct(api, results);
+                } catch (IOException e) {
+                    lookup.mLastThrownException = new Exception(mActivity.getString(R.string.price_error_network));
+                }
+            } else if (null != error) {
+                /* Return the error returned by TCGPlayer */
+                lookup.fail(new Throwable(error));
+            }
+        }
+    }
+
+    /**
+     * Get the market prices for every card's chosen product, and hand them back
+     *
+     * @param api     The API to query
+     * @param lookups The cards which may have chosen a product this round
+     */
+    private void getPrices(TcgpApi api, List<Lookup> lookups) {
+        ArrayList<Long> ids = new ArrayList<>();
+        HashSet<Long> seen = new HashSet<>();
+        for (Lookup lookup : lookups) {
+            if (!lookup.mFinished && lookup.mBestProductId >= 0 && seen.add(lookup.mBestProductId)) {
+                ids.add(lookup.mBestProductId);
+            }
+        }
+
+        LongSparseArray<ArrayList<ProductMarketPrice.MarketPrice>> pricesById = new LongSparseArray<>();
+        LongSparseArray<String> errorsById = new LongSparseArray<>();
+        HashSet<Long> answeredIds = new HashSet<>();
+        HashSet<Long> failedIds = new HashSet<>();
+        for (long[] chunk : chunk(ids)) {
+            try {
+                ProductMarketPrice price = api.getProductMarketPrice(chunk);
+                /* TCGplayer.com responded, so any ID without a price has none */
+                for (long id : chunk) {
+                    answeredIds.add(id);
+                }
+                if (price.results.length > 0) {
+                    for (ProductMarketPrice.MarketPrice result : price.results) {
+                        ArrayList<ProductMarketPrice.MarketPrice> prices = pricesById.get(result.productId);
+                        if (null == prices) {
+                            prices = new ArrayList<>();
+                            pricesById.put(result.productId, prices);
+                        }
+                        prices.add(result);
+                    }
+                } else if (price.errors.length > 0) {
+                    for (long id : chunk) {
+                        errorsById.put(id, price.errors[0]);
+                    }
+                }
+            } catch (IOException e) {
+                /* Only the cards in this request are affected */
+                for (long id : chunk) {
+                    failedIds.add(id);
+                }
+            }
+        }
+
+        for (Lookup lookup : lookups) {
+            if (lookup.mFinished || lookup.mBestProductId < 0) {
+                continue;
+            }
+            ArrayList<ProductMarketPrice.MarketPrice> prices = pricesById.get(lookup.mBestProductId);
+            String error = errorsById.get(lookup.mBestProductId);
+            if (failedIds.contains(lookup.mBestProductId)) {
+                lookup.fail(new Exception(mActivity.getString(R.string.price_error_network)));
+            } else if (null != prices) {
+                /* Return a new MarketPriceInfo */
+                lookup.succeed(new MarketPriceInfo(
+                        prices.toArray(new ProductMarketPrice.MarketPrice[0]), lookup.mBestUrl));
+            } else if (lookup.mUsingSavedProduct && answeredIds.contains(lookup.mBestProductId)) {
+                /* The saved product has no price or an error, so it's stale. Search next round */
+                lookup.forgetSavedProduct();
+            } else if (null != error) {
+                /* Return the error returned by TCGPlayer */
+                lookup.fail(new Throwable(error));
+            }
+        }
+    }
+
+    /**
+     * Split product IDs into arrays small enough for one request each
+     *
+     * @param ids The product IDs to split
+     * @return The IDs, at most MAX_IDS_PER_REQUEST per array
+     */
+    private static ArrayList<long[]> chunk(List<Long> ids) {
+        ArrayList<long[]> chunks = new ArrayList<>();
+        for (int start = 0; start < ids.size(); start += MAX_IDS_PER_REQUEST) {
+            long[] chunk = new long[Math.min(MAX_IDS_PER_REQUEST, ids.size() - start)];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = ids.get(start + i);
+            }
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * Fail every lookup which hasn't finished yet
+     *
+     * @param lookups   The lookups to fail
+     * @param throwable The reason
+     */
+    private static void failAll(List<Lookup> lookups, Throwable throwable) {
+        for (Lookup lookup : lookups) {
+            if (!lookup.mFinished) {
+                lookup.fail(throwable);
+            }
+        }
+    }
+
+    /**
+     * Get the shared TcgpApi, with a token which is good for this batch
+     *
+     * @return A TcgpApi ready to make requests
+     * @throws Exception With a message to show if the API couldn't be set up
+     */
+    private TcgpApi getApi() throws Exception {
+        TcgpApi api = TcgpApi.getInstance();
+        try {
+            api.ensureToken(mActivity);
+        } catch (FileNotFoundException e) {
+            throw new Exception(mActivity.getString(R.string.price_error_api_key));
+        } catch (IOException e) {
+            throw new Exception(mActivity.getString(R.string.price_error_network));
+        }
+        return api;
+    }
+
+    /**
+     * One card's lookup, and where it is in its search options
+     */
+    private class Lookup {
+        private final MtgCard mCard;
+        private final SingleEmitter<MarketPriceInfo> mEmitter;
+        private boolean mFinished = false;
+        private Throwable mLastThrownException = new Exception(mActivity.getString(R.string.price_error_unknown));
+
+        /* Set up by the first search */
+        private boolean mInitialized = false;
+        private CardDbAdapter.MultiCardType mMultiCardType;
+        private String mTcgSetName;
+        private int mNumMultiCardOptions;
+        private int mNextOption = 0;
+
+        /* Whether the saved product was tried, and whether it's what this round is pricing */
+        private boolean mSavedProductTried = false;
+        private boolean mUsingSavedProduct = false;
+
+        /* This round's results */
+        private String mTcgCardName;
+        private String mSearchSetName;
+        private long[] mProductIds = new long[]{};
+        private long mBestProductId = -1;
+        private String mBestUrl;
+
+        /**
+         * Constructor
+         *
+         * @param card    The card to look up
+         * @param emitter Where to send the result
+         */
+        Lookup(MtgCard card, SingleEmitter<MarketPriceInfo> emitter) {
+            mCard = card;
+            mEmitter = emitter;
+        }
+
+        /**
+         * Try this card's search options, starting after the last one tried, until one finds
+         * product IDs. If none do, the lookup fails
+         *
+         * @param api The API to query
+         */
+        void search(TcgpApi api) {
+            mProductIds = new long[]{};
+            mBestProductId = -1;
+            mBestUrl = null;
+            if (mEmitter.isDisposed()) {
+                /* Nobody is waiting for this anymore */
+                mFinished = true;
+                return;
+            }
+
+            if (!mInitialized) {
+                FamiliarDbHandle cardInfoHandle = new FamiliarDbHandle();
+                try {
+                    SQLiteDatabase database = DatabaseManager.openDatabase(mActivity, false, cardInfoHandle);
+
+                    if (CardDbAdapter.isOnlineOnly(mCard.getExpansion(), database)) {
+                        fail(new Exception(mActivity.getString(R.string.price_error_online_only)));
+                        return;
+                    }
+
+                    // If the number doesn't exist, multiCardType will be MultiCardType.NOPE
+                    mMultiCardType = CardDbAdapter.isMultiCard(mCard.getNumber(), mCard.getExpansion());
+
+                    /* Get the TCGplayer.com set name, why can't everything be consistent? */
+                    mTcgSetName = CardDbAdapter.getTcgName(mCard.getExpansion(), database);
+                } catch (SQLiteException | FamiliarDbException e) {
+                    fail(new Exception(mActivity.getString(R.string.price_error_database)));
+                    return;
+                } finally {
+                    DatabaseManager.closeDatabase(mActivity, cardInfoHandle);
+                }
+
+                /* If this isn't a multi-card, don't iterate so much */
+                mNumMultiCardOptions = (mMultiCardType != CardDbAdapter.MultiCardType.NOPE) ? 4 : 1;
+                mInitialized = true;
+            }
+
+            if (mUsingSavedProduct) {
+                /* The saved product's price couldn't be downloaded, so search, but keep the
+                 * product for next time
+                 */
+                mUsingSavedProduct = false;
+            } else if (!mSavedProductTried) {
+                mSavedProductTried = true;
+                TcgpDatabase.Product product = mTcgpDatabase.getProduct(mCard.getName(),
+                        mCard.getExpansion(), mCard.getNumber(), mTcgSetName);
+                if (null != product) {
+                    /* Skip the search and details, and go straight to the price */
+                    mUsingSavedProduct = true;
+                    mBestProductId = product.mProductId;
+                    mBestUrl = product.mUrl;
+                    return;
+                }
+            }
+
+            /* Iterate through the remaining queries for this card
+             * First (innermost) try the different combination of multi-card names
+             * Then (middle) try with and without accent marks
+             * Last (outer) try without a set name. This works for Schemes & Planes with weird TCGPlayer sets
+             */
+            int numOptions = 2 * 2 * mNumMultiCardOptions;
+            while (mNextOption < numOptions) {
+                int option = mNextOption++;
+                int setOption = option / (2 * mNumMultiCardOptions);
+                int accentOption = (option / mNumMultiCardOptions) % 2;
+                int multiOption = option % mNumMultiCardOptions;
+
+                String tcgCardName = getTcgCardName(multiOption, accentOption);
+                String tcgSetName = (setOption == 1) ? null : mTcgSetName;
+
+                if (null != tcgCardName) {
+                    try {
+                        ProductInformation information = api.getProductInformation(tcgCardName, tcgSetName);
+                        if (information.results.length > 0) {
+                            mTcgCardName = tcgCardName;
+                            mSearchSetName = tcgSetName;
+                            mProductIds = information.results;
+                            return;
+                        } else if (information.errors.length > 0) {
+                            /* Return the error returned by TCGPlayer */
+                            fail(new Throwable(information.errors[0]));
+                            return;
+                        }
+                    } catch (IOException e) {
+                        mLastThrownException = new Exception(mActivity.getString(R.string.price_error_network));
+                    }
+                }
+            }
+            fail(mLastThrownException);
+        }
+
+        /**
+         * @param multiOption  Which multi-card name to use
+         * @param accentOption 1 to remove accent marks, 0 otherwise
+         * @return The name to search TCGplayer.com with, or null if there was a database error
+         */
+        @Nullable
+        private String getTcgCardName(int multiOption, int accentOption) {
+            String tcgCardName;
+            FamiliarDbHandle setOptHandle = new FamiliarDbHandle();
+            try {
+                SQLiteDatabase database = DatabaseManager.openDatabase(mActivity, false, setOptHandle);
+
+                /* Set up retries for multicard ordering */
+                if (mMultiCardType != CardDbAdapter.MultiCardType.NOPE) {
+                    /* Next time try the other order */
+                    switch (multiOption) {
+                        case 0:
+                            /* Try just the a side */
+                            tcgCardName = CardDbAdapter.getNameFromSetAndNumber(mCard.getExpansion(), mCard.getNumber().replace("b", "a"), database);
+                            break;
+                        case 1:
+                            /* Try just the b side */
+                            tcgCardName = CardDbAdapter.getNameFromSetAndNumber(mCard.getExpansion(), mCard.getNumber().replace("a", "b"), database);
+                            break;
+                        case 2:
+                            /* Try the combined name in one direction */
+                            tcgCardName = CardDbAdapter.getSplitName(mCard.getMultiverseId(), true, database);
+                            break;
+                        case 3:
+                            /* Try the combined name in the other direction */
+                            tcgCardName = CardDbAdapter.getSplitName(mCard.getMultiverseId(), false, database);
+                            break;
+                        default:
+                            /* Something went wrong */
+                            tcgCardName = mCard.getName();
+                            break;
+                    }
+                } else {
+                    /* This isn't a multicard */
+                    tcgCardName = mCard.getName();
+                }
+
+                /* Retry with accent marks removed */
+                if (accentOption == 1) {
+                    tcgCardName = CardDbAdapter.removeAccentMarks(Objects.requireNonNull(tcgCardName));
+                }
+            } catch (SQLiteException | FamiliarDbException e) {
+                tcgCardName = null;
+                mLastThrownException = new Exception(mActivity.getString(R.string.price_error_database));
+            } finally {
+                DatabaseManager.closeDatabase(mActivity, setOptHandle);
+            }
+            return tcgCardName;
+        }
+
+        /**
+         * Choose the product which best matches this card's name and set
+         *
+         * @param api     The API to query for group names
+         * @param results The details of this card's search results, in the search's order
+         * @throws IOException If the group names couldn't be downloaded
+         */
+        void chooseProduct(TcgpApi api, List<ProductDetails.Details> results) throws IOException {
+            // Assume the first result is the best result
+            long bestResult = results.get(0).productId;
+            String bestUrl = "";
+            boolean okResultFound = false;
+            // Look through all results for a perfect match
+            for (ProductDetails.Details searchResult : results) {
+                String expansion = mTcgpGroups.getName(api, searchResult.groupId);
+                if (searchResult.name.toLowerCase().equals(mTcgCardName.toLowerCase())) {
+                    if (null != expansion && null != mSearchSetName) {
+                        if (expansion.toLowerCase().equals(mSearchSetName.toLowerCase())) {
+                            // Found a perfect match, including expansion!
+                            bestResult = searchResult.productId;
+                            bestUrl = searchResult.url;
+                            break;
+                        }
+                    } else {
+                        // Found a perfect match, no expansion to match!
+                        bestResult = searchResult.productId;
+                        bestUrl = searchResult.url;
+                        break;
+                    }
+                } else if (!okResultFound && searchResult.name.toLowerCase().startsWith(mTcgCardName.toLowerCase())) {
+                    if (null != expansion && null != mSearchSetName) {
+                        if (expansion.toLowerCase().equals(mSearchSetName.toLowerCase())) {
+                            // Found a good match, including expansion!
+                            // Set it but keep searching for a perfect match
+                            bestResult = searchResult.productId;
+                            bestUrl = searchResult.url;
+                            okResultFound = true;
+                        }
+                    } else {
+                        // Found a good match, no expansion to match!
+                        // Set it but keep searching for a perfect match
+                        bestResult = searchResult.productId;
+                        bestUrl = searchResult.url;
+                        okResultFound = true;
+                    }
+                }
+            }
+            mBestProductId = bestResult;
+            mBestUrl = bestUrl;
+        }
+
+        /**
+         * Forget the saved product, since TCGplayer.com has no price for it, so it's searched for
+         * in the next round
+         */
+        void forgetSavedProduct() {
+            mTcgpDatabase.removeProduct(mCard.getName(), mCard.getExpansion(), mCard.getNumber());
+            mUsingSavedProduct = false;
+        }
+
+        /**
+         * Finish this lookup with a price
+         *
+         * @param info The price info
+         */
+        void succeed(MarketPriceInfo info) {
+            if (!mUsingSavedProduct) {
+                mTcgpDatabase.putProduct(mCard.getName(), mCard.getExpansion(), mCard.getNumber(),
+                        mTcgSetName, new TcgpDatabase.Product(mBestProductId, mBestUrl));
+            }
+            mFinished = true;
+            mEmitter.onSuccess(info);
+        }
+
+        /**
+         * Finish this lookup with an error
+         *
+         * @param throwable The reason
+         */
+        void fail(Throwable throwable) {
+            mFinished = true;
+            /* The emitter may have been disposed while this was looked up */
+            mEmitter.tryOnError(throwable);
+        }
+    }
+}
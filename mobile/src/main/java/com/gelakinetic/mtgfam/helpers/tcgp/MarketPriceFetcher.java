@@ -19,26 +19,11 @@
 
 package com.gelakinetic.mtgfam.helpers.tcgp;
 
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteException;
 import android.os.Handler;
-import android.support.v4.util.LongSparseArray;
+import android.util.LruCache;
 
 import com.gelakinetic.mtgfam.FamiliarActivity;
-import com.gelakinetic.mtgfam.R;
 import com.gelakinetic.mtgfam.helpers.MtgCard;
-import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
-import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
-import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
-import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
-import com.gelakinetic.mtgfam.helpers.database.FamiliarDbHandle;
-import com.gelakinetic.mtgfam.helpers.tcgp.JsonObjects.AccessToken;
-import com.gelakinetic.mtgfam.helpers.tcgp.JsonObjects.CategoryGroups;
-import com.gelakinetic.mtgfam.helpers.tcgp.JsonObjects.ProductDetails;
-import com.gelakinetic.mtgfam.helpers.tcgp.JsonObjects.ProductInformation;
-import com.gelakinetic.mtgfam.helpers.tcgp.JsonObjects.ProductMarketPrice;
-import com.google.gson.Gson;
-import com.google.gson.stream.JsonWriter;
 import com.nytimes.android.external.store3.base.Fetcher;
 import com.nytimes.android.external.store3.base.Persister;
 import com.nytimes.android.external.store3.base.RecordProvider;
@@ -46,21 +31,16 @@ import com.nytimes.android.external.store3.base.RecordState;
 import com.nytimes.android.external.store3.base.impl.Store;
 import com.nytimes.android.external.store3.base.impl.StoreBuilder;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.Objects;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
-import javax.annotation.Nullable;
 
 import io.reactivex.Maybe;
 import io.reactivex.Single;
@@ -69,10 +49,18 @@ import io.reactivex.functions.Consumer;
 
 public class MarketPriceFetcher {
 
-    private static final String KEY_PREFIX = "price_";
+    /* How many cached prices are kept in memory, in front of the database */
+    private static final int MAX_RECORDS_IN_MEMORY = 2000;
+
+    /* How many prices are written between evicting old ones from the database */
+    private static final int WRITES_PER_TRIM = 200;
 
     private final FamiliarActivity mActivity;
     private final Store<MarketPriceInfo, MtgCard> mStore;
+    private final MarketPriceBatcher mBatcher;
+    private final TcgpDatabase mTcgpDatabase;
+    private final LruCache<String, TcgpDatabase.PriceRecord> mRecords = new LruCache<>(MAX_RECORDS_IN_MEMORY);
+    private final AtomicInteger mWrites = new AtomicInteger();
     private ExecutorService mThreadPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 
     private final CompositeDisposable mCompositeDisposable = new CompositeDisposable();
@@ -94,12 +82,15 @@ public class MarketPriceFetcher {
         /* Save the context */
         mActivity = context;
         mHandler = new Handler();
+        mBatcher = new MarketPriceBatcher(context);
+        mTcgpDatabase = TcgpDatabase.getInstance(context);
 
         /* Create the fetcher which actually gets the data */
         Fetcher<MarketPriceInfo, MtgCard> mFetcher = new Fetcher<MarketPriceInfo, MtgCard>() {
             /**
-             * This method fetches the price from TCGPlayer.com's API. It makes network calls, so
-             * it must not be called from the UI thread
+             * This method hands the card to the batcher, which fetches the price from
+             * TCGPlayer.com's API along with any other cards requested around the same time. The
+             * Single completes on the batcher's thread
              *
              * @param params The card to fetch price info for
              * @return A Single with either the price info or a thrown exception
@@ -107,197 +98,7 @@ public class MarketPriceFetcher {
             @Nonnull
             @Override
             public Single<MarketPriceInfo> fetch(@Nonnull MtgCard params) {
-                Exception lastThrownException = new Exception(mActivity.getString(R.string.price_error_unknown));
-                if (FamiliarActivity.getNetworkState(mActivity, false) == -1) { /* our context contains the activity that spawned the request */
-                    return Single.error(new Exception(mActivity.getString(R.string.no_network)));
-                }
-
-                /* Initialize the API */
-                TcgpApi api = new TcgpApi();
-                String tokenStr = PreferenceAdapter.getTcgpApiToken(mActivity);
-                Date expirationDate = PreferenceAdapter.getTcgpApiTokenExpirationDate(mActivity);
-                try {
-                    /* If we don't have a token or it expired */
-                    if (tokenStr.isEmpty() || expirationDate.before(new Date())) {
-                        /* Request a token. This will initialize the TcgpApi object */
-                        AccessToken token;
-                        try {
-                            TcgpKeys keys = new Gson().fromJson(new InputStreamReader(mActivity.getAssets().open("tcgp_keys.json")), TcgpKeys.class);
-                            token = api.getAccessToken(keys.PUBLIC_KEY, keys.PRIVATE_KEY, keys.ACCESS_TOKEN);
-                            /* Save the token and expiration date */
-                            PreferenceAdapter.setTcgpApiToken(mActivity, token.access_token);
-                            PreferenceAdapter.setTcgpApiTokenExpirationDate(mActivity, token.expires);
-                        } catch (FileNotFoundException e) {
-                            return Single.error(new Exception(mActivity.getString(R.string.price_error_api_key)));
-                        }
-                    } else {
-                        /* Make sure the token hasn't expired */
-                        api.setToken(tokenStr);
-                    }
-                } catch (IOException e) {
-                    return Single.error(new Exception(mActivity.getString(R.string.price_error_network)));
-                }
-
-                CardDbAdapter.MultiCardType multiCardType;
-                String tcgSetName;
-
-                /* then the same for multicard ordering */
-                FamiliarDbHandle cardInfoHandle = new FamiliarDbHandle();
-                try {
-                    SQLiteDatabase database = DatabaseManager.openDatabase(mActivity, false, cardInfoHandle);
-
-                    if (CardDbAdapter.isOnlineOnly(params.getExpansion(), database)) {
-                        return Single.error(new Exception(mActivity.getString(R.string.price_error_online_only)));
-                    }
-
-                    // If the number doesn't exist, multiCardType will be MultiCardType.NOPE
-                    multiCardType = CardDbAdapter.isMultiCard(params.getNumber(), params.getExpansion());
-
-                    /* Get the TCGplayer.com set name, why can't everything be consistent? */
-                    tcgSetName = CardDbAdapter.getTcgName(params.getExpansion(), database);
-
-                } catch (SQLiteException | FamiliarDbException e) {
-                    return Single.error(new Exception(mActivity.getString(R.string.price_error_database)));
-                } finally {
-                    DatabaseManager.closeDatabase(mActivity, cardInfoHandle);
-                }
-
-                /* If this isn't a multi-card, don't iterate so much */
-                int numMultiCardOptions = 1;
-                if (multiCardType != CardDbAdapter.MultiCardType.NOPE) {
-                    numMultiCardOptions = 4;
-                }
-
-                /* Iterate through all possible queries for this card
-                 * First (innermost loop) try the different combination of multi-card names
-                 * Then (middle loop) try with and without accent marks
-                 * Last (outer loop) try without a set name. This works for Schemes & Planes with weird TCGPlayer sets
-                 */
-                for (int setOption = 0; setOption < 2; setOption++) {
-                    for (int accentOption = 0; accentOption < 2; accentOption++) {
-                        for (int multiOption = 0; multiOption < numMultiCardOptions; multiOption++) {
-                            String tcgCardName;
-                            FamiliarDbHandle setOptHandle = new FamiliarDbHandle();
-                            try {
-                                SQLiteDatabase database = DatabaseManager.openDatabase(mActivity, false, setOptHandle);
-
-                                /* Set up retries for multicard ordering */
-                                if (multiCardType != CardDbAdapter.MultiCardType.NOPE) {
-                                    /* Next time try the other order */
-                                    switch (multiOption) {
-                                        case 0:
-                                            /* Try just the a side */
-                                            tcgCardName = CardDbAdapter.getNameFromSetAndNumber(params.getExpansion(), params.getNumber().replace("b", "a"), database);
-                                            break;
-                                        case 1:
-                                            /* Try just the b side */
-                                            tcgCardName = CardDbAdapter.getNameFromSetAndNumber(params.getExpansion(), params.getNumber().replace("a", "b"), database);
-                                            break;
-                                        case 2:
-                                            /* Try the combined name in one direction */
-                                            tcgCardName = CardDbAdapter.getSplitName(params.getMultiverseId(), true, database);
-                                            break;
-                                        case 3:
-                                            /* Try the combined name in the other direction */
-                                            tcgCardName = CardDbAdapter.getSplitName(params.getMultiverseId(), false, database);
-                                            break;
-                                        default:
-                                            /* Something went wrong */
-                                            tcgCardName = params.getName();
-                                            break;
-                                    }
-                                } else {
-                                    /* This isn't a multicard */
-                                    tcgCardName = params.getName();
-                                }
-
-                                /* Retry with accent marks removed */
-                                if (accentOption == 1) {
-                                    tcgCardName = CardDbAdapter.removeAccentMarks(Objects.requireNonNull(tcgCardName));
-                                }
-
-                                /* Try it with no set name */
-                                if (setOption == 1) {
-                                    tcgSetName = null;
-                                }
-
-                            } catch (SQLiteException | FamiliarDbException e) {
-                                tcgCardName = null;
-                                lastThrownException = new Exception(mActivity.getString(R.string.price_error_database));
-                            } finally {
-                                DatabaseManager.closeDatabase(mActivity, setOptHandle);
-                            }
-
-                            if (null != tcgCardName) {
-                                try {
-                                    /* Query the API, one step at a time */
-                                    ProductInformation information = api.getProductInformation(tcgCardName, tcgSetName);
-                                    if (information.results.length > 0) {
-                                        ProductDetails details = api.getProductDetails(information.results);
-                                        if (details.results.length > 0) {
-                                            // Assume the first result is the best result
-                                            long bestResult[] = {details.results[0].productId};
-                                            String bestUrl = "";
-                                            boolean okResultFound = false;
-                                            // Look through all results for a perfect match
-                                            for (ProductDetails.Details searchResult : details.results) {
-                                                String expansion = getExpansionFromGroupId(api, context, searchResult.groupId);
-                                                if (searchResult.name.toLowerCase().equals(tcgCardName.toLowerCase())) {
-                                                    if (null != expansion && null != tcgSetName) {
-                                                        if (expansion.toLowerCase().equals(tcgSetName.toLowerCase())) {
-                                                            // Found a perfect match, including expansion!
-                                                            bestResult[0] = searchResult.productId;
-                                                            bestUrl = searchResult.url;
-                                                            break;
-                                                        }
-                                                    } else {
-                                                        // Found a perfect match, no expansion to match!
-                                                        bestResult[0] = searchResult.productId;
-                                                        bestUrl = searchResult.url;
-                                                        break;
-                                                    }
-                                                } else if (!okResultFound && searchResult.name.toLowerCase().startsWith(tcgCardName.toLowerCase())) {
-                                                    if (null != expansion && null != tcgSetName) {
-                                                        if (expansion.toLowerCase().equals(tcgSetName.toLowerCase())) {
-                                                            // Found a good match, including expansion!
-                                                            // Set it but keep searching for a perfect match
-                                                            bestResult[0] = searchResult.productId;
-                                                            bestUrl = searchResult.url;
-                                                            okResultFound = true;
-                                                        }
-                                                    } else {
-                                                        // Found a good match, no expansion to match!
-                                                        // Set it but keep searching for a perfect match
-                                                        bestResult[0] = searchResult.productId;
-                                                        bestUrl = searchResult.url;
-                                                        okResultFound = true;
-                                                    }
-                                                }
-                                            }
-                                            ProductMarketPrice price = api.getProductMarketPrice(bestResult);
-                                            if (price.results.length > 0) {
-                                                /* Return a new MarketPriceInfo */
-                                                return Single.just(new MarketPriceInfo(price.results, bestUrl));
-                                            } else if (price.errors.length > 0) {
-                                                /* Return the error returned by TCGPlayer */
-                                                return Single.error(new Throwable(price.errors[0]));
-                                            }
-                                        } else if (details.errors.length > 0) {
-                                            /* Return the error returned by TCGPlayer */
-                                            return Single.error(new Throwable(details.errors[0]));
-                                        }
-                                    } else if (information.errors.length > 0) {
-                                        /* Return the error returned by TCGPlayer */
-                                        return Single.error(new Throwable(information.errors[0]));
-                                    }
-                                } catch (IOException e) {
-                                    lastThrownException = new Exception(mActivity.getString(R.string.price_error_network));
-                                }
-                            }
-                        }
-                    }
-                }
-                return Single.error(lastThrownException);
+                return Single.create(emitter -> mBatcher.add(params, emitter));
             }
         };
 
@@ -306,16 +107,6 @@ public class MarketPriceFetcher {
 
             private static final int MAX_TIME_IN_CACHE_MS = 86400000; /* One day's worth of ms */
 
-            /**
-             * Given a key, return a cache file
-             *
-             * @param cacheKey The cache key, a MtgCard object
-             * @return A File for this key
-             */
-            private File getCacheFile(MtgCard cacheKey) {
-                return new File(mActivity.getCacheDir(), (KEY_PREFIX + cacheKey.getName() + "-" + cacheKey.getExpansion()).replaceAll("\\W+", ""));
-            }
-
             /**
              * Given a cache key, return whether it's FRESH or STALE. A record is stale after 24hrs
              * MISSING is another record state, but the calling function doesn't check against it,
@@ -327,47 +118,31 @@ public class MarketPriceFetcher {
             @Nonnull
             @Override
             public RecordState getRecordState(@Nonnull MtgCard cacheKey) {
-                /* Get the file */
-                File file = getCacheFile(cacheKey);
-                /* Make sure it exists */
-                if (file.exists()) {
-                    /* How long has it been in there? */
-                    long timeInCacheMs = System.currentTimeMillis() - file.lastModified();
-                    if (timeInCacheMs <= MAX_TIME_IN_CACHE_MS) {
-                        /* File exists and isn't stale */
-                        return RecordState.FRESH;
-                    } else {
-                        /* File exists, but is stale */
-                        return RecordState.STALE;
-                    }
+                TcgpDatabase.PriceRecord record = getRecord(cacheKey);
+                if (null != record && System.currentTimeMillis() - record.mFetched <= MAX_TIME_IN_CACHE_MS) {
+                    /* Record exists and isn't stale */
+                    return RecordState.FRESH;
                 } else {
-                    /* File doesn't exist */
+                    /* Record doesn't exist, or is stale */
                     return RecordState.STALE;
                 }
             }
 
             /**
-             * Read the cache file associated with the given key and return the cached
-             * MarketPriceInfo if possible
+             * Read the cached MarketPriceInfo associated with the given key, if there is one
              *
              * @param cacheKey The cache key, a MtgCard object
-             * @return A Maybe either with the read MarketPriceInfo or an exception
+             * @return A Maybe with the read MarketPriceInfo, or empty if nothing is cached
              */
             @Nonnull
             @Override
             public Maybe<MarketPriceInfo> read(@Nonnull final MtgCard cacheKey) {
                 return Maybe.create(emitter -> {
-                    try {
-                        /* Attempt to read the cache file */
-                        File cacheFile = getCacheFile(cacheKey);
-                        FileReader reader = new FileReader(cacheFile);
-                        MarketPriceInfo info = new Gson().fromJson(reader, MarketPriceInfo.class);
-                        reader.close();
-                        /* Cache file read, emit it */
-                        emitter.onSuccess(info);
-                    } catch (Exception e) {
-                        /* Some exception occurred */
-                        emitter.onError(e);
+                    TcgpDatabase.PriceRecord record = getRecord(cacheKey);
+                    if (null != record) {
+                        emitter.onSuccess(record.mInfo);
+                    } else {
+                        emitter.onComplete();
                     }
                 });
             }
@@ -382,18 +157,15 @@ public class MarketPriceFetcher {
             @Nonnull
             @Override
             public Single<Boolean> write(@Nonnull MtgCard cacheKey, @Nonnull MarketPriceInfo marketPriceInfo) {
-                try {
-                    /* Attempt to write the cache file */
-                    File cacheFile = getCacheFile(cacheKey);
-                    JsonWriter writer = new JsonWriter(new FileWriter(cacheFile));
-                    new Gson().toJson(marketPriceInfo, MarketPriceInfo.class, writer);
-                    writer.close();
-                    /* The cache file was written */
-                    return Single.just(true);
-                } catch (Exception e) {
-                    /* Eat the exception and return that the file wasn't written */
-                    return Single.just(false);
+                TcgpDatabase.PriceRecord record = new TcgpDatabase.PriceRecord(marketPriceInfo, System.currentTimeMillis());
+                mRecords.put(TcgpDatabase.priceKey(cacheKey.getName(), cacheKey.getExpansion()), record);
+                boolean written = mTcgpDatabase.putPrice(cacheKey.getName(), cacheKey.getExpansion(), record);
+
+                /* Evict old prices the first time anything is written, then every so often */
+                if (0 == mWrites.getAndIncrement() % WRITES_PER_TRIM) {
+                    mTcgpDatabase.trimPrices();
                 }
+                return Single.just(written);
             }
         };
 
@@ -405,41 +177,54 @@ public class MarketPriceFetcher {
     }
 
     /**
-     * Given a group ID, return the string expansion name. If it doesn't exist, use the API to
-     * download a list of all group IDs and names, then save the map to the disk
+     * Given a card, return its cached prices from memory, or from the database if they aren't in
+     * memory yet
      *
-     * @param api     The TcgpApi to query for group names
-     * @param context The context to access SharedPreferences
-     * @param groupId The group ID to query for
-     * @return The String name of the given group ID, or null
+     * @param card The card to look up
+     * @return The cached prices, or null if there aren't any
      */
-    @Nullable
-    private String getExpansionFromGroupId(TcgpApi api, FamiliarActivity context, long groupId) throws IOException {
-        LongSparseArray<String> map = PreferenceAdapter.getGroups(context);
-        String expansionName = map.get(groupId);
-        if (null == expansionName) {
-            // Group is missing, download them all
-            map.clear();
-            int offset[] = {0};
-            while (true) {
-                CategoryGroups groups = api.getCategoryGroups(offset);
-                // If there are errors or no groups left, break the loop
-                if (groups.errors.length > 0 || groups.results.length == 0) {
-                    break;
-                }
-                // Add all groups to the map
-                for (CategoryGroups.Group group : groups.results) {
-                    map.put(group.groupId, group.name);
-                }
+    private TcgpDatabase.PriceRecord getRecord(MtgCard card) {
+        String key = TcgpDatabase.priceKey(card.getName(), card.getExpansion());
+        TcgpDatabase.PriceRecord record = mRecords.get(key);
+        if (null == record) {
+            record = mTcgpDatabase.getPrice(card.getName(), card.getExpansion());
+            if (null != record) {
+                mRecords.put(key, record);
             }
-            // Now that all groups have been downloaded, save them to the disk
-            PreferenceAdapter.setGroups(context, map);
+        }
+        return record;
+    }
 
-            // Now that the map is downloaded, try again
-            expansionName = map.get(groupId);
+    /**
+     * Read the cached prices for a whole list of cards at once, so that fetching their prices one
+     * at a time afterwards doesn't query the database once per card
+     *
+     * @param cards The cards which are about to have their prices fetched
+     */
+    public void preloadPrices(List<? extends MtgCard> cards) {
+        ArrayList<String> names = new ArrayList<>(cards.size());
+        ArrayList<String> setCodes = new ArrayList<>(cards.size());
+        for (MtgCard card : cards) {
+            if (null != card.getName() && null != card.getExpansion() &&
+                    null == mRecords.get(TcgpDatabase.priceKey(card.getName(), card.getExpansion()))) {
+                names.add(card.getName());
+                setCodes.add(card.getExpansion());
+            }
+        }
+        if (!names.isEmpty()) {
+            for (Map.Entry<String, TcgpDatabase.PriceRecord> entry : mTcgpDatabase.getPrices(names, setCodes).entrySet()) {
+                mRecords.put(entry.getKey(), entry.getValue());
+            }
         }
-        // Return the String
-        return expansionName;
+    }
+
+    /**
+     * Forget every cached price, in memory and in the database
+     */
+    public void clearCachedPrices() {
+        mTcgpDatabase.clearPrices();
+        mRecords.evictAll();
+        mStore.clear();
     }
 
     /**
@@ -463,6 +248,12 @@ public class MarketPriceFetcher {
         /* Show the loading animation */
         mActivity.setLoading();
 
+        /* The price comes back on the batcher's thread, after the runnable below has returned, so
+         * this is what's checked to know when the lookup is done
+         */
+        final FutureTask<Void> lookupDone = new FutureTask<>(() -> {
+        }, null);
+
         /* Start a new thread to perform the fetch */
         Runnable priceRunnable = new Runnable() {
             /**
@@ -494,6 +285,7 @@ public class MarketPriceFetcher {
                                         }
                                     }
                                 }
+                                lookupDone.run();
                             }
                         }, new Consumer<Throwable>() {
                             /**
@@ -512,13 +304,15 @@ public class MarketPriceFetcher {
                                         /* Eat it */
                                     }
                                 }
+                                lookupDone.run();
                             }
                         }
                 ));
             }
         };
 
-        mFutures.add(mThreadPool.submit(priceRunnable));
+        mFutures.add(lookupDone);
+        mThreadPool.submit(priceRunnable);
         if (null == mCheckFutureRunnable) {
             mCheckFutureRunnable = new CheckFutureRunnable(onAllDoneUI);
             mHandler.postDelayed(() -> new Thread(mCheckFutureRunnable).start(), 1000);
@@ -578,6 +372,7 @@ public class MarketPriceFetcher {
      */
     public void stopAllRequests() {
         mCompositeDisposable.clear();
+        mBatcher.stop();
         mThreadPool.shutdownNow();
         mThreadPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
         for (Future future : mFutures) {
@@ -587,4 +382,12 @@ public class MarketPriceFetcher {
         mActivity.clearLoading();
         mCheckFutureRunnable = null;
     }
+
+    /**
+     * Stop all current requests and shut down every thread, since the Activity is being destroyed
+     */
+    public void shutdown() {
+        stopAllRequests();
+        mThreadPool.shutdownNow();
+    }
 }
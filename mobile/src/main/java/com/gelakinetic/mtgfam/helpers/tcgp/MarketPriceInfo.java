@@ -47,7 +47,7 @@ public class MarketPriceInfo {
         }
     }
 
-    class Price {
+    static class Price {
         final double low;
         final double mid;
         final double high;
@@ -65,6 +65,21 @@ public class MarketPriceInfo {
             market = price.marketPrice;
         }
 
+        /**
+         * Create a Price object from individual prices
+         *
+         * @param _low    The low price
+         * @param _mid    The mid price
+         * @param _high   The high price
+         * @param _market The market price
+         */
+        Price(double _low, double _mid, double _high, double _market) {
+            low = _low;
+            mid = _mid;
+            high = _high;
+            market = _market;
+        }
+
         /**
          * Create a copy of a Price object
          *
@@ -115,6 +130,19 @@ public class MarketPriceInfo {
         this.mFoilPrice = null;
     }
 
+    /**
+     * Create a MarketPriceInfo from prices which were already parsed, e.g. read from the cache
+     *
+     * @param normalPrice The normal price, or null
+     * @param foilPrice   The foil price, or null
+     * @param productUrl  The URL for this card, including the affiliate parameters
+     */
+    MarketPriceInfo(Price normalPrice, Price foilPrice, String productUrl) {
+        this.mNormalPrice = normalPrice;
+        this.mFoilPrice = foilPrice;
+        this.mProductUrl = productUrl;
+    }
+
     /**
      * Create a MarketPriceInfo object from data retrieved from the TCGPlayer.com API
      *
@@ -235,6 +263,20 @@ public class MarketPriceInfo {
         return mNormalPrice != null;
     }
 
+    /**
+     * @return The normal price, or null if there isn't one
+     */
+    Price getNormalPrice() {
+        return mNormalPrice;
+    }
+
+    /**
+     * @return The foil price, or null if there isn't one
+     */
+    Price getFoilPrice() {
+        return mFoilPrice;
+    }
+
     /**
      * @return The URL to the TCGPlayer.com page for this MarketPriceInfo
      */
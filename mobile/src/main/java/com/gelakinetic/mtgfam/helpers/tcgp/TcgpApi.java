@@ -19,6 +19,9 @@
 
 package com.gelakinetic.mtgfam.helpers.tcgp;
 
+import android.content.Context;
+
+import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
 import com.gelakinetic.mtgfam.helpers.tcgp.JsonObjects.AccessToken;
 import com.gelakinetic.mtgfam.helpers.tcgp.JsonObjects.CatalogData;
 import com.gelakinetic.mtgfam.helpers.tcgp.JsonObjects.CategoryGroups;
@@ -37,7 +40,13 @@ import java.net.HttpURLConnection;
 import java.net.ProtocolException;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * The TCGplayer.com API. There's one instance for the whole process, which holds the access token
+ * in memory. Connections are kept alive between requests, and responses are gzipped, which
+ * HttpURLConnection asks for and decompresses by itself.
+ */
 public class TcgpApi {
 
     // Here's the full list of categories as of 1/28/18:
@@ -98,10 +107,164 @@ public class TcgpApi {
     private static final int CATEGORY_ID_MAGIC = 1;
 
     private static final String TCGP_VERSION = "v1.19.0";
-    private String mAccessToken;
 
-    public void setToken(String tokenStr) {
-        mAccessToken = tokenStr;
+    /* A token is refreshed when it's this close to expiring, before requests start failing */
+    private static final long TOKEN_REFRESH_MARGIN_MS = 10 * 60 * 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* Gson instances are thread safe, so they're made once and shared */
+    private static final Gson GSON = new Gson();
+    private static final Gson TOKEN_GSON;
+    private static final Gson DETAILS_GSON;
+
+    static {
+        GsonBuilder tokenBuilder = new GsonBuilder();
+        AccessToken.setDateFormat(tokenBuilder);
+        TOKEN_GSON = tokenBuilder.create();
+
+        GsonBuilder detailsBuilder = new GsonBuilder();
+        CatalogData.CatalogDataItem.setDateFormat(detailsBuilder);
+        DETAILS_GSON = detailsBuilder.create();
+    }
+
+    private static TcgpApi mInstance = null;
+
+    private volatile String mAccessToken;
+    private volatile long mTokenExpiresMs = 0;
+    private final Object mTokenLock = new Object();
+    private final AtomicBoolean mRefreshingEarly = new AtomicBoolean(false);
+    private TcgpKeys mKeys = null;
+
+    /**
+     * @return The process-wide instance, which holds the access token for every request
+     */
+    public static synchronized TcgpApi getInstance() {
+        if (null == mInstance) {
+            mInstance = new TcgpApi();
+        }
+        return mInstance;
+    }
+
+    /**
+     * Constructor, only for getInstance()
+     */
+    private TcgpApi() {
+    }
+
+    /**
+     * Make sure there's an access token before making requests. The token saved in preferences is
+     * used if it's still good, otherwise a new one is requested and saved.
+     * <p>
+     * Only one token request is made at a time. If the token is missing or expired, every caller
+     * waits for that one request. If it's only about to expire, one caller refreshes it while the
+     * others carry on with the current token.
+     *
+     * @param context A context to read the keys and saved token with
+     * @throws FileNotFoundException If the API keys aren't packaged with the app
+     * @throws IOException           If a token couldn't be requested
+     */
+    public void ensureToken(Context context) throws IOException {
+        long now = System.currentTimeMillis();
+        if (null != mAccessToken && now < mTokenExpiresMs - TOKEN_REFRESH_MARGIN_MS) {
+            /* Plenty of time left */
+            return;
+        }
+
+        if (null != mAccessToken && now < mTokenExpiresMs) {
+            /* Still good for now, so only one caller refreshes it, and nobody waits */
+            if (mRefreshingEarly.compareAndSet(false, true)) {
+                try {
+                    synchronized (mTokenLock) {
+                        refreshToken(context);
+                    }
+                } catch (IOException e) {
+                    /* The current token still works, try again on the next request */
+                } finally {
+                    mRefreshingEarly.set(false);
+                }
+            }
+            return;
+        }
+
+        /* No usable token, so wait for one */
+        synchronized (mTokenLock) {
+            try {
+                refreshToken(context);
+            } catch (IOException e) {
+                /* A saved token may have been adopted, which is fine until it expires */
+                if (null == mAccessToken || System.currentTimeMillis() >= mTokenExpiresMs) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adopt the saved token, or request a new one, unless another caller already did while this
+     * one waited. Must be called with mTokenLock held
+     *
+     * @param context A context to read the keys and saved token with
+     * @throws IOException If a token couldn't be requested
+     */
+    private void refreshToken(Context context) throws IOException {
+        /* An earlier run may have saved a token which outlasts this one */
+        String savedToken = PreferenceAdapter.getTcgpApiToken(context);
+        long savedExpiresMs = PreferenceAdapter.getTcgpApiTokenExpirationDate(context).getTime();
+        if (!savedToken.isEmpty() && savedExpiresMs > mTokenExpiresMs &&
+                System.currentTimeMillis() < savedExpiresMs) {
+            mTokenExpiresMs = savedExpiresMs;
+            mAccessToken = savedToken;
+        }
+
+        if (null != mAccessToken && System.currentTimeMillis() + TOKEN_REFRESH_MARGIN_MS < mTokenExpiresMs) {
+            return;
+        }
+
+        if (null == mKeys) {
+            InputStreamReader reader = new InputStreamReader(context.getAssets().open("tcgp_keys.json"), UTF_8);
+            try {
+                mKeys = GSON.fromJson(reader, TcgpKeys.class);
+            } finally {
+                reader.close();
+            }
+        }
+
+        AccessToken token = getAccessToken(mKeys.PUBLIC_KEY, mKeys.PRIVATE_KEY, mKeys.ACCESS_TOKEN);
+        if (null == token.access_token || token.access_token.isEmpty() || null == token.expires) {
+            throw new IOException("No access token in the response");
+        }
+
+        /* Save the token and expiration date */
+        PreferenceAdapter.setTcgpApiToken(context, token.access_token);
+        PreferenceAdapter.setTcgpApiTokenExpirationDate(context, token.expires);
+        mTokenExpiresMs = token.expires.getTime();
+        mAccessToken = token.access_token;
+    }
+
+    /**
+     * Parse a JSON response, then read the rest of it and close it. The connection isn't
+     * disconnected, so it goes back to the pool and the next request skips the TLS handshake
+     *
+     * @param inStream The response stream
+     * @param gson     The Gson to parse with
+     * @param type     The type to parse
+     * @param <T>      The type to parse
+     * @return The parsed response
+     * @throws IOException If the response couldn't be read
+     */
+    private static <T> T readJson(InputStream inStream, Gson gson, Class<T> type) throws IOException {
+        try {
+            T parsed = gson.fromJson(new InputStreamReader(inStream, UTF_8), type);
+            byte[] rest = new byte[1024];
+            //noinspection StatementWithEmptyBody
+            while (-1 != inStream.read(rest)) {
+                /* Drain the stream */
+            }
+            return parsed;
+        } finally {
+            inStream.close();
+        }
     }
 
     enum HttpMethod {
@@ -125,7 +288,6 @@ public class TcgpApi {
             conn.setRequestMethod("POST");
         }
         conn.setInstanceFollowRedirects(false);
-        conn.setUseCaches(false);
     }
 
     /**
@@ -141,64 +303,47 @@ public class TcgpApi {
 
     /**
      * This function requests an access token from TCGPlayer.com by providing the private keys.
-     * An access token should only be requested if we don't have a valid one stored. When an access
-     * token is received, the token and expiration date should be saved for later use.
+     * An access token should only be requested if we don't have a valid one stored. The token isn't
+     * used until ensureToken() saves it along with its expiration date.
      *
      * @param publicKey   Supplied by TCGPlayer.com, also referred to as the "client_id"
      * @param privateKey  Supplied by TCGPlayer.com, also referred to as the "client_secret"
      * @param accessToken Supplied by TCGPlayer.com, also referred to as the "X-Tcg-Access-Token"
-     * @return An AccessToken object or null if a token is already loaded
+     * @return An AccessToken object, which is empty if the request failed
      * @throws IOException If something goes wrong with the network
      */
-    public AccessToken getAccessToken(String publicKey, String privateKey, String accessToken)
+    private AccessToken getAccessToken(String publicKey, String privateKey, String accessToken)
             throws IOException {
+        // Create the connection with default options
+        HttpURLConnection conn = (HttpURLConnection)
+                new URL("https://api.tcgplayer.com/token").openConnection();
+        setDefaultOptions(conn, HttpMethod.POST);
 
-        // Only request an access token if we don't have one already
-        if (null == mAccessToken) {
-            // Create the connection with default options
-            HttpURLConnection conn = (HttpURLConnection)
-                    new URL("https://api.tcgplayer.com/token").openConnection();
-            setDefaultOptions(conn, HttpMethod.POST);
-
-            // Set the header, special for the token request
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setRequestProperty("Accept", "application/json");
-            conn.setRequestProperty("X-Tcg-Access-Token", accessToken);
-
-            // Set the body and send the POST
-            String payload = "grant_type=client_credentials&client_id=" + publicKey +
-                    "&client_secret=" + privateKey;
-            conn.getOutputStream().write(payload.getBytes(Charset.forName("UTF-8")));
-
-            // Get the response stream
-            InputStream inStream;
-            try {
-                inStream = conn.getInputStream();
-            } catch (FileNotFoundException e) {
-                inStream = conn.getErrorStream();
-                if (null == inStream) {
-                    conn.disconnect();
-                    // Return an empty, not null, object
-                    return new AccessToken();
-                }
+        // Set the header, special for the token request
+        conn.setRequestProperty("Content-Type", "application/json");
+        conn.setRequestProperty("Accept", "application/json");
+        conn.setRequestProperty("X-Tcg-Access-Token", accessToken);
+
+        // Set the body and send the POST
+        String payload = "grant_type=client_credentials&client_id=" + publicKey +
+                "&client_secret=" + privateKey;
+        conn.getOutputStream().write(payload.getBytes(UTF_8));
+
+        // Get the response stream
+        InputStream inStream;
+        try {
+            inStream = conn.getInputStream();
+        } catch (FileNotFoundException e) {
+            inStream = conn.getErrorStream();
+            if (null == inStream) {
+                conn.disconnect();
+                // Return an empty, not null, object
+                return new AccessToken();
             }
-
-            // Parse the json out of the response and save it
-            GsonBuilder builder = new GsonBuilder();
-            AccessToken.setDateFormat(builder);
-            AccessToken token = builder.create()
-                    .fromJson(new InputStreamReader(inStream), AccessToken.class);
-            this.mAccessToken = token.access_token;
-
-            // Clean up
-            inStream.close();
-            conn.disconnect();
-
-            return token;
         }
 
-        // Return the saved access token
-        return null;
+        // Parse the json out of the response
+        return readJson(inStream, TOKEN_GSON, AccessToken.class);
     }
 
 //    /**
@@ -334,8 +479,8 @@ public class TcgpApi {
 
             // Add the information to search by
             GetProductInformationOptions options = new GetProductInformationOptions(queryParams);
-            conn.getOutputStream().write(new Gson().toJson(options, GetProductInformationOptions.class)
-                    .getBytes(Charset.forName("UTF-8")));
+            conn.getOutputStream().write(GSON.toJson(options, GetProductInformationOptions.class)
+                    .getBytes(UTF_8));
 
             // Get the response stream. This opens the connection
             InputStream inStream;
@@ -350,14 +495,8 @@ public class TcgpApi {
                 }
             }
 
-            // Parse the json out of the response and save it
-            ProductInformation information = (new Gson()).fromJson(new InputStreamReader(inStream),
-                    ProductInformation.class);
-
-            // Clean up
-            inStream.close();
-            conn.disconnect();
-            return information;
+            // Parse the json out of the response and return it
+            return readJson(inStream, GSON, ProductInformation.class);
         }
         // No access token
         return null;
@@ -403,14 +542,8 @@ public class TcgpApi {
                 }
             }
 
-            // Parse the json out of the response and save it
-            ProductMarketPrice price = new Gson()
-                    .fromJson(new InputStreamReader(inStream), ProductMarketPrice.class);
-
-            // Clean up
-            inStream.close();
-            conn.disconnect();
-            return price;
+            // Parse the json out of the response and return it
+            return readJson(inStream, GSON, ProductMarketPrice.class);
         }
         // No access token
         return null;
@@ -455,16 +588,8 @@ public class TcgpApi {
                 }
             }
 
-            // Parse the json out of the response and save it
-            GsonBuilder builder = new GsonBuilder();
-            CatalogData.CatalogDataItem.setDateFormat(builder);
-            ProductDetails details = builder.create()
-                    .fromJson(new InputStreamReader(inStream), ProductDetails.class);
-
-            // Clean up
-            inStream.close();
-            conn.disconnect();
-            return details;
+            // Parse the json out of the response and return it
+            return readJson(inStream, DETAILS_GSON, ProductDetails.class);
         }
         // No access token
         return null;
@@ -505,12 +630,7 @@ public class TcgpApi {
             }
 
             // Parse the json out of the response and save it
-            CategoryGroups groups = new Gson()
-                    .fromJson(new InputStreamReader(inStream), CategoryGroups.class);
-
-            // Clean up
-            inStream.close();
-            conn.disconnect();
+            CategoryGroups groups = readJson(inStream, GSON, CategoryGroups.class);
 
             // Increment the offset for the next call
             if (null != groups.results) {
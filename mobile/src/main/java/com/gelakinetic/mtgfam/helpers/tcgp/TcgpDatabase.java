@@ -0,0 +1,549 @@
+/*
+ * Copyright 2019 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.tcgp;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
+import com.gelakinetic.mtgfam.helpers.tcgp.JsonObjects.CategoryGroups;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * A small database for what's learned from TCGplayer.com. It's kept apart from the card database,
+ * which is replaced whenever the packaged database is inflated or an update is swapped in.
+ * <p>
+ * The product table maps a printing, by name, set code, and number, to the TCGplayer.com product
+ * which was chosen for it. A printing's product never changes, so once it's found, a price refresh
+ * is a single price request. Each mapping remembers the TCGplayer.com set name it was found with,
+ * and is thrown away if the set's name changes.
+ * <p>
+ * The price table holds the last prices fetched for each card, by name and set code, with when they
+ * were fetched. Prices older than MAX_PRICE_AGE_MS are evicted, and so are the oldest ones once there
+ * are more than MAX_PRICES.
+ * <p>
+ * The group table maps each TCGplayer.com group ID to its set name, in the order the API listed them.
+ */
+class TcgpDatabase extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "tcgp";
+    private static final int DATABASE_VERSION = 3;
+
+    /* Prices older than this are evicted, even though they'd still be shown if the network is down */
+    private static final long MAX_PRICE_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+    private static final int MAX_PRICES = 20000;
+
+    /* How many card names fit in one query, under SQLite's limit of 999 variables */
+    private static final int MAX_NAMES_PER_QUERY = 900;
+
+    private static final String TABLE_PRODUCTS = "products";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_SET_CODE = "set_code";
+    private static final String KEY_NUMBER = "number";
+    private static final String KEY_TCG_SET_NAME = "tcg_set_name";
+    private static final String KEY_PRODUCT_ID = "product_id";
+    private static final String KEY_URL = "url";
+
+    private static final String CREATE_PRODUCTS =
+            "create table " + TABLE_PRODUCTS + "(" +
+                    KEY_NAME + " text not null, " +
+                    KEY_SET_CODE + " text not null, " +
+                    KEY_NUMBER + " text not null, " +
+                    KEY_TCG_SET_NAME + " text not null, " +
+                    KEY_PRODUCT_ID + " integer not null, " +
+                    KEY_URL + " text not null, " +
+                    "primary key(" + KEY_NAME + ", " + KEY_SET_CODE + ", " + KEY_NUMBER + "))";
+
+    private static final String TABLE_PRICES = "prices";
+    private static final String KEY_HAS_NORMAL = "has_normal";
+    private static final String KEY_NORMAL_LOW = "normal_low";
+    private static final String KEY_NORMAL_MID = "normal_mid";
+    private static final String KEY_NORMAL_HIGH = "normal_high";
+    private static final String KEY_NORMAL_MARKET = "normal_market";
+    private static final String KEY_HAS_FOIL = "has_foil";
+    private static final String KEY_FOIL_LOW = "foil_low";
+    private static final String KEY_FOIL_MID = "foil_mid";
+    private static final String KEY_FOIL_HIGH = "foil_high";
+    private static final String KEY_FOIL_MARKET = "foil_market";
+    private static final String KEY_FETCHED = "fetched";
+
+    private static final String CREATE_PRICES =
+            "create table " + TABLE_PRICES + "(" +
+                    KEY_NAME + " text not null, " +
+                    KEY_SET_CODE + " text not null, " +
+                    KEY_URL + " text not null, " +
+                    KEY_HAS_NORMAL + " integer not null, " +
+                    KEY_NORMAL_LOW + " real not null, " +
+                    KEY_NORMAL_MID + " real not null, " +
+                    KEY_NORMAL_HIGH + " real not null, " +
+                    KEY_NORMAL_MARKET + " real not null, " +
+                    KEY_HAS_FOIL + " integer not null, " +
+                    KEY_FOIL_LOW + " real not null, " +
+                    KEY_FOIL_MID + " real not null, " +
+                    KEY_FOIL_HIGH + " real not null, " +
+                    KEY_FOIL_MARKET + " real not null, " +
+                    KEY_FETCHED + " integer not null, " +
+                    "primary key(" + KEY_NAME + ", " + KEY_SET_CODE + "))";
+
+    private static final String CREATE_PRICES_FETCHED_INDEX =
+            "create index " + TABLE_PRICES + "_" + KEY_FETCHED + " on " + TABLE_PRICES + "(" + KEY_FETCHED + ")";
+
+    /* The columns read into a PriceRecord, in order */
+    private static final String[] PRICE_COLUMNS = {KEY_NAME, KEY_SET_CODE, KEY_URL,
+            KEY_HAS_NORMAL, KEY_NORMAL_LOW, KEY_NORMAL_MID, KEY_NORMAL_HIGH, KEY_NORMAL_MARKET,
+            KEY_HAS_FOIL, KEY_FOIL_LOW, KEY_FOIL_MID, KEY_FOIL_HIGH, KEY_FOIL_MARKET, KEY_FETCHED};
+
+    /* The legacy price cache files were named with this prefix */
+    private static final String LEGACY_PRICE_FILE_PREFIX = "price_";
+
+    private static final String TABLE_GROUPS = "groups";
+    private static final String KEY_GROUP_ID = "group_id";
+
+    private static final String CREATE_GROUPS =
+            "create table " + TABLE_GROUPS + "(" +
+                    KEY_GROUP_ID + " integer primary key, " +
+                    KEY_NAME + " text not null)";
+
+    private static final String WHERE_PRINTING =
+            KEY_NAME + " = ? AND " + KEY_SET_CODE + " = ? AND " + KEY_NUMBER + " = ?";
+
+    private static TcgpDatabase mInstance = null;
+
+    private final Context mContext;
+
+    /**
+     * A printing's TCGplayer.com product
+     */
+    static class Product {
+        final long mProductId;
+        final String mUrl;
+
+        /**
+         * Constructor
+         *
+         * @param productId The product's ID
+         * @param url       The product's URL, without the affiliate parameters
+         */
+        Product(long productId, String url) {
+            mProductId = productId;
+            mUrl = url;
+        }
+    }
+
+    /**
+     * A card's cached prices, and when they were fetched
+     */
+    static class PriceRecord {
+        final MarketPriceInfo mInfo;
+        final long mFetched;
+
+        /**
+         * Constructor
+         *
+         * @param info    The prices
+         * @param fetched When the prices were fetched, in milliseconds since the epoch
+         */
+        PriceRecord(MarketPriceInfo info, long fetched) {
+            mInfo = info;
+            mFetched = fetched;
+        }
+    }
+
+    /**
+     * @param context A context to open the database with
+     * @return The process-wide instance
+     */
+    static synchronized TcgpDatabase getInstance(Context context) {
+        if (null == mInstance) {
+            mInstance = new TcgpDatabase(context.getApplicationContext());
+        }
+        return mInstance;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context A context to open the database with
+     */
+    private TcgpDatabase(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(CREATE_PRODUCTS);
+        createPrices(db);
+        createGroups(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            createPrices(db);
+        }
+        if (oldVersion < 3) {
+            createGroups(db);
+        }
+    }
+
+    /**
+     * Create the group table, and remove the preference it replaces
+     *
+     * @param db The database to create the table in
+     */
+    private void createGroups(SQLiteDatabase db) {
+        db.execSQL(CREATE_GROUPS);
+        PreferenceAdapter.removeLegacyGroups(mContext);
+    }
+
+    /**
+     * Create the price table, and delete the price cache files it replaces
+     *
+     * @param db The database to create the table in
+     */
+    private void createPrices(SQLiteDatabase db) {
+        db.execSQL(CREATE_PRICES);
+        db.execSQL(CREATE_PRICES_FETCHED_INDEX);
+
+        File[] files = mContext.getCacheDir().listFiles();
+        if (null != files) {
+            for (File file : files) {
+                if (file.getName().startsWith(LEGACY_PRICE_FILE_PREFIX)) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param value A card's number, a set name, or a URL, which may be null
+     * @return The value as it's stored
+     */
+    private static String orEmpty(@Nullable String value) {
+        return (null == value) ? "" : value;
+    }
+
+    /**
+     * Get the product which was chosen for a printing
+     *
+     * @param name       The card's name
+     * @param setCode    The card's set code
+     * @param number     The card's number
+     * @param tcgSetName The set's current TCGplayer.com name. If the product was found with a
+     *                   different name, it's thrown away
+     * @return The product, or null if there isn't one
+     */
+    @Nullable
+    Product getProduct(String name, String setCode, @Nullable String number, @Nullable String tcgSetName) {
+        String[] args = {name, setCode, orEmpty(number)};
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase database = getWritableDatabase();
+            cursor = database.query(TABLE_PRODUCTS,
+                    new String[]{KEY_TCG_SET_NAME, KEY_PRODUCT_ID, KEY_URL},
+                    WHERE_PRINTING, args, null, null, null);
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            if (!cursor.getString(0).equals(orEmpty(tcgSetName))) {
+                /* The set changed since this was found */
+                database.delete(TABLE_PRODUCTS, WHERE_PRINTING, args);
+                return null;
+            }
+            return new Product(cursor.getLong(1), cursor.getString(2));
+        } catch (SQLiteException e) {
+            return null;
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Remember the product which was chosen for a printing
+     *
+     * @param name       The card's name
+     * @param setCode    The card's set code
+     * @param number     The card's number
+     * @param tcgSetName The set's TCGplayer.com name when the product was found
+     * @param product    The product
+     */
+    void putProduct(String name, String setCode, @Nullable String number, @Nullable String tcgSetName,
+                    Product product) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_NAME, name);
+        values.put(KEY_SET_CODE, setCode);
+        values.put(KEY_NUMBER, orEmpty(number));
+        values.put(KEY_TCG_SET_NAME, orEmpty(tcgSetName));
+        values.put(KEY_PRODUCT_ID, product.mProductId);
+        values.put(KEY_URL, orEmpty(product.mUrl));
+        try {
+            getWritableDatabase().insertWithOnConflict(TABLE_PRODUCTS, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (SQLiteException e) {
+            /* It'll be looked up again next time */
+        }
+    }
+
+    /**
+     * Forget the product for a printing, i.e. when it no longer has a price
+     *
+     * @param name    The card's name
+     * @param setCode The card's set code
+     * @param number  The card's number
+     */
+    void removeProduct(String name, String setCode, @Nullable String number) {
+        try {
+            getWritableDatabase().delete(TABLE_PRODUCTS, WHERE_PRINTING,
+                    new String[]{name, setCode, orEmpty(number)});
+        } catch (SQLiteException e) {
+            /* It'll be thrown away if it fails again */
+        }
+    }
+
+    /**
+     * @param name    A card's name
+     * @param setCode A card's set code
+     * @return The key for the card's prices in bulk reads
+     */
+    static String priceKey(String name, String setCode) {
+        return name + '\n' + setCode;
+    }
+
+    /**
+     * Read the cached prices for a single card
+     *
+     * @param name    The card's name
+     * @param setCode The card's set code
+     * @return The prices, or null if there aren't any
+     */
+    @Nullable
+    PriceRecord getPrice(String name, String setCode) {
+        Cursor cursor = null;
+        try {
+            cursor = getWritableDatabase().query(TABLE_PRICES, PRICE_COLUMNS,
+                    KEY_NAME + " = ? AND " + KEY_SET_CODE + " = ?", new String[]{name, setCode},
+                    null, null, null);
+            if (cursor.moveToFirst()) {
+                return readPrice(cursor);
+            }
+            return null;
+        } catch (SQLiteException e) {
+            return null;
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Read the cached prices for many cards, a few queries at most
+     *
+     * @param names    The cards' names
+     * @param setCodes The cards' set codes, in the same order
+     * @return The prices which were found, by priceKey()
+     */
+    HashMap<String, PriceRecord> getPrices(List<String> names, List<String> setCodes) {
+        HashSet<String> wanted = new HashSet<>();
+        ArrayList<String> uniqueNames = new ArrayList<>();
+        HashSet<String> seenNames = new HashSet<>();
+        for (int i = 0; i < names.size(); i++) {
+            wanted.add(priceKey(names.get(i), setCodes.get(i)));
+            if (seenNames.add(names.get(i))) {
+                uniqueNames.add(names.get(i));
+            }
+        }
+
+        HashMap<String, PriceRecord> prices = new HashMap<>();
+        for (int start = 0; start < uniqueNames.size(); start += MAX_NAMES_PER_QUERY) {
+            List<String> chunk = uniqueNames.subList(start, Math.min(start + MAX_NAMES_PER_QUERY, uniqueNames.size()));
+            StringBuilder where = new StringBuilder(KEY_NAME).append(" IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                where.append((i == 0) ? "?" : ", ?");
+            }
+            where.append(')');
+
+            Cursor cursor = null;
+            try {
+                cursor = getWritableDatabase().query(TABLE_PRICES, PRICE_COLUMNS, where.toString(),
+                        chunk.toArray(new String[0]), null, null, null);
+                while (cursor.moveToNext()) {
+                    /* Only the sets which were asked for */
+                    String key = priceKey(cursor.getString(0), cursor.getString(1));
+                    if (wanted.contains(key)) {
+                        prices.put(key, readPrice(cursor));
+                    }
+                }
+            } catch (SQLiteException e) {
+                /* Whatever wasn't read will be read one at a time */
+            } finally {
+                if (null != cursor) {
+                    cursor.close();
+                }
+            }
+        }
+        return prices;
+    }
+
+    /**
+     * @param cursor A cursor with PRICE_COLUMNS, on the row to read
+     * @return The row's prices
+     */
+    private static PriceRecord readPrice(Cursor cursor) {
+        MarketPriceInfo.Price normal = null;
+        if (0 != cursor.getInt(3)) {
+            normal = new MarketPriceInfo.Price(cursor.getDouble(4), cursor.getDouble(5),
+                    cursor.getDouble(6), cursor.getDouble(7));
+        }
+        MarketPriceInfo.Price foil = null;
+        if (0 != cursor.getInt(8)) {
+            foil = new MarketPriceInfo.Price(cursor.getDouble(9), cursor.getDouble(10),
+                    cursor.getDouble(11), cursor.getDouble(12));
+        }
+        return new PriceRecord(new MarketPriceInfo(normal, foil, cursor.getString(2)), cursor.getLong(13));
+    }
+
+    /**
+     * Save a card's prices
+     *
+     * @param name    The card's name
+     * @param setCode The card's set code
+     * @param record  The prices, and when they were fetched
+     * @return true if the prices were saved, false otherwise
+     */
+    boolean putPrice(String name, String setCode, PriceRecord record) {
+        MarketPriceInfo.Price normal = record.mInfo.getNormalPrice();
+        MarketPriceInfo.Price foil = record.mInfo.getFoilPrice();
+
+        ContentValues values = new ContentValues();
+        values.put(KEY_NAME, name);
+        values.put(KEY_SET_CODE, setCode);
+        values.put(KEY_URL, orEmpty(record.mInfo.getUrl()));
+        values.put(KEY_HAS_NORMAL, (null != normal) ? 1 : 0);
+        values.put(KEY_NORMAL_LOW, (null != normal) ? normal.low : 0);
+        values.put(KEY_NORMAL_MID, (null != normal) ? normal.mid : 0);
+        values.put(KEY_NORMAL_HIGH, (null != normal) ? normal.high : 0);
+        values.put(KEY_NORMAL_MARKET, (null != normal) ? normal.market : 0);
+        values.put(KEY_HAS_FOIL, (null != foil) ? 1 : 0);
+        values.put(KEY_FOIL_LOW, (null != foil) ? foil.low : 0);
+        values.put(KEY_FOIL_MID, (null != foil) ? foil.mid : 0);
+        values.put(KEY_FOIL_HIGH, (null != foil) ? foil.high : 0);
+        values.put(KEY_FOIL_MARKET, (null != foil) ? foil.market : 0);
+        values.put(KEY_FETCHED, record.mFetched);
+        try {
+            return -1 != getWritableDatabase().insertWithOnConflict(TABLE_PRICES, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (SQLiteException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Evict prices older than MAX_PRICE_AGE_MS, then the oldest prices until there are at most
+     * MAX_PRICES
+     */
+    void trimPrices() {
+        try {
+            SQLiteDatabase database = getWritableDatabase();
+            database.delete(TABLE_PRICES, KEY_FETCHED + " < ?",
+                    new String[]{Long.toString(System.currentTimeMillis() - MAX_PRICE_AGE_MS)});
+            database.execSQL("DELETE FROM " + TABLE_PRICES + " WHERE " + KEY_FETCHED + " <= (" +
+                    "SELECT " + KEY_FETCHED + " FROM " + TABLE_PRICES +
+                    " ORDER BY " + KEY_FETCHED + " DESC LIMIT 1 OFFSET " + MAX_PRICES + ")");
+        } catch (SQLiteException e) {
+            /* Try again next time */
+        }
+    }
+
+    /**
+     * Delete every cached price
+     */
+    void clearPrices() {
+        try {
+            getWritableDatabase().delete(TABLE_PRICES, null, null);
+        } catch (SQLiteException e) {
+            /* Nothing to clear */
+        }
+    }
+
+    /**
+     * Read every saved group
+     *
+     * @return Each group's name by its ID. Empty if they couldn't be read
+     */
+    HashMap<Long, String> getGroups() {
+        HashMap<Long, String> groups = new HashMap<>();
+        Cursor cursor = null;
+        try {
+            cursor = getWritableDatabase().query(TABLE_GROUPS, new String[]{KEY_GROUP_ID, KEY_NAME},
+                    null, null, null, null, null);
+            while (cursor.moveToNext()) {
+                groups.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } catch (SQLiteException e) {
+            groups.clear();
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Save a page of groups, replacing any with the same IDs
+     *
+     * @param groups The groups to save
+     */
+    void putGroups(CategoryGroups.Group[] groups) {
+        try {
+            SQLiteDatabase database = getWritableDatabase();
+            database.beginTransaction();
+            try {
+                ContentValues values = new ContentValues();
+                for (CategoryGroups.Group group : groups) {
+                    values.put(KEY_GROUP_ID, group.groupId);
+                    values.put(KEY_NAME, orEmpty(group.name));
+                    database.insertWithOnConflict(TABLE_GROUPS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            /* They'll be downloaded again */
+        }
+    }
+}
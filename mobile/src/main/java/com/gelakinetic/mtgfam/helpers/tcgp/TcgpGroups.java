@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.tcgp;
+
+import android.content.Context;
+
+import com.gelakinetic.mtgfam.helpers.tcgp.JsonObjects.CategoryGroups;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import javax.annotation.Nullable;
+
+/**
+ * Every TCGplayer.com group's set name, by group ID, for the whole process. The groups are read
+ * from the TcgpDatabase once, and looked up in memory after that.
+ * <p>
+ * When a group isn't known, only the groups past the ones already saved are downloaded, since new
+ * sets are listed last. If that doesn't find it, every group is downloaded again, once per process.
+ * A group which still isn't found after that is remembered, so it doesn't cause another download.
+ */
+class TcgpGroups {
+
+    private static TcgpGroups mInstance = null;
+
+    private final TcgpDatabase mTcgpDatabase;
+    private HashMap<Long, String> mGroups = null;
+    private final HashSet<Long> mMissingGroups = new HashSet<>();
+    private boolean mFullyRefreshed = false;
+
+    /**
+     * @param context A context to open the database with
+     * @return The process-wide instance
+     */
+    static synchronized TcgpGroups getInstance(Context context) {
+        if (null == mInstance) {
+            mInstance = new TcgpGroups(TcgpDatabase.getInstance(context));
+        }
+        return mInstance;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param tcgpDatabase The database the groups are saved in
+     */
+    private TcgpGroups(TcgpDatabase tcgpDatabase) {
+        mTcgpDatabase = tcgpDatabase;
+    }
+
+    /**
+     * Given a group ID, return the group's set name. If it isn't known, use the API to download
+     * the groups which are missing, then save them
+     *
+     * @param api     The TcgpApi to query for group names
+     * @param groupId The group ID to query for
+     * @return The String name of the given group ID, or null
+     * @throws IOException If the groups couldn't be downloaded
+     */
+    @Nullable
+    synchronized String getName(TcgpApi api, long groupId) throws IOException {
+        if (null == mGroups) {
+            mGroups = mTcgpDatabase.getGroups();
+        }
+
+        String name = mGroups.get(groupId);
+        if (null != name || mMissingGroups.contains(groupId)) {
+            return name;
+        }
+
+        /* Download the groups listed after the ones which are saved */
+        download(api, mGroups.size());
+        name = mGroups.get(groupId);
+
+        /* If it's still missing, some group before it may have changed. Download them all */
+        if (null == name && !mFullyRefreshed) {
+            download(api, 0);
+            mFullyRefreshed = true;
+            name = mGroups.get(groupId);
+        }
+
+        if (null == name) {
+            mMissingGroups.add(groupId);
+        }
+        return name;
+    }
+
+    /**
+     * Download groups a page at a time, from the given offset to the end, and save each page
+     *
+     * @param api    The TcgpApi to query for groups
+     * @param offset Where to start in the API's list of groups
+     * @throws IOException If the groups couldn't be downloaded
+     */
+    private void download(TcgpApi api, int offset) throws IOException {
+        int[] offsetArr = {offset};
+        while (true) {
+            CategoryGroups groups = api.getCategoryGroups(offsetArr);
+            // If there are errors or no groups left, break the loop
+            if (null == groups || null == groups.results || null == groups.errors ||
+                    groups.errors.length > 0 || groups.results.length == 0) {
+                break;
+            }
+            for (CategoryGroups.Group group : groups.results) {
+                mGroups.put(group.groupId, group.name);
+            }
+            mTcgpDatabase.putGroups(groups.results);
+        }
+    }
+}
@@ -21,23 +21,27 @@ package com.gelakinetic.mtgfam.helpers.updaters;
 
 import android.content.Context;
 
+import com.gelakinetic.GathererScraper.JsonTypes.BinaryPatch;
 import com.gelakinetic.GathererScraper.JsonTypes.Card;
+import com.gelakinetic.GathererScraper.JsonTypes.CardTypeAdapter;
 import com.gelakinetic.GathererScraper.JsonTypes.Expansion;
 import com.gelakinetic.GathererScraper.JsonTypes.LegalityData;
 import com.gelakinetic.GathererScraper.JsonTypes.Manifest;
-import com.gelakinetic.GathererScraper.JsonTypes.Patch;
 import com.gelakinetic.GathererScraper.PrefixedFieldNamingStrategy;
 import com.gelakinetic.mtgfam.FamiliarActivity;
+import com.gelakinetic.mtgfam.helpers.ConditionalRequest;
 import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.stream.JsonReader;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * This class is used to parse various JSON update files and populate the database
@@ -52,12 +56,92 @@ class CardAndSetParser {
      */
     long mCurrentLegalityTimestamp = 0;
 
+    /* The last patches.json and legality.json requests, whose validators are saved with the dates */
+    private ConditionalRequest mManifestRequest = null;
+    private ConditionalRequest mLegalityRequest = null;
+
+    /* Reads cards from patches without reflection */
+    private static final CardTypeAdapter CARD_ADAPTER = new CardTypeAdapter();
+
+    /* Built once, it's only used for reading, so it doesn't pretty print */
+    private static final Gson GSON = new GsonBuilder()
+            .setFieldNamingStrategy(new PrefixedFieldNamingStrategy("m"))
+            .disableHtmlEscaping()
+            .create();
+
     private static Gson getGson() {
-        GsonBuilder reader = new GsonBuilder();
-        reader.setFieldNamingStrategy((new PrefixedFieldNamingStrategy("m")));
-        reader.disableHtmlEscaping();
-        reader.setPrettyPrinting();
-        return reader.create();
+        return GSON;
+    }
+
+    /**
+     * Something which is handed a patch's expansion and cards one at a time, as they are parsed,
+     * usually to write them to the database
+     */
+    interface PatchConsumer {
+        /**
+         * @param expansion The patch's expansion
+         * @throws InterruptedException If the thread was interrupted while handing it off
+         * @throws FamiliarDbException  If the expansion couldn't be written
+         */
+        void onExpansion(Expansion expansion) throws InterruptedException, FamiliarDbException;
+
+        /**
+         * @param card A card from the patch
+         * @throws InterruptedException If the thread was interrupted while handing it off
+         * @throws FamiliarDbException  If the card couldn't be written
+         */
+        void onCard(Card card) throws InterruptedException, FamiliarDbException;
+    }
+
+    /**
+     * Parse a decompressed patch, in either the binary or the JSON format. The format is picked by the first bytes
+     *
+     * @param stream   The decompressed patch
+     * @param consumer Where to hand the expansion and each card as they are parsed
+     * @throws IOException          If the stream couldn't be read, or the patch is malformed
+     * @throws InterruptedException If the consumer was interrupted
+     * @throws FamiliarDbException  If the consumer couldn't write something
+     */
+    public void readPatchStream(InputStream stream, PatchConsumer consumer)
+            throws IOException, InterruptedException, FamiliarDbException {
+        BufferedInputStream buffered = new BufferedInputStream(stream);
+        byte[] magic = new byte[BinaryPatch.MAGIC.length];
+        buffered.mark(magic.length);
+        int read = 0;
+        while (read < magic.length) {
+            int length = buffered.read(magic, read, magic.length - read);
+            if (length < 0) {
+                break;
+            }
+            read += length;
+        }
+
+        if (read == magic.length && Arrays.equals(magic, BinaryPatch.MAGIC)) {
+            readCardBinaryStream(new BinaryPatch(buffered), consumer);
+        } else {
+            buffered.reset();
+            readCardJsonStream(new JsonReader(new InputStreamReader(buffered, "UTF-8")), consumer);
+        }
+    }
+
+    /**
+     * Parse a binary patch, which is smaller and quicker to parse than a JSON one
+     *
+     * @param patch    The patch to parse, after its header was read
+     * @param consumer Where to hand the expansion and each card as they are parsed
+     * @throws IOException          If the stream couldn't be read, or the patch is malformed
+     * @throws InterruptedException If the consumer was interrupted
+     * @throws FamiliarDbException  If the consumer couldn't write something
+     */
+    private void readCardBinaryStream(BinaryPatch patch, PatchConsumer consumer)
+            throws IOException, InterruptedException, FamiliarDbException {
+        Expansion expansion = CardAndSetParser.getGson().fromJson(patch.getExpansionJson(), Expansion.class);
+        if (expansion != null) {
+            consumer.onExpansion(expansion);
+        }
+        while (patch.hasNextCard()) {
+            consumer.onCard(patch.nextCard());
+        }
     }
 
     /**
@@ -67,25 +151,49 @@ class CardAndSetParser {
      * The JSON uses single character keys, which is a silly thing I did in the name of compression. The patches are
      * zipped anyway, so it doesn't matter much, but we're stuck with it.
      * <p>
-     * There is some special processing for weird power and toughness too
+     * The patch is streamed rather than read into a Patch object, so only one card at a time is in memory no
+     * matter how big the set is. Cards are read with a CardTypeAdapter instead of by reflection.
      *
-     * @param reader     A JsonRead to parse from
-     * @param cardsToAdd An array list to place cards before adding to the database
-     * @param setsToAdd  An array list to place sets before adding to the database
+     * @param reader   A JsonRead to parse from
+     * @param consumer Where to hand the expansion and each card as they are parsed
+     * @throws IOException          If the stream couldn't be read, or the JSON is malformed
+     * @throws InterruptedException If the consumer was interrupted
+     * @throws FamiliarDbException  If the consumer couldn't write something
      */
-    public void readCardJsonStream(JsonReader reader, ArrayList<Card> cardsToAdd, ArrayList<Expansion> setsToAdd) {
-
-        Gson gson = CardAndSetParser.getGson();
+    public void readCardJsonStream(JsonReader reader, PatchConsumer consumer)
+            throws IOException, InterruptedException, FamiliarDbException {
 
-        Patch patch = gson.fromJson(reader, Patch.class);
-        if (patch != null) {
-            cardsToAdd.addAll(patch.mCards);
+        /* Gson.fromJson() is lenient, so be lenient here too */
+        reader.setLenient(true);
 
-            /* Stage the sets and cards for database addition. */
-            if (setsToAdd != null) {
-                setsToAdd.add(patch.mExpansion);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "expansion": {
+                    Expansion expansion = CardAndSetParser.getGson().fromJson(reader, Expansion.class);
+                    if (expansion != null) {
+                        consumer.onExpansion(expansion);
+                    }
+                    break;
+                }
+                case "cards": {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        Card card = CARD_ADAPTER.read(reader);
+                        if (card != null) {
+                            consumer.onCard(card);
+                        }
+                    }
+                    reader.endArray();
+                    break;
+                }
+                default: {
+                    reader.skipValue();
+                    break;
+                }
             }
         }
+        reader.endObject();
     }
 
     /**
@@ -93,13 +201,19 @@ class CardAndSetParser {
      *
      * @param logWriter A writer to print debug statements when things go wrong
      * @param context   The context to manage preferences with
-     * @return An ArrayList of String[] which contains the {Name, URL, Set Code} for each available patch
+     * @return An ArrayList of String[] which contains the {Name, URL, Set Code} for each available
+     * patch, or null if it couldn't be read or hasn't changed since the last successful update
      */
     public Manifest readUpdateJsonStream(Context context, PrintWriter logWriter) {
         Manifest manifest;
 
         try {
-            InputStream stream = FamiliarActivity.getHttpInputStream(PATCHES_URL, logWriter, context);
+            mManifestRequest = new ConditionalRequest(PATCHES_URL);
+            InputStream stream = FamiliarActivity.getHttpInputStream(mManifestRequest, logWriter, context);
+            if (mManifestRequest.isNotModified()) {
+                /* Every patch in it was already applied, don't even parse it */
+                return null;
+            }
             if (stream == null) {
                 throw new IOException("No Stream");
             }
@@ -131,7 +245,12 @@ class CardAndSetParser {
         LegalityData legalityData;
 
         try {
-            InputStream stream = FamiliarActivity.getHttpInputStream(LEGALITY_URL, logWriter, context);
+            mLegalityRequest = new ConditionalRequest(LEGALITY_URL);
+            InputStream stream = FamiliarActivity.getHttpInputStream(mLegalityRequest, logWriter, context);
+            if (mLegalityRequest.isNotModified()) {
+                /* Same file as last time, nothing new here */
+                return null;
+            }
             if (stream == null) {
                 throw new IOException("No Stream");
             }
@@ -155,12 +274,26 @@ class CardAndSetParser {
     }
 
     /**
-     * When the service is done, this method is called to commit the update dates to the shared preferences
+     * When the service is done, this method is called to commit the update dates to the shared preferences,
+     * along with the validators for patches.json and legality.json, so they are only skipped next
+     * time if everything in them was applied
      *
-     * @param context the Context to manage preferences with
+     * @param context        the Context to manage preferences with
+     * @param commitManifest true if every patch in patches.json was applied, false to check it
+     *                       again next time so any missing patches are retried
      */
-    public void commitDates(Context context) {
-        PreferenceAdapter.setLegalityTimestamp(context, mCurrentLegalityTimestamp);
+    public void commitDates(Context context, boolean commitManifest) {
+        if (mCurrentLegalityTimestamp > 0) {
+            PreferenceAdapter.setLegalityTimestamp(context, mCurrentLegalityTimestamp);
+        }
         mCurrentLegalityTimestamp = 0;
+        if (null != mManifestRequest && commitManifest) {
+            mManifestRequest.commit(context);
+        }
+        mManifestRequest = null;
+        if (null != mLegalityRequest) {
+            mLegalityRequest.commit(context);
+            mLegalityRequest = null;
+        }
     }
 }
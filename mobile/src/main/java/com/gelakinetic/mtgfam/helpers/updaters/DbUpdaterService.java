@@ -37,23 +37,21 @@ import com.gelakinetic.mtgfam.FamiliarActivity;
 import com.gelakinetic.mtgfam.R;
 import com.gelakinetic.mtgfam.helpers.NotificationHelper;
 import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
+import com.gelakinetic.mtgfam.helpers.database.BatchWriter;
 import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
 import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
+import com.gelakinetic.mtgfam.helpers.database.DatabaseSchema;
 import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
 import com.gelakinetic.mtgfam.helpers.database.FamiliarDbHandle;
-import com.google.gson.stream.JsonReader;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
 
 /**
  * This service takes care of updating the database off of the UI thread
@@ -64,6 +62,9 @@ public class DbUpdaterService extends IntentService {
     private static final int STATUS_NOTIFICATION = 31;
     private static final int UPDATED_NOTIFICATION = 32;
 
+    /* When adding more sets than this, drop the card indexes first and rebuild them afterwards */
+    private static final int BULK_LOAD_SET_THRESHOLD = 10;
+
     /* To build and display the notification */
     private NotificationManagerCompat mNotificationManager;
     private NotificationCompat.Builder mBuilder;
@@ -136,6 +137,7 @@ public class DbUpdaterService extends IntentService {
             ArrayList<String> updatedStuff = new ArrayList<>();
             CardAndSetParser parser = new CardAndSetParser();
             boolean commitDates = true;
+            boolean allPatchesDownloaded = true;
             boolean newRulesParsed = false;
 
             /* Look for updates with the banned / restricted lists and formats */
@@ -146,6 +148,82 @@ public class DbUpdaterService extends IntentService {
                 logWriter.write("mCurrentRulesDate: " + parser.mCurrentLegalityTimestamp + '\n');
             }
 
+            /* Change the notification to generic "checking for updates" */
+            switchToChecking();
+
+            /* Look for new cards */
+            Manifest manifest = parser.readUpdateJsonStream(getApplicationContext(), logWriter);
+
+            /* Make an arraylist of all the current set codes, and figure out which sets are out of
+             * date and which need to be downloaded before writing anything
+             */
+            ArrayList<String> currentSetCodes = new ArrayList<>();
+            ArrayList<String> setsToDiff = new ArrayList<>();
+            ArrayList<Manifest.ManifestEntry> setsToDownload = new ArrayList<>();
+            ArrayList<String> downloadedSetCodes = new ArrayList<>();
+            if (manifest != null) {
+                HashMap<String, String> storedDigests = new HashMap<>();
+                Cursor setCursor = null;
+                FamiliarDbHandle setsHandle = new FamiliarDbHandle();
+                try {
+                    /* Get readable database access */
+                    SQLiteDatabase database = DatabaseManager.openDatabase(getApplicationContext(), false, setsHandle);
+                    setCursor = CardDbAdapter.fetchAllSets(database);
+                    if (setCursor != null) {
+                        setCursor.moveToFirst();
+                        while (!setCursor.isAfterLast()) {
+                            String code = setCursor.getString(setCursor.getColumnIndex(CardDbAdapter.KEY_CODE));
+                            String digest = setCursor.getString(setCursor.getColumnIndex(CardDbAdapter.KEY_DIGEST));
+                            storedDigests.put(code, digest);
+                            currentSetCodes.add(code);
+                            setCursor.moveToNext();
+                        }
+                    }
+                } catch (SQLiteException | FamiliarDbException e) {
+                    commitDates = false; /* don't commit the dates */
+                    if (logWriter != null) {
+                        e.printStackTrace(logWriter);
+                    }
+                } finally {
+                    if (null != setCursor) {
+                        setCursor.close();
+                    }
+                    DatabaseManager.closeDatabase(getApplicationContext(), setsHandle);
+                }
+
+                /* Look through the manifest for out of date sets. If the digest doesn't match,
+                 * mark the set for diffing and remove it from currentSetCodes so it redownloads
+                 */
+                for (Manifest.ManifestEntry set : manifest.mPatches) {
+                    String storedDigest = storedDigests.get(set.mCode);
+                    if (set.mDigest != null && storedDigest != null && !storedDigest.equals(set.mDigest)) {
+                        setsToDiff.add(set.mCode);
+                        currentSetCodes.remove(set.mCode);
+                    }
+                }
+
+                for (Manifest.ManifestEntry set : manifest.mPatches) {
+                    if (!set.mCode.equals("DD3") && /* Never download the old Duel Deck Anthologies patch */
+                            !currentSetCodes.contains(set.mCode)) { /* check to see if the patch is known already */
+                        setsToDownload.add(set);
+                    }
+                }
+            }
+
+            /* If the catalog is changing, build the update in a shadow database and swap it in at
+             * the end, so readers never see a partial update. If the shadow database can't be
+             * made, update the current database like before
+             */
+            if (legalityData != null || !setsToDiff.isEmpty() || !setsToDownload.isEmpty()) {
+                try {
+                    DatabaseManager.beginShadowUpdate(getApplicationContext());
+                } catch (FamiliarDbException e) {
+                    if (logWriter != null) {
+                        e.printStackTrace(logWriter);
+                    }
+                }
+            }
+
             if (legalityData != null) {
                 if (logWriter != null) {
                     logWriter.write("Adding new legalityData" + '\n');
@@ -153,95 +231,138 @@ public class DbUpdaterService extends IntentService {
 
                 /* Open a writable database, insert the legality data */
                 FamiliarDbHandle legalHandle = new FamiliarDbHandle();
+                BatchWriter legalWriter = null;
                 try {
                     SQLiteDatabase database = DatabaseManager.openDatabase(getApplicationContext(), true, legalHandle);
                     /* Add all the data we've downloaded */
                     CardDbAdapter.dropLegalTables(database);
                     CardDbAdapter.createLegalTables(database);
 
+                    legalWriter = new BatchWriter(database);
                     for (LegalityData.Format format : legalityData.mFormats) {
-                        CardDbAdapter.createFormat(format.mName, database);
+                        legalWriter.createFormat(format.mName);
 
                         for (String legalSet : format.mSets) {
-                            CardDbAdapter.addLegalSet(legalSet, format.mName, database);
+                            legalWriter.addLegalSet(legalSet, format.mName);
                         }
 
                         for (String bannedCard : format.mBanlist) {
-                            CardDbAdapter.addLegalCard(bannedCard, format.mName, CardDbAdapter.BANNED, database);
+                            legalWriter.addLegalCard(bannedCard, format.mName, CardDbAdapter.BANNED);
                         }
 
                         for (String restrictedCard : format.mRestrictedlist) {
-                            CardDbAdapter.addLegalCard(restrictedCard, format.mName, CardDbAdapter.RESTRICTED, database);
+                            legalWriter.addLegalCard(restrictedCard, format.mName, CardDbAdapter.RESTRICTED);
                         }
                     }
+                    if (logWriter != null) {
+                        logWriter.write("Legality: " + legalWriter.getThroughput() + '\n');
+                    }
+
+                    /* The legality tables were just recreated, so index them after loading */
+                    DatabaseSchema.createIndexes(database);
+                    CardDbAdapter.rebuildCardLegality(database);
                 } catch (SQLiteException | FamiliarDbException e) {
                     commitDates = false; /* don't commit the dates */
                     if (logWriter != null) {
                         e.printStackTrace(logWriter);
                     }
                 } finally {
+                    if (null != legalWriter) {
+                        legalWriter.close();
+                    }
                     /* Close the writable database */
                     DatabaseManager.closeDatabase(getApplicationContext(), legalHandle);
                 }
             }
 
-            /* Change the notification to generic "checking for updates" */
-            switchToChecking();
-
-            /* Look for new cards */
-            Manifest manifest = parser.readUpdateJsonStream(getApplicationContext(), logWriter);
-
             if (manifest != null) {
-                /* Make an arraylist of all the current set codes */
-                ArrayList<String> currentSetCodes = new ArrayList<>();
-                HashMap<String, String> storedDigests = new HashMap<>();
-                Cursor setCursor = null;
-                FamiliarDbHandle setsHandle = new FamiliarDbHandle();
+                /* If there are a lot of patches to add, it's faster to index the cards once at the
+                 * end than to update the indexes for every inserted card
+                 */
+                if (setsToDownload.size() > BULK_LOAD_SET_THRESHOLD) {
+                    FamiliarDbHandle dropIndexHandle = new FamiliarDbHandle();
+                    try {
+                        SQLiteDatabase database = DatabaseManager.openDatabase(getApplicationContext(), true, dropIndexHandle);
+                        DatabaseSchema.dropIndexes(database, CardDbAdapter.DATABASE_TABLE_CARDS);
+                        DatabaseSchema.dropIndexes(database, CardDbAdapter.DATABASE_TABLE_CARD_TYPES);
+                    } catch (SQLiteException | FamiliarDbException e) {
+                        if (logWriter != null) {
+                            e.printStackTrace(logWriter);
+                        }
+                    } finally {
+                        DatabaseManager.closeDatabase(getApplicationContext(), dropIndexHandle);
+                    }
+                }
+
+                /* Look through the list of available patches, and add each one to the database.
+                 * The patches are downloaded a few at a time in the background, and written here
+                 * in manifest order
+                 */
+                PatchDownloader downloader = new PatchDownloader(getApplicationContext(), setsToDownload, logWriter);
+                FamiliarDbHandle expansionHandle = new FamiliarDbHandle();
+                BatchWriter cardWriter = null;
                 try {
-                    /* Get readable database access */
-                    SQLiteDatabase database = DatabaseManager.openDatabase(getApplicationContext(), false, setsHandle);
-                    setCursor = CardDbAdapter.fetchAllSets(database);
-                    if (setCursor != null) {
-                        setCursor.moveToFirst();
-                        while (!setCursor.isAfterLast()) {
-                            String code = setCursor.getString(setCursor.getColumnIndex(CardDbAdapter.KEY_CODE));
-                            String digest = setCursor.getString(setCursor.getColumnIndex(CardDbAdapter.KEY_DIGEST));
-                            storedDigests.put(code, digest);
-                            currentSetCodes.add(code);
-                            setCursor.moveToNext();
+                    SQLiteDatabase database = DatabaseManager.openDatabase(getApplicationContext(), true, expansionHandle);
+                    cardWriter = new BatchWriter(database);
+                    for (Manifest.ManifestEntry set : setsToDownload) {
+                        /* Change the notification to the specific set */
+                        switchToUpdating(String.format(getString(R.string.update_updating_set), set.mName));
+                        PatchDownloader.DownloadedPatch patch = downloader.next();
+                        if (null == patch) {
+                            /* Check the manifest again next time, so this set is retried */
+                            allPatchesDownloaded = false;
+                            continue;
+                        }
+                        boolean written = writePatchOrDropSet(patch, cardWriter, database,
+                                setsToDiff.contains(set.mCode), logWriter);
+                        if (!written && patch.shouldFallBackToJson()) {
+                            /* The binary patch couldn't be parsed, so try the JSON one. The set
+                             * was dropped, so it's added from scratch
+                             */
+                            if (logWriter != null) {
+                                logWriter.write("Falling back to JSON: " + set.mCode + '\n');
+                            }
+                            PatchDownloader.DownloadedPatch jsonPatch = downloader.downloadJson(set);
+                            written = (null != jsonPatch) &&
+                                    writePatchOrDropSet(jsonPatch, cardWriter, database, false, logWriter);
+                        }
+                        if (written) {
+                            updatedStuff.add(set.mName);
+                            downloadedSetCodes.add(set.mCode);
+                        } else {
+                            /* The set was dropped, so the rest of the update can still be kept.
+                             * Check the manifest again next time, so only this set is retried
+                             */
+                            allPatchesDownloaded = false;
                         }
                     }
-                } catch (SQLiteException | FamiliarDbException e) {
+                    if (logWriter != null) {
+                        logWriter.write("Cards: " + cardWriter.getThroughput() + '\n');
+                    }
+                } catch (SQLiteException | FamiliarDbException | InterruptedException e) {
                     commitDates = false; /* don't commit the dates */
                     if (logWriter != null) {
                         e.printStackTrace(logWriter);
                     }
                 } finally {
-                    if (null != setCursor) {
-                        setCursor.close();
+                    downloader.close();
+                    if (null != cardWriter) {
+                        cardWriter.close();
                     }
-                    DatabaseManager.closeDatabase(getApplicationContext(), setsHandle);
+                    /* Close the database */
+                    DatabaseManager.closeDatabase(getApplicationContext(), expansionHandle);
                 }
 
-                /* Look through the manifest and drop all out of date sets */
-                FamiliarDbHandle manifestHandle = new FamiliarDbHandle();
+                /* Rebuild any indexes dropped for the bulk load, and the printing summary and card
+                 * legality if expansions were added
+                 */
+                FamiliarDbHandle indexHandle = new FamiliarDbHandle();
                 try {
-                    SQLiteDatabase database = DatabaseManager.openDatabase(getApplicationContext(), true, manifestHandle);
-                    for (Manifest.ManifestEntry set : manifest.mPatches) {
-                        try {
-                            /* If the digest doesn't match, mark the set for dropping
-                             * and remove it from currentSetCodes so it redownloads
-                             */
-                            if (set.mDigest != null && !storedDigests.get(set.mCode).equals(set.mDigest)) {
-                                if (logWriter != null) {
-                                    logWriter.write("Dropping expansion: " + set.mCode + '\n');
-                                }
-                                currentSetCodes.remove(set.mCode);
-                                CardDbAdapter.dropSetAndCards(set.mCode, database);
-                            }
-                        } catch (NullPointerException e) {
-                            /* eat it */
-                        }
+                    SQLiteDatabase database = DatabaseManager.openDatabase(getApplicationContext(), true, indexHandle);
+                    DatabaseSchema.createIndexes(database);
+                    if (!setsToDownload.isEmpty()) {
+                        CardDbAdapter.rebuildPrintingsSummary(database);
+                        CardDbAdapter.rebuildCardLegality(database);
                     }
                 } catch (SQLiteException | FamiliarDbException e) {
                     commitDates = false; /* don't commit the dates */
@@ -249,69 +370,7 @@ public class DbUpdaterService extends IntentService {
                         e.printStackTrace(logWriter);
                     }
                 } finally {
-                    DatabaseManager.closeDatabase(getApplicationContext(), manifestHandle);
-                }
-
-                /* Look through the list of available patches, and if it doesn't exist in the database, add it. */
-                for (Manifest.ManifestEntry set : manifest.mPatches) {
-                    if (!set.mCode.equals("DD3") && /* Never download the old Duel Deck Anthologies patch */
-                            !currentSetCodes.contains(set.mCode)) { /* check to see if the patch is known already */
-                        int retries = 5;
-                        while (retries > 0) {
-                            try {
-                                /* Change the notification to the specific set */
-                                switchToUpdating(String.format(getString(R.string.update_updating_set), set.mName));
-                                InputStream streamToRead = FamiliarActivity.getHttpInputStream(set.mURL, logWriter, getApplicationContext());
-                                if (streamToRead != null) {
-                                    ArrayList<Card> cardsToAdd = new ArrayList<>();
-                                    ArrayList<Expansion> setsToAdd = new ArrayList<>();
-
-                                    GZIPInputStream gis = new GZIPInputStream(streamToRead);
-                                    JsonReader reader = new JsonReader(new InputStreamReader(gis, "UTF-8"));
-                                    parser.readCardJsonStream(reader, cardsToAdd, setsToAdd);
-                                    streamToRead.close();
-                                    updatedStuff.add(set.mName);
-                                    /* Everything was successful, retries = 0 breaks the while loop */
-                                    retries = 0;
-
-                                    /* After the download, open the database */
-                                    FamiliarDbHandle expansionHandle = new FamiliarDbHandle();
-                                    try {
-                                        SQLiteDatabase database = DatabaseManager.openDatabase(getApplicationContext(), true, expansionHandle);
-                                        /* Insert the newly downloaded info */
-                                        for (Expansion expansion : setsToAdd) {
-                                            if (logWriter != null) {
-                                                logWriter.write("Adding expansion: " + expansion.mCode_gatherer + '\n');
-                                            }
-
-                                            CardDbAdapter.createSet(expansion, database);
-                                        }
-                                        int cardsAdded = 0;
-                                        for (Card card : cardsToAdd) {
-                                            CardDbAdapter.createCard(card, database);
-                                            cardsAdded++;
-                                            mProgress = (int) (100 * (cardsAdded / (float) cardsToAdd.size()));
-                                        }
-
-                                    } catch (SQLiteException | FamiliarDbException e) {
-                                        commitDates = false; /* don't commit the dates */
-                                        if (logWriter != null) {
-                                            e.printStackTrace(logWriter);
-                                        }
-                                    } finally {
-                                        /* Close the database */
-                                        DatabaseManager.closeDatabase(getApplicationContext(), expansionHandle);
-                                    }
-                                }
-                            } catch (IOException e) {
-                                if (logWriter != null) {
-                                    logWriter.print("Retry " + retries + '\n');
-                                    e.printStackTrace(logWriter);
-                                }
-                            }
-                            retries--;
-                        }
-                    }
+                    DatabaseManager.closeDatabase(getApplicationContext(), indexHandle);
                 }
             }
 
@@ -330,45 +389,100 @@ public class DbUpdaterService extends IntentService {
 
             if (rp.needsToUpdate(getApplicationContext(), logWriter)) {
                 switchToUpdating(getString(R.string.update_updating_rules));
-                if (rp.parseRules(logWriter)) {
-                    ArrayList<RulesParser.RuleItem> rulesToAdd = new ArrayList<>();
-                    ArrayList<RulesParser.GlossaryItem> glossaryItemsToAdd = new ArrayList<>();
-                    rp.loadRulesAndGlossary(rulesToAdd, glossaryItemsToAdd);
 
-                    /* Only save the timestamp of this if the update was 100% successful; if something went screwy, we
-                     * should let them know and try again next update.
-                     */
-                    newRulesParsed = true;
+                /* Stream the rules into staging tables as they're parsed, and only swap them in
+                 * once every rule was written, so the rules are never missing or half loaded
+                 */
+                FamiliarDbHandle rulesHandle = new FamiliarDbHandle();
+                BatchWriter rulesWriter = null;
+                try {
+                    SQLiteDatabase database = DatabaseManager.openDatabase(getApplicationContext(), true, rulesHandle);
+                    CardDbAdapter.createRulesStagingTables(database);
+
+                    rulesWriter = new BatchWriter(database);
+                    final BatchWriter writer = rulesWriter;
+                    boolean rulesParsed = rp.parseRules(new RulesParser.RulesConsumer() {
+                        @Override
+                        public void onRule(int category, int subcategory, String entry, String text, int position)
+                                throws FamiliarDbException {
+                            writer.insertRule(category, subcategory, entry, text, position);
+                        }
 
-                    /* Open the database */
-                    FamiliarDbHandle rulesHandle = new FamiliarDbHandle();
-                    try {
+                        @Override
+                        public void onGlossaryTerm(String term, String definition) throws FamiliarDbException {
+                            writer.insertGlossaryTerm(term, definition);
+                        }
+                    }, logWriter);
 
-                        SQLiteDatabase database = DatabaseManager.openDatabase(getApplicationContext(), true, rulesHandle);
+                    if (rulesParsed && rulesWriter.getRowCount() > 0) {
+                        CardDbAdapter.swapRulesTables(database);
 
-                        /* Add stored rules */
-                        if (rulesToAdd.size() > 0 || glossaryItemsToAdd.size() > 0) {
-                            CardDbAdapter.dropRulesTables(database);
-                            CardDbAdapter.createRulesTables(database);
+                        /* Only save the timestamp of this if the update was 100% successful; if something went
+                         * screwy, we should let them know and try again next update.
+                         */
+                        newRulesParsed = true;
+                        if (logWriter != null) {
+                            logWriter.write("Rules: " + rulesWriter.getThroughput() + '\n');
                         }
+                        updatedStuff.add(getString(R.string.update_added_rules));
+                    } else {
+                        CardDbAdapter.dropRulesStagingTables(database);
+                    }
+                } catch (SQLiteException | FamiliarDbException e) {
+                    commitDates = false; /* don't commit the dates */
+                    if (logWriter != null) {
+                        e.printStackTrace(logWriter);
+                    }
+                } finally {
+                    if (null != rulesWriter) {
+                        rulesWriter.close();
+                    }
+                    DatabaseManager.closeDatabase(getApplicationContext(), rulesHandle);
+                }
+            }
 
-                        for (RulesParser.RuleItem rule : rulesToAdd) {
-                            CardDbAdapter.insertRule(rule.category, rule.subcategory, rule.entry, rule.text, rule.position, database);
+            /* If the update was built in a shadow database, make sure it's complete and swap it in.
+             * Otherwise throw it away, and try again next time
+             */
+            if (DatabaseManager.isShadowUpdateInProgress()) {
+                boolean shadowValid = false;
+                if (commitDates) {
+                    /* Every set which was kept or downloaded should be there, with cards. Sets
+                     * which failed are in neither list, so they don't hold the others back
+                     */
+                    HashMap<String, String> expectedDigests = new HashMap<>();
+                    if (manifest != null) {
+                        for (Manifest.ManifestEntry set : manifest.mPatches) {
+                            if (currentSetCodes.contains(set.mCode) || downloadedSetCodes.contains(set.mCode)) {
+                                expectedDigests.put(set.mCode, set.mDigest);
+                            }
                         }
+                    }
 
-                        for (RulesParser.GlossaryItem term : glossaryItemsToAdd) {
-                            CardDbAdapter.insertGlossaryTerm(term.term, term.definition, database);
-                        }
-                        updatedStuff.add(getString(R.string.update_added_rules));
+                    FamiliarDbHandle verifyHandle = new FamiliarDbHandle();
+                    try {
+                        SQLiteDatabase database = DatabaseManager.openDatabase(getApplicationContext(), true, verifyHandle);
+                        shadowValid = CardDbAdapter.isDatabaseValid(expectedDigests, database);
                     } catch (SQLiteException | FamiliarDbException e) {
-                        commitDates = false; /* don't commit the dates */
                         if (logWriter != null) {
                             e.printStackTrace(logWriter);
                         }
                     } finally {
-                        DatabaseManager.closeDatabase(getApplicationContext(), rulesHandle);
+                        DatabaseManager.closeDatabase(getApplicationContext(), verifyHandle);
                     }
                 }
+
+                if (shadowValid) {
+                    DatabaseManager.commitShadowUpdate(getApplicationContext());
+                } else {
+                    if (logWriter != null) {
+                        logWriter.write("Discarding the shadow database" + '\n');
+                    }
+                    DatabaseManager.abortShadowUpdate(getApplicationContext());
+                    commitDates = false; /* don't commit the dates */
+                    newRulesParsed = false;
+                    updatedStuff.clear();
+                }
             }
 
             /* Change the notification to generic "checking for updates" */
@@ -399,12 +513,16 @@ public class DbUpdaterService extends IntentService {
 
             /* If everything went well so far, commit the date and show the update complete notification */
             if (commitDates) {
-                parser.commitDates(this);
+                parser.commitDates(this, allPatchesDownloaded);
+
+                /* The cached patches are all applied now, so old ones can be evicted */
+                new PatchCache(getApplicationContext()).trim();
 
                 long curTime = new Date().getTime();
                 PreferenceAdapter.setLastLegalityUpdate(this, (int) (curTime / 1000));
                 if (newRulesParsed) {
                     PreferenceAdapter.setLastRulesUpdate(this, curTime);
+                    rp.commitValidators(this);
                 }
 
                 if (updatedStuff.size() > 0) {
@@ -418,6 +536,9 @@ public class DbUpdaterService extends IntentService {
             }
         }
 
+        /* If something went wrong before the shadow database was swapped in, throw it away */
+        DatabaseManager.abortShadowUpdate(getApplicationContext());
+
         /* Always cancel the status notification */
         cancelStatusNotification();
 
@@ -427,6 +548,99 @@ public class DbUpdaterService extends IntentService {
         }
     }
 
+    /**
+     * Write a downloaded patch to the database. If it can't be written, drop whatever part of the
+     * set was written, so the set isn't left half updated
+     *
+     * @param patch     The patch to write
+     * @param writer    The BatchWriter to write cards with
+     * @param database  The database to write to
+     * @param diff      true if the set is already in the database and should be diffed
+     * @param logWriter A writer to print debug statements when things go wrong, can be null
+     * @return true if the patch was written, false if the set was dropped
+     * @throws InterruptedException If the thread was interrupted while waiting for a card
+     * @throws FamiliarDbException  If the partly written set couldn't be dropped
+     */
+    private boolean writePatchOrDropSet(PatchDownloader.DownloadedPatch patch, BatchWriter writer,
+                                        SQLiteDatabase database, boolean diff, PrintWriter logWriter)
+            throws InterruptedException, FamiliarDbException {
+        try {
+            writePatch(patch, writer, database, diff, logWriter);
+            return true;
+        } catch (SQLiteException | FamiliarDbException | IOException e) {
+            if (logWriter != null) {
+                e.printStackTrace(logWriter);
+            }
+            /* Don't leave part of the set behind */
+            writer.cancelDiff();
+            CardDbAdapter.dropSetAndCards(patch.mEntry.mCode, database);
+            return false;
+        }
+    }
+
+    /**
+     * Write a downloaded patch's expansion and cards to the database as they are parsed, and
+     * update the progress as it goes. If the expansion is already in the database, only the cards
+     * which changed are rewritten
+     *
+     * @param patch     The patch to write
+     * @param writer    The writer to insert the expansion and cards with
+     * @param database  The database being written to
+     * @param diff      true if an older version of this expansion is in the database
+     * @param logWriter A writer to print debug statements, can be null
+     * @throws IOException          If the patch couldn't be parsed
+     * @throws InterruptedException If the thread was interrupted while waiting for the parser
+     * @throws FamiliarDbException  If something couldn't be inserted
+     */
+    private void writePatch(PatchDownloader.DownloadedPatch patch, BatchWriter writer, SQLiteDatabase database,
+                            boolean diff, PrintWriter logWriter)
+            throws IOException, InterruptedException, FamiliarDbException {
+        String setCode = patch.mEntry.mCode;
+        try {
+            if (diff && !writer.beginDiff(setCode)) {
+                /* The stored cards can't be matched up, so start over */
+                if (logWriter != null) {
+                    logWriter.write("Dropping expansion: " + setCode + '\n');
+                }
+                CardDbAdapter.dropSetAndCards(setCode, database);
+                diff = false;
+            }
+
+            final boolean replaceSet = diff;
+            patch.writeTo(new CardAndSetParser.PatchConsumer() {
+                @Override
+                public void onExpansion(Expansion expansion) throws FamiliarDbException {
+                    if (logWriter != null) {
+                        logWriter.write((replaceSet ? "Diffing expansion: " : "Adding expansion: ") +
+                                expansion.mCode_gatherer + '\n');
+                    }
+
+                    if (replaceSet) {
+                        writer.replaceSet(expansion);
+                    } else {
+                        writer.createSet(expansion);
+                    }
+                }
+
+                @Override
+                public void onCard(Card card) throws FamiliarDbException {
+                    writer.createCard(card);
+                    mProgress = patch.getProgress();
+                }
+            });
+
+            if (diff) {
+                writer.endDiff();
+                if (logWriter != null) {
+                    logWriter.write(setCode + ": " + writer.getDiffSummary() + '\n');
+                }
+            }
+        } finally {
+            /* If this stopped before the whole patch was written, stop parsing it too */
+            patch.cancel();
+        }
+    }
+
     /**
      * Show the notification in the status bar
      */
@@ -23,6 +23,7 @@ import android.content.Context;
 
 import com.gelakinetic.mtgfam.FamiliarActivity;
 import com.gelakinetic.mtgfam.R;
+import com.gelakinetic.mtgfam.helpers.ConditionalRequest;
 import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
 
 import java.io.BufferedReader;
@@ -68,13 +69,15 @@ class MTRIPGParser {
 
     /**
      * This method gets a new document from the web, compares it's date stamp to the one given in the constructor, and
-     * writes it to the device if it is newer
+     * writes it to the device if it is newer. The document isn't downloaded at all if it hasn't changed since it was
+     * last checked, unless the local file was missing
      *
      * @param mode Whether we are updating the IPG or MTR
      * @return True if the document was updated, false otherwise
      */
     public boolean performMtrIpgUpdateIfNeeded(final int mode, PrintWriter logWriter) {
         boolean updated = false;
+        boolean outputExisted = true;
 
         /* First, inflate local files if they do not exist */
         File output = null;
@@ -90,6 +93,7 @@ class MTRIPGParser {
         }
         try {
             if (output != null && !output.exists()) {
+                outputExisted = false;
                 switch (mode) {
                     case MODE_IPG:
                         parseDocument(mode, mContext.getResources().openRawResource(R.raw.ipg));
@@ -124,9 +128,12 @@ class MTRIPGParser {
                 default:
                     throw new FileNotFoundException("Invalid switch"); /* handled below */
             }
-            InputStream stream = FamiliarActivity.getHttpInputStream(urlString, logWriter, mContext);
+            /* If the local file was just inflated, the saved validators don't describe it */
+            ConditionalRequest request = new ConditionalRequest(urlString, outputExisted);
+            InputStream stream = FamiliarActivity.getHttpInputStream(request, logWriter, mContext);
             if (stream != null) {
                 updated = parseDocument(mode, stream);
+                request.commit(mContext);
             }
         } catch (IOException e) {
             if (logWriter != null) {
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2019 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.updaters;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * This class keeps downloaded patches in the cache directory, named by their manifest digest. A
+ * patch with the same digest has the same cards, so if an update fails after some patches were
+ * downloaded, or the database is replaced by the packaged one, they are read from here instead of
+ * downloaded again.
+ * <p>
+ * The cache is trimmed to MAX_CACHE_BYTES, least recently used first, after an update commits.
+ * Until then, nothing is evicted, so a failed update can always be retried from the cache. When
+ * each patch was last used is kept in an index file, since File.setLastModified() doesn't work on
+ * many Android filesystems.
+ */
+class PatchCache {
+
+    /* How big the cache can get after an update commits */
+    private static final long MAX_CACHE_BYTES = 32 * 1024 * 1024;
+
+    static final String CACHE_DIR = "patches";
+    private static final String EXTENSION = ".json.gz";
+    private static final String ACCESS_TIMES = "access_times.properties";
+
+    private final File mDirectory;
+    private final File mAccessTimesFile;
+
+    /* When each cached patch was last used, by file name. Loaded the first time it's needed */
+    private Properties mAccessTimes = null;
+
+    /**
+     * Constructor
+     *
+     * @param context A context to find the cache directory with
+     */
+    PatchCache(Context context) {
+        mDirectory = new File(context.getCacheDir(), CACHE_DIR);
+        mAccessTimesFile = new File(mDirectory, ACCESS_TIMES);
+    }
+
+    /**
+     * @param digest A patch's manifest digest
+     * @return true if a patch with this digest can be cached
+     */
+    static boolean isCacheable(@Nullable String digest) {
+        return null != digest && !digest.isEmpty();
+    }
+
+    /**
+     * Get the cache file for a digest. Digests which aren't safe file names are hex encoded
+     *
+     * @param digest A patch's manifest digest
+     * @return Where the patch with that digest is cached
+     */
+    private File getFile(String digest) {
+        String name = digest;
+        if (!digest.matches("[A-Za-z0-9]+")) {
+            StringBuilder hex = new StringBuilder();
+            for (char c : digest.toCharArray()) {
+                hex.append(String.format(Locale.US, "%04x", (int) c));
+            }
+            name = hex.toString();
+        }
+        return new File(mDirectory, name + EXTENSION);
+    }
+
+    /**
+     * Look for a cached patch, and mark it as recently used
+     *
+     * @param digest The patch's manifest digest
+     * @return The cached, still gzipped, patch, or null if it isn't cached
+     */
+    @Nullable
+    synchronized File get(@Nullable String digest) {
+        if (!isCacheable(digest)) {
+            return null;
+        }
+        File file = getFile(digest);
+        if (!file.exists()) {
+            return null;
+        }
+        markUsed(file);
+        return file;
+    }
+
+    /**
+     * Move a downloaded patch into the cache, if it's a complete gzip file
+     *
+     * @param digest     The patch's manifest digest
+     * @param downloaded The downloaded, still gzipped, patch
+     * @return The cached file, or the downloaded file if it couldn't be cached
+     */
+    synchronized File put(@Nullable String digest, File downloaded) {
+        if (!isCacheable(digest) || !isIntact(downloaded)) {
+            return downloaded;
+        }
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            return downloaded;
+        }
+        File file = getFile(digest);
+        if (downloaded.renameTo(file)) {
+            markUsed(file);
+            return file;
+        }
+        return downloaded;
+    }
+
+    /**
+     * @param file A patch file
+     * @return true if the file is in this cache, false if it's a temporary download
+     */
+    boolean contains(File file) {
+        return mDirectory.equals(file.getParentFile());
+    }
+
+    /**
+     * Remove a cached patch, i.e. when it turns out not to match its digest
+     *
+     * @param file The cached patch
+     */
+    synchronized void remove(File file) {
+        if (contains(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            getAccessTimes().remove(file.getName());
+            saveAccessTimes();
+        }
+    }
+
+    /**
+     * Delete the least recently used patches until the cache is no bigger than MAX_CACHE_BYTES.
+     * This should only be called once the patches used by an update are committed
+     */
+    synchronized void trim() {
+        File[] files = mDirectory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (null == files) {
+            return;
+        }
+
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+
+        /* Oldest first */
+        Arrays.sort(files, (a, b) -> {
+            long difference = getLastUsed(a) - getLastUsed(b);
+            return (difference < 0) ? -1 : ((difference > 0) ? 1 : 0);
+        });
+        Properties accessTimes = getAccessTimes();
+        for (File file : files) {
+            if (size <= MAX_CACHE_BYTES) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                size -= length;
+                accessTimes.remove(file.getName());
+            }
+        }
+
+        /* Forget patches which aren't cached anymore */
+        String[] remaining = mDirectory.list();
+        if (null != remaining) {
+            accessTimes.keySet().retainAll(Arrays.asList(remaining));
+        }
+        saveAccessTimes();
+    }
+
+    /**
+     * @return When each cached patch was last used, read from the index file the first time
+     */
+    private Properties getAccessTimes() {
+        if (null == mAccessTimes) {
+            mAccessTimes = new Properties();
+            if (mAccessTimesFile.exists()) {
+                try (InputStream stream = new FileInputStream(mAccessTimesFile)) {
+                    mAccessTimes.load(stream);
+                } catch (IOException e) {
+                    /* Start over, the patches fall back to their modification times */
+                    mAccessTimes.clear();
+                }
+            }
+        }
+        return mAccessTimes;
+    }
+
+    /**
+     * Write when each cached patch was last used to the index file. If it can't be written, the
+     * patches are evicted in a worse order, which is harmless
+     */
+    private void saveAccessTimes() {
+        try (OutputStream stream = new FileOutputStream(mAccessTimesFile)) {
+            getAccessTimes().store(stream, null);
+        } catch (IOException e) {
+            /* Couldn't save the access times, oh well */
+        }
+    }
+
+    /**
+     * Record that a cached patch was just used
+     *
+     * @param file The cached patch
+     */
+    private void markUsed(File file) {
+        getAccessTimes().setProperty(file.getName(), Long.toString(System.currentTimeMillis()));
+        saveAccessTimes();
+    }
+
+    /**
+     * @param file A cached patch
+     * @return When the patch was last used. Patches which were never recorded use their
+     * modification time, which is when they were downloaded
+     */
+    private long getLastUsed(File file) {
+        String lastUsed = getAccessTimes().getProperty(file.getName());
+        if (null != lastUsed) {
+            try {
+                return Long.parseLong(lastUsed);
+            } catch (NumberFormatException e) {
+                /* Fall through */
+            }
+        }
+        return file.lastModified();
+    }
+
+    /**
+     * Read through a gzip file, which checks its CRC and length, to make sure it was downloaded
+     * completely
+     *
+     * @param file The file to check
+     * @return true if the file is a complete gzip file, false otherwise
+     */
+    private static boolean isIntact(File file) {
+        try (InputStream stream = new GZIPInputStream(new FileInputStream(file))) {
+            byte[] buffer = new byte[8192];
+            //noinspection StatementWithEmptyBody
+            while (stream.read(buffer) != -1) {
+                /* Just read it */
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
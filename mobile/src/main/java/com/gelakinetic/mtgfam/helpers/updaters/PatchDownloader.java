@@ -0,0 +1,473 @@
+/*
+ * Copyright 2019 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.updaters;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.gelakinetic.GathererScraper.JsonTypes.BinaryPatch;
+import com.gelakinetic.GathererScraper.JsonTypes.Card;
+import com.gelakinetic.GathererScraper.JsonTypes.Expansion;
+import com.gelakinetic.GathererScraper.JsonTypes.Manifest;
+import com.gelakinetic.mtgfam.FamiliarActivity;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * This class downloads patches on a small pool of threads, so a fresh install isn't waiting on one
+ * network round trip at a time. Each patch is saved to the cache directory, then streamed to the
+ * writer one card at a time through a small queue. Patches are handed back in manifest order, so a
+ * single thread can write them to the database, and only a handful of cards are in memory at once.
+ * <p>
+ * Complete downloads are kept in a PatchCache, so a patch which was already downloaded once isn't
+ * downloaded again.
+ */
+class PatchDownloader implements Closeable {
+
+    /* How many patches to download at once */
+    static final int MAX_CONCURRENT_DOWNLOADS = 4;
+
+    /* How many times to try downloading a patch, and how long to wait before the first retry.
+     * The wait doubles after every failed attempt
+     */
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long INITIAL_BACKOFF_MS = 1000;
+
+    /* How many parsed cards can wait for the writer before the parser blocks */
+    private static final int CARD_QUEUE_CAPACITY = 64;
+
+    /* Put in a patch's queue after the last card */
+    private static final Object END_OF_PATCH = new Object();
+
+    /**
+     * A patch which was downloaded, and is being parsed for the writer
+     */
+    static class DownloadedPatch implements CardAndSetParser.PatchConsumer {
+        final Manifest.ManifestEntry mEntry;
+        private final File mFile;
+        private final long mLength;
+        private final PatchCache mCache;
+
+        /* Expansions and cards which were parsed, but not written yet, then END_OF_PATCH */
+        private final BlockingQueue<Object> mQueue = new ArrayBlockingQueue<>(CARD_QUEUE_CAPACITY);
+        private volatile long mBytesParsed = 0;
+        private volatile Throwable mError = null;
+        private volatile boolean mDigestMismatch = false;
+        private final boolean mBinary;
+        private Future<?> mParsing;
+
+        DownloadedPatch(Manifest.ManifestEntry entry, File file, PatchCache cache, boolean binary) {
+            mEntry = entry;
+            mFile = file;
+            mLength = file.length();
+            mCache = cache;
+            mBinary = binary;
+        }
+
+        @Override
+        public void onExpansion(Expansion expansion) throws InterruptedException {
+            /* A cached patch is only good for the digest it was cached under */
+            if (PatchCache.isCacheable(mEntry.mDigest) && !mEntry.mDigest.equals(expansion.mDigest)) {
+                mDigestMismatch = true;
+            }
+            mQueue.put(expansion);
+        }
+
+        @Override
+        public void onCard(Card card) throws InterruptedException {
+            mQueue.put(card);
+        }
+
+        /**
+         * @return How much of the patch has been parsed, from 0 to 100
+         */
+        int getProgress() {
+            if (0 == mLength) {
+                return 100;
+            }
+            return (int) (100 * mBytesParsed / mLength);
+        }
+
+        /**
+         * Hand every expansion and card in this patch to the writer, in order, as they are parsed.
+         * This is called on the writer's thread. Afterwards, the patch is left in the cache for the
+         * next update, unless it couldn't be parsed or didn't match its digest.
+         *
+         * @param writer Where to write the expansions and cards
+         * @throws IOException          If the patch couldn't be parsed. Some cards may have been
+         *                              written before the problem was found
+         * @throws InterruptedException If the thread was interrupted while waiting for a card
+         * @throws FamiliarDbException  If the writer couldn't write something
+         */
+        void writeTo(CardAndSetParser.PatchConsumer writer)
+                throws IOException, InterruptedException, FamiliarDbException {
+            try {
+                Object item;
+                while ((item = mQueue.take()) != END_OF_PATCH) {
+                    if (item instanceof Expansion) {
+                        writer.onExpansion((Expansion) item);
+                    } else {
+                        writer.onCard((Card) item);
+                    }
+                }
+            } finally {
+                /* If the writer stopped early, stop the parser too */
+                cancel();
+            }
+            if (null != mError) {
+                throw new IOException(mError);
+            }
+        }
+
+        /**
+         * @return true if this was a binary patch which couldn't be parsed, so the JSON patch for
+         * the same set should be downloaded instead. Only valid once writeTo() has thrown
+         */
+        boolean shouldFallBackToJson() {
+            return mBinary && null != mError;
+        }
+
+        /**
+         * Stop parsing this patch, and clean up its file. The parser blocks when the writer falls
+         * behind, so this must be called if the patch won't be written, otherwise the parser
+         * thread never finishes and the next patch is never parsed. Calling it more than once is
+         * harmless
+         */
+        void cancel() {
+            mParsing.cancel(true);
+            if (!mCache.contains(mFile)) {
+                //noinspection ResultOfMethodCallIgnored
+                mFile.delete();
+            } else if (null != mError || mDigestMismatch) {
+                mCache.remove(mFile);
+            }
+        }
+    }
+
+    private final Context mContext;
+    private final List<Manifest.ManifestEntry> mEntries;
+    private final PrintWriter mLogWriter;
+    private final CardAndSetParser mParser = new CardAndSetParser();
+    private final PatchCache mCache;
+    private final long mInitialBackoffMs;
+
+    /* Downloads which have been started, in manifest order. Only a few more than the number of
+     * threads are queued, so downloaded patches don't pile up while the writer is busy
+     */
+    private final ExecutorService mExecutor;
+    private final ArrayDeque<Future<File>> mPending = new ArrayDeque<>();
+    private final int mMaxPending;
+    private int mNextToSubmit = 0;
+    private int mNextToReturn = 0;
+
+    /* Parses one patch at a time for the writer */
+    private final ExecutorService mParserExecutor;
+
+    /**
+     * Constructor
+     *
+     * @param context   A context to build the User Agent and find the cache directory with
+     * @param entries   The patches to download, in the order they should be returned
+     * @param logWriter A writer to print debug statements when things go wrong, can be null
+     */
+    PatchDownloader(Context context, List<Manifest.ManifestEntry> entries, @Nullable PrintWriter logWriter) {
+        this(context, entries, logWriter, MAX_CONCURRENT_DOWNLOADS, INITIAL_BACKOFF_MS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context          A context to build the User Agent and find the cache directory with
+     * @param entries          The patches to download, in the order they should be returned
+     * @param logWriter        A writer to print debug statements when things go wrong, can be null
+     * @param threads          How many patches to download at once
+     * @param initialBackoffMs How long to wait before retrying a failed download the first time
+     */
+    PatchDownloader(Context context, List<Manifest.ManifestEntry> entries, @Nullable PrintWriter logWriter,
+                    int threads, long initialBackoffMs) {
+        mContext = context;
+        mEntries = entries;
+        mLogWriter = logWriter;
+        mInitialBackoffMs = initialBackoffMs;
+        mCache = new PatchCache(context);
+        mExecutor = Executors.newFixedThreadPool(threads);
+        mParserExecutor = Executors.newSingleThreadExecutor();
+        mMaxPending = threads * 2;
+    }
+
+    /**
+     * Wait for the next patch in manifest order, and start parsing it. Downloads for the patches
+     * after it keep running in the background while the caller writes this one.
+     *
+     * @return The downloaded patch, or null if it couldn't be downloaded
+     * @throws InterruptedException If the thread was interrupted while waiting for the download
+     */
+    @Nullable
+    DownloadedPatch next() throws InterruptedException {
+        while (mPending.size() < mMaxPending && mNextToSubmit < mEntries.size()) {
+            Manifest.ManifestEntry entry = mEntries.get(mNextToSubmit++);
+            mPending.add(mExecutor.submit(() -> download(entry, true)));
+        }
+
+        Future<File> future = mPending.poll();
+        if (null == future) {
+            throw new NoSuchElementException();
+        }
+        Manifest.ManifestEntry entry = mEntries.get(mNextToReturn++);
+        File file;
+        try {
+            file = future.get();
+        } catch (ExecutionException e) {
+            if (mLogWriter != null) {
+                e.printStackTrace(mLogWriter);
+            }
+            return null;
+        }
+        if (null == file) {
+            return null;
+        }
+        return startParsing(entry, file, isBinary(file));
+    }
+
+    /**
+     * Download the JSON patch for a set, skipping the binary one and the cache, and start parsing
+     * it. This is for when a binary patch couldn't be parsed, and blocks until the download is
+     * done. The patch returned by next() before this must be written or cancelled first
+     *
+     * @param entry The set to download the JSON patch for
+     * @return The downloaded patch, or null if it couldn't be downloaded
+     * @throws InterruptedException If the thread was interrupted while waiting to retry
+     */
+    @Nullable
+    DownloadedPatch downloadJson(Manifest.ManifestEntry entry) throws InterruptedException {
+        File file = download(entry, false);
+        if (null == file) {
+            return null;
+        }
+        return startParsing(entry, file, false);
+    }
+
+    /**
+     * Start parsing a downloaded patch on the parser thread
+     *
+     * @param entry  The patch's manifest entry
+     * @param file   The downloaded, still gzipped, patch
+     * @param binary true if the patch is in the binary format
+     * @return The patch, which can be written as it is parsed
+     */
+    private DownloadedPatch startParsing(Manifest.ManifestEntry entry, File file, boolean binary) {
+        DownloadedPatch patch = new DownloadedPatch(entry, file, mCache, binary);
+        patch.mParsing = mParserExecutor.submit(() -> parse(patch));
+        return patch;
+    }
+
+    /**
+     * @param file A downloaded, still gzipped, patch
+     * @return true if the patch starts with the binary format's magic bytes
+     */
+    private static boolean isBinary(File file) {
+        byte[] magic = new byte[BinaryPatch.MAGIC.length];
+        try (InputStream stream = new GZIPInputStream(new FileInputStream(file))) {
+            int read = 0;
+            while (read < magic.length) {
+                int length = stream.read(magic, read, magic.length - read);
+                if (length < 0) {
+                    return false;
+                }
+                read += length;
+            }
+            return Arrays.equals(magic, BinaryPatch.MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stop any downloads which are still running, and delete patches which were never written.
+     * Patches in the cache are left there
+     */
+    @Override
+    public void close() {
+        mExecutor.shutdownNow();
+        mParserExecutor.shutdownNow();
+        for (Future<File> future : mPending) {
+            if (future.isDone() && !future.isCancelled()) {
+                try {
+                    File file = future.get();
+                    if (null != file && !mCache.contains(file)) {
+                        //noinspection ResultOfMethodCallIgnored
+                        file.delete();
+                    }
+                } catch (ExecutionException | InterruptedException e) {
+                    /* Nothing was saved */
+                }
+            }
+        }
+        mPending.clear();
+    }
+
+    /**
+     * Download a single patch to the cache directory, retrying with exponential backoff if it
+     * fails. If the patch is already in the PatchCache, it isn't downloaded at all. This is called
+     * on one of the download threads.
+     *
+     * @param entry       The patch to download
+     * @param allowBinary true to use the cache or the binary patch if they're available, false to
+     *                    always download the JSON patch
+     * @return The downloaded, still gzipped, patch, or null if every attempt failed
+     * @throws InterruptedException If the download was cancelled while waiting to retry
+     */
+    @Nullable
+    private File download(Manifest.ManifestEntry entry, boolean allowBinary) throws InterruptedException {
+        File cached = allowBinary ? mCache.get(entry.mDigest) : null;
+        if (null != cached) {
+            if (mLogWriter != null) {
+                mLogWriter.print("Cached " + entry.mName + "\n");
+            }
+            return cached;
+        }
+
+        /* Prefer the binary patch, if there is one this version can read */
+        String url = entry.mURL;
+        if (allowBinary && null != entry.mBinaryURL && entry.mBinaryVersion >= 1 && entry.mBinaryVersion <= BinaryPatch.VERSION) {
+            url = entry.mBinaryURL;
+        }
+
+        long backoffMs = mInitialBackoffMs;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            File file = null;
+            try {
+                InputStream streamToRead = FamiliarActivity.getHttpInputStream(url, mLogWriter, mContext);
+                if (streamToRead != null) {
+                    try {
+                        file = File.createTempFile("patch", ".json.gz", mContext.getCacheDir());
+                        FileOutputStream fos = new FileOutputStream(file);
+                        try {
+                            byte[] buffer = new byte[8192];
+                            int length;
+                            while ((length = streamToRead.read(buffer)) > 0) {
+                                fos.write(buffer, 0, length);
+                            }
+                        } finally {
+                            fos.close();
+                        }
+                        return mCache.put(entry.mDigest, file);
+                    } finally {
+                        streamToRead.close();
+                    }
+                }
+            } catch (IOException e) {
+                if (mLogWriter != null) {
+                    e.printStackTrace(mLogWriter);
+                }
+                if (null != file) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+
+            /* If the binary patch couldn't be downloaded, fall back to the JSON one */
+            url = entry.mURL;
+
+            if (attempt < MAX_ATTEMPTS) {
+                if (mLogWriter != null) {
+                    mLogWriter.print("Retry " + entry.mName + " in " + backoffMs + "ms\n");
+                }
+                Thread.sleep(backoffMs);
+                backoffMs *= 2;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse a downloaded patch, putting each expansion and card in its queue for the writer. This
+     * is called on the parser thread, and blocks whenever the writer falls behind.
+     *
+     * @param patch The patch to parse
+     */
+    private void parse(DownloadedPatch patch) {
+        boolean interrupted = false;
+        try {
+            InputStream fileStream = new FilterInputStream(new FileInputStream(patch.mFile)) {
+                @Override
+                public int read() throws IOException {
+                    int read = super.read();
+                    if (read >= 0) {
+                        patch.mBytesParsed++;
+                    }
+                    return read;
+                }
+
+                @Override
+                public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+                    int read = super.read(buffer, offset, length);
+                    if (read > 0) {
+                        patch.mBytesParsed += read;
+                    }
+                    return read;
+                }
+            };
+            try {
+                mParser.readPatchStream(new GZIPInputStream(fileStream), patch);
+            } finally {
+                fileStream.close();
+            }
+        } catch (InterruptedException e) {
+            /* The writer gave up on this patch, so nobody is waiting for the end of it */
+            interrupted = true;
+        } catch (IOException | RuntimeException | FamiliarDbException e) {
+            /* Malformed JSON is a RuntimeException. Either way, let the writer know */
+            patch.mError = e;
+        } catch (Error e) {
+            /* Let the writer fail this patch before the error takes the parser thread down */
+            patch.mError = e;
+            throw e;
+        } finally {
+            if (!interrupted) {
+                try {
+                    patch.mQueue.put(END_OF_PATCH);
+                } catch (InterruptedException e) {
+                    /* The writer gave up on this patch */
+                }
+            }
+        }
+    }
+}
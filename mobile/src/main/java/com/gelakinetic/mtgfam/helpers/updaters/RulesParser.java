@@ -22,16 +22,19 @@ package com.gelakinetic.mtgfam.helpers.updaters;
 import android.content.Context;
 
 import com.gelakinetic.mtgfam.FamiliarActivity;
+import com.gelakinetic.mtgfam.helpers.ConditionalRequest;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.text.DateFormat;
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 
 class RulesParser {
 
@@ -44,13 +47,21 @@ class RulesParser {
     @SuppressWarnings("SpellCheckingInspection")
     private static final String EOF_TOKEN = "EOF_VERYLONGSTRINGOFLETTERSUNLIKELYTOBEFOUNDINTHEACTUALRULES";
 
+    /* Symbols which are written differently in the rules than in the app */
+    private static final HashMap<String, String> SYMBOL_REWRITES = new HashMap<>();
+
+    static {
+        SYMBOL_REWRITES.put("{PW}", "{PWK}");
+        SYMBOL_REWRITES.put("{P/W}", "{PW}");
+        SYMBOL_REWRITES.put("{W/P}", "{WP}");
+    }
+
     /* Instance variables */
     private final Date mLastUpdated;
     private final RulesProgressReporter mProgressReporter;
-    private final ArrayList<RuleItem> mRules;
-    private final ArrayList<GlossaryItem> mGlossary;
     private InputStream mInputStream;
     private BufferedReader mBufferedReader;
+    private ConditionalRequest mRequest;
 
     /**
      * Default Constructor
@@ -63,15 +74,13 @@ class RulesParser {
         this.mInputStream = null;
         this.mBufferedReader = null;
         this.mProgressReporter = progressReport;
-
-        this.mRules = new ArrayList<>();
-        this.mGlossary = new ArrayList<>();
     }
 
     /**
      * Attempts to get the URL for the latest version of the rules and determine if an update is necessary. If it finds
      * the file and its date is newer than this.mLastUpdated, true will be returned. Otherwise, it will return false. If
-     * true is returned, this.rulesUrl will be populated.
+     * true is returned, this.rulesUrl will be populated. If the file hasn't changed since the rules were last loaded,
+     * the server doesn't send it at all, and false is returned.
      *
      * @param context a context to open the HttpInputStream with
      * @return Whether or this the rules need updating.
@@ -79,14 +88,18 @@ class RulesParser {
     public boolean needsToUpdate(Context context, PrintWriter logWriter) {
 
         try {
-            this.mInputStream = FamiliarActivity.getHttpInputStream(SOURCE, logWriter, context);
+            this.mRequest = new ConditionalRequest(SOURCE);
+            this.mInputStream = FamiliarActivity.getHttpInputStream(this.mRequest, logWriter, context);
+            if (this.mRequest.isNotModified()) {
+                return false;
+            }
             if (this.mInputStream == null) {
                 throw new IOException("No Stream");
             }
             this.mBufferedReader = new BufferedReader(new InputStreamReader(mInputStream));
 
             /*First line will be the date formatted as YYYY-MM-DD */
-            String line = this.mBufferedReader.readLine();
+            String line = nextLine();
             String[] parts = line.split("-");
             Calendar c = Calendar.getInstance();
             c.clear();
@@ -101,6 +114,8 @@ class RulesParser {
             if (c.getTime().after(this.mLastUpdated)) {
                 return true;
             } else {
+                /* These rules were already loaded, no need to download them again */
+                this.mRequest.commit(context);
                 closeReader(logWriter);
                 return false;
             }
@@ -114,13 +129,28 @@ class RulesParser {
     }
 
     /**
-     * Attempts to fetch the latest version of the rules and load it into the database. If the process is successful,
-     * true will be returned. Otherwise, false will be returned. This method should only be called if needsToUpdate()
-     * returns true.
+     * Once the rules have been loaded into the database, save the validators for the rules file, so it isn't
+     * downloaded again until it changes
+     *
+     * @param context a context to save the validators with
+     */
+    public void commitValidators(Context context) {
+        if (null != this.mRequest) {
+            this.mRequest.commit(context);
+        }
+    }
+
+    /**
+     * Attempts to fetch the latest version of the rules and hand each rule and glossary term to the consumer as soon
+     * as it's parsed, so the whole document is never in memory at once. If the process is successful, true will be
+     * returned. Otherwise, false will be returned. This method should only be called if needsToUpdate() returns true.
      *
+     * @param consumer  Where to write each rule and glossary term
+     * @param logWriter A writer to print debug statements when things go wrong
      * @return Whether or not the parsing is successful
+     * @throws FamiliarDbException If the consumer couldn't write something
      */
-    public boolean parseRules(PrintWriter logWriter) {
+    public boolean parseRules(RulesConsumer consumer, PrintWriter logWriter) throws FamiliarDbException {
         if (this.mBufferedReader == null) {
             /* This should only be the case if we called parseRules() before needsToUpdate()
              * or if needsToUpdate() returned false */
@@ -128,38 +158,40 @@ class RulesParser {
         }
 
         try {
-            RuleItem currentRule = null;
-            GlossaryItem currentTerm = null;
+            /* The rule or glossary term being read, which may span several lines */
+            int category = 0;
+            int subcategory = 0;
+            String entry = null;
+            StringBuilder text = null;
             int position = -1;
-            this.mRules.clear();
-            this.mGlossary.clear();
+            String term = null;
+
+            mProgressReporter.reportRulesProgress(0);
 
-            String line = this.mBufferedReader.readLine().trim();
+            String line = nextLine();
             while (!line.equals(RULES_TOKEN)) {
                 /* Burn through lines until we hit the rules token */
-                line = mBufferedReader.readLine().trim();
+                line = nextLine();
             }
 
-            line = mBufferedReader.readLine(); /* Step past the token */
+            line = nextLine(); /* Step past the token */
 
             while (!line.equals(GLOSSARY_TOKEN)) {
                 /* Parse the line */
                 if (line.length() == 0) {
-                    if (currentRule != null) {
-                        /* Rule is over and we have one; add it to the list and null it */
-                        this.mRules.add(currentRule);
-                        currentRule = null;
+                    if (text != null) {
+                        /* Rule is over and we have one; write it and null it */
+                        consumer.onRule(category, subcategory, entry, text.toString(), position);
+                        text = null;
                     }
                 } else {
                     if (Character.isDigit(line.charAt(0))) {
                         /* If the line starts with a number, it's the start of a rule */
-                        int category, subcategory;
-                        String entry, text;
-
-                        String numberToken = line.split(" ")[0];
-                        String[] subTokens = numberToken.split("\\.");
+                        int spaceIdx = line.indexOf(' ');
+                        String numberToken = (spaceIdx < 0) ? line : line.substring(0, spaceIdx);
+                        int dotIdx = numberToken.indexOf('.');
 
-                        int rawCategory = Integer.parseInt(subTokens[0]);
+                        int rawCategory = Integer.parseInt((dotIdx < 0) ? numberToken : numberToken.substring(0, dotIdx));
                         if (rawCategory >= 100) {
                             category = rawCategory / 100;
                             subcategory = rawCategory % 100;
@@ -168,63 +200,82 @@ class RulesParser {
                             subcategory = -1;
                         }
 
-                        if (subTokens.length > 1) {
-                            entry = subTokens[1];
+                        if (dotIdx >= 0 && dotIdx < numberToken.length() - 1) {
+                            entry = numberToken.substring(dotIdx + 1);
+                            int nextDotIdx = entry.indexOf('.');
+                            if (nextDotIdx >= 0) {
+                                entry = entry.substring(0, nextDotIdx);
+                            }
                         } else {
                             entry = null;
                         }
 
-                        text = line.substring(numberToken.length()).trim();
-                        text = text.replace("{PW}", "{PWK}").replace("{P/W}", "{PW}").replace("{W/P}", "{WP}");
-
                         if (entry == null) {
                             position = -1;
                         } else {
                             position++;
                         }
 
-                        currentRule = new RuleItem(category, subcategory, entry, text, position);
+                        text = new StringBuilder(rewriteSymbols(line.substring(numberToken.length()).trim()));
+
+                        /* The rules are in category order, 1 through 9, and the glossary comes after */
+                        mProgressReporter.reportRulesProgress(Math.min(90, Math.max(0, category * 10)));
                     } else {
-                        if (currentRule != null) {
-                            currentRule.addExample(line.replace("{PW}", "{PWK}").replace("{P/W}", "{PW}")
-                                    .replace("{W/P}", "{WP}"));
+                        if (text != null) {
+                            /* Adds line breaks and an example to the text */
+                            text.append("<br><br>").append(rewriteSymbols(line).trim());
                         }
                     }
                 }
 
                 /* Then move to the next line */
-                line = mBufferedReader.readLine().trim();
+                line = nextLine();
+            }
+            if (text != null) {
+                /* Rules are over but we still have one; write it */
+                consumer.onRule(category, subcategory, entry, text.toString(), position);
+                text = null;
             }
 
-            line = mBufferedReader.readLine().trim(); /* Step past the token */
+            line = nextLine(); /* Step past the token */
 
             while (!line.equals(EOF_TOKEN)) {
                 /* Parse the line */
                 if (line.length() == 0) {
-                    if (currentTerm != null) {
-                        /* Term is over and we have one; add it to the list and null it */
-                        mGlossary.add(currentTerm);
-                        currentTerm = null;
+                    if (term != null) {
+                        /* Term is over and we have one; write it and null it */
+                        consumer.onGlossaryTerm(term, text.toString());
+                        term = null;
                     }
                 } else {
-                    if (currentTerm == null) {
-                        currentTerm = new GlossaryItem(line);
+                    if (term == null) {
+                        term = line;
+                        text = new StringBuilder();
+
+                        /* The glossary is in alphabetical order */
+                        char first = Character.toUpperCase(term.charAt(0));
+                        if (first >= 'A' && first <= 'Z') {
+                            mProgressReporter.reportRulesProgress(90 + (10 * (first - 'A')) / 26);
+                        }
                     } else {
-                        currentTerm.addDefinitionLine(line.replace("{PW}", "{PWK}").replace("{P/W}", "{PW}")
-                                .replace("{W/P}", "{WP}"));
+                        if (text.length() > 0) {
+                            text.append("<br>");
+                        }
+                        text.append(rewriteSymbols(line).trim());
                     }
                 }
 
                 /* Then move to the next line */
-                line = mBufferedReader.readLine().trim();
+                line = nextLine();
             }
-            if (currentTerm != null) {
-                /* Document is over but we still have a term; add it to the list */
-                mGlossary.add(currentTerm);
+            if (term != null) {
+                /* Document is over but we still have a term; write it */
+                consumer.onGlossaryTerm(term, text.toString());
             }
 
+            mProgressReporter.reportRulesProgress(100);
             return true;
-        } catch (IOException e) {
+        } catch (IOException | NumberFormatException e) {
             if (logWriter != null) {
                 e.printStackTrace(logWriter);
             }
@@ -235,28 +286,48 @@ class RulesParser {
     }
 
     /**
-     * Loads in the rules and glossary to the database, updating the count as it goes. The expected usage is that the
-     * main activity will have a progress dialog that gets updated as the count does.
+     * Rewrite the mana symbols whose meaning differs between the rules and the app in one pass. {PW} is a
+     * planeswalker in the app, so it becomes {PWK}, then the Phyrexian hybrid {P/W} and {W/P} become {PW} and {WP}
      *
-     * @param rulesToAdd         A place to store rules before inserting into the database
-     * @param glossaryItemsToAdd A place to store glossary items vefore inserting into the database
+     * @param line A line of the rules
+     * @return The line, with symbols rewritten
      */
-    public void loadRulesAndGlossary(ArrayList<RuleItem> rulesToAdd, ArrayList<GlossaryItem> glossaryItemsToAdd) {
-        int numTotalElements = mRules.size() + mGlossary.size();
-        int elementsParsed = 0;
-        mProgressReporter.reportRulesProgress((int) Math.round(100 * elementsParsed / (double) numTotalElements));
-
-        for (RuleItem rule : mRules) {
-            rulesToAdd.add(rule);
-            elementsParsed++;
-            mProgressReporter.reportRulesProgress((int) Math.round(100 * elementsParsed / (double) numTotalElements));
+    static String rewriteSymbols(String line) {
+        int open = line.indexOf('{');
+        if (open < 0) {
+            return line;
+        }
+
+        StringBuilder rewritten = new StringBuilder(line.length() + 8);
+        int copied = 0;
+        while (open >= 0) {
+            int close = line.indexOf('}', open);
+            if (close < 0) {
+                break;
+            }
+            String replacement = SYMBOL_REWRITES.get(line.substring(open, close + 1));
+            if (replacement != null) {
+                rewritten.append(line, copied, open).append(replacement);
+                copied = close + 1;
+            }
+            open = line.indexOf('{', close + 1);
         }
+        return rewritten.append(line, copied, line.length()).toString();
+    }
 
-        for (GlossaryItem term : mGlossary) {
-            glossaryItemsToAdd.add(term);
-            elementsParsed++;
-            mProgressReporter.reportRulesProgress((int) Math.round(100 * elementsParsed / (double) numTotalElements));
+    /**
+     * Read the next line of the rules document
+     *
+     * @return The next line, trimmed
+     * @throws IOException If the line couldn't be read, or the document ended before the token
+     *                     being looked for
+     */
+    private String nextLine() throws IOException {
+        String line = mBufferedReader.readLine();
+        if (line == null) {
+            throw new EOFException("The rules document ended early");
         }
+        return line.trim();
     }
 
     /**
@@ -285,67 +356,24 @@ class RulesParser {
     }
 
     /**
-     * Nested class which encapsulates all necessary information about a rule
-     */
-    class RuleItem {
-        public final int category;
-        public final int subcategory;
-        public final String entry;
-        public final int position;
-        public String text;
-
-        /**
-         * Constructor which populates the rule
-         *
-         * @param category    self-explanatory
-         * @param subcategory self-explanatory
-         * @param entry       self-explanatory
-         * @param text        self-explanatory
-         * @param position    self-explanatory
-         */
-        RuleItem(int category, int subcategory, String entry, String text, int position) {
-            this.category = category;
-            this.subcategory = subcategory;
-            this.entry = entry;
-            this.text = text;
-            this.position = position;
-        }
-
-        /**
-         * Adds line breaks and an example to the text
-         *
-         * @param example self-explanatory
-         */
-        void addExample(String example) {
-            this.text += "<br><br>" + example.trim();
-        }
-    }
-
-    /**
-     * Nested class which encapsulates all necessary information about a glossary entry
+     * Something which is handed each rule and glossary term as it's parsed, usually to write it to the database
      */
-    class GlossaryItem {
-        public final String term;
-        public String definition;
-
+    public interface RulesConsumer {
         /**
-         * Default constructor
-         *
-         * @param term The Glossary term
+         * @param category    The integer category
+         * @param subcategory The integer subcategory, or -1 for none
+         * @param entry       The title of the rule, or null
+         * @param text        The text of the rule, with any examples
+         * @param position    The rule's position, or -1 for none
+         * @throws FamiliarDbException If the rule couldn't be written
          */
-        GlossaryItem(String term) {
-            this.term = term;
-            this.definition = "";
-        }
+        void onRule(int category, int subcategory, String entry, String text, int position) throws FamiliarDbException;
 
         /**
-         * @param line The Glossary Definition
+         * @param term       The glossary term
+         * @param definition The definition of the term
+         * @throws FamiliarDbException If the term couldn't be written
          */
-        void addDefinitionLine(String line) {
-            if (this.definition.length() > 0) {
-                this.definition += "<br>";
-            }
-            this.definition += line.trim();
-        }
+        void onGlossaryTerm(String term, String definition) throws FamiliarDbException;
     }
 }